@@ -7,6 +7,16 @@
 -keep class com.tgwgroup.MiRearScreenSwitcher.ITaskService { *; }
 -keep class com.tgwgroup.MiRearScreenSwitcher.ITaskService$Stub { *; }
 -keep class com.tgwgroup.MiRearScreenSwitcher.ITaskService$Stub$Proxy { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.ITaskWatcherCallback { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.ITaskWatcherCallback$Stub { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.ITaskWatcherCallback$Stub$Proxy { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.IRecordingCallback { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.IRecordingCallback$Stub { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.IRecordingCallback$Stub$Proxy { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.TaskStackSnapshot { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.BatchStep { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.BatchReport { *; }
+-keep class com.tgwgroup.MiRearScreenSwitcher.RecordingProfile { *; }
 
 # TaskService
 -keep class com.tgwgroup.MiRearScreenSwitcher.TaskService { *; }
@@ -0,0 +1,136 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * V4.0: DisplayDumpParser 正确性与耗时基准
+ *
+ * 夹具 assets/dumpsys_display.txt 按背屏机型 dumpsys display 的格式整理（mViewports 在前，
+ * Display Devices 之后还有上千行亮度/模式记录）。
+ * 基准对比"只解析背屏（读完即停）"与"读到结尾"的行数和耗时，结果写入logcat（tag DumpParserBench）。
+ */
+@RunWith(AndroidJUnit4.class)
+public class DisplayDumpParserBenchmarkTest {
+    private static final String TAG = "DumpParserBench";
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    private static String dump;
+
+    @BeforeClass
+    public static void loadFixture() throws Exception {
+        try (InputStream in = InstrumentationRegistry.getInstrumentation().getContext()
+                .getAssets().open("dumpsys_display.txt")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            dump = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void parsesRearDisplay() throws Exception {
+        DisplayDumpParser parser = DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), 1);
+        List<RearDisplayHelper.RearDisplayInfo> infos = RearDisplayHelper.collectDisplays(parser, 1);
+
+        assertEquals(1, infos.size());
+        RearDisplayHelper.RearDisplayInfo info = infos.get(0);
+        assertEquals(1, info.displayId);
+        assertEquals("local:4630946949513469332", info.uniqueId);
+        assertEquals(904, info.width);
+        assertEquals(572, info.height);
+        assertEquals(450, info.densityDpi);
+        assertEquals(new Rect(296, 0, 0, 0), info.cutout);
+    }
+
+    @Test
+    public void parsesAllDisplays() throws Exception {
+        DisplayDumpParser parser = DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), -1);
+        List<RearDisplayHelper.RearDisplayInfo> infos = RearDisplayHelper.collectDisplays(parser, -1);
+
+        assertFalse(parser.isStoppedEarly());
+        assertEquals(2, infos.size());
+        assertEquals(0, infos.get(0).displayId);
+        assertEquals(1200, infos.get(0).width);
+        assertEquals(560, infos.get(0).densityDpi);
+        assertEquals(new Rect(0, 128, 0, 0), infos.get(0).cutout);
+    }
+
+    @Test
+    public void dumpResultRoundTrip() throws Exception {
+        DisplayDumpParser parser = DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), 1);
+        List<RearDisplayHelper.RearDisplayInfo> infos =
+            RearDisplayHelper.fromDumpResult(RearDisplayHelper.toDumpResult(parser, 1));
+
+        assertEquals(1, infos.size());
+        assertEquals("local:4630946949513469332", infos.get(0).uniqueId);
+        assertNotNull(infos.get(0).cutout);
+        assertTrue(infos.get(0).hasCutout());
+    }
+
+    @Test
+    public void benchmarkEarlyStop() throws Exception {
+        int totalLines = dump.split("\n", -1).length - 1;
+
+        long targetNs = measure(1);
+        long fullNs = measure(-1);
+
+        DisplayDumpParser target = DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), 1);
+        Log.i(TAG, "背屏: " + target.getLinesRead() + "/" + totalLines + "行, 平均" + targetNs / 1000 + "us; "
+            + "全部: " + totalLines + "行, 平均" + fullNs / 1000 + "us");
+
+        // 行数是确定的，耗时只记录不断言（设备负载会让耗时抖动）
+        assertTrue(target.isStoppedEarly());
+        assertTrue("读完背屏区块就应停止", target.getLinesRead() * 4 < totalLines);
+    }
+
+    private static long measure(int targetDisplayId) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), targetDisplayId);
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DisplayDumpParser.parse(new BufferedReader(new StringReader(dump)), targetDisplayId);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RenderNode;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+
+/**
+ * V4.0: LightningShapeView 每帧分配与绘制耗时基准（不依赖窗口，无需背屏）
+ *
+ * 在主线程把视图录制到 Picture（软件录制Canvas）和 RenderNode（API 29+，硬件录制Canvas，
+ * 会走已录制的玻璃图层）里，每帧推进波浪相位和重力倾斜，统计 view.draw 期间本线程的分配次数
+ * 和录制耗时，结果写入logcat（tag LightningBench）。
+ * onDraw 约定不分配对象，分配次数是确定的所以断言为0；耗时受设备负载影响，只记录不断言。
+ */
+@RunWith(AndroidJUnit4.class)
+public class LightningShapeViewBenchmarkTest {
+    private static final String TAG = "LightningBench";
+    private static final int WARMUP = 30;
+    private static final int FRAMES = 300;
+
+    // 背屏全屏充电动画 / 闪电图标的尺寸
+    private static final int FULL_SCREEN_WIDTH = 904;
+    private static final int FULL_SCREEN_HEIGHT = 572;
+    private static final int ICON_SIZE = 320;
+
+    private static class FrameStats {
+        long allocCount;
+        long totalNs;
+        long maxNs;
+
+        @Override
+        public String toString() {
+            return String.format("平均=%.3fms, 最长=%.3fms, 分配=%d次/%d帧",
+                totalNs / (float) FRAMES / 1_000_000f, maxNs / 1_000_000f, allocCount, FRAMES);
+        }
+    }
+
+    @Test
+    public void benchmarkFullScreenLiquid() throws Exception {
+        runBenchmark("全屏液体", true, FULL_SCREEN_WIDTH, FULL_SCREEN_HEIGHT);
+    }
+
+    @Test
+    public void benchmarkLightningShape() throws Exception {
+        runBenchmark("闪电容器", false, ICON_SIZE, ICON_SIZE);
+    }
+
+    private void runBenchmark(String name, boolean fullScreen, int width, int height) throws Exception {
+        FrameStats[] picture = new FrameStats[1];
+        FrameStats[] renderNode = new FrameStats[1];
+        Exception[] error = new Exception[1];
+
+        // setFillLevel 会向 Choreographer 注册帧回调，必须在主线程
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+            LightningShapeView view = new LightningShapeView(context);
+            try {
+                view.setFullScreenMode(fullScreen);
+                view.setFillLevel(0.6f);
+                view.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+                view.layout(0, 0, width, height);
+
+                picture[0] = measurePicture(view, width, height);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    renderNode[0] = measureRenderNode(view, width, height);
+                }
+            } catch (Exception e) {
+                error[0] = e;
+            } finally {
+                view.setFillLevel(0f);
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        Log.i(TAG, String.format("%s %dx%d Picture: %s", name, width, height, picture[0]));
+        if (renderNode[0] != null) {
+            Log.i(TAG, String.format("%s %dx%d RenderNode: %s", name, width, height, renderNode[0]));
+        }
+
+        assertEquals(name + "（Picture）onDraw不应分配对象", 0, picture[0].allocCount);
+        if (renderNode[0] != null) {
+            assertEquals(name + "（RenderNode）onDraw不应分配对象", 0, renderNode[0].allocCount);
+        }
+    }
+
+    private static FrameStats measurePicture(LightningShapeView view, int width, int height) throws Exception {
+        Picture picture = new Picture();
+        FrameStats stats = new FrameStats();
+        for (int frame = -WARMUP; frame < FRAMES; frame++) {
+            advance(view, frame);
+            // beginRecording 每次返回新的Canvas，放在统计窗口之外
+            Canvas canvas = picture.beginRecording(width, height);
+            recordFrame(view, canvas, frame >= 0 ? stats : null);
+            picture.endRecording();
+        }
+        return stats;
+    }
+
+    private static FrameStats measureRenderNode(LightningShapeView view, int width, int height) throws Exception {
+        RenderNode node = new RenderNode(TAG);
+        node.setPosition(0, 0, width, height);
+        FrameStats stats = new FrameStats();
+        for (int frame = -WARMUP; frame < FRAMES; frame++) {
+            advance(view, frame);
+            Canvas canvas = node.beginRecording();
+            recordFrame(view, canvas, frame >= 0 ? stats : null);
+            node.endRecording();
+        }
+        node.discardDisplayList();
+        return stats;
+    }
+
+    /**
+     * 录制一帧；stats为null时是预热帧，不计入统计
+     */
+    @SuppressWarnings("deprecation")
+    private static void recordFrame(View view, Canvas canvas, FrameStats stats) {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = SystemClock.elapsedRealtimeNanos();
+        view.draw(canvas);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        int allocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        if (stats != null) {
+            stats.allocCount += allocs;
+            stats.totalNs += elapsed;
+            stats.maxNs = Math.max(stats.maxNs, elapsed);
+        }
+    }
+
+    private static Field waveOffsetField;
+    private static Field tiltXField;
+
+    /**
+     * 模拟帧回调和重力传感器：推进波浪相位、改变倾斜，让每帧的路径都不同
+     */
+    private static void advance(LightningShapeView view, int frame) throws Exception {
+        if (waveOffsetField == null) {
+            waveOffsetField = LightningShapeView.class.getDeclaredField("waveOffset");
+            waveOffsetField.setAccessible(true);
+            tiltXField = LightningShapeView.class.getDeclaredField("tiltX");
+            tiltXField.setAccessible(true);
+        }
+        waveOffsetField.setFloat(view, (float) ((frame * 0.05) % (Math.PI * 2)));
+        tiltXField.setFloat(view, (float) Math.sin(frame * 0.02) * 0.5f);
+    }
+}
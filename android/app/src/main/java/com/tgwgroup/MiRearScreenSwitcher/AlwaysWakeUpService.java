@@ -5,61 +5,41 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.util.Log;
 
-import rikka.shizuku.Shizuku;
-
 /**
  * V3.5: 未投放应用时常亮服务
- * 以100ms间隔持续发送KEYCODE_WAKEUP唤醒背屏
+ * 持续发送KEYCODE_WAKEUP唤醒背屏
+ * V4.0: 改为持有共享的RearWakeupScheduler（周期自适应，与其他常亮场景合并发送）
  * ⚠️ 警告：可能导致烧屏和额外耗电
  */
 public class AlwaysWakeUpService extends Service {
     private static final String TAG = "AlwaysWakeUpService";
     private static final int NOTIFICATION_ID = 1001; // 与其他Service共用ID
-    private static final int WAKEUP_INTERVAL_MS = 100; // 100ms间隔
     
     private ITaskService taskService;
-    private Handler wakeupHandler;
-    private Runnable wakeupRunnable;
-    private boolean isRunning = false;
+    private RearWakeupScheduler.Token wakeupToken;
     private SharedPreferences prefs;
     
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("always_wakeup_task_service")
-            .debuggable(false)
-            .version(1);
-    
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理（含重连），这里只订阅
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            taskService = ITaskService.Stub.asInterface(service);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
             Log.d(TAG, "✓ TaskService connected");
             
             // TaskService连接后开始发送wakeup
             startWakeupLoop();
         }
-
+        
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             Log.w(TAG, "⚠️ TaskService disconnected");
             taskService = null;
-            
-            // 断开后尝试重连
-            new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                Log.d(TAG, "🔄 尝试重新绑定TaskService...");
-                bindTaskService();
-            }, 1000);
         }
     };
     
@@ -69,7 +49,7 @@ public class AlwaysWakeUpService extends Service {
         Log.d(TAG, "📱 onCreate");
         
         prefs = getSharedPreferences("mrss_settings", MODE_PRIVATE);
-        wakeupHandler = new Handler(Looper.getMainLooper());
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
         
         // 创建前台通知
         createForegroundNotification();
@@ -79,22 +59,7 @@ public class AlwaysWakeUpService extends Service {
     }
     
     private void bindTaskService() {
-        try {
-            if (taskService != null) {
-                Log.d(TAG, "TaskService already bound");
-                return;
-            }
-            
-            if (!Shizuku.pingBinder()) {
-                Log.w(TAG, "Shizuku not available");
-                return;
-            }
-            
-            Log.d(TAG, "🔗 开始绑定TaskService...");
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "绑定TaskService失败", e);
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     private void createForegroundNotification() {
@@ -139,52 +104,38 @@ public class AlwaysWakeUpService extends Service {
         Log.d(TAG, "✓ 前台服务已启动");
     }
     
+    /**
+     * V4.0: 开关关闭时停止（替代每次循环读取开关）
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = (sharedPreferences, key) -> {
+        if ("always_wakeup_enabled".equals(key) && !sharedPreferences.getBoolean(key, false)) {
+            Log.d(TAG, "开关已关闭，停止wakeup");
+            stopSelf();
+        }
+    };
+    
     private void startWakeupLoop() {
-        if (isRunning) {
-            Log.w(TAG, "⚠️ Wakeup loop already running");
+        if (wakeupToken != null) {
+            Log.w(TAG, "⚠️ Wakeup already running");
             return;
         }
         
-        isRunning = true;
-        
-        wakeupRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (!isRunning) return;
-                
-                // 检查开关状态
-                boolean enabled = prefs.getBoolean("always_wakeup_enabled", false);
-                if (!enabled) {
-                    Log.d(TAG, "开关已关闭，停止wakeup循环");
-                    stopSelf();
-                    return;
-                }
-                
-                // 发送wakeup命令
-                try {
-                    if (taskService != null) {
-                        taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                    }
-                } catch (Throwable t) {
-                    Log.w(TAG, "发送wakeup失败: " + t.getMessage());
-                }
-                
-                // 100ms后继续
-                wakeupHandler.postDelayed(this, WAKEUP_INTERVAL_MS);
-            }
-        };
+        if (!prefs.getBoolean("always_wakeup_enabled", false)) {
+            Log.d(TAG, "开关已关闭，不启动wakeup");
+            stopSelf();
+            return;
+        }
         
-        // 立即开始
-        wakeupHandler.post(wakeupRunnable);
-        Log.d(TAG, "✓ Wakeup loop started (100ms interval)");
+        wakeupToken = RearWakeupScheduler.getInstance().acquire(this, TAG, () -> taskService);
+        Log.d(TAG, "✓ Wakeup started");
     }
     
     private void stopWakeupLoop() {
-        isRunning = false;
-        if (wakeupHandler != null && wakeupRunnable != null) {
-            wakeupHandler.removeCallbacks(wakeupRunnable);
+        if (wakeupToken != null) {
+            RearWakeupScheduler.getInstance().release(wakeupToken);
+            wakeupToken = null;
         }
-        Log.d(TAG, "✓ Wakeup loop stopped");
+        Log.d(TAG, "✓ Wakeup stopped");
     }
     
     @Override
@@ -198,16 +149,11 @@ public class AlwaysWakeUpService extends Service {
         Log.d(TAG, "🔴 onDestroy");
         
         stopWakeupLoop();
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
         
-        // 解绑TaskService
-        try {
-            if (taskService != null) {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-                Log.d(TAG, "✓ TaskService unbound");
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "Failed to unbind TaskService: " + e.getMessage());
-        }
+        // 取消订阅TaskService（V4.0: 共享连接不解绑）
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
         
         super.onDestroy();
     }
@@ -0,0 +1,192 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * V4.0: 在Shizuku进程内顺序执行一组 BatchStep
+ * 等待、轮询、重试都在这里完成，调用方只需一次binder调用
+ */
+public class BatchExecutor {
+    private static final String TAG = "BatchExecutor";
+
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([A-Za-z0-9_]+)\\}");
+
+    /**
+     * ACTION_PREFIX 步骤的执行者（TaskService）
+     */
+    public interface Actions {
+        /**
+         * @return 是否成功；未知动作返回false
+         */
+        boolean run(String action, String[] args);
+    }
+
+    private final ShellSessionPool shell;
+    private final Actions actions;
+
+    public BatchExecutor(ShellSessionPool shell, Actions actions) {
+        this.shell = shell;
+        this.actions = actions;
+    }
+
+    public BatchReport run(List<BatchStep> steps) {
+        int count = steps != null ? steps.size() : 0;
+        BatchReport report = new BatchReport(count);
+        long batchStart = SystemClock.uptimeMillis();
+
+        for (int i = 0; i < count; i++) {
+            BatchStep step = steps.get(i);
+            long stepStart = SystemClock.uptimeMillis();
+            report.startOffsetMs[i] = stepStart - batchStart;
+
+            boolean success = false;
+            try {
+                success = runStep(step, report, i);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                report.status[i] = BatchReport.STEP_FAILED;
+                report.durationMs[i] = SystemClock.uptimeMillis() - stepStart;
+                report.abortedAt = i;
+                break;
+            } catch (Exception e) {
+                Log.w(TAG, "⚠️ 步骤#" + i + "异常: " + e.getMessage());
+            }
+
+            report.status[i] = success ? BatchReport.STEP_SUCCESS : BatchReport.STEP_FAILED;
+            report.durationMs[i] = SystemClock.uptimeMillis() - stepStart;
+
+            if (!success && step.abortOnFailure) {
+                report.abortedAt = i;
+                break;
+            }
+            if (success && step.finishOnSuccess) {
+                break;
+            }
+        }
+
+        report.totalMs = SystemClock.uptimeMillis() - batchStart;
+        Log.d(TAG, report.toString());
+        return report;
+    }
+
+    private boolean runStep(BatchStep step, BatchReport report, int index) throws InterruptedException {
+        if (step.delayBeforeMs > 0) {
+            Thread.sleep(step.delayBeforeMs);
+        }
+
+        String command = substitute(step.command, report);
+        if (command == null) {
+            // 引用了未capture到的变量，不能执行
+            Log.w(TAG, "⚠️ 步骤#" + index + "缺少变量: " + step.command);
+            report.exitCodes[index] = -1;
+            return false;
+        }
+
+        if (command.startsWith(BatchStep.ACTION_PREFIX)) {
+            return runAction(command, step, report, index);
+        }
+
+        Pattern expect = step.expectRegex != null ? Pattern.compile(step.expectRegex) : null;
+
+        for (int attempt = 0; attempt < step.maxAttempts; attempt++) {
+            if (attempt > 0) {
+                // 先补发（如需要），再等待，给补发的命令留出生效时间
+                if (step.reissueCommand != null && step.reissueEvery > 0 && attempt % step.reissueEvery == 0) {
+                    String reissue = substitute(step.reissueCommand, report);
+                    if (reissue != null) {
+                        shell.exec(reissue);
+                    }
+                }
+                if (step.retryIntervalMs > 0) {
+                    Thread.sleep(step.retryIntervalMs);
+                }
+            }
+
+            report.attempts[index] = attempt + 1;
+            ShellSessionPool.Result result = shell.exec(command, expect == null);
+            report.exitCodes[index] = result.exitCode;
+
+            if (expect == null) {
+                if (result.isSuccess()) {
+                    return true;
+                }
+                continue;
+            }
+
+            Matcher matcher = expect.matcher(result.output);
+            if (matcher.find()) {
+                if (step.captureName != null) {
+                    String value = matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+                    report.variables.putString(step.captureName, value);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean runAction(String command, BatchStep step, BatchReport report, int index) throws InterruptedException {
+        String[] parts = command.substring(BatchStep.ACTION_PREFIX.length()).trim().split("\\s+");
+        String[] args = new String[parts.length - 1];
+        System.arraycopy(parts, 1, args, 0, args.length);
+
+        for (int attempt = 0; attempt < step.maxAttempts; attempt++) {
+            if (attempt > 0 && step.retryIntervalMs > 0) {
+                Thread.sleep(step.retryIntervalMs);
+            }
+            report.attempts[index] = attempt + 1;
+            boolean success;
+            try {
+                success = actions.run(parts[0], args);
+            } catch (Exception e) {
+                Log.w(TAG, "⚠️ 步骤#" + index + "动作失败: " + e.getMessage());
+                success = false;
+            }
+            report.exitCodes[index] = success ? 0 : 1;
+            if (success) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 替换 ${name}，有未定义变量时返回null
+     */
+    private static String substitute(String command, BatchReport report) {
+        if (command == null || command.indexOf("${") < 0) {
+            return command;
+        }
+        Matcher matcher = VARIABLE_PATTERN.matcher(command);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String value = report.getVariable(matcher.group(1));
+            if (value == null) {
+                return null;
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
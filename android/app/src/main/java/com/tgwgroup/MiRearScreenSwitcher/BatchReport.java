@@ -0,0 +1,165 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * V4.0: 批量执行结果（每个步骤的成功与否、尝试次数和耗时）
+ */
+public class BatchReport implements Parcelable {
+
+    // 每个步骤的状态
+    public static final int STEP_SKIPPED = 0;   // 未执行（批次提前结束/终止）
+    public static final int STEP_SUCCESS = 1;
+    public static final int STEP_FAILED = 2;
+
+    final int[] status;
+    final int[] attempts;
+    final int[] exitCodes;
+    final long[] startOffsetMs;   // 相对批次开始的时间
+    final long[] durationMs;      // 含等待和重试
+    final Bundle variables;       // capture 得到的变量
+    int abortedAt = -1;           // 导致终止的步骤下标，-1=未终止
+    long totalMs;
+
+    BatchReport(int stepCount) {
+        status = new int[stepCount];
+        attempts = new int[stepCount];
+        exitCodes = new int[stepCount];
+        startOffsetMs = new long[stepCount];
+        durationMs = new long[stepCount];
+        variables = new Bundle();
+    }
+
+    /**
+     * 所有执行过的步骤都没有导致终止
+     */
+    public boolean isSuccess() {
+        return abortedAt < 0;
+    }
+
+    public int getStepCount() {
+        return status.length;
+    }
+
+    public boolean isStepSuccess(int index) {
+        return status[index] == STEP_SUCCESS;
+    }
+
+    public int getStepStatus(int index) {
+        return status[index];
+    }
+
+    public int getStepAttempts(int index) {
+        return attempts[index];
+    }
+
+    public long getStepDurationMs(int index) {
+        return durationMs[index];
+    }
+
+    public int getAbortedAt() {
+        return abortedAt;
+    }
+
+    public long getTotalMs() {
+        return totalMs;
+    }
+
+    /**
+     * 获取capture的变量，不存在时返回null
+     */
+    public String getVariable(String name) {
+        return variables.getString(name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BatchReport{total=").append(totalMs).append("ms");
+        if (abortedAt >= 0) {
+            sb.append(", abortedAt=").append(abortedAt);
+        }
+        for (int i = 0; i < status.length; i++) {
+            sb.append("\n  #").append(i).append(' ');
+            switch (status[i]) {
+                case STEP_SUCCESS: sb.append("✓"); break;
+                case STEP_FAILED: sb.append("✗"); break;
+                default: sb.append("-"); break;
+            }
+            sb.append(" +").append(startOffsetMs[i]).append("ms")
+                .append(" took=").append(durationMs[i]).append("ms")
+                .append(" attempts=").append(attempts[i])
+                .append(" exit=").append(exitCodes[i]);
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    // ========================================
+    // Parcelable
+    // ========================================
+
+    protected BatchReport(Parcel in) {
+        int size = in.readInt();
+        status = new int[size];
+        attempts = new int[size];
+        exitCodes = new int[size];
+        startOffsetMs = new long[size];
+        durationMs = new long[size];
+        in.readIntArray(status);
+        in.readIntArray(attempts);
+        in.readIntArray(exitCodes);
+        in.readLongArray(startOffsetMs);
+        in.readLongArray(durationMs);
+        variables = in.readBundle(BatchReport.class.getClassLoader());
+        abortedAt = in.readInt();
+        totalMs = in.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(status.length);
+        dest.writeIntArray(status);
+        dest.writeIntArray(attempts);
+        dest.writeIntArray(exitCodes);
+        dest.writeLongArray(startOffsetMs);
+        dest.writeLongArray(durationMs);
+        dest.writeBundle(variables);
+        dest.writeInt(abortedAt);
+        dest.writeLong(totalMs);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<BatchReport> CREATOR = new Creator<BatchReport>() {
+        @Override
+        public BatchReport createFromParcel(Parcel in) {
+            return new BatchReport(in);
+        }
+
+        @Override
+        public BatchReport[] newArray(int size) {
+            return new BatchReport[size];
+        }
+    };
+}
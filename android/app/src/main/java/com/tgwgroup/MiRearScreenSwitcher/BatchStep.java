@@ -0,0 +1,164 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * V4.0: 批量执行中的单个步骤（见 ITaskService.executeBatch）
+ *
+ * 用法：
+ *   BatchStep.of("am stack list | grep Foo")
+ *       .expect("taskId=(\\d+)")
+ *       .capture("taskId")
+ *       .retry(60, 30)
+ *       .abortOnFailure()
+ *
+ * 命令中的 ${name} 会被之前步骤 capture 的值替换
+ *
+ * 以 ACTION_PREFIX 开头的步骤不执行shell，而是调用TaskService内的对应实现
+ * （Launcher压制、任务移动等有自己的退避/统计/binder路径，不能绕过）
+ */
+public class BatchStep implements Parcelable {
+
+    static final String ACTION_PREFIX = "@mrss:";
+    static final String ACTION_SUPPRESS_LAUNCHER = "suppress-launcher";
+    static final String ACTION_MOVE_TASK = "move-task";
+
+    String command;
+    long delayBeforeMs = 0;        // 执行前等待
+    String expectRegex = null;     // 输出需匹配的正则（null=只看退出码）
+    String captureName = null;     // 匹配成功后保存group(1)（无分组时group(0)）的变量名
+    int maxAttempts = 1;           // 最多尝试次数
+    long retryIntervalMs = 0;      // 每次重试前等待
+    String reissueCommand = null;  // 重试过程中周期性补发的命令（例如重发am start）
+    int reissueEvery = 0;          // 每隔多少次重试补发一次（0=不补发）
+    boolean abortOnFailure = false;  // 失败时终止整个批次
+    boolean finishOnSuccess = false; // 成功时提前结束整个批次
+
+    private BatchStep(String command) {
+        this.command = command;
+    }
+
+    public static BatchStep of(String command) {
+        return new BatchStep(command);
+    }
+
+    /**
+     * 压制背屏Launcher（TaskService.disableSubScreenLauncher）
+     */
+    public static BatchStep suppressLauncher() {
+        return new BatchStep(ACTION_PREFIX + ACTION_SUPPRESS_LAUNCHER);
+    }
+
+    /**
+     * 移动任务到指定显示屏（TaskService.moveTaskToDisplay → TaskMover）
+     * @param taskId 任务id，可以是 ${name} 变量
+     */
+    public static BatchStep moveTask(String taskId, int displayId) {
+        return new BatchStep(ACTION_PREFIX + ACTION_MOVE_TASK + " " + taskId + " " + displayId);
+    }
+
+    public BatchStep delayBefore(long ms) {
+        this.delayBeforeMs = ms;
+        return this;
+    }
+
+    public BatchStep expect(String regex) {
+        this.expectRegex = regex;
+        return this;
+    }
+
+    public BatchStep capture(String name) {
+        this.captureName = name;
+        return this;
+    }
+
+    public BatchStep retry(int maxAttempts, long intervalMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryIntervalMs = intervalMs;
+        return this;
+    }
+
+    public BatchStep reissue(String command, int every) {
+        this.reissueCommand = command;
+        this.reissueEvery = every;
+        return this;
+    }
+
+    public BatchStep abortOnFailure() {
+        this.abortOnFailure = true;
+        return this;
+    }
+
+    public BatchStep finishOnSuccess() {
+        this.finishOnSuccess = true;
+        return this;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    // ========================================
+    // Parcelable
+    // ========================================
+
+    protected BatchStep(Parcel in) {
+        command = in.readString();
+        delayBeforeMs = in.readLong();
+        expectRegex = in.readString();
+        captureName = in.readString();
+        maxAttempts = in.readInt();
+        retryIntervalMs = in.readLong();
+        reissueCommand = in.readString();
+        reissueEvery = in.readInt();
+        abortOnFailure = in.readInt() != 0;
+        finishOnSuccess = in.readInt() != 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(command);
+        dest.writeLong(delayBeforeMs);
+        dest.writeString(expectRegex);
+        dest.writeString(captureName);
+        dest.writeInt(maxAttempts);
+        dest.writeLong(retryIntervalMs);
+        dest.writeString(reissueCommand);
+        dest.writeInt(reissueEvery);
+        dest.writeInt(abortOnFailure ? 1 : 0);
+        dest.writeInt(finishOnSuccess ? 1 : 0);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<BatchStep> CREATOR = new Creator<BatchStep>() {
+        @Override
+        public BatchStep createFromParcel(Parcel in) {
+            return new BatchStep(in);
+        }
+
+        @Override
+        public BatchStep[] newArray(int size) {
+            return new BatchStep[size];
+        }
+    };
+}
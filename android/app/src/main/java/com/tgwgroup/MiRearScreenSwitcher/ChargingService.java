@@ -17,11 +17,9 @@ package com.tgwgroup.MiRearScreenSwitcher;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.BatteryManager;
 import android.os.PowerManager;
@@ -29,7 +27,8 @@ import android.os.IBinder;
 import android.os.Handler;
 import android.util.Log;
 
-import rikka.shizuku.Shizuku;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * 充电状态监听服务
@@ -53,62 +52,37 @@ public class ChargingService extends Service {
     private Handler wakeupHandler;
     private Runnable wakeupRunnable;
     private boolean isWakeupRunning = false;
+    private RearWakeupScheduler.Token wakeupToken = null; // V4.0: 共享背屏唤醒
+    // V4.0: 循环里的杀launcher在工作线程执行，上一次未返回时跳过本次
+    private final TaskServiceClient taskClient = new TaskServiceClient(() -> taskService);
+    private CompletableFuture<Boolean> pendingLauncherKill;
     
     public static ITaskService getTaskService() {
         return instance != null ? instance.taskService : null;
     }
     
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("charging_task_service")
-            .debuggable(false)
-            .version(1);
-    
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理（含Shizuku binder监听和重连），这里只订阅
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
+        public void onTaskServiceConnected(ITaskService service) {
             Log.d(TAG, "✓ TaskService connected");
-            taskService = ITaskService.Stub.asInterface(binder);
+            taskService = service;
             
-            // 初始化显示屏信息缓存
+            // 初始化显示屏信息注册表（后台扫描，不阻塞）
             try {
-                DisplayInfoCache.getInstance().initialize(taskService);
+                DisplayRegistry.getInstance().attach(getApplicationContext(), taskService);
             } catch (Exception e) {
-                Log.w(TAG, "初始化显示屏缓存失败: " + e.getMessage());
+                Log.w(TAG, "初始化显示屏注册表失败: " + e.getMessage());
             }
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             Log.d(TAG, "✗ TaskService disconnected");
             taskService = null;
-            // 自动重连
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                if (taskService == null) {
-                    bindTaskService();
-                }
-            }, 1000);
         }
     };
     
-    // Shizuku监听器
-    private final Shizuku.OnBinderReceivedListener binderReceivedListener = 
-        () -> {
-            Log.d(TAG, "Shizuku binder received");
-            bindTaskService();
-        };
-    
-    private final Shizuku.OnBinderDeadListener binderDeadListener = 
-        () -> {
-            Log.d(TAG, "Shizuku binder dead");
-            taskService = null;
-            // 尝试重连
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                bindTaskService();
-            }, 1000);
-        };
-    
     // V3.5: 设置变化广播接收器
     private BroadcastReceiver settingsReceiver = new BroadcastReceiver() {
         @Override
@@ -135,8 +109,10 @@ public class ChargingService extends Service {
                         // 通知动画管理器：开始充电动画
                         RearAnimationManager.startAnimation(RearAnimationManager.AnimationType.CHARGING);
                         
-                        // 启动充电动画
-                        showChargingOnRearScreen(batteryLevel, false);
+                        // 启动充电动画（V4.0: 常驻Presentation可用时直接绘制）
+                        if (!RearPresentationHost.getInstance().showCharging(ChargingService.this, batteryLevel, chargingAlwaysOnEnabled)) {
+                            showChargingOnRearScreen(batteryLevel, false);
+                        }
                         
                         // 如果常亮模式开启，启动唤醒循环
                         if (chargingAlwaysOnEnabled) {
@@ -196,7 +172,10 @@ public class ChargingService extends Service {
                     RearAnimationManager.sendInterruptBroadcast(ChargingService.this, RearAnimationManager.AnimationType.NOTIFICATION);
                 }
                 
-                showChargingOnRearScreen(batteryLevel, isLocked);
+                // V4.0: 常驻Presentation可用时直接绘制，否则启动Activity
+                if (!RearPresentationHost.getInstance().showCharging(ChargingService.this, batteryLevel, chargingAlwaysOnEnabled)) {
+                    showChargingOnRearScreen(batteryLevel, isLocked);
+                }
                 
                 // V3.5: 如果开启了充电动画常亮，启动唤醒和更新循环
                 if (chargingAlwaysOnEnabled) {
@@ -225,9 +204,8 @@ public class ChargingService extends Service {
         
         prefs = getSharedPreferences("mrss_settings", Context.MODE_PRIVATE);
         
-        // 添加Shizuku监听器
-        Shizuku.addBinderReceivedListenerSticky(binderReceivedListener);
-        Shizuku.addBinderDeadListener(binderDeadListener);
+        // V4.0: 可选的背屏常驻Presentation，开启时预先挂到背屏
+        RearPresentationHost.getInstance().prewarm(this);
         
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_POWER_CONNECTED);
@@ -306,22 +284,7 @@ public class ChargingService extends Service {
     }
     
     private void bindTaskService() {
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.w(TAG, "Shizuku not available");
-                return;
-            }
-            
-            if (Shizuku.checkSelfPermission() != android.content.pm.PackageManager.PERMISSION_GRANTED) {
-                Log.w(TAG, "No Shizuku permission");
-                return;
-            }
-            
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-            Log.d(TAG, "Binding TaskService...");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to bind TaskService", e);
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     private int getBatteryLevel(Context context) {
@@ -333,6 +296,7 @@ public class ChargingService extends Service {
      * 立即结束充电动画
      */
     private void finishChargingAnimation() {
+        RearPresentationHost.getInstance().finishCharging();
         try {
             // 通过广播通知RearScreenChargingActivity立即结束
             Intent finishIntent = new Intent("com.tgwgroup.MiRearScreenSwitcher.FINISH_CHARGING_ANIMATION");
@@ -350,17 +314,22 @@ public class ChargingService extends Service {
     
     private void showChargingOnRearScreenWithRetry(int level, boolean isLocked, int retryCount) {
         if (taskService == null) {
-            if (retryCount < 10) {  // 最多重试10次（总共1秒）
-                Log.w(TAG, "TaskService not available, retry " + (retryCount + 1) + "/10");
-                // 延迟重试
-                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                    showChargingOnRearScreenWithRetry(level, isLocked, retryCount + 1);
-                }, 100);
-                return;
+            if (retryCount == 0) {
+                // V4.0: 等待共享连接就绪（最多1秒，连上立即继续），不再每100ms重试
+                Log.w(TAG, "TaskService not available, waiting for connection");
+                TaskServiceManager.getInstance().awaitConnected(1000)
+                    .whenCompleteAsync((service, error) -> {
+                        if (error != null) {
+                            Log.e(TAG, "TaskService still not available after 1s, aborting");
+                            return;
+                        }
+                        taskService = service;
+                        showChargingOnRearScreenWithRetry(level, isLocked, retryCount + 1);
+                    }, TaskServiceClient.MAIN);
             } else {
-                Log.e(TAG, "TaskService still not available after 10 retries, aborting");
-                return;
+                Log.e(TAG, "TaskService not available, aborting");
             }
+            return;
         }
         
         acquireWakeLock(8000);
@@ -402,76 +371,28 @@ public class ChargingService extends Service {
             
             // V3.3: 移除所有唤醒和解锁代码，避免锁屏时跳转到密码界面
             
-            // 步骤4: 使用MRSN的策略 - 先在主屏隐形启动，然后移动到背屏
-            try {
-                // 4.1: 先在主屏启动（Activity会在onCreate自动隐藏）
-                String componentName = getPackageName() + "/" + RearScreenChargingActivity.class.getName();
-                String mainCmd = String.format(
-                    "am start -n %s --ei batteryLevel %d --ei rearTaskId %d",
-                    componentName,
-                    level,
-                    rearTaskId
-                );
-                
-                Log.d(TAG, String.format("[%tT.%tL] 🔵 在主屏启动Activity", System.currentTimeMillis(), System.currentTimeMillis()));
-                taskService.executeShellCommand(mainCmd);
-                
-                // 4.2: 轮询获取taskId（最多60次 x 30ms = 1800ms，期间重发命令）
-                String chargingTaskId = null;
-                int attempts = 0;
-                int maxAttempts = 60;
-                
-                while (chargingTaskId == null && attempts < maxAttempts) {
-                    Thread.sleep(30);
-                    String result = taskService.executeShellCommandWithResult("am stack list | grep RearScreenChargingActivity");
-                    if (result != null && !result.trim().isEmpty()) {
-                        // 解析 taskId=XXX
-                        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("taskId=(\\d+)");
-                        java.util.regex.Matcher matcher = pattern.matcher(result);
-                        if (matcher.find()) {
-                            chargingTaskId = matcher.group(1);
-                            Log.d(TAG, String.format("[%tT.%tL] 找到taskId=%s (尝试%d次)", 
-                                System.currentTimeMillis(), System.currentTimeMillis(), chargingTaskId, attempts + 1));
-                            break;
-                        }
-                    }
-                    attempts++;
-                    if (attempts == 20 || attempts == 40) { // 中途重发一到两次启动命令
-                        Log.d(TAG, String.format("[%tT.%tL] 重新发送主屏启动命令", System.currentTimeMillis(), System.currentTimeMillis()));
-                        taskService.executeShellCommand(mainCmd);
-                    }
+            // 步骤4: V4.0: 直接启动到背屏，Activity在onCreate回报taskId（不再主屏启动+轮询+移动）
+            Intent intent = new Intent(this, RearScreenChargingActivity.class);
+            intent.putExtra("batteryLevel", level);
+            intent.putExtra("rearTaskId", rearTaskId);
+            RearLaunchHelper.launch(this, intent, 1, ChargingService::getTaskService, new RearLaunchHelper.Callback() {
+                @Override
+                public void onLaunched(int taskId, boolean moved) {
+                    long endTime = System.currentTimeMillis();
+                    Log.d(TAG, String.format("[%tT.%tL] 充电动画已在背屏启动 taskId=%d%s (总耗时%dms)",
+                        endTime, endTime, taskId, moved ? " (已移动)" : "", endTime - startTime));
+                    releaseWakeLock();
                 }
                 
-                if (chargingTaskId != null) {
-                    // 4.3: 移动到背屏
-                    String moveCmd = "service call activity_task 50 i32 " + chargingTaskId + " i32 1";
-                    taskService.executeShellCommand(moveCmd);
-                    Thread.sleep(40); // 等待移动完成
-                    
-                    // 4.4: 只在锁屏时关闭主屏（亮屏时不需要关闭）
-                    if (isLocked) {
-                        // 主屏休眠功能已移除
-                        Log.d(TAG, String.format("[%tT.%tL] 锁屏状态，主屏已关闭", 
-                            System.currentTimeMillis(), System.currentTimeMillis()));
-                    } else {
-                        Log.d(TAG, String.format("[%tT.%tL] 亮屏状态，保持主屏开启", 
-                            System.currentTimeMillis(), System.currentTimeMillis()));
-                    }
-                    
-                    long endTime = System.currentTimeMillis();
-                    Log.d(TAG, String.format("[%tT.%tL] 充电动画已移动到背屏 (总耗时%dms)", 
-                        endTime, endTime, endTime - startTime));
-                } else {
-                    Log.e(TAG, String.format("[%tT.%tL] 未能找到taskId, 尝试了%d次", 
-                        System.currentTimeMillis(), System.currentTimeMillis(), attempts));
+                @Override
+                public void onFailed(String reason) {
+                    long errorTime = System.currentTimeMillis();
+                    Log.e(TAG, String.format("[%tT.%tL] 启动充电动画失败: %s", errorTime, errorTime, reason));
+                    releaseWakeLock();
                 }
-            } catch (Exception e) {
-                long errorTime = System.currentTimeMillis();
-                Log.e(TAG, String.format("[%tT.%tL] 启动充电动画失败", errorTime, errorTime), e);
-            }
+            });
         } catch (Exception e) {
             Log.e(TAG, "Error showing charging", e);
-        } finally {
             releaseWakeLock();
         }
     }
@@ -486,14 +407,6 @@ public class ChargingService extends Service {
         // 清除静态实例
         instance = null;
         
-        // 移除Shizuku监听器
-        try {
-            Shizuku.removeBinderReceivedListener(binderReceivedListener);
-            Shizuku.removeBinderDeadListener(binderDeadListener);
-        } catch (Exception e) {
-            Log.e(TAG, "Error removing Shizuku listeners", e);
-        }
-        
         try {
             unregisterReceiver(batteryReceiver);
         } catch (Exception e) {
@@ -517,15 +430,9 @@ public class ChargingService extends Service {
         // V3.5: 停止唤醒循环
         stopWakeupLoop();
         
-        // 解绑TaskService
-        try {
-            if (taskService != null) {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-                taskService = null;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error unbinding TaskService", e);
-        }
+        // 取消订阅TaskService（V4.0: 共享连接不解绑）
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
     }
     
     @Override
@@ -542,6 +449,9 @@ public class ChargingService extends Service {
         
         isWakeupRunning = true;
         
+        // V4.0: wakeup由共享调度器发送（周期自适应），本循环只负责杀launcher和更新电量
+        wakeupToken = RearWakeupScheduler.getInstance().acquire(this, TAG, () -> taskService);
+        
         wakeupRunnable = new Runnable() {
             @Override
             public void run() {
@@ -555,33 +465,31 @@ public class ChargingService extends Service {
                     return;
                 }
                 
-                // 发送wakeup命令
-                try {
-                    if (taskService != null) {
-                        taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                        Log.d(TAG, "✓ Wakeup sent");
-                    } else {
-                        Log.w(TAG, "⚠️ TaskService is null, skipping wakeup");
-                    }
-                } catch (Throwable t) {
-                    Log.w(TAG, "发送wakeup失败: " + t.getMessage());
-                }
-                
                 // 持续杀死官方launcher（防止其抢占背屏）
-                try {
-                    if (taskService != null) {
-                        taskService.disableSubScreenLauncher();
-                        Log.d(TAG, "🔪 Launcher killed");
-                    }
-                } catch (Throwable t) {
-                    Log.w(TAG, "杀死launcher失败: " + t.getMessage());
+                // V4.0: Presentation是悬浮窗，盖在Launcher之上，不需要杀
+                boolean onPresentation = RearPresentationHost.getInstance().isShowing(RearPresentationHost.Scene.CHARGING);
+                if (taskService != null && !onPresentation
+                        && (pendingLauncherKill == null || pendingLauncherKill.isDone())) {
+                    pendingLauncherKill = taskClient.submit(
+                        "disableSubScreenLauncher", ITaskService::disableSubScreenLauncher, 1000);
+                    pendingLauncherKill.whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            Log.w(TAG, "杀死launcher失败: " + error.getMessage());
+                        } else {
+                            Log.d(TAG, "🔪 Launcher killed");
+                        }
+                    });
                 }
                 
                 // 更新充电动画的电量显示
                 try {
                     int batteryLevel = getBatteryLevel(getApplicationContext());
                     // 直接调用静态方法更新电量
-                    RearScreenChargingActivity.updateBatteryLevelStatic(batteryLevel);
+                    if (onPresentation) {
+                        RearPresentationHost.getInstance().updateBatteryLevel(batteryLevel);
+                    } else {
+                        RearScreenChargingActivity.updateBatteryLevelStatic(batteryLevel);
+                    }
                     Log.d(TAG, "🔋 电量已直接更新: " + batteryLevel + "%");
                 } catch (Exception e) {
                     Log.w(TAG, "更新电量失败: " + e.getMessage());
@@ -603,6 +511,14 @@ public class ChargingService extends Service {
         if (wakeupHandler != null && wakeupRunnable != null) {
             wakeupHandler.removeCallbacks(wakeupRunnable);
         }
+        if (pendingLauncherKill != null) {
+            pendingLauncherKill.cancel(false);
+            pendingLauncherKill = null;
+        }
+        if (wakeupToken != null) {
+            RearWakeupScheduler.getInstance().release(wakeupToken);
+            wakeupToken = null;
+        }
         Log.d(TAG, "✓ Wakeup loop stopped");
     }
 }
@@ -0,0 +1,293 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.hardware.display.DisplayManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * V4.0: 显示配置事务（运行在Shizuku进程中）
+ *
+ * 之前带配置的切换是：设置DPI → 设置旋转（内部sleep 500ms）→ 移动 → sleep 300ms →
+ * 验证DPI（不对再设、sleep 200ms）→ sleep 500ms → 验证旋转（不对再设、sleep 500ms）→ 检查任务（复活后sleep 200ms），
+ * 最坏情况光等待就两秒多。现在：
+ * - DPI、旋转、背屏Launcher压制三个操作并行下发
+ * - 通过 DisplayManager 的显示屏变化回调确认 logicalDensityDpi / rotation 已生效，不再固定sleep
+ *   （回调注册失败时退化为每帧读取一次DisplayInfo，仍然是binder调用而不是shell）
+ * - 旋转生效后若任务被系统关掉，立即移回
+ * 整个事务的耗时约等于最慢的那个操作。
+ */
+public class DisplayConfigTransaction {
+    private static final String TAG = "DisplayConfigTransaction";
+
+    public static final long DEFAULT_TIMEOUT_MS = 1500;
+
+    private static final long POLL_WITH_LISTENER_MS = 100;    // 有回调时只作兜底
+    private static final long POLL_WITHOUT_LISTENER_MS = 16;  // 没有回调时每帧读一次
+    private static final long EVENT_FLAG_DISPLAY_CHANGED = 1L << 2;
+
+    private final TaskService service;
+    private final WindowManagerBridge windowManager;
+    private final LauncherSuppressor launcherSuppressor;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3, r -> {
+        Thread t = new Thread(r, "mrss-display-config");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 显示屏变化计数（回调线程递增，事务线程等待）
+    private final Object changeLock = new Object();
+    private long changeSeq = 0;
+
+    private HandlerThread listenerThread;
+    private boolean listenerResolved = false;
+    private boolean listenerRegistered = false;
+
+    // DisplayManagerGlobal 反射缓存
+    private Object displayManagerGlobal;
+    private Method getDisplayInfoMethod;
+
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            synchronized (changeLock) {
+                changeSeq++;
+                changeLock.notifyAll();
+            }
+        }
+    };
+
+    public DisplayConfigTransaction(TaskService service, WindowManagerBridge windowManager, LauncherSuppressor launcherSuppressor) {
+        this.service = service;
+        this.windowManager = windowManager;
+        this.launcherSuppressor = launcherSuppressor;
+    }
+
+    /**
+     * 应用显示配置并等待生效
+     * @param dpi 目标DPI，<=0 不修改
+     * @param rotation 目标旋转 0-3，<0 不修改
+     * @param suppressLauncher 是否同时压制背屏Launcher
+     * @param taskId 需要保持在该显示屏上的任务，<=0 不检查
+     * @return success/densityApplied/rotationApplied/launcherSuppressed/confirmed/revived/elapsedMs
+     */
+    public Bundle apply(int displayId, int dpi, int rotation, boolean suppressLauncher, int taskId, long timeoutMs) {
+        long start = SystemClock.uptimeMillis();
+        long deadline = start + (timeoutMs > 0 ? timeoutMs : DEFAULT_TIMEOUT_MS);
+        ensureListener();
+
+        // 1. 并行下发
+        Future<Boolean> density = dpi > 0
+            ? executor.submit(() -> windowManager.setDensity(displayId, dpi))
+            : null;
+        Future<Boolean> rotate = rotation >= 0
+            ? executor.submit(() -> windowManager.setUserRotation(displayId, rotation))
+            : null;
+        Future<Boolean> launcher = suppressLauncher
+            ? executor.submit(launcherSuppressor::suppress)
+            : null;
+
+        boolean densityApplied = await(density, deadline, "density");
+        boolean rotationApplied = await(rotate, deadline, "rotation");
+        boolean launcherSuppressed = await(launcher, deadline, "launcher");
+
+        // 2. 等待显示屏配置实际变化
+        boolean confirmed = awaitDisplayConfig(displayId,
+            densityApplied ? dpi : -1, rotationApplied ? rotation : -1, deadline);
+
+        // 3. 旋转可能让系统关掉背屏上的任务。旋转已下发就检查，不依赖确认：
+        //    等待超时（未确认）时任务同样可能已被移走；未确认单独通过 confirmed 回报
+        boolean revived = false;
+        if (rotationApplied && taskId > 0) {
+            try {
+                service.invalidateSnapshot();
+                if (!service.isTaskOnDisplay(taskId, displayId)) {
+                    Log.w(TAG, "⚠️ 任务" + taskId + "因旋转离开显示屏" + displayId + "，重新移动"
+                        + (confirmed ? "" : "（配置未确认）"));
+                    revived = service.moveTaskToDisplay(taskId, displayId);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "检查任务失败: " + e.getMessage());
+            }
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        boolean success = (density == null || densityApplied)
+            && (rotate == null || rotationApplied)
+            && (launcher == null || launcherSuppressed);
+        Log.d(TAG, (confirmed ? "✓" : "⚠️") + " 显示配置 display=" + displayId + " dpi=" + dpi + " rotation=" + rotation
+            + " confirmed=" + confirmed + " (" + elapsed + "ms)");
+
+        Bundle result = new Bundle();
+        result.putBoolean("success", success);
+        result.putBoolean("densityApplied", densityApplied);
+        result.putBoolean("rotationApplied", rotationApplied);
+        result.putBoolean("launcherSuppressed", launcherSuppressed);
+        result.putBoolean("confirmed", confirmed);
+        result.putBoolean("revived", revived);
+        result.putLong("elapsedMs", elapsed);
+        return result;
+    }
+
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+        if (listenerThread != null) {
+            listenerThread.quitSafely();
+            listenerThread = null;
+        }
+    }
+
+    private static boolean await(Future<Boolean> future, long deadline, String name) {
+        if (future == null) {
+            return false;
+        }
+        try {
+            long remaining = Math.max(1, deadline - SystemClock.uptimeMillis());
+            return Boolean.TRUE.equals(future.get(remaining, TimeUnit.MILLISECONDS));
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ " + name + " 未完成: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 等待 DisplayInfo 的 logicalDensityDpi / rotation 变成目标值
+     * @return 全部生效返回true，超时返回false
+     */
+    private boolean awaitDisplayConfig(int displayId, int dpi, int rotation, long deadline) {
+        if (dpi <= 0 && rotation < 0) {
+            return true;
+        }
+        long pollMs = listenerRegistered ? POLL_WITH_LISTENER_MS : POLL_WITHOUT_LISTENER_MS;
+        while (true) {
+            long seq;
+            synchronized (changeLock) {
+                seq = changeSeq;
+            }
+            if (matches(displayId, dpi, rotation)) {
+                return true;
+            }
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            synchronized (changeLock) {
+                if (changeSeq == seq) {
+                    try {
+                        changeLock.wait(Math.min(remaining, pollMs));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean matches(int displayId, int dpi, int rotation) {
+        try {
+            Object info = getDisplayInfo(displayId);
+            if (info == null) {
+                return false;
+            }
+            if (dpi > 0 && info.getClass().getField("logicalDensityDpi").getInt(info) != dpi) {
+                return false;
+            }
+            return rotation < 0 || info.getClass().getField("rotation").getInt(info) == rotation;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private synchronized Object getDisplayInfo(int displayId) throws Exception {
+        if (getDisplayInfoMethod == null) {
+            Class<?> dmgClass = Class.forName("android.hardware.display.DisplayManagerGlobal");
+            displayManagerGlobal = dmgClass.getMethod("getInstance").invoke(null);
+            getDisplayInfoMethod = dmgClass.getMethod("getDisplayInfo", int.class);
+        }
+        return getDisplayInfoMethod.invoke(displayManagerGlobal, displayId);
+    }
+
+    /**
+     * 向 DisplayManagerGlobal 注册显示屏变化回调（只尝试一次）
+     * 各版本签名不同：(listener, handler) / (listener, handler, eventsMask) / (listener, handler, eventsMask, packageName)
+     */
+    private synchronized void ensureListener() {
+        if (listenerResolved) {
+            return;
+        }
+        listenerResolved = true;
+        try {
+            getDisplayInfo(0);
+            listenerThread = new HandlerThread("mrss-display-listener");
+            listenerThread.start();
+            Handler handler = new Handler(listenerThread.getLooper());
+
+            for (Method method : displayManagerGlobal.getClass().getMethods()) {
+                Class<?>[] params = method.getParameterTypes();
+                if (!"registerDisplayListener".equals(method.getName()) || params.length < 2
+                    || params[0] != DisplayManager.DisplayListener.class || params[1] != Handler.class) {
+                    continue;
+                }
+                Object[] args = new Object[params.length];
+                args[0] = displayListener;
+                args[1] = handler;
+                boolean supported = true;
+                for (int i = 2; i < params.length; i++) {
+                    if (params[i] == long.class) {
+                        args[i] = EVENT_FLAG_DISPLAY_CHANGED;
+                    } else if (params[i] == String.class) {
+                        args[i] = "com.android.shell";
+                    } else {
+                        supported = false;
+                    }
+                }
+                if (supported) {
+                    method.invoke(displayManagerGlobal, args);
+                    listenerRegistered = true;
+                    Log.d(TAG, "✓ 显示屏变化回调已注册 (" + params.length + "参数)");
+                    return;
+                }
+            }
+            Log.w(TAG, "未找到可用的registerDisplayListener，改为读取DisplayInfo");
+        } catch (Throwable t) {
+            Log.w(TAG, "注册显示屏变化回调失败，改为读取DisplayInfo: " + t);
+        }
+        if (listenerThread != null) {
+            listenerThread.quitSafely();
+            listenerThread = null;
+        }
+    }
+}
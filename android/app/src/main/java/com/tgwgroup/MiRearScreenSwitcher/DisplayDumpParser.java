@@ -0,0 +1,333 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.graphics.Rect;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * V4.0: dumpsys display 的单遍流式解析器
+ *
+ * 逐行读取，只在行首/关键字处做 indexOf，不对全文跑正则：
+ * - mViewports 行：每个 DisplayViewport{...} 的 displayId / uniqueId / deviceWidth / deviceHeight
+ * - Display Devices 区块：每个 DisplayDeviceInfo 的 uniqueId / 分辨率 / density / cutout
+ *   （DisplayDeviceInfo 行之后、下一个 DisplayDeviceInfo 之前的缩进行都属于同一设备）
+ *
+ * 指定目标displayId时，目标的viewport和设备区块都解析完就停止读取。
+ */
+public class DisplayDumpParser {
+
+    /**
+     * mViewports 中的一项
+     */
+    public static class Viewport {
+        public final int displayId;
+        public final String uniqueId;
+        public final int deviceWidth;
+        public final int deviceHeight;
+
+        Viewport(int displayId, String uniqueId, int deviceWidth, int deviceHeight) {
+            this.displayId = displayId;
+            this.uniqueId = uniqueId;
+            this.deviceWidth = deviceWidth;
+            this.deviceHeight = deviceHeight;
+        }
+    }
+
+    /**
+     * Display Devices 中的一项
+     */
+    public static class Device {
+        public String uniqueId;
+        public int width;
+        public int height;
+        public int densityDpi;
+        public Rect cutout;        // 未找到时为null
+
+        boolean matches(Viewport viewport) {
+            if (viewport.uniqueId != null && uniqueId != null) {
+                return viewport.uniqueId.equals(uniqueId);
+            }
+            // 没有uniqueId时用分辨率匹配（旧逻辑的回退方式）
+            return viewport.deviceWidth == width && viewport.deviceHeight == height;
+        }
+    }
+
+    private final int targetDisplayId;
+    private final List<Viewport> viewports = new ArrayList<>();
+    private final List<Device> devices = new ArrayList<>();
+    private Device currentDevice;
+    private int currentDeviceIndent = -1;
+    private boolean done = false;
+    private int linesRead = 0;
+
+    private DisplayDumpParser(int targetDisplayId) {
+        this.targetDisplayId = targetDisplayId;
+    }
+
+    /**
+     * 解析
+     * @param targetDisplayId 目标显示屏，解析完它就停止；-1=读到结尾
+     */
+    public static DisplayDumpParser parse(BufferedReader reader, int targetDisplayId) throws IOException {
+        DisplayDumpParser parser = new DisplayDumpParser(targetDisplayId);
+        String line;
+        while (!parser.done && (line = reader.readLine()) != null) {
+            parser.feed(line);
+        }
+        parser.finishDevice();
+        return parser;
+    }
+
+    public List<Viewport> getViewports() {
+        return viewports;
+    }
+
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * 是否因目标解析完成而提前停止
+     */
+    public boolean isStoppedEarly() {
+        return done;
+    }
+
+    public int getLinesRead() {
+        return linesRead;
+    }
+
+    public Viewport findViewport(int displayId) {
+        for (Viewport viewport : viewports) {
+            if (viewport.displayId == displayId) {
+                return viewport;
+            }
+        }
+        return null;
+    }
+
+    public Device findDevice(Viewport viewport) {
+        if (viewport == null) {
+            return null;
+        }
+        for (Device device : devices) {
+            if (device.matches(viewport)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    // ========================================
+    // 逐行处理
+    // ========================================
+
+    private void feed(String line) {
+        linesRead++;
+
+        int deviceIdx = line.indexOf("DisplayDeviceInfo{");
+        if (deviceIdx >= 0) {
+            finishDevice();
+            currentDevice = parseDeviceLine(line, deviceIdx);
+            currentDeviceIndent = indentOf(line);
+            devices.add(currentDevice);
+            return;
+        }
+
+        if (currentDevice != null) {
+            // 缩进比DisplayDeviceInfo行更深的都属于该设备，否则区块结束
+            if (!line.isEmpty() && indentOf(line) <= currentDeviceIndent) {
+                finishDevice();
+            } else {
+                scanDeviceDetails(currentDevice, line, 0);
+                return;
+            }
+        }
+
+        if (line.indexOf("DisplayViewport{") >= 0) {
+            parseViewports(line);
+            checkTargetComplete();
+        }
+    }
+
+    private void finishDevice() {
+        if (currentDevice != null) {
+            currentDevice = null;
+            currentDeviceIndent = -1;
+            checkTargetComplete();
+        }
+    }
+
+    private void checkTargetComplete() {
+        if (targetDisplayId < 0 || currentDevice != null) {
+            return;
+        }
+        Viewport viewport = findViewport(targetDisplayId);
+        if (viewport != null && findDevice(viewport) != null) {
+            done = true;
+        }
+    }
+
+    /**
+     * mViewports=[DisplayViewport{type=INTERNAL, valid=true, isActive=true, displayId=0, uniqueId='local:...', ...,
+     *   deviceWidth=1200, deviceHeight=2670}, DisplayViewport{...}]
+     */
+    private void parseViewports(String line) {
+        int pos = 0;
+        while ((pos = line.indexOf("DisplayViewport{", pos)) >= 0) {
+            int end = line.indexOf('}', pos);
+            if (end < 0) {
+                end = line.length();
+            }
+            int displayId = intAfter(line, "displayId=", pos, end);
+            String uniqueId = quotedAfter(line, "uniqueId='", '\'', pos, end);
+            int width = intAfter(line, "deviceWidth=", pos, end);
+            int height = intAfter(line, "deviceHeight=", pos, end);
+            if (displayId >= 0 && findViewport(displayId) == null) {
+                viewports.add(new Viewport(displayId, uniqueId, width, height));
+            }
+            pos = end;
+        }
+    }
+
+    /**
+     * DisplayDeviceInfo{"内置屏幕": uniqueId="local:4630946949513469332", 904 x 572, modeId 2, ...
+     *   density 450, ..., cutout DisplayCutout{insets=Rect(296, 0 - 0, 0) ...}
+     */
+    private static Device parseDeviceLine(String line, int start) {
+        Device device = new Device();
+        device.uniqueId = quotedAfter(line, "uniqueId=\"", '"', start, line.length());
+
+        // 分辨率：uniqueId之后第一个 "W x H"
+        int from = start;
+        if (device.uniqueId != null) {
+            from = line.indexOf(device.uniqueId, start) + device.uniqueId.length();
+        }
+        int x = line.indexOf(" x ", from);
+        if (x > 0) {
+            device.width = intBefore(line, x);
+            device.height = intAt(line, x + 3);
+        }
+
+        scanDeviceDetails(device, line, start);
+        return device;
+    }
+
+    private static void scanDeviceDetails(Device device, String line, int from) {
+        if (device.densityDpi <= 0) {
+            int density = intAfter(line, "density ", from, line.length());
+            if (density > 0) {
+                device.densityDpi = density;
+            }
+        }
+        if (device.cutout == null) {
+            int cutoutIdx = line.indexOf("DisplayCutout{insets=Rect(", from);
+            if (cutoutIdx >= 0) {
+                device.cutout = parseRect(line, cutoutIdx + "DisplayCutout{insets=Rect(".length());
+            }
+        }
+    }
+
+    /**
+     * 解析Rect内容，兼容标准格式 "l, t, r, b" 和 MIUI格式 "l, t - r, b"：按顺序取4个整数
+     */
+    private static Rect parseRect(String line, int start) {
+        int end = line.indexOf(')', start);
+        if (end < 0) {
+            return null;
+        }
+        int[] values = new int[4];
+        int count = 0;
+        int i = start;
+        while (i < end && count < 4) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int value = 0;
+                while (i < end && (c = line.charAt(i)) >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    i++;
+                }
+                values[count++] = value;
+            } else {
+                i++;
+            }
+        }
+        if (count < 4) {
+            return null;
+        }
+        return new Rect(values[0], values[1], values[2], values[3]);
+    }
+
+    // ========================================
+    // 词法辅助
+    // ========================================
+
+    private static int indentOf(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int intAfter(String line, String key, int from, int limit) {
+        int idx = line.indexOf(key, from);
+        if (idx < 0 || idx >= limit) {
+            return -1;
+        }
+        return intAt(line, idx + key.length());
+    }
+
+    private static int intAt(String line, int pos) {
+        int value = 0;
+        int i = pos;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            i++;
+        }
+        return i == pos ? -1 : value;
+    }
+
+    /**
+     * 读取 pos 之前紧挨着的整数（"904 x 572" 中的 904）
+     */
+    private static int intBefore(String line, int pos) {
+        int i = pos;
+        while (i > 0 && Character.isDigit(line.charAt(i - 1))) {
+            i--;
+        }
+        return i == pos ? -1 : intAt(line, i);
+    }
+
+    private static String quotedAfter(String line, String key, char quote, int from, int limit) {
+        int idx = line.indexOf(key, from);
+        if (idx < 0 || idx >= limit) {
+            return null;
+        }
+        int start = idx + key.length();
+        int end = line.indexOf(quote, start);
+        return end > start ? line.substring(start, end) : null;
+    }
+}
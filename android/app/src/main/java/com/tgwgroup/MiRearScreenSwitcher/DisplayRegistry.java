@@ -0,0 +1,440 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Display;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * V4.0: 多显示屏信息注册表（取代只缓存背屏的 DisplayInfoCache）
+ *
+ * - 一次 dumpsys display 扫描填充所有显示屏，按 displayId 和 uniqueId 索引
+ * - 读取无锁：整张表是不可变快照，通过 volatile 引用整体替换
+ * - 显示屏增删或几何参数变化时自动重新扫描（DisplayListener），不需要手动 refresh
+ * - 扫描在后台线程进行，Activity inflate 时只读快照，永远不会阻塞在shell调用上
+ * - 扫描结果持久化到小型二进制文件（按系统指纹和uniqueId校验），进程冷启动时同步加载，
+ *   首次连接TaskService后在后台重新校验
+ */
+public class DisplayRegistry {
+    private static final String TAG = "DisplayRegistry";
+
+    private static final int REAR_DISPLAY_ID = 1;
+    private static final long RESCAN_DEBOUNCE_MS = 200;
+    
+    // 持久化文件格式
+    private static final String PERSIST_FILE = "display_registry.bin";
+    private static final int PERSIST_MAGIC = 0x4D525344;   // "MRSD"
+    private static final int PERSIST_VERSION = 1;
+
+    /**
+     * 不可变快照
+     */
+    private static final class Snapshot {
+        final Map<Integer, RearDisplayHelper.RearDisplayInfo> byId;
+        final Map<String, RearDisplayHelper.RearDisplayInfo> byUniqueId;
+        final List<RearDisplayHelper.RearDisplayInfo> infos;
+        final boolean populated;
+        final boolean fromDisk;   // 从持久化文件加载，尚未经过本进程扫描校验
+
+        Snapshot(List<RearDisplayHelper.RearDisplayInfo> infos, boolean populated, boolean fromDisk) {
+            Map<Integer, RearDisplayHelper.RearDisplayInfo> ids = new HashMap<>();
+            Map<String, RearDisplayHelper.RearDisplayInfo> uniqueIds = new HashMap<>();
+            for (RearDisplayHelper.RearDisplayInfo info : infos) {
+                ids.put(info.displayId, info);
+                if (info.uniqueId != null) {
+                    uniqueIds.put(info.uniqueId, info);
+                }
+            }
+            this.byId = Collections.unmodifiableMap(ids);
+            this.byUniqueId = Collections.unmodifiableMap(uniqueIds);
+            this.infos = Collections.unmodifiableList(new ArrayList<>(infos));
+            this.populated = populated;
+            this.fromDisk = fromDisk;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(Collections.<RearDisplayHelper.RearDisplayInfo>emptyList(), false, false);
+    private static final RearDisplayHelper.RearDisplayInfo DEFAULT_REAR_INFO = new RearDisplayHelper.RearDisplayInfo();
+
+    private static volatile DisplayRegistry instance;
+
+    private volatile Snapshot snapshot = EMPTY;
+    private volatile ITaskService taskService;
+    private volatile File persistFile;
+
+    private final ExecutorService scanExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mrss-display-registry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean scanPending = new AtomicBoolean(false);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private DisplayManager displayManager;
+    private final Map<Integer, String> geometryKeys = new HashMap<>();   // 主线程访问
+
+    private DisplayRegistry() {}
+
+    public static DisplayRegistry getInstance() {
+        if (instance == null) {
+            synchronized (DisplayRegistry.class) {
+                if (instance == null) {
+                    instance = new DisplayRegistry();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 提供TaskService（Service连接成功时调用）
+     * 首次调用时注册显示屏监听；尚未扫描过则在后台扫描
+     */
+    public void attach(Context context, ITaskService service) {
+        if (service != null) {
+            taskService = service;
+        }
+        registerDisplayListener(context.getApplicationContext());
+        if (persistFile == null) {
+            persistFile = new File(context.getApplicationContext().getFilesDir(), PERSIST_FILE);
+        }
+        // 没有数据，或数据来自磁盘（需要校验）时扫描
+        Snapshot current = snapshot;
+        if (!current.populated || current.fromDisk) {
+            requestRescan();
+        }
+    }
+
+    // ========================================
+    // 读取（无锁）
+    // ========================================
+
+    /**
+     * @return 指定显示屏的信息，未知时为null
+     */
+    public RearDisplayHelper.RearDisplayInfo get(int displayId) {
+        return snapshot.byId.get(displayId);
+    }
+
+    public RearDisplayHelper.RearDisplayInfo getByUniqueId(String uniqueId) {
+        return uniqueId != null ? snapshot.byUniqueId.get(uniqueId) : null;
+    }
+
+    /**
+     * 背屏信息，尚未扫描到时返回默认值（不会为null）
+     */
+    public RearDisplayHelper.RearDisplayInfo getRearInfo() {
+        RearDisplayHelper.RearDisplayInfo info = snapshot.byId.get(REAR_DISPLAY_ID);
+        return info != null ? info : DEFAULT_REAR_INFO;
+    }
+
+    public boolean isPopulated() {
+        return snapshot.populated;
+    }
+
+    // ========================================
+    // 扫描
+    // ========================================
+
+    /**
+     * 在后台重新扫描（合并短时间内的多次请求）
+     */
+    public void requestRescan() {
+        if (!scanPending.compareAndSet(false, true)) {
+            return;
+        }
+        scanExecutor.execute(() -> {
+            scanPending.set(false);
+            rescanNow();
+        });
+    }
+
+    /**
+     * 同步扫描（只在后台线程调用）
+     * @return 是否成功
+     */
+    boolean rescanNow() {
+        ITaskService service = taskService;
+        if (service == null) {
+            Log.w(TAG, "⚠️ TaskService未连接，跳过扫描");
+            return false;
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            // V4.0: 在Shizuku进程内解析，只有解析结果经过binder
+            List<RearDisplayHelper.RearDisplayInfo> infos =
+                RearDisplayHelper.fromDumpResult(service.queryDisplayDump(-1));
+            if (infos.isEmpty()) {
+                Log.w(TAG, "⚠️ 未解析到任何显示屏");
+                return false;
+            }
+
+            Snapshot previous = snapshot;
+            snapshot = new Snapshot(infos, true, false);
+            Log.d(TAG, "✅ 已扫描" + infos.size() + "个显示屏 (" + (System.currentTimeMillis() - start) + "ms): "
+                + getRearInfo());
+            
+            if (previous.fromDisk && !sameContent(previous.infos, infos)) {
+                Log.w(TAG, "⚠️ 持久化的显示屏信息已过期，已更新");
+            }
+            persist(infos);
+            return true;
+
+        } catch (Exception e) {
+            Log.e(TAG, "❌ 扫描显示屏失败", e);
+            return false;
+        }
+    }
+
+    // ========================================
+    // 持久化（冷启动秒开）
+    // ========================================
+
+    /**
+     * 同步加载持久化的快照（MyApplication.onCreate中调用）
+     * 系统指纹不一致（OTA后）或背屏uniqueId变化时丢弃
+     */
+    public void loadPersisted(Context context) {
+        File file = new File(context.getApplicationContext().getFilesDir(), PERSIST_FILE);
+        persistFile = file;
+        if (snapshot.populated || !file.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != PERSIST_MAGIC || in.readInt() != PERSIST_VERSION) {
+                Log.w(TAG, "⚠️ 持久化文件版本不符，忽略");
+                return;
+            }
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                Log.w(TAG, "⚠️ 系统指纹已变化，忽略持久化数据");
+                return;
+            }
+
+            int count = in.readInt();
+            List<RearDisplayHelper.RearDisplayInfo> infos = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                RearDisplayHelper.RearDisplayInfo info = new RearDisplayHelper.RearDisplayInfo();
+                info.displayId = in.readInt();
+                info.uniqueId = in.readBoolean() ? in.readUTF() : null;
+                info.width = in.readInt();
+                info.height = in.readInt();
+                info.densityDpi = in.readInt();
+                info.cutout = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                infos.add(info);
+            }
+
+            if (!matchesCurrentUniqueIds(context, infos)) {
+                Log.w(TAG, "⚠️ 显示屏uniqueId不一致，忽略持久化数据");
+                return;
+            }
+
+            snapshot = new Snapshot(infos, true, true);
+            Log.d(TAG, "📂 已加载持久化显示屏信息 (" + (System.currentTimeMillis() - start) + "ms): " + getRearInfo());
+
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ 读取持久化显示屏信息失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 写入持久化文件（内容未变化时跳过），先写临时文件再rename
+     */
+    private void persist(List<RearDisplayHelper.RearDisplayInfo> infos) {
+        File file = persistFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(PERSIST_MAGIC);
+            out.writeInt(PERSIST_VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(infos.size());
+            for (RearDisplayHelper.RearDisplayInfo info : infos) {
+                out.writeInt(info.displayId);
+                out.writeBoolean(info.uniqueId != null);
+                if (info.uniqueId != null) {
+                    out.writeUTF(info.uniqueId);
+                }
+                out.writeInt(info.width);
+                out.writeInt(info.height);
+                out.writeInt(info.densityDpi);
+                out.writeInt(info.cutout.left);
+                out.writeInt(info.cutout.top);
+                out.writeInt(info.cutout.right);
+                out.writeInt(info.cutout.bottom);
+            }
+            out.flush();
+            byte[] data = bytes.toByteArray();
+
+            if (file.exists() && file.length() == data.length && Arrays.equals(readFile(file), data)) {
+                return;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(data);
+                fos.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "⚠️ 持久化文件重命名失败");
+                tmp.delete();
+                return;
+            }
+            Log.d(TAG, "💾 显示屏信息已持久化 (" + data.length + " bytes)");
+
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ 持久化显示屏信息失败: " + e.getMessage());
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        return data;
+    }
+
+    /**
+     * 用本进程可见的 Display.getUniqueId()（隐藏API，反射）校验持久化数据
+     * 取不到时不作为否决条件
+     */
+    private static boolean matchesCurrentUniqueIds(Context context, List<RearDisplayHelper.RearDisplayInfo> infos) {
+        DisplayManager dm = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        if (dm == null) {
+            return true;
+        }
+        for (RearDisplayHelper.RearDisplayInfo info : infos) {
+            if (info.uniqueId == null) {
+                continue;
+            }
+            Display display = dm.getDisplay(info.displayId);
+            if (display == null) {
+                continue;
+            }
+            try {
+                Object uniqueId = Display.class.getMethod("getUniqueId").invoke(display);
+                if (uniqueId != null && !info.uniqueId.equals(uniqueId)) {
+                    return false;
+                }
+            } catch (Throwable ignored) {
+                // 隐藏API不可用
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameContent(List<RearDisplayHelper.RearDisplayInfo> a, List<RearDisplayHelper.RearDisplayInfo> b) {
+        return a.toString().equals(b.toString());
+    }
+
+    // ========================================
+    // 显示屏变化监听
+    // ========================================
+
+    private void registerDisplayListener(Context appContext) {
+        mainHandler.post(() -> {
+            if (displayManager != null) {
+                return;
+            }
+            displayManager = (DisplayManager) appContext.getSystemService(Context.DISPLAY_SERVICE);
+            if (displayManager == null) {
+                return;
+            }
+            for (Display display : displayManager.getDisplays()) {
+                geometryKeys.put(display.getDisplayId(), geometryKey(display));
+            }
+            displayManager.registerDisplayListener(displayListener, mainHandler);
+        });
+    }
+
+    /**
+     * 几何参数（尺寸/DPI）摘要：亮灭屏、刷新率变化、旋转等不影响注册表内容，不触发扫描
+     * 尺寸取 Display.Mode 的物理分辨率（不随旋转交换宽高），注册表里的设备尺寸和cutout本来就与旋转无关
+     */
+    private static String geometryKey(Display display) {
+        android.util.DisplayMetrics metrics = new android.util.DisplayMetrics();
+        display.getRealMetrics(metrics);
+        Display.Mode mode = display.getMode();
+        return mode.getPhysicalWidth() + "x" + mode.getPhysicalHeight() + "@" + metrics.densityDpi;
+    }
+
+    private final Runnable debouncedRescan = this::requestRescan;
+
+    private void scheduleRescan() {
+        mainHandler.removeCallbacks(debouncedRescan);
+        mainHandler.postDelayed(debouncedRescan, RESCAN_DEBOUNCE_MS);
+    }
+
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+            Display display = displayManager.getDisplay(displayId);
+            if (display != null) {
+                geometryKeys.put(displayId, geometryKey(display));
+            }
+            scheduleRescan();
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            geometryKeys.remove(displayId);
+            scheduleRescan();
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            Display display = displayManager.getDisplay(displayId);
+            if (display == null) {
+                return;
+            }
+            String key = geometryKey(display);
+            if (!key.equals(geometryKeys.put(displayId, key))) {
+                Log.d(TAG, "🔄 Display " + displayId + " 几何参数变化: " + key);
+                scheduleRescan();
+            }
+        }
+    };
+}
@@ -0,0 +1,239 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * V4.0: 背屏Launcher压制（运行在Shizuku进程中）
+ *
+ * 充电/通知循环每100ms要求压制一次Launcher，之前每次都无条件 am force-stop（每次fork一个am进程）。
+ * 现在：
+ * - 通过扫描 /proc/<pid>/cmdline 判断进程是否存在（不再 ps -A | grep），并缓存上次的pid做快速检查
+ * - 只有进程真的存在时才 force-stop
+ * - 进程持续不存在时检查间隔指数退避；只有调用比退避间隔更密集（循环调用）时才跳过，
+ *   偶发的单次调用总会真正检查
+ * - 统计 检查/击杀/跳过 次数
+ */
+public class LauncherSuppressor {
+    private static final String TAG = "LauncherSuppressor";
+
+    static final String LAUNCHER_PACKAGE = "com.xiaomi.subscreencenter";
+    private static final byte[] LAUNCHER_BYTES = LAUNCHER_PACKAGE.getBytes(StandardCharsets.UTF_8);
+
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 800;
+
+    // /proc 下可读的cmdline少于这个数，说明没有readproc权限，改用pidof
+    private static final int MIN_READABLE_PROCS = 10;
+
+    private final ShellSessionPool shell;
+
+    private long backoffMs = MIN_BACKOFF_MS;
+    private long nextCheckTime = 0;
+    private long lastCallTime = 0;
+    private int lastPid = -1;
+    private int lastKilledPid = -1;
+
+    // 统计
+    private long calls = 0;
+    private long checks = 0;          // 真正检查进程的次数
+    private long skippedChecks = 0;   // 退避期内直接跳过的次数
+    private long kills = 0;           // 进程存在并执行force-stop的次数
+    private long killsAvoided = 0;    // 检查发现进程不存在、省掉的force-stop次数
+    private long restarts = 0;        // 被杀后又以新pid出现的次数
+
+    public LauncherSuppressor(ShellSessionPool shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 压制Launcher（循环调用安全）
+     * @return 调用后Launcher是否不在运行
+     */
+    public synchronized boolean suppress() {
+        long now = SystemClock.uptimeMillis();
+        calls++;
+        boolean looping = now - lastCallTime < MAX_BACKOFF_MS;
+        lastCallTime = now;
+
+        if (looping && now < nextCheckTime) {
+            skippedChecks++;
+            return true;
+        }
+
+        checks++;
+        int pid = findLauncherPid();
+        if (pid <= 0) {
+            killsAvoided++;
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+            nextCheckTime = now + backoffMs;
+            return true;
+        }
+
+        if (lastKilledPid > 0 && pid != lastKilledPid) {
+            restarts++;
+        }
+        boolean success = forceStop();
+        lastKilledPid = pid;
+        lastPid = -1;
+        backoffMs = MIN_BACKOFF_MS;
+        nextCheckTime = now + backoffMs;
+        return success;
+    }
+
+    /**
+     * 只在进程存在时杀掉
+     * @return true=进程存在且已杀掉
+     */
+    public synchronized boolean killIfRunning() {
+        calls++;
+        checks++;
+        int pid = findLauncherPid();
+        if (pid <= 0) {
+            killsAvoided++;
+            return false;
+        }
+        lastKilledPid = pid;
+        lastPid = -1;
+        return forceStop();
+    }
+
+    public synchronized boolean isRunning() {
+        return findLauncherPid() > 0;
+    }
+
+    /**
+     * 统计信息（供客户端查看节省效果）
+     */
+    public synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong("calls", calls);
+        stats.putLong("checks", checks);
+        stats.putLong("skippedChecks", skippedChecks);
+        stats.putLong("kills", kills);
+        stats.putLong("killsAvoided", killsAvoided);
+        stats.putLong("restarts", restarts);
+        stats.putLong("backoffMs", backoffMs);
+        return stats;
+    }
+
+    private boolean forceStop() {
+        kills++;
+        boolean success = shell.exec("am force-stop " + LAUNCHER_PACKAGE).isSuccess();
+        if (kills % 50 == 0) {
+            Log.d(TAG, "📊 calls=" + calls + " checks=" + checks + " skipped=" + skippedChecks
+                + " kills=" + kills + " avoided=" + killsAvoided + " restarts=" + restarts);
+        }
+        return success;
+    }
+
+    // ========================================
+    // 进程查找
+    // ========================================
+
+    /**
+     * @return Launcher主进程或子进程的pid，不存在返回-1
+     */
+    private int findLauncherPid() {
+        // 快速路径：上次找到的pid仍然是Launcher
+        if (lastPid > 0 && isLauncherPid(lastPid)) {
+            return lastPid;
+        }
+        lastPid = -1;
+
+        String[] entries = new File("/proc").list();
+        if (entries != null) {
+            int readable = 0;
+            for (String name : entries) {
+                if (name.isEmpty() || name.charAt(0) < '0' || name.charAt(0) > '9') {
+                    continue;
+                }
+                int pid;
+                try {
+                    pid = Integer.parseInt(name);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                int match = matchCmdline(pid);
+                if (match >= 0) {
+                    readable++;
+                }
+                if (match > 0) {
+                    lastPid = pid;
+                    return pid;
+                }
+            }
+            if (readable >= MIN_READABLE_PROCS) {
+                return -1;
+            }
+        }
+
+        // 没有readproc权限时回退到pidof
+        String output = shell.exec("pidof " + LAUNCHER_PACKAGE, false).output.trim();
+        if (output.isEmpty()) {
+            return -1;
+        }
+        try {
+            int space = output.indexOf(' ');
+            lastPid = Integer.parseInt(space > 0 ? output.substring(0, space) : output);
+            return lastPid;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean isLauncherPid(int pid) {
+        return matchCmdline(pid) > 0;
+    }
+
+    /**
+     * @return 1=是Launcher，0=不是，-1=读取失败
+     */
+    private static int matchCmdline(int pid) {
+        byte[] buffer = new byte[LAUNCHER_BYTES.length + 1];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream("/proc/" + pid + "/cmdline")) {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+
+        if (length < LAUNCHER_BYTES.length) {
+            return 0;
+        }
+        for (int i = 0; i < LAUNCHER_BYTES.length; i++) {
+            if (buffer[i] != LAUNCHER_BYTES[i]) {
+                return 0;
+            }
+        }
+        // 精确匹配包名，或 "包名:子进程"
+        if (length == LAUNCHER_BYTES.length) {
+            return 1;
+        }
+        byte next = buffer[LAUNCHER_BYTES.length];
+        return (next == 0 || next == ':') ? 1 : 0;
+    }
+}
@@ -20,6 +20,8 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.LinearGradient;
+import android.graphics.RadialGradient;
+import android.graphics.RenderNode;
 import android.graphics.Shader;
 import android.graphics.Color;
 import android.graphics.BlurMaskFilter;
@@ -27,6 +29,7 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -56,6 +59,8 @@ public class LightningShapeView extends View implements SensorEventListener {
     private SensorManager sensorManager;
     private Sensor accelerometer;
     
+    private static final boolean PERF_LOG = Log.isLoggable("LightningPerf", Log.DEBUG);
+    
     // V3.5: 全屏液体模式（不绘制闪电边框）
     private boolean fullScreenMode = false;
     
@@ -66,19 +71,47 @@ public class LightningShapeView extends View implements SensorEventListener {
     private Paint fullScreenBottomShadowPaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // 复用底部阴影画笔
     private Paint fullScreenWavePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // 复用波浪画笔
     private Paint fullScreenEdgeShinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // 复用边缘光泽画笔
-    private int lastShadowHeight = -1;  // 缓存上次的高度，避免重复创建shader
-    private int lastBottomShadowHeight = -1;  // 缓存底部阴影高度
-    private int lastEdgeShineWidth = -1;  // 缓存边缘光泽宽度
+    private Paint innerHighlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // V4.0: 左上角内部高光（之前和边缘光泽共用Paint，径向渐变被线性渐变覆盖）
     private Paint bubbleHighlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // 复用气泡高光画笔
     
-    // V3.5: 波浪计算优化（预计算，避免每帧sin计算）
-    private float[] wavePoints = new float[200];  // 预计算波浪点
-    private int lastWaveWidth = -1;  // 缓存波浪宽度
-    private float lastWaveOffset = -1f;  // 缓存波浪偏移
+    // V4.0: 渐变颜色/位置常量（之前每次重建shader都new数组）
+    private static final int[] FULL_SCREEN_SHADOW_COLORS = {0x00000000, 0x20000000, 0x40000000};
+    private static final float[] FULL_SCREEN_SHADOW_POSITIONS = {0f, 0.7f, 1f};
+    private static final int[] BOTTOM_SHADOW_COLORS = {0x00000000, 0x40000000, 0x50000000};
+    private static final float[] BOTTOM_SHADOW_POSITIONS = {0f, 0.5f, 1f};
+    private static final int[] EDGE_SHINE_COLORS = {0x00FFFFFF, 0x30FFFFFF, 0x20FFFFFF, 0x00FFFFFF};
+    private static final float[] EDGE_SHINE_POSITIONS = {0f, 0.3f, 0.7f, 1f};
+    private static final int[] INNER_HIGHLIGHT_COLORS = {0x50FFFFFF, 0x20FFFFFF, 0x00FFFFFF};
+    private static final float[] INNER_HIGHLIGHT_POSITIONS = {0f, 0.5f, 1f};
+    
+    // V4.0: 正弦查找表（一个周期，2的幂便于取模），波浪采样不再调用Math.sin
+    private static final int SINE_TABLE_SIZE = 1024;
+    private static final int SINE_TABLE_MASK = SINE_TABLE_SIZE - 1;
+    private static final float TWO_PI = (float) (Math.PI * 2);
+    private static final float SINE_TABLE_SCALE = SINE_TABLE_SIZE / TWO_PI;
+    private static final float[] SINE_TABLE = new float[SINE_TABLE_SIZE + 1];
+    static {
+        for (int i = 0; i <= SINE_TABLE_SIZE; i++) {
+            SINE_TABLE[i] = (float) Math.sin(i * TWO_PI / SINE_TABLE_SIZE);
+        }
+    }
     
-    // V3.14: 恢复波浪计算频率，保证流畅度
-    private static final float WAVE_UPDATE_THRESHOLD = 0.01f;  // 波浪更新阈值（拉满）
-    private float lastProcessedWaveOffset = -1f;  // 上次处理的波浪偏移
+    private static final float WAVE_AMPLITUDE = 8f;       // 波浪振幅（px）
+    private static final float WAVE_CYCLES = 2f;          // 屏幕宽度内的波峰数（4π）
+    private static final int WAVE_MAX_POINTS = 200;       // 波浪采样点上限
+    
+    // V4.0: 气泡几何（x, y, 半径 × 6），Canvas绘制和AGSL着色器共用
+    private static final float[] BUBBLE_X = {0.2f, 0.4f, 0.6f, 0.8f, 0.3f, 0.7f};
+    private static final float[] BUBBLE_GRAVITY = {1f, 0.8f, 0.6f, 0.9f, 0.7f, 0.5f};
+    private static final float[] BUBBLE_RADIUS = {6f, 4f, 3f, 3.5f, 4.5f, 2.5f};
+    private final float[] bubbleGeometry = new float[BUBBLE_X.length * 3];
+    
+    // V4.0: 硬件加速渲染管线
+    // API 33+：液体、波浪、阴影、气泡、光泽由AGSL单遍绘制（null=不支持，走Canvas）
+    // API 29+：闪电模式的静态玻璃/边框图层录制为RenderNode，尺寸变化时才重新录制
+    private LiquidShaderRenderer liquidShader;
+    private RenderNode glassUnderNode;  // 深度阴影 + 外部反射光（液体下方）
+    private RenderNode glassOverNode;   // 边框 + 左上角内部高光（液体上方）
     
     public LightningShapeView(Context context) {
         super(context);
@@ -101,8 +134,12 @@ public class LightningShapeView extends View implements SensorEventListener {
             Log.w("LightningShapeView", "重力传感器初始化失败", e);
         }
         
+        // V4.0: API 33+ 优先使用AGSL单遍液体渲染
+        liquidShader = LiquidShaderRenderer.create(WAVE_AMPLITUDE, WAVE_CYCLES);
+        
         // 启用硬件加速的图层类型
-        setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        // V4.0: AGSL渲染时每帧内容全部变化，离屏图层只会多一次整屏合成，直接画到窗口
+        setLayerType(liquidShader != null ? View.LAYER_TYPE_NONE : View.LAYER_TYPE_HARDWARE, null);
         
         // 液体画笔（绿色渐变）
         liquidPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -210,6 +247,16 @@ public class LightningShapeView extends View implements SensorEventListener {
         liquidPaint.setShader(null);  // 移除渐变
         liquidPaint.setColor(0xFF34C759);  // 系统电池绿色
         
+        // 波浪液体画笔只依赖液体颜色，尺寸变化时同步一次即可
+        fullScreenWavePaint.set(liquidPaint);
+        fullScreenWavePaint.setAlpha(220);
+        
+        // V4.0: 所有渐变只依赖视图尺寸（液位只改变绘制区域，不改变渐变几何），在这里一次性创建
+        rebuildShaders(w, h);
+        if (liquidShader != null) {
+            liquidShader.setLiquidColor(liquidPaint.getColor());
+        }
+        
         // 创建左上角高光路径（模拟玻璃反射）
         highlightPath.reset();
         highlightPath.moveTo(w * 0.2f, h * 0.1f);
@@ -217,6 +264,99 @@ public class LightningShapeView extends View implements SensorEventListener {
         highlightPath.lineTo(w * 0.3f, h * 0.35f);
         highlightPath.lineTo(w * 0.15f, h * 0.3f);
         highlightPath.close();
+        
+        // V4.0: 闪电路径和高光路径只在这里变化，重新录制静态玻璃图层
+        recordGlassNodes(w, h);
+    }
+    
+    /**
+     * V4.0: 把闪电模式的静态玻璃/边框图层录制为RenderNode（API 29+）
+     * 之前每帧都重新提交4条带BlurMaskFilter的Path绘制；录制后每帧只是引用已有的显示列表
+     */
+    private void recordGlassNodes(int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || width <= 0 || height <= 0) {
+            return;
+        }
+        if (glassUnderNode == null) {
+            glassUnderNode = new RenderNode("LightningGlassUnder");
+            glassOverNode = new RenderNode("LightningGlassOver");
+        }
+        
+        // 模糊和描边会超出视图边界，留出余量
+        int margin = 16;
+        glassUnderNode.setPosition(-margin, -margin, width + margin, height + margin);
+        Canvas under = glassUnderNode.beginRecording();
+        under.translate(margin, margin);
+        drawGlassUnder(under);
+        glassUnderNode.endRecording();
+        
+        glassOverNode.setPosition(-margin, -margin, width + margin, height + margin);
+        Canvas over = glassOverNode.beginRecording();
+        over.translate(margin, margin);
+        drawGlassOver(over);
+        glassOverNode.endRecording();
+    }
+    
+    private void drawGlassUnder(Canvas canvas) {
+        // 第0层：绘制玻璃深度阴影（内部凹陷感）
+        canvas.save();
+        canvas.translate(2, 2);
+        canvas.drawPath(lightningPath, glassDepthPaint);
+        canvas.restore();
+        
+        // 第1层：绘制外部柔和反射光（最外层光晕）
+        canvas.save();
+        canvas.translate(4, 4);
+        canvas.drawPath(lightningPath, glassReflectionPaint);
+        canvas.restore();
+    }
+    
+    private void drawGlassOver(Canvas canvas) {
+        // 第3层：绘制主边框
+        canvas.drawPath(lightningPath, outlinePaint);
+        
+        // 第6层：内部高光（沿着左上边缘的光带）
+        canvas.save();
+        canvas.clipPath(lightningPath);
+        // 绘制左上角的小面积高光反射（独立Paint，shader在onSizeChanged中创建）
+        canvas.drawPath(highlightPath, innerHighlightPaint);
+        canvas.restore();
+    }
+    
+    private boolean canDrawGlassNodes(Canvas canvas) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && glassUnderNode != null
+            && glassUnderNode.hasDisplayList() && canvas.isHardwareAccelerated();
+    }
+    
+    /**
+     * V4.0: 按尺寸创建渐变shader，onDraw中不再创建任何对象
+     */
+    private void rebuildShaders(int width, int height) {
+        fullScreenShadowPaint.setShader(new LinearGradient(
+            0, height - 40, 0, height,
+            FULL_SCREEN_SHADOW_COLORS, FULL_SCREEN_SHADOW_POSITIONS,
+            Shader.TileMode.CLAMP
+        ));
+        
+        fullScreenBottomShadowPaint.setShader(new LinearGradient(
+            0, height - 30, 0, height,
+            BOTTOM_SHADOW_COLORS, BOTTOM_SHADOW_POSITIONS,
+            Shader.TileMode.CLAMP
+        ));
+        
+        fullScreenEdgeShinePaint.setStyle(Paint.Style.FILL);
+        fullScreenEdgeShinePaint.setShader(new LinearGradient(
+            width * 0.08f, 0, width * 0.22f, 0,
+            EDGE_SHINE_COLORS, EDGE_SHINE_POSITIONS,
+            Shader.TileMode.CLAMP
+        ));
+        
+        innerHighlightPaint.setStyle(Paint.Style.FILL);
+        innerHighlightPaint.setShader(width > 0 ? new RadialGradient(
+            width * 0.25f, height * 0.2f, width * 0.3f,
+            INNER_HIGHLIGHT_COLORS, INNER_HIGHLIGHT_POSITIONS,
+            Shader.TileMode.CLAMP
+        ) : null);  // RadialGradient半径必须>0
     }
     
     @Override
@@ -233,9 +373,14 @@ public class LightningShapeView extends View implements SensorEventListener {
             drawFullScreenLiquid(canvas, width, height);
             
             // V3.5: 性能追踪（修复bug + 增加帧间隔追踪）
+            // V4.0: 统计日志每60帧要格式化字符串，默认关闭；adb shell setprop log.tag.LightningPerf DEBUG 后重启应用开启
+            if (!PERF_LOG) {
+                return;
+            }
             long drawEndTime = System.nanoTime();
             long drawTimeNanos = drawEndTime - drawStartTime;
             totalDrawTime += drawTimeNanos;
+            maxDrawTime = Math.max(maxDrawTime, drawTimeNanos);
             
             // 计算帧间隔
             if (lastFrameTimeNanos > 0) {
@@ -260,11 +405,12 @@ public class LightningShapeView extends View implements SensorEventListener {
                 float maxTheoreticalFps = (drawTimeMs > 0) ? (1000f / drawTimeMs) : 999;
                 float vsyncFps = (avgFrameIntervalMs > 0) ? (1000f / avgFrameIntervalMs) : 0;
                 
-                Log.d("LightningPerf", String.format("📊 性能: FPS=%.1f, VSync=%.1fHz (间隔%.2fms), 平均绘制=%.2fms", 
-                    actualFps, vsyncFps, avgFrameIntervalMs, avgDrawTimeMs));
+                Log.d("LightningPerf", String.format("📊 性能: FPS=%.1f, VSync=%.1fHz (间隔%.2fms), 平均绘制=%.2fms, 最长绘制=%.2fms", 
+                    actualFps, vsyncFps, avgFrameIntervalMs, avgDrawTimeMs, maxDrawTime / 1_000_000f));
                 
                 lastFrameTime = currentTime;
                 totalDrawTime = 0;
+                maxDrawTime = 0;
                 totalFrameInterval = 0;
                 frameCount = 0;
                 lastFrameTimeNanos = 0;
@@ -278,39 +424,37 @@ public class LightningShapeView extends View implements SensorEventListener {
         canvas.save();
         canvas.translate(tiltX * 5, tiltY * 3);
         
-        // 第0层：绘制玻璃深度阴影（内部凹陷感）
-        canvas.save();
-        canvas.translate(2, 2);
-        canvas.drawPath(lightningPath, glassDepthPaint);
-        canvas.restore();
-        
-        // 第1层：绘制外部柔和反射光（最外层光晕）
-        canvas.save();
-        canvas.translate(4, 4);
-        canvas.drawPath(lightningPath, glassReflectionPaint);
-        canvas.restore();
+        // 第0、1层：玻璃深度阴影 + 外部反射光（V4.0: 优先使用录制好的RenderNode）
+        boolean useGlassNodes = canDrawGlassNodes(canvas);
+        if (useGlassNodes) {
+            canvas.drawRenderNode(glassUnderNode);
+        } else {
+            drawGlassUnder(canvas);
+        }
         
         // 第2层：保存画布并裁剪为闪电形状
         canvas.save();
         canvas.clipPath(lightningPath);
         
+        // V4.0: AGSL单遍绘制液体各层
+        if (fillLevel > 0 && liquidShader != null) {
+            float fillHeight = height * fillLevel;
+            computeBubbles(width, height, fillHeight, fillHeight > 10);
+            float leftTilt = tiltX * 6;
+            float drawTop = Math.min(height - fillHeight, height - 30)
+                - WAVE_AMPLITUDE - Math.abs(leftTilt) - BUBBLE_RADIUS[0] - 2f;
+            liquidShader.draw(canvas, width, height, false, fillHeight, waveOffset,
+                leftTilt, -leftTilt, fillHeight > 20, bubbleGeometry, drawTop);
+        }
+        
         // 绘制液体填充（从底部向上）
-        if (fillLevel > 0) {
+        if (fillLevel > 0 && liquidShader == null) {
             float fillHeight = height * fillLevel;
             
             // 2.1 绘制主液体（绿色渐变）
             canvas.drawRect(0, height - fillHeight, width, height, liquidPaint);
             
-            // 2.2 绘制液体底部的深色阴影（复用Paint，仅高度变化时重建shader）
-            if (lastBottomShadowHeight != height) {
-                fullScreenBottomShadowPaint.setShader(new LinearGradient(
-                    0, height - 30, 0, height,
-                    new int[]{0x00000000, 0x40000000, 0x50000000},
-                    new float[]{0f, 0.5f, 1f},
-                    Shader.TileMode.CLAMP
-                ));
-                lastBottomShadowHeight = height;
-            }
+            // 2.2 绘制液体底部的深色阴影（shader在onSizeChanged中创建）
             canvas.drawRect(0, height - 30, width, height, fullScreenBottomShadowPaint);
             
             // 2.3 绘制液面波浪（优化：减少计算频率）
@@ -324,24 +468,13 @@ public class LightningShapeView extends View implements SensorEventListener {
                 
                 fullScreenWavePath.moveTo(0, waveY + leftTilt);
                 
-                // V3.6: 统一波浪计算（避免重复计算）
-                updateWavePoints(width, waveOffset);
-                
-                // 使用预计算的波浪点
-                int pointCount = Math.min(width / 8, wavePoints.length);  // 减少绘制点数
-                for (int i = 0; i < pointCount; i++) {
-                    float x = (float) i / (pointCount - 1) * width;
-                    float wave = wavePoints[i];
-                    float tilt = leftTilt + (rightTilt - leftTilt) * (x / (float)width);
-                    fullScreenWavePath.lineTo(x, waveY + wave + tilt);
-                }
+                // V4.0: 查表采样波浪（减少绘制点数）
+                appendWaveSamples(fullScreenWavePath, width, waveY, leftTilt, rightTilt, width / 8);
                 fullScreenWavePath.lineTo(width, height);
                 fullScreenWavePath.lineTo(0, height);
                 fullScreenWavePath.close();
                 
-                // 绘制波浪液体（复用Paint，只设置alpha）
-                fullScreenWavePaint.set(liquidPaint);
-                fullScreenWavePaint.setAlpha(220);
+                // 绘制波浪液体（画笔在onSizeChanged中已设置好颜色和alpha）
                 canvas.drawPath(fullScreenWavePath, fullScreenWavePaint);
             }
             
@@ -353,17 +486,7 @@ public class LightningShapeView extends View implements SensorEventListener {
                 drawBubbles(canvas, width, height, fillHeight);
             }
             
-            // 2.6 绘制液体左侧的明亮边缘（复用Paint，仅宽度变化时重建shader）
-            if (lastEdgeShineWidth != width) {
-                fullScreenEdgeShinePaint.setStyle(Paint.Style.FILL);
-                fullScreenEdgeShinePaint.setShader(new LinearGradient(
-                    width * 0.08f, 0, width * 0.22f, 0,
-                    new int[]{0x00FFFFFF, 0x30FFFFFF, 0x20FFFFFF, 0x00FFFFFF},
-                    new float[]{0f, 0.3f, 0.7f, 1f},
-                    Shader.TileMode.CLAMP
-                ));
-                lastEdgeShineWidth = width;
-            }
+            // 2.6 绘制液体左侧的明亮边缘（shader在onSizeChanged中创建）
             canvas.drawRect(width * 0.08f, height - fillHeight, 
                            width * 0.22f, height, fullScreenEdgeShinePaint);
             
@@ -377,8 +500,12 @@ public class LightningShapeView extends View implements SensorEventListener {
         // 恢复画布（取消裁剪）
         canvas.restore();
         
-        // 第3层：绘制主边框
-       canvas.drawPath(lightningPath, outlinePaint);
+        // 第3、6层：主边框 + 内部高光（V4.0: 优先使用录制好的RenderNode）
+        if (useGlassNodes) {
+            canvas.drawRenderNode(glassOverNode);
+        } else {
+            drawGlassOver(canvas);
+        }
         
         // 第4层：左上角强烈高光（模拟光源反射）
         //canvas.save();
@@ -397,84 +524,61 @@ public class LightningShapeView extends View implements SensorEventListener {
         //canvas.drawPath(lightningPath, shadowPaint);
         //canvas.restore();
         
-        // 第6层：内部高光（沿着左上边缘的光带）
-        canvas.save();
-        canvas.clipPath(lightningPath);
-        // 绘制左上角的小面积高光反射（复用Paint，避免每帧创建）
-        if (lastEdgeShineWidth != width) {
-            fullScreenEdgeShinePaint.setStyle(Paint.Style.FILL);
-            fullScreenEdgeShinePaint.setShader(new android.graphics.RadialGradient(
-                width * 0.25f, height * 0.2f, width * 0.3f,
-                new int[]{0x50FFFFFF, 0x20FFFFFF, 0x00FFFFFF},
-                new float[]{0f, 0.5f, 1f},
-                Shader.TileMode.CLAMP
-            ));
-            lastEdgeShineWidth = width;
-        }
-        canvas.drawPath(highlightPath, fullScreenEdgeShinePaint);
-        canvas.restore();
-        
         // 恢复重力倾斜的变换
         canvas.restore();
     }
     
     /**
-     * V3.6: 统一波浪计算（避免重复计算）
+     * V4.0: 查表正弦（线性插值），phase为任意弧度
      */
-    private void updateWavePoints(int width, float waveOffset) {
-        if (lastWaveWidth != width || Math.abs(lastProcessedWaveOffset - waveOffset) > WAVE_UPDATE_THRESHOLD) {
-            // V3.14: 恢复波浪点数，保证流畅度
-            int pointCount = Math.min(width / 6, wavePoints.length);
-            for (int i = 0; i < pointCount; i++) {
-                float x = (float) i / (pointCount - 1) * width;
-                wavePoints[i] = (float) Math.sin((x / (float)width * 4 * Math.PI) + waveOffset) * 8f;
-            }
-            lastWaveWidth = width;
-            lastProcessedWaveOffset = waveOffset;
+    private static float fastSin(float phase) {
+        float index = phase * SINE_TABLE_SCALE;
+        int i = (int) Math.floor(index);
+        float frac = index - i;
+        int a = i & SINE_TABLE_MASK;
+        return SINE_TABLE[a] + (SINE_TABLE[a + 1] - SINE_TABLE[a]) * frac;
+    }
+    
+    /**
+     * V4.0: 把液面波浪采样点追加到路径（查表，无分配）
+     * 之前的 wavePoints 缓存按 width/6 个点计算，闪电模式却按 width/8 个点读取，采样间距对不上；
+     * 现在每种模式按自己的点数直接采样。
+     */
+    private void appendWaveSamples(Path path, int width, float waveY, float leftTilt, float rightTilt, int requestedPoints) {
+        int pointCount = Math.min(requestedPoints, WAVE_MAX_POINTS);
+        if (pointCount < 2 || width <= 0) {
+            return;
+        }
+        float step = 1f / (pointCount - 1);
+        float tiltDelta = rightTilt - leftTilt;
+        float phaseStep = WAVE_CYCLES * TWO_PI * step;
+        for (int i = 0; i < pointCount; i++) {
+            float t = i * step;
+            float wave = fastSin(i * phaseStep + waveOffset) * WAVE_AMPLITUDE;
+            path.lineTo(t * width, waveY + wave + leftTilt + tiltDelta * t);
         }
     }
     
     /**
-     * V3.7: 绘制液体中的气泡（恢复重力效果，但保持性能优化）
+     * V4.0: 计算气泡几何并推进上升（每帧调用一次），结果写入 bubbleGeometry
+     * @param visible false时半径置0（液体太低不显示气泡，和旧逻辑一样不推进上升）
      */
-    private void drawBubbles(Canvas canvas, int width, int height, float fillHeight) {
+    private void computeBubbles(int width, int height, float fillHeight, boolean visible) {
         float baseY = height - fillHeight;
         
         // V3.17: 微小气泡重力响应强度，细腻效果
         float gravityOffsetX = -tiltX * 5; // 手机向左倾，气泡向右漂（微小强度）
         float gravityOffsetY = tiltY * 2;   // 前后倾斜的影响（微小强度）
         
-        // V3.15: 增加气泡数量，修复闪烁问题
-        // 绘制气泡（简单方案）
-        // 气泡1（大）
-        float bubble1X = width * 0.2f + gravityOffsetX;
-        float bubble1Y = baseY + fillHeight * bubblePositions[0] + gravityOffsetY;
-        canvas.drawCircle(bubble1X, bubble1Y, 6f, bubblePaint);
-        
-        // 气泡2（中）
-        float bubble2X = width * 0.4f + gravityOffsetX * 0.8f;
-        float bubble2Y = baseY + fillHeight * bubblePositions[1] + gravityOffsetY;
-        canvas.drawCircle(bubble2X, bubble2Y, 4f, bubblePaint);
-        
-        // 气泡3（小）
-        float bubble3X = width * 0.6f + gravityOffsetX * 0.6f;
-        float bubble3Y = baseY + fillHeight * bubblePositions[2] + gravityOffsetY;
-        canvas.drawCircle(bubble3X, bubble3Y, 3f, bubblePaint);
-        
-        // 气泡4（小）
-        float bubble4X = width * 0.8f + gravityOffsetX * 0.9f;
-        float bubble4Y = baseY + fillHeight * bubblePositions[3] + gravityOffsetY;
-        canvas.drawCircle(bubble4X, bubble4Y, 3.5f, bubblePaint);
-        
-        // 气泡5（中）
-        float bubble5X = width * 0.3f + gravityOffsetX * 0.7f;
-        float bubble5Y = baseY + fillHeight * bubblePositions[4] + gravityOffsetY;
-        canvas.drawCircle(bubble5X, bubble5Y, 4.5f, bubblePaint);
-        
-        // 气泡6（小）
-        float bubble6X = width * 0.7f + gravityOffsetX * 0.5f;
-        float bubble6Y = baseY + fillHeight * bubblePositions[5] + gravityOffsetY;
-        canvas.drawCircle(bubble6X, bubble6Y, 2.5f, bubblePaint);
+        for (int i = 0; i < BUBBLE_X.length; i++) {
+            bubbleGeometry[i * 3] = width * BUBBLE_X[i] + gravityOffsetX * BUBBLE_GRAVITY[i];
+            bubbleGeometry[i * 3 + 1] = baseY + fillHeight * bubblePositions[i] + gravityOffsetY;
+            bubbleGeometry[i * 3 + 2] = visible ? BUBBLE_RADIUS[i] : 0f;
+        }
+        
+        if (!visible) {
+            return;
+        }
         
         // 简单气泡上升逻辑
         for (int i = 0; i < bubblePositions.length; i++) {
@@ -485,6 +589,17 @@ public class LightningShapeView extends View implements SensorEventListener {
         }
     }
     
+    /**
+     * V3.7: 绘制液体中的气泡（恢复重力效果，但保持性能优化）
+     * V4.0: 几何由 computeBubbles 计算，与AGSL路径共用
+     */
+    private void drawBubbles(Canvas canvas, int width, int height, float fillHeight) {
+        computeBubbles(width, height, fillHeight, true);
+        for (int i = 0; i < BUBBLE_X.length; i++) {
+            canvas.drawCircle(bubbleGeometry[i * 3], bubbleGeometry[i * 3 + 1], bubbleGeometry[i * 3 + 2], bubblePaint);
+        }
+    }
+    
     private long waveAnimationStartTime = 0;
     private android.view.Choreographer.FrameCallback frameCallback;
     
@@ -492,6 +607,7 @@ public class LightningShapeView extends View implements SensorEventListener {
     private long lastFrameTime = 0;
     private long frameCount = 0;
     private long totalDrawTime = 0;
+    private long maxDrawTime = 0;           // V4.0: 窗口内最长单帧绘制（纳秒）
     private long lastFrameTimeNanos = 0;  // 上一帧的纳秒时间
     private long totalFrameInterval = 0;  // 帧间隔总和
     
@@ -519,7 +635,8 @@ public class LightningShapeView extends View implements SensorEventListener {
                     
                     // V3.14: 恢复波浪速度，保证流畅度
                     long elapsedNanos = frameTimeNanos - waveAnimationStartTime;
-                    waveOffset = (float)((elapsedNanos / 1_000_000_000.0) * Math.PI * 1.5); // 0.67秒一个周期
+                    // V4.0: 按周期取模，避免长时间充电后float精度下降导致波浪抖动
+                    waveOffset = (float)(((elapsedNanos / 1_000_000_000.0) * Math.PI * 1.5) % (Math.PI * 2)); // 0.67秒一个周期
                     
                     // 请求重绘（使用postInvalidateOnAnimation确保与vsync同步）
                     postInvalidateOnAnimation();
@@ -557,7 +674,10 @@ public class LightningShapeView extends View implements SensorEventListener {
         
         // 强制重绘
         invalidate();
-        Log.d("LightningShapeView", "🔋 填充比例已更新: " + (level * 100) + "%");
+        // V4.0: 充电动画的ValueAnimator每帧都会调用这里，字符串拼接只在性能日志开启时做
+        if (PERF_LOG) {
+            Log.d("LightningShapeView", "🔋 填充比例已更新: " + (level * 100) + "%");
+        }
     }
     
     /**
@@ -586,6 +706,15 @@ public class LightningShapeView extends View implements SensorEventListener {
         float leftTilt = tiltX * 8;  // 左侧倾斜量（微小强度）
         float rightTilt = -tiltX * 8; // 右侧倾斜量（微小强度）
         
+        // V4.0: AGSL单遍绘制，只覆盖液面以下区域
+        if (liquidShader != null) {
+            computeBubbles(width, height, fillHeight, fillHeight > 10);
+            float drawTop = height - fillHeight - WAVE_AMPLITUDE - Math.abs(leftTilt) - BUBBLE_RADIUS[0] - 2f;
+            liquidShader.draw(canvas, width, height, true, fillHeight, waveOffset,
+                leftTilt, rightTilt, true, bubbleGeometry, drawTop);
+            return;
+        }
+        
         // 1. 复用Path对象，避免每帧创建新对象
         fullScreenLiquidPath.reset();
         
@@ -593,17 +722,8 @@ public class LightningShapeView extends View implements SensorEventListener {
         float waveY = height - fillHeight;
         fullScreenLiquidPath.moveTo(0, waveY + leftTilt);
         
-        // V3.7: 统一波浪计算（避免重复计算）
-        updateWavePoints(width, waveOffset);
-        
-        // V3.14: 恢复波浪点数，保证流畅度
-        int pointCount = Math.min(width / 6, wavePoints.length);  // 恢复密集波浪点
-        for (int i = 0; i < pointCount; i++) {
-            float x = (float) i / (pointCount - 1) * width;
-            float wave = wavePoints[i];
-            float tilt = leftTilt + (rightTilt - leftTilt) * (x / (float)width);
-            fullScreenLiquidPath.lineTo(x, waveY + wave + tilt);
-        }
+        // V4.0: 查表采样波浪（V3.14 的密集波浪点数不变）
+        appendWaveSamples(fullScreenLiquidPath, width, waveY, leftTilt, rightTilt, width / 6);
         
         // 连接到右下角，再到左下角，形成封闭路径
         fullScreenLiquidPath.lineTo(width, height);
@@ -613,16 +733,7 @@ public class LightningShapeView extends View implements SensorEventListener {
         // 2. 绘制整体液体
         canvas.drawPath(fullScreenLiquidPath, liquidPaint);
         
-        // 3. 绘制底部阴影（仅在高度变化时重新创建shader）
-        if (lastShadowHeight != height) {
-            fullScreenShadowPaint.setShader(new LinearGradient(
-                0, height - 40, 0, height,
-                new int[]{0x00000000, 0x20000000, 0x40000000},
-                new float[]{0f, 0.7f, 1f},
-                Shader.TileMode.CLAMP
-            ));
-            lastShadowHeight = height;
-        }
+        // 3. 绘制底部阴影（shader在onSizeChanged中创建）
         canvas.drawPath(fullScreenLiquidPath, fullScreenShadowPaint);
         
         // V3.15: 修复气泡闪烁，每帧都绘制
@@ -0,0 +1,171 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RuntimeShader;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * V4.0: LightningShapeView 的 AGSL 单遍液体渲染（API 33+）
+ *
+ * 之前每帧：液体Path + 阴影Path/Rect + 波浪Path + 6个模糊气泡 + 边缘光泽Rect，全部是独立的抗锯齿填充，
+ * 同一块像素被画3~5遍。现在液体、液面波浪、底部阴影、气泡、边缘光泽都在一个片元着色器里算完，
+ * 只画一个覆盖液体区域的矩形（液面以上不绘制）。
+ *
+ * 颜色和几何与旧的Canvas实现保持一致（同样的波浪公式、渐变节点和气泡参数），两种模式：
+ * - 全屏模式：液体 + 底部40px阴影 + 气泡
+ * - 闪电模式：平顶液体 + 底部30px阴影 + 220透明度波浪 + 气泡 + 左侧光泽（外部由调用方裁剪为闪电形状）
+ *
+ * 着色器编译失败时 create() 返回null，调用方继续使用Canvas绘制。
+ */
+final class LiquidShaderRenderer {
+    private static final String TAG = "LiquidShaderRenderer";
+
+    private static final String[] BUBBLE_UNIFORMS = {"u_b0", "u_b1", "u_b2", "u_b3", "u_b4", "u_b5"};
+
+    private static final String AGSL =
+        "uniform float2 u_size;\n" +
+        "uniform float u_fillHeight;\n" +
+        "uniform float u_phase;\n" +
+        "uniform float u_amplitude;\n" +
+        "uniform float u_cycles;\n" +
+        "uniform float u_leftTilt;\n" +
+        "uniform float u_rightTilt;\n" +
+        "uniform float u_mode;\n" +        // 0=全屏 1=闪电
+        "uniform float u_waveEnabled;\n" +
+        "layout(color) uniform half4 u_liquid;\n" +
+        "uniform float3 u_b0;\n" +          // 气泡 x, y, 半径（半径0=不绘制）
+        "uniform float3 u_b1;\n" +
+        "uniform float3 u_b2;\n" +
+        "uniform float3 u_b3;\n" +
+        "uniform float3 u_b4;\n" +
+        "uniform float3 u_b5;\n" +
+        "\n" +
+        "const float TWO_PI = 6.28318530718;\n" +
+        "\n" +
+        "half4 over(half4 dst, half4 src) {\n" +
+        "    return src + dst * (1.0 - src.a);\n" +
+        "}\n" +
+        "\n" +
+        // 气泡：0x80FFFFFF + 2px模糊
+        "half4 bubble(half4 dst, float2 p, float3 b) {\n" +
+        "    if (b.z <= 0.0) { return dst; }\n" +
+        "    half a = half(0.5 * (1.0 - smoothstep(b.z - 2.0, b.z + 2.0, distance(p, b.xy))));\n" +
+        "    return over(dst, half4(a, a, a, a));\n" +
+        "}\n" +
+        "\n" +
+        // 三节点渐变（a0@0, a1@mid, a2@1）
+        "float ramp(float t, float a0, float mid, float a1, float a2) {\n" +
+        "    return t < mid ? mix(a0, a1, t / mid) : mix(a1, a2, (t - mid) / (1.0 - mid));\n" +
+        "}\n" +
+        "\n" +
+        "half4 main(float2 p) {\n" +
+        "    float w = u_size.x;\n" +
+        "    float h = u_size.y;\n" +
+        "    float t = p.x / w;\n" +
+        "    float top = h - u_fillHeight;\n" +
+        "    float surface = top + sin(t * u_cycles * TWO_PI + u_phase) * u_amplitude\n" +
+        "        + u_leftTilt + (u_rightTilt - u_leftTilt) * t;\n" +
+        "    half waveCov = half(clamp(p.y - surface + 0.5, 0.0, 1.0));\n" +
+        "    half4 c = half4(0.0);\n" +
+        "    if (u_mode < 0.5) {\n" +
+        "        c = u_liquid * waveCov;\n" +
+        "        float s = clamp((p.y - (h - 40.0)) / 40.0, 0.0, 1.0);\n" +
+        "        half sa = half(ramp(s, 0.0, 0.7, 32.0 / 255.0, 64.0 / 255.0)) * waveCov;\n" +
+        "        c = over(c, half4(0.0, 0.0, 0.0, sa));\n" +
+        "    } else {\n" +
+        "        half rectCov = half(clamp(p.y - top + 0.5, 0.0, 1.0));\n" +
+        "        c = u_liquid * rectCov;\n" +
+        "        float s = clamp((p.y - (h - 30.0)) / 30.0, 0.0, 1.0);\n" +
+        "        half sa = p.y >= h - 30.0 ? half(ramp(s, 0.0, 0.5, 64.0 / 255.0, 80.0 / 255.0)) : 0.0;\n" +
+        "        c = over(c, half4(0.0, 0.0, 0.0, sa));\n" +
+        "        if (u_waveEnabled > 0.5) {\n" +
+        "            c = over(c, u_liquid * (220.0 / 255.0) * waveCov);\n" +
+        "        }\n" +
+        "    }\n" +
+        "    c = bubble(c, p, u_b0);\n" +
+        "    c = bubble(c, p, u_b1);\n" +
+        "    c = bubble(c, p, u_b2);\n" +
+        "    c = bubble(c, p, u_b3);\n" +
+        "    c = bubble(c, p, u_b4);\n" +
+        "    c = bubble(c, p, u_b5);\n" +
+        "    if (u_mode > 0.5 && p.y >= top && p.x >= w * 0.08 && p.x <= w * 0.22) {\n" +
+        "        float e = (p.x - w * 0.08) / (w * 0.14);\n" +
+        "        half ea = half(e < 0.3 ? mix(0.0, 48.0 / 255.0, e / 0.3)\n" +
+        "            : e < 0.7 ? mix(48.0 / 255.0, 32.0 / 255.0, (e - 0.3) / 0.4)\n" +
+        "            : mix(32.0 / 255.0, 0.0, (e - 0.7) / 0.3));\n" +
+        "        c = over(c, half4(ea, ea, ea, ea));\n" +
+        "    }\n" +
+        "    return c;\n" +
+        "}\n";
+
+    private final RuntimeShader shader;
+    private final Paint paint = new Paint();
+
+    private LiquidShaderRenderer(RuntimeShader shader, float amplitude, float cycles) {
+        this.shader = shader;
+        shader.setFloatUniform("u_amplitude", amplitude);
+        shader.setFloatUniform("u_cycles", cycles);
+        paint.setShader(shader);
+    }
+
+    /**
+     * @return API 33以下或着色器编译失败时返回null
+     */
+    static LiquidShaderRenderer create(float amplitude, float cycles) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+            return null;
+        }
+        try {
+            LiquidShaderRenderer renderer = new LiquidShaderRenderer(new RuntimeShader(AGSL), amplitude, cycles);
+            Log.d(TAG, "✓ AGSL液体着色器已编译");
+            return renderer;
+        } catch (Exception e) {
+            Log.w(TAG, "AGSL液体着色器不可用，使用Canvas绘制: " + e.getMessage());
+            return null;
+        }
+    }
+
+    void setLiquidColor(int color) {
+        shader.setColorUniform("u_liquid", color);
+    }
+
+    /**
+     * 一次绘制所有液体图层（无分配）
+     * @param bubbles 6个气泡的 x, y, 半径（见 LightningShapeView.computeBubbles）
+     * @param waveEnabled 闪电模式是否绘制波浪层（全屏模式液面本身就是波浪）
+     */
+    void draw(Canvas canvas, int width, int height, boolean fullScreen, float fillHeight,
+              float phase, float leftTilt, float rightTilt, boolean waveEnabled,
+              float[] bubbles, float drawTop) {
+        shader.setFloatUniform("u_size", width, height);
+        shader.setFloatUniform("u_fillHeight", fillHeight);
+        shader.setFloatUniform("u_phase", phase);
+        shader.setFloatUniform("u_leftTilt", leftTilt);
+        shader.setFloatUniform("u_rightTilt", rightTilt);
+        shader.setFloatUniform("u_mode", fullScreen ? 0f : 1f);
+        shader.setFloatUniform("u_waveEnabled", waveEnabled ? 1f : 0f);
+        for (int i = 0; i < BUBBLE_UNIFORMS.length; i++) {
+            shader.setFloatUniform(BUBBLE_UNIFORMS[i], bubbles[i * 3], bubbles[i * 3 + 1], bubbles[i * 3 + 2]);
+        }
+        // 重新设置shader让Paint感知uniform变化
+        paint.setShader(shader);
+        canvas.drawRect(0, Math.max(0f, drawTop), width, height, paint);
+    }
+}
@@ -16,16 +16,13 @@
 package com.tgwgroup.MiRearScreenSwitcher;
 
 import android.Manifest;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.util.Log;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -33,6 +30,8 @@ import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.FlutterEngine;
 import io.flutter.plugin.common.MethodChannel;
 
+import java.util.concurrent.CompletableFuture;
+
 import rikka.shizuku.Shizuku;
 
 public class MainActivity extends FlutterActivity {
@@ -48,57 +47,27 @@ public class MainActivity extends FlutterActivity {
     }
     
     private ITaskService taskService;
+    // V4.0: MethodChannel中的TaskService调用全部异步执行，主线程不等待Shizuku
+    private final TaskServiceClient taskClient = new TaskServiceClient(() -> taskService);
     private MethodChannel methodChannel;
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
-    
-    // Shizuku监听器（关键！）
-    private final Shizuku.OnBinderReceivedListener binderReceivedListener = 
-        () -> {
-            bindTaskService();
-        };
-    
-    private final Shizuku.OnBinderDeadListener binderDeadListener = 
-        () -> {
-            taskService = null;
-            
-            // 启动重连任务
-            scheduleReconnectTaskService();
-        };
     
-    /**
-     * TaskService重连任务
-     */
-    private final Runnable reconnectTaskServiceRunnable = new Runnable() {
+    // V4.0: 连接由TaskServiceManager统一管理（重连、Shizuku binder监听都在那里）
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void run() {
-            if (taskService == null) {
-                bindTaskService();
-                
-                // 如果重连失败，2秒后再次尝试
-                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(this, 30);
-            } else {
-            }
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
+        }
+        
+        @Override
+        public void onTaskServiceDisconnected() {
+            taskService = null;
         }
-    };
-    
-    /**
-     * 安排TaskService重连
-     */
-    private void scheduleReconnectTaskService() {
-        new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(reconnectTaskServiceRunnable, 30);
     };
     
     private final Shizuku.OnRequestPermissionResultListener requestPermissionResultListener = 
         (requestCode, grantResult) -> {
             boolean granted = grantResult == PackageManager.PERMISSION_GRANTED;
-            if (granted) {
-                bindTaskService();
-            }
+            // 授权后的连接由TaskServiceManager处理
             // 通知Flutter刷新状态
             if (methodChannel != null) {
                 runOnUiThread(() -> {
@@ -107,37 +76,22 @@ public class MainActivity extends FlutterActivity {
             }
         };
     
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
-        }
-
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            taskService = null;
-        }
-    };
+    /**
+     * V4.0: 异步TaskService调用完成后在主线程回复Flutter
+     */
+    private <T> void replyAsync(MethodChannel.Result result, String errorLog, CompletableFuture<T> future) {
+        future.whenCompleteAsync((value, error) -> {
+            if (error != null) {
+                Log.e(TAG, errorLog, error);
+                result.error("ERROR", error.getMessage(), null);
+            } else {
+                result.success(value);
+            }
+        }, TaskServiceClient.MAIN);
+    }
     
     private void bindTaskService() {
-        if (taskService != null) {
-            return;
-        }
-        
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.e(TAG, "Shizuku not available");
-                return;
-            }
-            
-            if (Shizuku.checkSelfPermission() != PackageManager.PERMISSION_GRANTED) {
-                Log.e(TAG, "No Shizuku permission");
-                return;
-            }
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to bind TaskService", e);
-        }
+        TaskServiceManager.getInstance().connect();
     }
     
     @Override
@@ -147,9 +101,8 @@ public class MainActivity extends FlutterActivity {
         // 保存实例
         currentInstance = this;
         
-        // 添加Shizuku监听器（关键！使用Sticky版本）
-        Shizuku.addBinderReceivedListenerSticky(binderReceivedListener);
-        Shizuku.addBinderDeadListener(binderDeadListener);
+        // V4.0: 订阅共享的TaskService连接（Shizuku binder到达后自动连接）
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
         Shizuku.addRequestPermissionResultListener(requestPermissionResultListener);
         
         // 自动检查并请求Shizuku权限
@@ -203,54 +156,23 @@ public class MainActivity extends FlutterActivity {
                 taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
                 Thread.sleep(50);
                 
-                // 步骤3: 在主屏启动Activity
-                String componentName = getPackageName() + "/" + RearScreenNotificationActivity.class.getName();
-                String mainCmd = String.format(
-                    "am start -n %s --es packageName \"%s\" --es title \"%s\" --es text \"%s\" --el when %d",
-                    componentName, packageName,
-                    title != null ? title.replace("\"", "'") : "",
-                    text != null ? text.replace("\"", "'") : "",
-                    when
-                );
-                taskService.executeShellCommand(mainCmd);
-                
-                // 步骤4: 轮询获取taskId
-                String notifTaskId = null;
-                int attempts = 0;
-                int maxAttempts = 20;
-                
-                while (notifTaskId == null && attempts < maxAttempts) {
-                    Thread.sleep(30);
-                    String result = taskService.executeShellCommandWithResult("am stack list | grep RearScreenNotificationActivity");
-                    if (result != null && !result.trim().isEmpty()) {
-                        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("taskId=(\\d+)");
-                        java.util.regex.Matcher matcher = pattern.matcher(result);
-                        if (matcher.find()) {
-                            notifTaskId = matcher.group(1);
-                            Log.d(TAG, "Found notification taskId=" + notifTaskId);
-                            break;
-                        }
-                    }
-                    attempts++;
-                }
-                
-                if (notifTaskId != null) {
-                    // 步骤5: 移动到背屏
-                    String moveCmd = "service call activity_task 50 i32 " + notifTaskId + " i32 1";
-                    taskService.executeShellCommand(moveCmd);
-                    Thread.sleep(40);
-                    
-                    // 步骤6: 检查是否锁屏，决定是否关闭主屏
-                    android.app.KeyguardManager km = (android.app.KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
-                    if (km != null && km.isKeyguardLocked()) {
-                        // 主屏休眠功能已移除
-                        Log.d(TAG, "🔒 锁屏状态，主屏已关闭");
+                // 步骤3: V4.0: 直接启动到背屏，Activity在onCreate回报taskId（不再轮询+移动）
+                Intent intent = new Intent(this, RearScreenNotificationActivity.class);
+                intent.putExtra("packageName", packageName);
+                intent.putExtra("title", title != null ? title : "");
+                intent.putExtra("text", text != null ? text : "");
+                intent.putExtra("when", when);
+                RearLaunchHelper.launch(this, intent, 1, () -> taskService, new RearLaunchHelper.Callback() {
+                    @Override
+                    public void onLaunched(int taskId, boolean moved) {
+                        Log.d(TAG, "✅ Notification animation started on rear screen, taskId=" + taskId);
+                    }
+                    
+                    @Override
+                    public void onFailed(String reason) {
+                        Log.e(TAG, "❌ Failed to start notification on rear screen: " + reason);
                     }
-                    
-                    Log.d(TAG, "✅ Notification animation started on rear screen");
-                } else {
-                    Log.e(TAG, "❌ Failed to find notification taskId");
-                }
+                });
                 
             } catch (Exception e) {
                 Log.e(TAG, "Failed to show notification on rear screen", e);
@@ -293,8 +215,7 @@ public class MainActivity extends FlutterActivity {
         // 清除静态实例
         currentInstance = null;
         
-        Shizuku.removeBinderReceivedListener(binderReceivedListener);
-        Shizuku.removeBinderDeadListener(binderDeadListener);
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
         Shizuku.removeRequestPermissionResultListener(requestPermissionResultListener);
     }
     
@@ -345,13 +266,15 @@ public class MainActivity extends FlutterActivity {
                     
                     case "getCurrentApp": {
                         if (taskService != null) {
-                            try {
-                                String currentApp = taskService.getCurrentForegroundApp();
-                                result.success(currentApp);
-                            } catch (Exception e) {
-                                Log.e(TAG, "TaskService error: " + e.getMessage(), e);
-                                result.success(null);
-                            }
+                            taskClient.submit("getCurrentForegroundApp", ITaskService::getCurrentForegroundApp)
+                                .whenCompleteAsync((currentApp, error) -> {
+                                    if (error != null) {
+                                        Log.e(TAG, "TaskService error: " + error.getMessage(), error);
+                                        result.success(null);
+                                    } else {
+                                        result.success(currentApp);
+                                    }
+                                }, TaskServiceClient.MAIN);
                         } else {
                             result.success(null);
                         }
@@ -379,13 +302,8 @@ public class MainActivity extends FlutterActivity {
                     
                     case "getCurrentRearDpi": {
                         if (taskService != null) {
-                            try {
-                                int dpi = taskService.getCurrentRearDpi();
-                                result.success(dpi);
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to get rear DPI", e);
-                                result.error("ERROR", e.getMessage(), null);
-                            }
+                            replyAsync(result, "Failed to get rear DPI",
+                                taskClient.submitDisplay("getCurrentRearDpi", ITaskService::getCurrentRearDpi));
                         } else {
                             result.error("ERROR", "TaskService not available", null);
                         }
@@ -394,14 +312,9 @@ public class MainActivity extends FlutterActivity {
                     
                     case "setRearDpi": {
                         if (taskService != null) {
-                            try {
-                                int dpi = (int) call.argument("dpi");
-                                boolean success = taskService.setRearDpi(dpi);
-                                result.success(success);
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to set rear DPI", e);
-                                result.error("ERROR", e.getMessage(), null);
-                            }
+                            int dpi = (int) call.argument("dpi");
+                            replyAsync(result, "Failed to set rear DPI",
+                                taskClient.submitDisplay("setRearDpi", service -> service.setRearDpi(dpi)));
                         } else {
                             result.error("ERROR", "TaskService not available", null);
                         }
@@ -410,13 +323,8 @@ public class MainActivity extends FlutterActivity {
                     
                     case "resetRearDpi": {
                         if (taskService != null) {
-                            try {
-                                boolean success = taskService.resetRearDpi();
-                                result.success(success);
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to reset rear DPI", e);
-                                result.error("ERROR", e.getMessage(), null);
-                            }
+                            replyAsync(result, "Failed to reset rear DPI",
+                                taskClient.submitDisplay("resetRearDpi", ITaskService::resetRearDpi));
                         } else {
                             result.error("ERROR", "TaskService not available", null);
                         }
@@ -500,29 +408,19 @@ public class MainActivity extends FlutterActivity {
                     
                     case "ensureTaskServiceConnected": {
                         // 确保TaskService连接正常
-                        try {
-                            if (taskService == null) {
-                                // 尝试重新绑定
-                                bindTaskService();
-                            }
-                            result.success(taskService != null);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Failed to ensure TaskService connection", e);
-                            result.error("ERROR", e.getMessage(), null);
-                        }
+                        // V4.0: 未连接时等待连接就绪（最多3秒），不阻塞主线程
+                        TaskServiceManager.getInstance().awaitConnected(3000)
+                            .whenCompleteAsync((service, error) -> result.success(error == null),
+                                TaskServiceClient.MAIN);
                         break;
                     }
                     
                     case "setDisplayRotation": {
                         if (taskService != null) {
-                            try {
-                                int displayId = (int) call.argument("displayId");
-                                int rotation = (int) call.argument("rotation");
-                                boolean success = taskService.setDisplayRotation(displayId, rotation);
-                                result.success(success);
-                            } catch (Exception e) {
-                                result.error("ERROR", e.getMessage(), null);
-                            }
+                            int displayId = (int) call.argument("displayId");
+                            int rotation = (int) call.argument("rotation");
+                            replyAsync(result, "Failed to set display rotation",
+                                taskClient.submitDisplay("setDisplayRotation", service -> service.setDisplayRotation(displayId, rotation)));
                         } else {
                             result.error("ERROR", "TaskService not available", null);
                         }
@@ -531,13 +429,9 @@ public class MainActivity extends FlutterActivity {
                     
                     case "getDisplayRotation": {
                         if (taskService != null) {
-                            try {
-                                int displayId = (int) call.argument("displayId");
-                                int rotation = taskService.getDisplayRotation(displayId);
-                                result.success(rotation);
-                            } catch (Exception e) {
-                                result.error("ERROR", e.getMessage(), null);
-                            }
+                            int displayId = (int) call.argument("displayId");
+                            replyAsync(result, "Failed to get display rotation",
+                                taskClient.submitDisplay("getDisplayRotation", service -> service.getDisplayRotation(displayId)));
                         } else {
                             result.error("ERROR", "TaskService not available", null);
                         }
@@ -547,36 +441,35 @@ public class MainActivity extends FlutterActivity {
                     case "returnRearAppAndRestart": {
                         // 重启前先拉回背屏应用
                         if (taskService != null) {
-                            try {
-                                // 获取最后移动的任务信息
-                                String lastTask = SwitchToRearTileService.getLastMovedTask();
+                            // 获取最后移动的任务信息
+                            String lastTask = SwitchToRearTileService.getLastMovedTask();
+                            
+                            if (lastTask != null && lastTask.contains(":")) {
+                                int taskId;
+                                try {
+                                    taskId = Integer.parseInt(lastTask.split(":")[1]);
+                                } catch (NumberFormatException e) {
+                                    Log.e(TAG, "Failed to return rear app", e);
+                                    result.error("ERROR", e.getMessage(), null);
+                                    break;
+                                }
                                 
-                                if (lastTask != null && lastTask.contains(":")) {
-                                    String[] parts = lastTask.split(":");
-                                    int taskId = Integer.parseInt(parts[1]);
-                                    
-                                    // 检查任务是否还在背屏
-                                    boolean onRear = taskService.isTaskOnDisplay(taskId, 1);
-                                    
-                                    if (onRear) {
+                                // V4.0: 检查+移动+恢复Launcher作为一个显示操作串行执行
+                                replyAsync(result, "Failed to return rear app",
+                                    taskClient.submitDisplay("returnRearApp", service -> {
+                                        // 检查任务是否还在背屏
+                                        if (!service.isTaskOnDisplay(taskId, 1)) {
+                                            return false; // 没有应用在背屏
+                                        }
                                         // 拉回主屏
-                                        taskService.moveTaskToDisplay(taskId, 0);
-                                        
+                                        service.moveTaskToDisplay(taskId, 0);
                                         // 恢复官方Launcher
-                                        taskService.enableSubScreenLauncher();
-                                        
-                                        result.success(true);
-                                    } else {
-                                        // 没有应用在背屏
-                                        result.success(false);
-                                    }
-                                } else {
-                                    // 没有记录
-                                    result.success(false);
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to return rear app", e);
-                                result.error("ERROR", e.getMessage(), null);
+                                        service.enableSubScreenLauncher();
+                                        return true;
+                                    }));
+                            } else {
+                                // 没有记录
+                                result.success(false);
                             }
                         } else {
                             result.error("ERROR", "TaskService not available", null);
@@ -904,6 +797,25 @@ public class MainActivity extends FlutterActivity {
                         break;
                     }
                     
+                    case "setRearPresentationEnabled": {
+                        // V4.0: 背屏常驻Presentation模式（通知/充电动画直接绘制，不再启动Activity）
+                        try {
+                            boolean enabled = (boolean) call.argument("enabled");
+                            SharedPreferences prefs = getSharedPreferences("mrss_settings", MODE_PRIVATE);
+                            prefs.edit()
+                                .putBoolean(RearPresentationHost.PREF_KEY, enabled)
+                                .apply();
+                            // 立即预热/释放（NotificationService也会通过偏好监听同步）
+                            RearPresentationHost.getInstance().prewarm(this);
+                            Log.d(TAG, "Rear presentation mode set to: " + enabled);
+                            result.success(true);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Failed to set rear presentation mode", e);
+                            result.error("ERROR", e.getMessage(), null);
+                        }
+                        break;
+                    }
+                    
                     default:
                         result.notImplemented();
                 }
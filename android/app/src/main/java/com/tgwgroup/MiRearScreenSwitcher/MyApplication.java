@@ -54,6 +54,10 @@ public class MyApplication extends FlutterApplication {
     @Override
     public void onCreate() {
         super.onCreate();
+        
+        // V4.0: 同步加载上次的显示屏信息（几百字节），进程被杀后背屏动画首帧即可按正确尺寸/DPI渲染
+        // TaskService连接后会在后台重新扫描校验
+        DisplayRegistry.getInstance().loadPersisted(this);
     }
     
     public static boolean isSui() {
@@ -19,23 +19,23 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.PowerManager;
-import android.os.IBinder;
+import android.os.SystemClock;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
-import rikka.shizuku.Shizuku;
 
 /**
  * 通知监听服务
@@ -45,17 +45,87 @@ public class NotificationService extends NotificationListenerService {
     private static final String TAG = "NotificationService";
     private static final int NOTIFICATION_ID = 1001; // 与其他Service共用ID
     
-    private Set<String> selectedApps = new HashSet<>();
-    private boolean privacyHideTitle = false; // V3.2: 隐私模式 - 隐藏标题
-    private boolean privacyHideContent = false; // V3.2: 隐私模式 - 隐藏内容
-    private boolean followDndMode = true; // 跟随系统勿扰模式（默认开启）
-    private boolean onlyWhenLocked = false; // 仅在锁屏时通知（默认关闭）
-    private boolean notificationDarkMode = false; // 通知暗夜模式（默认关闭）
-    private boolean serviceEnabled = false; // 服务是否启用
+    // V4.0: 设置快照，设置变化时整体替换，收到通知时直接读取（不再每条通知都读SharedPreferences）
+    private volatile SettingsSnapshot settings = SettingsSnapshot.DISABLED;
     private ITaskService taskService; // 自己的TaskService实例
+    private final TaskServiceClient taskClient = new TaskServiceClient(() -> taskService);
     private SharedPreferences prefs;
+    private SharedPreferences flutterPrefs;
     private PowerManager.WakeLock wakeLock;
     
+    // V4.0: 通知合并 - 防抖窗口内的通知按应用合并后只显示一次，已在显示时原地更新
+    private static final long COALESCE_WINDOW_MS = 400;
+    private static final long LAUNCH_GRACE_MS = 1500; // 启动后等待Activity就绪的时间，期间不重复启动
+    private final android.os.Handler coalesceHandler = new android.os.Handler(android.os.Looper.getMainLooper());
+    private final LinkedHashMap<String, PendingNotification> pendingNotifications = new LinkedHashMap<>();
+    private final Runnable flushRunnable = this::flushPendingNotifications;
+    private boolean flushScheduled = false;
+    private long launchInFlightUntil = 0;
+    
+    /**
+     * 等待显示的通知（同一应用只保留最新内容，count累计条数）
+     */
+    private static final class PendingNotification {
+        String title;
+        String text;
+        long when;
+        int count;
+    }
+    
+    /**
+     * V4.0: 通知设置快照（不可变）
+     */
+    private static final class SettingsSnapshot {
+        static final SettingsSnapshot DISABLED = new SettingsSnapshot(
+            false, Collections.<String>emptySet(), false, false, true, false, false);
+        
+        final boolean serviceEnabled;      // 服务是否启用
+        final Set<String> selectedApps;    // 选中应用（HashSet，O(1)查找）
+        final boolean privacyHideTitle;    // V3.2: 隐私模式 - 隐藏标题
+        final boolean privacyHideContent;  // V3.2: 隐私模式 - 隐藏内容
+        final boolean followDndMode;       // 跟随系统勿扰模式（默认开启）
+        final boolean onlyWhenLocked;      // 仅在锁屏时通知（默认关闭）
+        final boolean darkMode;            // 通知暗夜模式（默认关闭）
+        
+        SettingsSnapshot(boolean serviceEnabled, Set<String> selectedApps, boolean privacyHideTitle,
+                         boolean privacyHideContent, boolean followDndMode, boolean onlyWhenLocked, boolean darkMode) {
+            this.serviceEnabled = serviceEnabled;
+            this.selectedApps = selectedApps;
+            this.privacyHideTitle = privacyHideTitle;
+            this.privacyHideContent = privacyHideContent;
+            this.followDndMode = followDndMode;
+            this.onlyWhenLocked = onlyWhenLocked;
+            this.darkMode = darkMode;
+        }
+        
+        /**
+         * 开关状态在FlutterSharedPreferences，其余设置在mrss_settings
+         */
+        static SettingsSnapshot load(SharedPreferences prefs, SharedPreferences flutterPrefs) {
+            // getStringSet返回的实例不能修改也不保证不被修改，拷贝一份
+            Set<String> apps = new HashSet<>(prefs.getStringSet("notification_selected_apps", Collections.<String>emptySet()));
+            return new SettingsSnapshot(
+                flutterPrefs.getBoolean("flutter.notification_service_enabled", false),
+                Collections.unmodifiableSet(apps),
+                prefs.getBoolean("notification_privacy_hide_title", false),
+                prefs.getBoolean("notification_privacy_hide_content", false),
+                prefs.getBoolean("notification_follow_dnd_mode", true),
+                prefs.getBoolean("notification_only_when_locked", false),
+                prefs.getBoolean("notification_dark_mode", false));
+        }
+    }
+    
+    // V4.0: 设置变化时重建快照（MainActivity/Flutter修改设置不一定发送重载广播）
+    // SharedPreferences只弱引用监听器，必须保存为字段
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsChangeListener = (sharedPreferences, key) -> {
+        if (key == null || key.startsWith("notification_") || key.equals("flutter.notification_service_enabled")) {
+            reloadSettings();
+        }
+        if (key == null || key.equals(RearPresentationHost.PREF_KEY)) {
+            RearPresentationHost.getInstance().prewarm(this);
+        }
+    };
+    
     // 静态实例，供外部访问
     private static NotificationService instance;
     
@@ -69,65 +139,34 @@ public class NotificationService extends NotificationListenerService {
         public void onReceive(Context context, Intent intent) {
             if ("com.tgwgroup.MiRearScreenSwitcher.RELOAD_NOTIFICATION_SETTINGS".equals(intent.getAction())) {
                 Log.d(TAG, "🔄 收到重新加载设置的广播");
-                loadNotificationServiceSettings(); // 重新加载开关状态
-                loadSettings(); // 重新加载其他设置
+                reloadSettings();
             }
         }
     };
     
-    // Shizuku服务配置
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("notification_task_service")
-            .debuggable(false)
-            .version(1);
-    
     // TaskService连接
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理（含Shizuku binder监听和重连），这里只订阅
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
+        public void onTaskServiceConnected(ITaskService service) {
             Log.d(TAG, "✓ TaskService connected");
-            taskService = ITaskService.Stub.asInterface(binder);
+            taskService = service;
             
-            // 初始化显示屏信息缓存
+            // 初始化显示屏信息注册表（后台扫描，不阻塞）
             try {
-                DisplayInfoCache.getInstance().initialize(taskService);
+                DisplayRegistry.getInstance().attach(getApplicationContext(), taskService);
             } catch (Exception e) {
-                Log.w(TAG, "初始化显示屏缓存失败: " + e.getMessage());
+                Log.w(TAG, "初始化显示屏注册表失败: " + e.getMessage());
             }
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             Log.d(TAG, "✗ TaskService disconnected");
             taskService = null;
-            // 自动重连
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                if (taskService == null) {
-                    bindTaskService();
-                }
-            }, 1000);
         }
     };
     
-    // Shizuku监听器
-    private final Shizuku.OnBinderReceivedListener binderReceivedListener = 
-        () -> {
-            Log.d(TAG, "Shizuku binder received");
-            bindTaskService();
-        };
-    
-    private final Shizuku.OnBinderDeadListener binderDeadListener = 
-        () -> {
-            Log.d(TAG, "Shizuku binder dead");
-            taskService = null;
-            // 尝试重连
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                bindTaskService();
-            }, 1000);
-        };
-    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -138,6 +177,9 @@ public class NotificationService extends NotificationListenerService {
         
         // 初始化SharedPreferences
         prefs = getSharedPreferences("mrss_settings", Context.MODE_PRIVATE);
+        flutterPrefs = getSharedPreferences("FlutterSharedPreferences", Context.MODE_PRIVATE);
+        prefs.registerOnSharedPreferenceChangeListener(prefsChangeListener);
+        flutterPrefs.registerOnSharedPreferenceChangeListener(prefsChangeListener);
         
         // 注册广播接收器（监听设置变化）
         IntentFilter filter = new IntentFilter("com.tgwgroup.MiRearScreenSwitcher.RELOAD_NOTIFICATION_SETTINGS");
@@ -148,95 +190,47 @@ public class NotificationService extends NotificationListenerService {
         }
         Log.d(TAG, "✓ 广播接收器已注册");
         
-        // 添加Shizuku监听器
-        Shizuku.addBinderReceivedListenerSticky(binderReceivedListener);
-        Shizuku.addBinderDeadListener(binderDeadListener);
-        
         // 绑定TaskService
         bindTaskService();
         
-        // V2.4: 加载通知服务开关状态
-        Log.d(TAG, "🔧 开始加载通知服务开关状态...");
-        loadNotificationServiceSettings();
-        Log.d(TAG, "🔧 通知服务开关状态加载完成: " + serviceEnabled);
+        // V2.4: 加载通知服务开关状态和其他设置
+        reloadSettings();
+        
+        // V4.0: 可选的背屏常驻Presentation，开启时预先挂到背屏
+        RearPresentationHost.getInstance().prewarm(this);
         
         // 启动为前台服务，防止被系统杀死
         startForeground(NOTIFICATION_ID, RearScreenKeeperService.createServiceNotification(this));
         Log.d(TAG, "✓ 前台服务已启动");
-        
-        loadSettings();
     }
     
     private void bindTaskService() {
-        try {
-            if (taskService != null) {
-                Log.d(TAG, "TaskService already bound");
-                return;
-            }
-            
-            if (!Shizuku.pingBinder()) {
-                Log.w(TAG, "Shizuku not available");
-                return;
-            }
-            
-            Log.d(TAG, "🔗 开始绑定TaskService...");
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to bind TaskService", e);
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     /**
-     * 加载通知服务开关状态
+     * V4.0: 重新读取设置并整体替换快照
+     * 只在启动、设置变化、收到重载广播时调用
      */
-    private void loadNotificationServiceSettings() {
+    private void reloadSettings() {
+        SettingsSnapshot snapshot;
         try {
-            Log.d(TAG, "🔧 开始读取FlutterSharedPreferences...");
-            // 从FlutterSharedPreferences读取开关状态
-            SharedPreferences flutterPrefs = getSharedPreferences("FlutterSharedPreferences", MODE_PRIVATE);
-            Log.d(TAG, "🔧 FlutterSharedPreferences读取成功");
-            
-            serviceEnabled = flutterPrefs.getBoolean("flutter.notification_service_enabled", false);
-            Log.d(TAG, "🔧 通知服务开关状态已恢复: " + serviceEnabled);
-            
-            // NotificationListenerService由系统管理，不能手动停止
-            // 如果开关关闭，服务仍会运行但不处理通知
-            if (!serviceEnabled) {
-                Log.d(TAG, "⏸️ 通知服务已禁用，将忽略所有通知");
-            } else {
-                Log.d(TAG, "✅ 通知服务已启用，将处理通知");
-            }
+            snapshot = SettingsSnapshot.load(prefs, flutterPrefs);
         } catch (Exception e) {
-            Log.e(TAG, "✗ 加载通知服务设置失败", e);
-            serviceEnabled = false; // 默认关闭
+            Log.e(TAG, "✗ 加载通知设置失败", e);
+            snapshot = SettingsSnapshot.DISABLED; // 默认关闭
         }
-    }
-    
-    private void loadSettings() {
-        try {
-            selectedApps = prefs.getStringSet("notification_selected_apps", new HashSet<>());
-            privacyHideTitle = prefs.getBoolean("notification_privacy_hide_title", false);
-            privacyHideContent = prefs.getBoolean("notification_privacy_hide_content", false);
-            followDndMode = prefs.getBoolean("notification_follow_dnd_mode", true);
-            onlyWhenLocked = prefs.getBoolean("notification_only_when_locked", false);
-            notificationDarkMode = prefs.getBoolean("notification_dark_mode", false);
-            // 注意：不在这里重新设置 serviceEnabled，保持 loadNotificationServiceSettings() 的值
-            
-            Log.d(TAG, "⚙️ 已加载设置");
-            Log.d(TAG, "   - 启用状态: " + serviceEnabled + " (由loadNotificationServiceSettings设置)");
-            Log.d(TAG, "   - 选中应用: " + selectedApps.size() + " 个");
-            Log.d(TAG, "   - 隐藏标题: " + privacyHideTitle);
-            Log.d(TAG, "   - 隐藏内容: " + privacyHideContent);
-            
-            if (!selectedApps.isEmpty()) {
-                Log.d(TAG, "📋 选中应用列表: " + selectedApps.toString());
-            } else {
-                Log.w(TAG, "⚠️ 没有选中任何应用");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "加载设置失败", e);
-            selectedApps = new HashSet<>();
-            // 不在这里重置 serviceEnabled
+        settings = snapshot;
+        
+        // NotificationListenerService由系统管理，不能手动停止
+        // 如果开关关闭，服务仍会运行但不处理通知
+        Log.d(TAG, "⚙️ 已加载设置");
+        Log.d(TAG, "   - 启用状态: " + snapshot.serviceEnabled + (snapshot.serviceEnabled ? " ✅ 将处理通知" : " ⏸️ 将忽略所有通知"));
+        Log.d(TAG, "   - 选中应用: " + snapshot.selectedApps.size() + " 个");
+        Log.d(TAG, "   - 隐藏标题: " + snapshot.privacyHideTitle);
+        Log.d(TAG, "   - 隐藏内容: " + snapshot.privacyHideContent);
+        if (snapshot.selectedApps.isEmpty()) {
+            Log.w(TAG, "⚠️ 没有选中任何应用");
         }
     }
     
@@ -244,11 +238,11 @@ public class NotificationService extends NotificationListenerService {
     public void onNotificationPosted(StatusBarNotification sbn) {
         super.onNotificationPosted(sbn);
         
-        // V2.4: 每次收到通知时重新加载开关状态
-        loadNotificationServiceSettings();
+        // V4.0: 读取当前设置快照（设置变化时已由监听器更新）
+        final SettingsSnapshot settings = this.settings;
         
         // V2.4: 如果通知服务开关关闭，不处理通知
-        if (!serviceEnabled) {
+        if (!settings.serviceEnabled) {
             Log.d(TAG, "⏸️ 通知服务已禁用，忽略通知");
             return;
         }
@@ -271,17 +265,8 @@ public class NotificationService extends NotificationListenerService {
                 return;
             }
             
-            // 每次都重新加载设置（确保实时生效）
-            loadSettings();
-            
-            // 检查服务是否启用
-            if (!serviceEnabled) {
-                Log.d(TAG, "⏭️ 通知服务未启用，跳过");
-                return;
-            }
-            
             // 检查系统勿扰模式
-            if (followDndMode) {
+            if (settings.followDndMode) {
                 try {
                     android.app.NotificationManager nm = (android.app.NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
                     if (nm != null && nm.getCurrentInterruptionFilter() != android.app.NotificationManager.INTERRUPTION_FILTER_ALL) {
@@ -294,7 +279,7 @@ public class NotificationService extends NotificationListenerService {
             }
             
             // 检查是否仅在锁屏时通知
-            if (onlyWhenLocked) {
+            if (settings.onlyWhenLocked) {
                 try {
                     android.app.KeyguardManager km = (android.app.KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
                     if (km != null && !km.isKeyguardLocked()) {
@@ -306,11 +291,8 @@ public class NotificationService extends NotificationListenerService {
                 }
             }
             
-            Log.d(TAG, "📋 当前选中应用数量: " + selectedApps.size());
-            Log.d(TAG, "📋 选中应用列表: " + selectedApps.toString());
-            
             // 检查是否在选中列表中
-            if (!selectedApps.contains(packageName)) {
+            if (!settings.selectedApps.contains(packageName)) {
                 Log.d(TAG, "⏭️ 应用不在选中列表中: " + packageName);
                 return;
             }
@@ -326,92 +308,146 @@ public class NotificationService extends NotificationListenerService {
             Log.d(TAG, "📝 通知内容: " + text);
             
             // V3.2: 隐私模式处理（区分标题和内容）
-            if (privacyHideTitle) {
+            if (settings.privacyHideTitle) {
                 Log.d(TAG, "🔒 隐藏通知标题");
                 title = "隐私模式已启用";
             }
-            if (privacyHideContent) {
+            if (settings.privacyHideContent) {
                 Log.d(TAG, "🔒 隐藏通知内容");
                 text = "你有一条新消息";
             }
             
-            Log.d(TAG, "🚀 开始显示背屏通知: " + packageName);
-            
-            // 通知动画管理器：开始通知动画（返回被打断的旧动画）
-            RearAnimationManager.AnimationType oldAnim = RearAnimationManager.startAnimation(RearAnimationManager.AnimationType.NOTIFICATION);
-            
-            // 如果有旧动画需要打断，发送打断广播
-            if (oldAnim == RearAnimationManager.AnimationType.CHARGING) {
-                Log.d(TAG, "🔄 检测到充电动画正在播放，发送打断广播");
-                
-                // V3.5: 检查充电动画是否是常亮模式
-                boolean chargingAlwaysOn = prefs.getBoolean("charging_always_on_enabled", false);
-                RearAnimationManager.markInterruptedChargingAsAlwaysOn(chargingAlwaysOn);
-                
-                RearAnimationManager.sendInterruptBroadcast(this, RearAnimationManager.AnimationType.CHARGING);
-            } else if (oldAnim == RearAnimationManager.AnimationType.NOTIFICATION) {
-                Log.d(TAG, "🔄 检测到通知动画正在播放，发送打断广播并重载");
-                RearAnimationManager.sendInterruptBroadcast(this, RearAnimationManager.AnimationType.NOTIFICATION);
-                
-                // 延迟600ms后重新启动通知动画，确保旧动画完全停止（锁屏+投送app下需要更多时间）
-                final String finalPackageName = packageName;
-                final String finalTitle = title;
-                final String finalText = text;
-                final long finalWhen = when;
-                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                    Log.d(TAG, "🔄 重载通知动画");
-                    showNotificationOnRearScreen(finalPackageName, finalTitle, finalText, finalWhen);
-                }, 600);
-                return; // 提前返回，避免重复启动
-            }
-            
-            // 触发背屏通知显示
-            showNotificationOnRearScreen(packageName, title, text, when);
+            // V4.0: 加入合并队列，由防抖窗口统一显示
+            enqueueNotification(packageName, title, text, when);
             
         } catch (Exception e) {
             Log.e(TAG, "❌ 处理通知时出错", e);
         }
     }
     
-    private void showNotificationOnRearScreen(String packageName, String title, String text, long when) {
-        // 参考ChargingService的重试机制
-        if (taskService == null) {
-            Log.w(TAG, "⚠️ TaskService未连接，尝试重新绑定...");
-            bindTaskService();
+    /**
+     * V4.0: 加入合并队列
+     * 窗口内第一条通知开始计时，窗口结束时统一处理，群聊刷屏时不再每条都打断+重启Activity
+     */
+    private void enqueueNotification(String packageName, String title, String text, long when) {
+        // 先移除再放入，保证LinkedHashMap末尾是最近来通知的应用
+        PendingNotification pending = pendingNotifications.remove(packageName);
+        if (pending == null) {
+            pending = new PendingNotification();
+        }
+        pending.title = title;
+        pending.text = text;
+        pending.when = when;
+        pending.count++;
+        pendingNotifications.put(packageName, pending);
+        Log.d(TAG, String.format("📥 加入合并队列: %s (窗口内第%d条)", packageName, pending.count));
+        
+        if (!flushScheduled) {
+            flushScheduled = true;
+            coalesceHandler.postDelayed(flushRunnable, COALESCE_WINDOW_MS);
+        }
+    }
+    
+    /**
+     * V4.0: 防抖窗口结束，显示合并后的通知
+     * 1. 背屏已有通知在显示 -> 原地更新内容和条数
+     * 2. 上次启动尚未就绪 -> 继续等待下一个窗口，避免重复am start
+     * 3. 否则按原流程启动通知Activity
+     */
+    private void flushPendingNotifications() {
+        flushScheduled = false;
+        if (pendingNotifications.isEmpty()) {
+            return;
+        }
+        
+        // 背屏同时只显示一条：取最近来通知的应用，其它应用的通知被覆盖（与之前逐条打断的结果一致）
+        String packageName = null;
+        PendingNotification latest = null;
+        int total = 0;
+        for (Map.Entry<String, PendingNotification> entry : pendingNotifications.entrySet()) {
+            packageName = entry.getKey();
+            latest = entry.getValue();
+            total += entry.getValue().count;
+        }
+        
+        if (RearPresentationHost.getInstance().updateNotification(packageName, latest.title, latest.text, latest.count, settings.privacyHideContent)
+                || RearScreenNotificationActivity.updateInPlace(packageName, latest.title, latest.text, latest.count, settings.privacyHideContent)) {
+            Log.d(TAG, String.format("🔁 背屏通知原地更新: %s (+%d条, 本窗口共%d条)", packageName, latest.count, total));
+            pendingNotifications.clear();
+            return;
+        }
+        
+        if (SystemClock.uptimeMillis() < launchInFlightUntil) {
+            Log.d(TAG, "⏳ 通知Activity启动中，合并到下一个窗口");
+            flushScheduled = true;
+            coalesceHandler.postDelayed(flushRunnable, COALESCE_WINDOW_MS);
+            return;
+        }
+        
+        pendingNotifications.clear();
+        launchInFlightUntil = SystemClock.uptimeMillis() + LAUNCH_GRACE_MS;
+        
+        final String finalPackageName = packageName;
+        final String finalTitle = latest.title;
+        final String finalText = latest.text;
+        final long finalWhen = latest.when;
+        final int finalCount = latest.count;
+        
+        Log.d(TAG, String.format("🚀 开始显示背屏通知: %s (%d条, 本窗口共%d条)", packageName, finalCount, total));
+        
+        // 通知动画管理器：开始通知动画（返回被打断的旧动画）
+        RearAnimationManager.AnimationType oldAnim = RearAnimationManager.startAnimation(RearAnimationManager.AnimationType.NOTIFICATION);
+        
+        // 如果有旧动画需要打断，发送打断广播
+        if (oldAnim == RearAnimationManager.AnimationType.CHARGING) {
+            Log.d(TAG, "🔄 检测到充电动画正在播放，发送打断广播");
             
-            // 延迟500ms后重试
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                showNotificationOnRearScreenDirect(packageName, title, text, when);
-            }, 500);
-        } else {
-            showNotificationOnRearScreenDirect(packageName, title, text, when);
+            // V3.5: 检查充电动画是否是常亮模式
+            boolean chargingAlwaysOn = prefs.getBoolean("charging_always_on_enabled", false);
+            RearAnimationManager.markInterruptedChargingAsAlwaysOn(chargingAlwaysOn);
+            
+            RearAnimationManager.sendInterruptBroadcast(this, RearAnimationManager.AnimationType.CHARGING);
         }
+        
+        // V4.0: 常驻Presentation模式，直接在背屏绘制，不启动Activity
+        if (RearPresentationHost.getInstance().showNotification(this, finalPackageName, finalTitle, finalText,
+                finalCount, settings.privacyHideContent, settings.darkMode)) {
+            if (oldAnim == RearAnimationManager.AnimationType.NOTIFICATION) {
+                // 关掉无法原地更新的旧通知Activity
+                RearAnimationManager.sendInterruptBroadcast(this, RearAnimationManager.AnimationType.NOTIFICATION);
+            }
+            launchInFlightUntil = 0;
+            return;
+        }
+        
+        if (oldAnim == RearAnimationManager.AnimationType.NOTIFICATION) {
+            // 旧通知Activity无法原地更新（主屏占位中/正在关闭），只能打断后重载
+            Log.d(TAG, "🔄 检测到通知动画正在播放且无法原地更新，发送打断广播并重载");
+            RearAnimationManager.sendInterruptBroadcast(this, RearAnimationManager.AnimationType.NOTIFICATION);
+            
+            // 延迟600ms后重新启动通知动画，确保旧动画完全停止（锁屏+投送app下需要更多时间）
+            launchInFlightUntil += 600;
+            coalesceHandler.postDelayed(() -> {
+                Log.d(TAG, "🔄 重载通知动画");
+                showNotificationOnRearScreen(finalPackageName, finalTitle, finalText, finalWhen, finalCount);
+            }, 600);
+            return; // 提前返回，避免重复启动
+        }
+        
+        // 触发背屏通知显示
+        showNotificationOnRearScreen(finalPackageName, finalTitle, finalText, finalWhen, finalCount);
     }
     
-    private void showNotificationOnRearScreenDirect(String packageName, String title, String text, long when) {
+    /**
+     * V4.0: ActivityOptions直接启动到背屏不需要Shizuku，TaskService未连接时也立即启动，
+     * 只有压制Launcher和兜底移动任务依赖TaskService（尽力而为）
+     */
+    private void showNotificationOnRearScreen(String packageName, String title, String text, long when, int count) {
         try {
-            if (taskService == null) {
-                Log.e(TAG, "❌ TaskService仍然不可用，放弃显示通知");
-                return;
-            }
-            
             // 短时局部保活，避免在锁屏/重负载下被挂起
             acquireWakeLock(6000);
             Log.d(TAG, "🎯 准备启动Activity显示通知");
             
-            // 锁屏状态检查
-            android.app.KeyguardManager km = (android.app.KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
-            boolean isLocked = km != null && km.isKeyguardLocked();
-            
-            // 读取主屏前台应用（用于同包名前台场景的保护）
-            String mainForegroundApp = null;
-            try {
-                mainForegroundApp = taskService.getForegroundAppOnDisplay(0);
-                Log.d(TAG, "📱 主屏前台应用: " + mainForegroundApp);
-            } catch (Throwable t) {
-                Log.w(TAG, "获取主屏前台应用失败: " + t.getMessage());
-            }
-            
             // V3.3: 移除唤醒代码，避免锁屏时跳转到密码界面
             
             try {
@@ -421,140 +457,49 @@ public class NotificationService extends NotificationListenerService {
                 Log.w(TAG, "pauseMonitoring failed: " + t.getMessage());
             }
             
-            try {
-                // 禁用背屏官方Launcher，避免抢占
-                taskService.disableSubScreenLauncher();
-            } catch (Throwable t) {
-                Log.w(TAG, "disableSubScreenLauncher failed: " + t.getMessage());
-            }
-            
-            // V3.3: 移除 wm dismiss-keyguard 命令，避免锁屏时跳转到密码界面
-            
-            // 2) 根据锁屏状态与前台应用选择启动策略
-            String componentName = getPackageName() + "/" + RearScreenNotificationActivity.class.getName();
-            
-            // 当锁屏且主屏前台就是本条通知所属应用时，避免主屏占位策略，改为直接背屏启动，防止系统冲突
-            // 精确匹配包名，避免误判（如 com.tencent.mm 和 com.tencent.mobileqq）
-            boolean forceDirectRearDueToSameApp = false;
-            if (isLocked && mainForegroundApp != null && !mainForegroundApp.isEmpty()) {
-                // 提取主屏前台应用的包名（格式可能是 "com.example.app/com.example.app.MainActivity"）
-                String foregroundPackage = mainForegroundApp;
-                if (mainForegroundApp.contains("/")) {
-                    foregroundPackage = mainForegroundApp.split("/")[0];
-                }
-                forceDirectRearDueToSameApp = foregroundPackage.equals(packageName);
-                Log.d(TAG, String.format("🔍 锁屏同包检查: 主屏前台=[%s] vs 通知包名=[%s] -> %s",
-                    foregroundPackage, packageName, forceDirectRearDueToSameApp ? "匹配(直接背屏)" : "不匹配(占位策略)"));
-            }
-            
-            // ✅ 统一策略：无论锁屏与否，都直接在背屏启动（避免DPI不匹配问题）
-            // 直接在背屏启动可以确保布局使用正确的DPI（450），避免从主屏移动导致的尺寸问题
-            
-            // 确保暗夜模式设置是最新的
-            notificationDarkMode = prefs.getBoolean("notification_dark_mode", false);
-            Log.d(TAG, "🌙 当前暗夜模式设置: " + notificationDarkMode);
-            
-            String directCmd = String.format(
-                "am start --display 1 -n %s --es packageName \"%s\" --es title \"%s\" --es text \"%s\" --el when %d --ez darkMode %b",
-                componentName,
-                packageName,
-                title.replace("\"", "\\\""),
-                text.replace("\"", "\\\""),
-                when,
-                notificationDarkMode
-            );
-            
-            boolean started = false;
-            // 尝试3次直接启动，确保成功
-            for (int retry = 0; retry < 3; retry++) {
-                try {
-                    taskService.executeShellCommand(directCmd);
-                    Log.d(TAG, String.format("✓ %s，直接在背屏启动通知Activity (尝试%d)",
-                        isLocked ? "锁屏状态" : "非锁屏状态", retry + 1));
-                    try { Thread.sleep(150); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
-                    
-                    // 检查是否启动成功
-                    String check = taskService.executeShellCommandWithResult("am stack list | grep RearScreenNotificationActivity");
-                    if (check != null && !check.trim().isEmpty()) {
-                        started = true;
-                        Log.d(TAG, "✓ 通知动画已在背屏启动");
-                        break;
+            // 禁用背屏官方Launcher，避免抢占（工作线程执行，不阻塞启动）
+            taskClient.submit("disableSubScreenLauncher", ITaskService::disableSubScreenLauncher, 1000)
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        Log.w(TAG, "disableSubScreenLauncher failed: " + error.getMessage());
                     }
-                } catch (Throwable t) {
-                    Log.w(TAG, String.format("尝试%d失败: %s", retry + 1, t.getMessage()));
-                }
-            }
+                });
             
-            // 如果直接启动失败，使用备用策略（主屏占位+移动）
-            if (!started && isLocked) {
-                Log.w(TAG, "⚠️ 直接背屏启动失败，回退到主屏占位+移动策略");
-                
-                // 主屏启动（Activity 自行占位）
-                String startOnMainCmd = String.format(
-                    "am start -n %s --es packageName \"%s\" --es title \"%s\" --es text \"%s\" --el when %d --ez darkMode %b",
-                    componentName,
-                    packageName,
-                    title.replace("\"", "\\\""),
-                    text.replace("\"", "\\\""),
-                    when,
-                    notificationDarkMode
-                );
-                Log.d(TAG, "🔵 在主屏启动通知Activity（占位符）");
-                taskService.executeShellCommand(startOnMainCmd);
-                try { Thread.sleep(50); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
-                
-                // 轮询获取taskId
-                String notifTaskId = null;
-                int attempts = 0;
-                int maxAttempts = 60;
-                while (notifTaskId == null && attempts < maxAttempts) {
-                    try { Thread.sleep(40); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
-                    String result = taskService.executeShellCommandWithResult("am stack list | grep RearScreenNotificationActivity");
-                    if (result != null && !result.trim().isEmpty()) {
-                        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("taskId=(\\d+)");
-                        java.util.regex.Matcher matcher = pattern.matcher(result);
-                        if (matcher.find()) {
-                            notifTaskId = matcher.group(1);
-                            Log.d(TAG, "🎯 找到通知taskId=" + notifTaskId);
-                            break;
-                        }
-                    }
-                    attempts++;
+            // ✅ 统一策略：无论锁屏与否，都直接在背屏启动（避免DPI不匹配问题）
+            // V4.0: ActivityOptions直接启动到背屏，Activity在onCreate回报taskId，不再轮询 am stack list
+            final SettingsSnapshot settings = this.settings;
+            Log.d(TAG, "🌙 当前暗夜模式设置: " + settings.darkMode);
+            
+            Intent intent = new Intent(this, RearScreenNotificationActivity.class);
+            intent.putExtra("packageName", packageName);
+            intent.putExtra("title", title);
+            intent.putExtra("text", text);
+            intent.putExtra("when", when);
+            intent.putExtra("darkMode", settings.darkMode);
+            intent.putExtra("count", count);
+            intent.putExtra("hideContent", settings.privacyHideContent);
+            
+            final long launchStart = SystemClock.uptimeMillis();
+            RearLaunchHelper.launch(this, intent, 1, NotificationService::getTaskService, new RearLaunchHelper.Callback() {
+                @Override
+                public void onLaunched(int taskId, boolean moved) {
+                    Log.d(TAG, String.format("✓ 通知动画已在背屏启动 taskId=%d (%dms%s)",
+                        taskId, SystemClock.uptimeMillis() - launchStart, moved ? ", 已移动" : ""));
+                    // 移动过来的Activity在onResume才初始化内容，再给一点就绪时间
+                    launchInFlightUntil = moved ? SystemClock.uptimeMillis() + LAUNCH_GRACE_MS : 0;
+                    releaseWakeLock();
                 }
                 
-                if (notifTaskId != null) {
-                    // 4) 移动到背屏
-                    String moveCmd = "service call activity_task 50 i32 " + notifTaskId + " i32 1";
-                    taskService.executeShellCommand(moveCmd);
-                    try { Thread.sleep(60); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
-                    
-                    // 5) 锁屏时关闭主屏，避免主屏抢焦点
-                    // 主屏休眠功能已移除
-                    Log.d(TAG, "🔒 锁屏状态，主屏已关闭");
-                    
-                    Log.d(TAG, "✓ 通知动画已移动到背屏");
-                } else {
-                    Log.e(TAG, "❌ 未能找到通知Activity的taskId，最后尝试直接在背屏启动");
-                    try {
-                        String fallbackCmd = String.format(
-                            "am start --display 1 -n %s --es packageName \"%s\" --es title \"%s\" --es text \"%s\" --el when %d --ez darkMode %b",
-                            componentName,
-                            packageName,
-                            title.replace("\"", "\\\""),
-                            text.replace("\"", "\\\""),
-                            when,
-                            notificationDarkMode
-                        );
-                        taskService.executeShellCommand(fallbackCmd);
-                        Log.d(TAG, "🟦 已尝试直接 --display 1 启动通知Activity（fallback）");
-                    } catch (Throwable t) {
-                        Log.w(TAG, "Fallback直接在背屏启动失败: " + t.getMessage());
-                    }
+                @Override
+                public void onFailed(String reason) {
+                    Log.e(TAG, "❌ 显示背屏通知失败: " + reason);
+                    launchInFlightUntil = 0;
+                    releaseWakeLock();
                 }
-            }
+            });
         } catch (Exception e) {
             Log.e(TAG, "❌ 显示背屏通知失败", e);
-        } finally {
+            launchInFlightUntil = 0;
             releaseWakeLock();
         }
     }
@@ -592,7 +537,7 @@ public class NotificationService extends NotificationListenerService {
     public void onListenerConnected() {
         super.onListenerConnected();
         Log.d(TAG, "🔗 NotificationListener connected");
-        loadSettings();
+        reloadSettings();
         Log.d(TAG, "✓ 通知监听器已就绪");
     }
     
@@ -601,6 +546,14 @@ public class NotificationService extends NotificationListenerService {
         super.onDestroy();
         Log.d(TAG, "🔴 NotificationService destroyed");
         
+        // 丢弃未显示的合并通知
+        coalesceHandler.removeCallbacksAndMessages(null);
+        pendingNotifications.clear();
+        
+        // 注销设置监听
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsChangeListener);
+        flutterPrefs.unregisterOnSharedPreferenceChangeListener(prefsChangeListener);
+        
         // 注销广播接收器
         try {
             unregisterReceiver(settingsReceiver);
@@ -609,23 +562,9 @@ public class NotificationService extends NotificationListenerService {
             Log.w(TAG, "Failed to unregister receiver", e);
         }
         
-        // 移除Shizuku监听器
-        try {
-            Shizuku.removeBinderReceivedListener(binderReceivedListener);
-            Shizuku.removeBinderDeadListener(binderDeadListener);
-        } catch (Exception e) {
-            Log.w(TAG, "Failed to remove Shizuku listeners", e);
-        }
-        
-        // 解绑TaskService
-        try {
-            if (taskService != null) {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-                taskService = null;
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "Failed to unbind TaskService", e);
-        }
+        // 取消订阅TaskService（V4.0: 共享连接不解绑）
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
         
         // 清除实例
         instance = null;
@@ -0,0 +1,292 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.app.Activity;
+import android.app.ActivityOptions;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * V4.0: 直接在背屏启动Activity（NotificationService / ChargingService / MainActivity 共用）
+ *
+ * 之前都是：主屏启动 → 每30~40ms轮询 am stack list 找taskId → service call activity_task 50 移动。
+ * 现在：
+ * 1. 本进程 startActivity + ActivityOptions.setLaunchDisplayId 直接启动到背屏
+ *    （有悬浮窗权限，不受后台启动Activity的限制）
+ * 2. 抛异常或超时未回报时，由Shizuku进程执行 am start --display（只补发一次；之后只有am start本身失败才算失败）
+ * 3. 被启动的Activity在 onCreate/onNewIntent 调用 reportLaunched() 回报自己的taskId和所在屏幕；
+ *    不在目标屏幕时（部分ROM忽略launchDisplayId）按taskId直接移动。全程没有轮询和sleep。
+ *
+ * 慢启动时两次启动可能都会到达singleInstance的Activity，同一token的第二次回报 reportLaunched() 返回false，
+ * Activity据此忽略重复的onNewIntent（否则一条通知会被计成两条）。
+ *
+ * Activity和调用方在同一进程，回报是直接调用（按启动时放进Intent的token匹配），不需要AIDL。
+ * 回调都在主线程。
+ */
+public class RearLaunchHelper {
+    private static final String TAG = "RearLaunchHelper";
+
+    public static final String EXTRA_LAUNCH_TOKEN = "mrss_launch_token";
+
+    // 等待Activity回报的时间，超时后改用 am start --display 重试一次
+    // 背屏冷启动（inflate前强制DPI、锁屏）可能超过1秒，太短会让正常的慢启动也补发一次
+    private static final long REPORT_TIMEOUT_MS = 2500;
+    // am start 成功后仍未回报：只清理记录，不回调失败（Activity可能只是启动得慢）
+    private static final long PENDING_EXPIRY_MS = 10000;
+    // 记住最近已回报的token，用于识别重复到达的Intent
+    private static final int REPORTED_TOKENS_MAX = 16;
+
+    public interface Callback {
+        /**
+         * Activity已在目标屏幕
+         * @param moved 是否是启动到其它屏幕后按taskId移动过来的（Activity需要在onResume里初始化内容）
+         */
+        void onLaunched(int taskId, boolean moved);
+
+        void onFailed(String reason);
+    }
+
+    private static final class PendingLaunch {
+        final String token;
+        final Intent intent;
+        final int displayId;
+        final RearWakeupScheduler.TaskServiceProvider provider;
+        final Callback callback;
+        final long startTime = SystemClock.uptimeMillis();
+        final Runnable timeout = () -> onTimeout(this);
+        boolean shellTried;
+
+        PendingLaunch(String token, Intent intent, int displayId,
+                      RearWakeupScheduler.TaskServiceProvider provider, Callback callback) {
+            this.token = token;
+            this.intent = intent;
+            this.displayId = displayId;
+            this.provider = provider;
+            this.callback = callback;
+        }
+    }
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mrss-rear-launch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 只在主线程访问
+    private static final Map<String, PendingLaunch> pending = new HashMap<>();
+    private static final Set<String> reportedTokens = new LinkedHashSet<>();
+    private static int tokenCounter = 0;
+
+    private RearLaunchHelper() {
+    }
+
+    /**
+     * 在指定屏幕启动Activity（任意线程调用）
+     * @param intent 显式Intent，extras只支持String/int/long/boolean（shell回退需要）
+     * @param provider 回退 am start 和移动task时使用的TaskService
+     * @param callback 可为null
+     */
+    public static void launch(Context context, Intent intent, int displayId,
+                              RearWakeupScheduler.TaskServiceProvider provider, Callback callback) {
+        Context appContext = context.getApplicationContext();
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(() -> launchOnMain(appContext, intent, displayId, provider, callback));
+        } else {
+            launchOnMain(appContext, intent, displayId, provider, callback);
+        }
+    }
+
+    private static void launchOnMain(Context context, Intent intent, int displayId,
+                                     RearWakeupScheduler.TaskServiceProvider provider, Callback callback) {
+        String token = "L" + (++tokenCounter) + "_" + SystemClock.uptimeMillis();
+        intent.putExtra(EXTRA_LAUNCH_TOKEN, token);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingLaunch launch = new PendingLaunch(token, intent, displayId, provider, callback);
+        pending.put(token, launch);
+
+        try {
+            ActivityOptions opts = ActivityOptions.makeBasic();
+            opts.setLaunchDisplayId(displayId);
+            context.startActivity(intent, opts.toBundle());
+            Log.d(TAG, String.format("🚀 ActivityOptions启动到display=%d: %s", displayId, intent.getComponent()));
+            mainHandler.postDelayed(launch.timeout, REPORT_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.w(TAG, "ActivityOptions启动失败，改用am start: " + e.getMessage());
+            launchViaShell(launch);
+        }
+    }
+
+    private static void onTimeout(PendingLaunch launch) {
+        if (pending.get(launch.token) != launch) {
+            return;
+        }
+        if (!launch.shellTried) {
+            Log.w(TAG, String.format("⏱️ %dms未回报，改用am start --display %d", REPORT_TIMEOUT_MS, launch.displayId));
+            launchViaShell(launch);
+        } else {
+            // am start已成功，不再算失败；迟到的回报仍按正常流程处理
+            pending.remove(launch.token);
+            Log.w(TAG, "⚠️ am start后仍未回报，停止等待: " + launch.intent.getComponent());
+        }
+    }
+
+    private static void launchViaShell(PendingLaunch launch) {
+        launch.shellTried = true;
+        String cmd = buildAmStartCommand(launch.intent, launch.displayId);
+        executor.execute(() -> {
+            boolean ok = false;
+            try {
+                ITaskService service = launch.provider.get();
+                ok = service != null && service.executeShellCommand(cmd);
+            } catch (Exception e) {
+                Log.w(TAG, "am start失败: " + e.getMessage());
+            }
+            boolean started = ok;
+            mainHandler.post(() -> {
+                if (pending.get(launch.token) != launch) {
+                    return; // 第一次启动在此期间已回报
+                }
+                if (started) {
+                    mainHandler.postDelayed(launch.timeout, PENDING_EXPIRY_MS);
+                } else {
+                    fail(launch, "am start失败");
+                }
+            });
+        });
+    }
+
+    private static void fail(PendingLaunch launch, String reason) {
+        pending.remove(launch.token);
+        mainHandler.removeCallbacks(launch.timeout);
+        Log.e(TAG, "❌ 背屏启动失败: " + launch.intent.getComponent() + " - " + reason);
+        if (launch.callback != null) {
+            launch.callback.onFailed(reason);
+        }
+    }
+
+    /**
+     * 被启动的Activity回报（在 onCreate 和 onNewIntent 中调用）
+     * @return false=这个token已经回报过（同一次启动的重复Intent，onNewIntent应忽略）
+     */
+    public static boolean reportLaunched(Activity activity, Intent intent) {
+        String token = intent != null ? intent.getStringExtra(EXTRA_LAUNCH_TOKEN) : null;
+        if (token == null) {
+            return true;
+        }
+        if (!reportedTokens.add(token)) {
+            Log.d(TAG, "重复到达的启动Intent，忽略: " + token);
+            return false;
+        }
+        if (reportedTokens.size() > REPORTED_TOKENS_MAX) {
+            Iterator<String> oldest = reportedTokens.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        PendingLaunch launch = pending.remove(token);
+        if (launch == null) {
+            return true;
+        }
+        mainHandler.removeCallbacks(launch.timeout);
+
+        int taskId = activity.getTaskId();
+        int currentDisplay = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && activity.getDisplay() != null
+            ? activity.getDisplay().getDisplayId()
+            : activity.getWindowManager().getDefaultDisplay().getDisplayId();
+        long elapsed = SystemClock.uptimeMillis() - launch.startTime;
+
+        if (currentDisplay == launch.displayId) {
+            Log.d(TAG, String.format("✓ 已在display=%d启动 taskId=%d (%dms%s)",
+                currentDisplay, taskId, elapsed, launch.shellTried ? ", am start" : ""));
+            if (launch.callback != null) {
+                launch.callback.onLaunched(taskId, false);
+            }
+            return true;
+        }
+
+        // 系统忽略了launchDisplayId：已知taskId，直接移动
+        Log.w(TAG, String.format("⚠️ 启动到了display=%d，移动taskId=%d到display=%d", currentDisplay, taskId, launch.displayId));
+        executor.execute(() -> {
+            boolean moved = false;
+            try {
+                ITaskService service = launch.provider.get();
+                moved = service != null && service.moveTaskToDisplay(taskId, launch.displayId);
+            } catch (Exception e) {
+                Log.w(TAG, "移动task失败: " + e.getMessage());
+            }
+            boolean success = moved;
+            mainHandler.post(() -> {
+                if (launch.callback == null) {
+                    return;
+                }
+                if (success) {
+                    launch.callback.onLaunched(taskId, true);
+                } else {
+                    launch.callback.onFailed("移动task失败");
+                }
+            });
+        });
+        return true;
+    }
+
+    /**
+     * Intent -> am start 命令（shell回退）
+     */
+    private static String buildAmStartCommand(Intent intent, int displayId) {
+        StringBuilder cmd = new StringBuilder("am start --display ").append(displayId)
+            .append(" -n ").append(intent.getComponent().flattenToShortString());
+        Bundle extras = intent.getExtras();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                String type;
+                if (value instanceof String) {
+                    type = "--es";
+                } else if (value instanceof Integer) {
+                    type = "--ei";
+                } else if (value instanceof Long) {
+                    type = "--el";
+                } else if (value instanceof Boolean) {
+                    type = "--ez";
+                } else {
+                    Log.w(TAG, "am start不支持的extra类型，跳过: " + key);
+                    continue;
+                }
+                cmd.append(' ').append(type).append(' ').append(key).append(' ').append(quote(String.valueOf(value)));
+            }
+        }
+        return cmd.toString();
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
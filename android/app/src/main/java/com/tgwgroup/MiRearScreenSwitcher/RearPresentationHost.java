@@ -0,0 +1,573 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.animation.ValueAnimator;
+import android.app.ActivityOptions;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.Color;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.util.Log;
+import android.view.Display;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.view.animation.DecelerateInterpolator;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * V4.0: 背屏常驻窗口（可选模式，mrss_settings 的 "rear_presentation_enabled"）
+ *
+ * 原流程每条通知/每次充电都要 am start → 轮询 am stack list 找taskId → service call 移动到背屏，
+ * 首帧要几百毫秒。开启后由常驻服务（NotificationService / ChargingService）预先在背屏挂一个
+ * 悬浮窗，通知和充电布局提前inflate好；需要显示时只切换可见性并开始动画，下一帧即可上屏。
+ *
+ * 窗口用背屏的窗口Context（Android 12+ createWindowContext(display, TYPE_APPLICATION_OVERLAY)，
+ * 之前版本用Display Context）直接 addView，窗口类型与Context一致，不会被WMS以 ADD_INVALID_TYPE 拒绝
+ * （Presentation把窗口类型改成悬浮窗后 show() 会失败）。资源本身就是背屏DPI，不需要改写DisplayMetrics。
+ * 空闲时根View为GONE，窗口不可见也不可触摸，不参与Android 12的不可信触摸遮挡判定，
+ * 不影响背屏官方Launcher和投送的应用，所以也不需要杀/恢复Launcher。
+ * 需要悬浮窗权限；不可用时各方法返回false，调用方回退到原来的Activity流程。
+ * 窗口随进程常驻，关闭设置（prewarm检查到）或背屏被移除时才释放。
+ *
+ * 只在主线程调用。
+ */
+public class RearPresentationHost {
+    private static final String TAG = "RearPresentationHost";
+
+    public static final String PREF_KEY = "rear_presentation_enabled";
+
+    private static final long CHARGING_DURATION_MS = 8000;
+
+    private static final int WINDOW_TYPE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+        ? WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY
+        : WindowManager.LayoutParams.TYPE_PHONE;
+
+    public enum Scene {
+        NONE,
+        NOTIFICATION,
+        CHARGING
+    }
+
+    private static volatile RearPresentationHost instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable autoHideRunnable = this::endScene;
+
+    private Context appContext;
+    private WindowManager windowManager;
+    private FrameLayout rootView;                  // 空闲时GONE
+    private WindowManager.LayoutParams layoutParams;
+    private DisplayManager displayManager;
+    private int rearDisplayId = -1;
+    private View notificationView;
+    private View chargingView;
+    private ValueAnimator liquidAnimator;
+
+    private Scene scene = Scene.NONE;
+    private String notificationPackage;
+    private int messageCount;
+    private RearWakeupScheduler.Token wakeupToken;
+
+    private RearPresentationHost() {
+    }
+
+    public static RearPresentationHost getInstance() {
+        if (instance == null) {
+            synchronized (RearPresentationHost.class) {
+                if (instance == null) {
+                    instance = new RearPresentationHost();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled(Context context) {
+        return context.getSharedPreferences("mrss_settings", Context.MODE_PRIVATE).getBoolean(PREF_KEY, false);
+    }
+
+    public boolean isShowing(Scene target) {
+        return scene == target;
+    }
+
+    /**
+     * 预热：在背屏挂上窗口并inflate布局（重复调用无副作用，关闭设置时释放）
+     * @return 是否可用
+     */
+    public boolean prewarm(Context context) {
+        appContext = context.getApplicationContext();
+        if (!isEnabled(appContext)) {
+            release();
+            return false;
+        }
+        if (rootView != null) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !Settings.canDrawOverlays(appContext)) {
+            Log.w(TAG, "⚠️ 没有悬浮窗权限，常驻背屏窗口不可用");
+            return false;
+        }
+
+        DisplayManager dm = (DisplayManager) appContext.getSystemService(Context.DISPLAY_SERVICE);
+        int displayId = DisplayRegistry.getInstance().getRearInfo().displayId;
+        Display display = dm != null ? dm.getDisplay(displayId) : null;
+        if (display == null) {
+            Log.w(TAG, "⚠️ 找不到背屏Display: " + displayId);
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        WindowManager wm = null;
+        FrameLayout root = null;
+        try {
+            // 窗口Context的类型必须与addView的窗口类型一致
+            Context windowContext = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? appContext.createWindowContext(display, WINDOW_TYPE, null)
+                : appContext.createDisplayContext(display);
+            wm = (WindowManager) windowContext.getSystemService(Context.WINDOW_SERVICE);
+
+            root = new FrameLayout(windowContext);
+            LayoutInflater inflater = LayoutInflater.from(windowContext);
+            chargingView = inflater.inflate(R.layout.activity_rear_screen_charging, root, false);
+            notificationView = inflater.inflate(R.layout.activity_rear_screen_notification, root, false);
+            chargingView.setVisibility(View.GONE);
+            notificationView.setVisibility(View.GONE);
+            root.addView(chargingView);
+            root.addView(notificationView);
+            prepareNotificationLayout();
+            prepareChargingLayout();
+            // 空闲时根View为GONE，窗口不可见，不会遮挡背屏上的触摸
+            root.setVisibility(View.GONE);
+
+            WindowManager.LayoutParams lp = new WindowManager.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.MATCH_PARENT,
+                WINDOW_TYPE,
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+                    | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
+                    | WindowManager.LayoutParams.FLAG_LAYOUT_NO_LIMITS
+                    | WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED
+                    | WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED,
+                PixelFormat.TRANSLUCENT);
+            lp.windowAnimations = 0;
+            lp.setTitle(TAG);
+            wm.addView(root, lp);
+
+            windowManager = wm;
+            rootView = root;
+            layoutParams = lp;
+            displayManager = dm;
+            rearDisplayId = displayId;
+            dm.registerDisplayListener(displayListener, mainHandler);
+            Log.d(TAG, String.format("✓ 背屏窗口已就绪 (display=%d, %dms)",
+                displayId, System.currentTimeMillis() - start));
+            return true;
+        } catch (Exception e) {
+            // InvalidDisplayException / BadTokenException
+            Log.e(TAG, "❌ 创建背屏窗口失败", e);
+            if (wm != null && root != null && root.isAttachedToWindow()) {
+                try {
+                    wm.removeViewImmediate(root);
+                } catch (Exception ignored) {
+                }
+            }
+            notificationView = null;
+            chargingView = null;
+            return false;
+        }
+    }
+
+    public void release() {
+        if (rootView == null) {
+            return;
+        }
+        endScene();
+        View root = rootView;
+        rootView = null;
+        layoutParams = null;
+        notificationView = null;
+        chargingView = null;
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+            displayManager = null;
+        }
+        try {
+            windowManager.removeViewImmediate(root);
+        } catch (Exception e) {
+            Log.w(TAG, "移除窗口失败: " + e.getMessage());
+        }
+        windowManager = null;
+        Log.d(TAG, "⏹️ 背屏窗口已释放");
+    }
+
+    /**
+     * 背屏被移除时窗口随之失效，同步释放
+     */
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            if (displayId == rearDisplayId) {
+                Log.w(TAG, "⚠️ 背屏已移除，释放窗口");
+                release();
+            }
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+        }
+    };
+
+    // ========================================
+    // 通知
+    // ========================================
+
+    /**
+     * 在背屏显示通知（调用方已通过 RearAnimationManager.startAnimation 登记）
+     * @return false=不可用，调用方回退到Activity流程
+     */
+    public boolean showNotification(Context context, String packageName, String title, String text,
+                                    int count, boolean hideContent, boolean darkMode) {
+        if (!prewarm(context)) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        switchScene(Scene.NOTIFICATION);
+
+        notificationView.findViewById(R.id.dark_mode_background).setVisibility(darkMode ? View.VISIBLE : View.GONE);
+        notificationPackage = null;
+        messageCount = 0;
+        bindNotification(packageName, title, text, count, hideContent);
+
+        ImageView iconCenter = notificationView.findViewById(R.id.app_icon_center);
+        iconCenter.animate().cancel();
+        iconCenter.setVisibility(View.VISIBLE);
+        iconCenter.setAlpha(1f);
+        iconCenter.setScaleX(1f);
+        iconCenter.setScaleY(1f);
+        RearScreenNotificationActivity.startNotificationAnimation(iconCenter,
+            notificationView.findViewById(R.id.app_name_container),
+            notificationView.findViewById(R.id.notification_content_container));
+
+        int duration = appContext.getSharedPreferences("mrss_settings", Context.MODE_PRIVATE).getInt("notification_duration", 10);
+        scheduleAutoHide(duration * 1000L);
+        Log.d(TAG, String.format("📱 通知已显示: %s (%dms)", packageName, System.currentTimeMillis() - start));
+        return true;
+    }
+
+    /**
+     * 正在显示通知时原地更新
+     * @return false=当前没有显示通知
+     */
+    public boolean updateNotification(String packageName, String title, String text, int count, boolean hideContent) {
+        if (scene != Scene.NOTIFICATION || notificationView == null) {
+            return false;
+        }
+        bindNotification(packageName, title, text, count, hideContent);
+
+        View contentContainer = notificationView.findViewById(R.id.notification_content_container);
+        contentContainer.setScaleX(1.04f);
+        contentContainer.setScaleY(1.04f);
+        contentContainer.animate()
+            .scaleX(1f)
+            .scaleY(1f)
+            .setStartDelay(0)
+            .setDuration(200)
+            .start();
+
+        int duration = appContext.getSharedPreferences("mrss_settings", Context.MODE_PRIVATE).getInt("notification_duration", 10);
+        scheduleAutoHide(duration * 1000L);
+        return true;
+    }
+
+    private void bindNotification(String packageName, String title, String text, int count, boolean hideContent) {
+        boolean samePackage = packageName.equals(notificationPackage);
+        messageCount = samePackage ? messageCount + count : count;
+
+        ImageView appIconCenter = notificationView.findViewById(R.id.app_icon_center);
+        ImageView appIconSmall = notificationView.findViewById(R.id.app_icon_small);
+        TextView appNameText = notificationView.findViewById(R.id.app_name);
+        TextView notificationTitle = notificationView.findViewById(R.id.notification_title);
+        TextView notificationContent = notificationView.findViewById(R.id.notification_content);
+
+        if (!samePackage) {
+            notificationPackage = packageName;
+            try {
+                PackageManager pm = appContext.getPackageManager();
+                Drawable icon = pm.getApplicationIcon(packageName);
+                appIconCenter.setImageDrawable(icon);
+                appIconSmall.setImageDrawable(icon);
+                appNameText.setText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)).toString());
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to load app info: " + e.getMessage());
+                appNameText.setText(packageName);
+            }
+        }
+
+        if (title != null && !title.isEmpty()) {
+            notificationTitle.setText(title);
+            notificationTitle.setVisibility(View.VISIBLE);
+        } else {
+            notificationTitle.setVisibility(View.GONE);
+        }
+
+        String content = RearScreenNotificationActivity.formatContent(text, messageCount, hideContent);
+        if (content != null && !content.isEmpty()) {
+            notificationContent.setText(content);
+            notificationContent.setVisibility(View.VISIBLE);
+        } else {
+            notificationContent.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * 与Activity的 applyRegularLayout / applyDarkMode 相同的布局调整（两者只差黑色背景层）
+     */
+    private void prepareNotificationLayout() {
+        RearDisplayHelper.RearDisplayInfo info = DisplayRegistry.getInstance().getRearInfo();
+        View container = notificationView.findViewById(R.id.notification_container);
+        if (info.hasCutout() && container.getLayoutParams() instanceof ViewGroup.MarginLayoutParams) {
+            ViewGroup.MarginLayoutParams params = (ViewGroup.MarginLayoutParams) container.getLayoutParams();
+            params.setMargins(info.cutout.left, info.cutout.top, info.cutout.right, info.cutout.bottom);
+            container.setLayoutParams(params);
+        }
+
+        View contentContainer = notificationView.findViewById(R.id.notification_content_container);
+        contentContainer.setBackgroundColor(Color.TRANSPARENT);
+        contentContainer.setPadding(0, 0, 0, 0);
+
+        View appNameContainer = notificationView.findViewById(R.id.app_name_container);
+        LinearLayout.LayoutParams containerParams = (LinearLayout.LayoutParams) appNameContainer.getLayoutParams();
+        containerParams.leftMargin = 0;
+        appNameContainer.setLayoutParams(containerParams);
+
+        TextView notificationTitle = notificationView.findViewById(R.id.notification_title);
+        notificationTitle.setMaxLines(1);
+        LinearLayout.LayoutParams titleParams = (LinearLayout.LayoutParams) notificationTitle.getLayoutParams();
+        titleParams.topMargin = 8;
+        notificationTitle.setLayoutParams(titleParams);
+
+        TextView notificationContent = notificationView.findViewById(R.id.notification_content);
+        notificationContent.setMaxLines(6);
+        LinearLayout.LayoutParams contentParams = (LinearLayout.LayoutParams) notificationContent.getLayoutParams();
+        contentParams.topMargin = 8;
+        notificationContent.setLayoutParams(contentParams);
+
+        // 点击在主屏打开应用
+        container.setOnClickListener(v -> {
+            String packageName = notificationPackage;
+            Log.d(TAG, "👆 收到点击，准备跳转 package=" + packageName);
+            endScene();
+            if (packageName == null) {
+                return;
+            }
+            Intent launchIntent = appContext.getPackageManager().getLaunchIntentForPackage(packageName);
+            if (launchIntent == null) {
+                Log.w(TAG, "⚠️ 无法获取启动Intent: " + packageName);
+                return;
+            }
+            launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+            try {
+                ActivityOptions opts = ActivityOptions.makeBasic();
+                opts.setLaunchDisplayId(Display.DEFAULT_DISPLAY);
+                appContext.startActivity(launchIntent, opts.toBundle());
+            } catch (Exception e) {
+                Log.w(TAG, "主屏启动失败，使用默认显示: " + e.getMessage());
+                try {
+                    appContext.startActivity(launchIntent);
+                } catch (Exception e2) {
+                    Log.e(TAG, "❌ 启动应用失败", e2);
+                }
+            }
+        });
+    }
+
+    // ========================================
+    // 充电
+    // ========================================
+
+    /**
+     * 在背屏显示充电动画（调用方已通过 RearAnimationManager.startAnimation 登记）
+     * @param alwaysOn 常亮模式不自动关闭，由 finishCharging() 结束
+     */
+    public boolean showCharging(Context context, int level, boolean alwaysOn) {
+        if (!prewarm(context)) {
+            return false;
+        }
+        switchScene(Scene.CHARGING);
+
+        LightningShapeView liquid = chargingView.findViewById(R.id.full_screen_liquid);
+        TextView batteryText = chargingView.findViewById(R.id.battery_text);
+        batteryText.setText(level + "%");
+
+        // 与RearScreenChargingActivity相同：液体0→电量减速填充，数字延迟淡入
+        liquidAnimator = ValueAnimator.ofFloat(0f, level / 100f);
+        liquidAnimator.setDuration(2000);
+        liquidAnimator.setInterpolator(new DecelerateInterpolator(2.5f));
+        liquidAnimator.addUpdateListener(animation -> liquid.setFillLevel((float) animation.getAnimatedValue()));
+        liquidAnimator.start();
+
+        batteryText.animate().cancel();
+        batteryText.setAlpha(0f);
+        batteryText.setScaleX(0.8f);
+        batteryText.setScaleY(0.8f);
+        batteryText.animate()
+            .alpha(1f)
+            .scaleX(1f)
+            .scaleY(1f)
+            .setDuration(800)
+            .setStartDelay(600)
+            .setInterpolator(new DecelerateInterpolator(2.0f))
+            .start();
+
+        if (alwaysOn) {
+            mainHandler.removeCallbacks(autoHideRunnable);
+        } else {
+            scheduleAutoHide(CHARGING_DURATION_MS);
+        }
+        Log.d(TAG, "🔋 充电动画已显示: " + level + "%" + (alwaysOn ? " (常亮)" : ""));
+        return true;
+    }
+
+    public void updateBatteryLevel(int level) {
+        if (scene != Scene.CHARGING || chargingView == null) {
+            return;
+        }
+        if (liquidAnimator == null || !liquidAnimator.isRunning()) {
+            ((LightningShapeView) chargingView.findViewById(R.id.full_screen_liquid)).setFillLevel(level / 100f);
+        }
+        ((TextView) chargingView.findViewById(R.id.battery_text)).setText(level + "%");
+    }
+
+    public void finishCharging() {
+        if (scene == Scene.CHARGING) {
+            endScene();
+        }
+    }
+
+    private void prepareChargingLayout() {
+        LightningShapeView liquid = chargingView.findViewById(R.id.full_screen_liquid);
+        liquid.setFullScreenMode(true);
+
+        RearDisplayHelper.RearDisplayInfo info = DisplayRegistry.getInstance().getRearInfo();
+        TextView batteryText = chargingView.findViewById(R.id.battery_text);
+        if (info.hasCutout() && batteryText.getLayoutParams() instanceof FrameLayout.LayoutParams) {
+            FrameLayout.LayoutParams params = (FrameLayout.LayoutParams) batteryText.getLayoutParams();
+            params.setMargins(info.cutout.left, info.cutout.top, info.cutout.right, info.cutout.bottom);
+            batteryText.setLayoutParams(params);
+        }
+    }
+
+    // ========================================
+    // 场景切换
+    // ========================================
+
+    /**
+     * 切换显示内容。新场景打断旧场景时不结束旧动画（RearAnimationManager已由调用方切换）
+     */
+    private void switchScene(Scene next) {
+        if (scene == Scene.NONE) {
+            layoutParams.flags = (layoutParams.flags & ~WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE)
+                | WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
+            rootView.setVisibility(View.VISIBLE);
+            windowManager.updateViewLayout(rootView, layoutParams);
+            wakeupToken = RearWakeupScheduler.getInstance().acquire(appContext, TAG, () -> {
+                ITaskService service = NotificationService.getTaskService();
+                return service != null ? service : ChargingService.getTaskService();
+            });
+        } else if (scene != next) {
+            Log.d(TAG, String.format("🔄 新场景[%s]打断旧场景[%s]", next, scene));
+        }
+        stopLiquidAnimator();
+        notificationView.setVisibility(next == Scene.NOTIFICATION ? View.VISIBLE : View.GONE);
+        chargingView.setVisibility(next == Scene.CHARGING ? View.VISIBLE : View.GONE);
+        scene = next;
+    }
+
+    private void scheduleAutoHide(long delayMs) {
+        mainHandler.removeCallbacks(autoHideRunnable);
+        mainHandler.postDelayed(autoHideRunnable, delayMs);
+    }
+
+    /**
+     * 结束当前场景：隐藏内容，根View恢复GONE（窗口不可见、不可触摸）
+     */
+    private void endScene() {
+        Scene ended = scene;
+        if (ended == Scene.NONE) {
+            return;
+        }
+        scene = Scene.NONE;
+        mainHandler.removeCallbacks(autoHideRunnable);
+        stopLiquidAnimator();
+        if (notificationView != null) {
+            notificationView.setVisibility(View.GONE);
+        }
+        if (chargingView != null) {
+            chargingView.setVisibility(View.GONE);
+        }
+        if (rootView != null) {
+            rootView.setVisibility(View.GONE);
+            layoutParams.flags = (layoutParams.flags & ~WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON)
+                | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+            try {
+                windowManager.updateViewLayout(rootView, layoutParams);
+            } catch (Exception e) {
+                Log.w(TAG, "更新窗口失败: " + e.getMessage());
+            }
+        }
+        RearWakeupScheduler.getInstance().release(wakeupToken);
+        wakeupToken = null;
+        notificationPackage = null;
+        Log.d(TAG, "⏹️ 场景[" + ended + "]结束");
+
+        if (ended == Scene.NOTIFICATION) {
+            // 与RearScreenNotificationActivity.onDestroy一致：正常结束时恢复被打断的常亮充电动画
+            boolean shouldRestore = RearAnimationManager.endAnimation(RearAnimationManager.AnimationType.NOTIFICATION);
+            if (shouldRestore && RearAnimationManager.shouldResumeChargingAnimation() && appContext != null) {
+                Intent resumeIntent = new Intent("com.tgwgroup.MiRearScreenSwitcher.RESUME_CHARGING_ANIMATION");
+                resumeIntent.setPackage(appContext.getPackageName());
+                appContext.sendBroadcast(resumeIntent);
+                RearAnimationManager.clearChargingAlwaysOnFlag();
+            }
+        } else {
+            RearAnimationManager.endAnimation(RearAnimationManager.AnimationType.CHARGING);
+        }
+    }
+
+    private void stopLiquidAnimator() {
+        if (liquidAnimator != null) {
+            liquidAnimator.cancel();
+            liquidAnimator = null;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.graphics.ColorSpace;
+import android.hardware.HardwareBuffer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * V4.0: 进程内背屏截图（运行在Shizuku进程中）
+ *
+ * 直接通过 SurfaceControl / ScreenCapture 抓取背屏，返回 HardwareBuffer，
+ * 不再 fork screencap、写PNG文件再广播媒体扫描。编码和写入MediaStore由应用端在后台完成。
+ * - Android 12/13: SurfaceControl.captureDisplay(DisplayCaptureArgs)
+ * - Android 14+:   ScreenCapture.captureDisplay(DisplayCaptureArgs)
+ * 显示屏token由 DisplayManagerGlobal 查到的物理display id 换取，反射结果全部缓存。
+ * 不支持的系统返回null，调用方回退到 screencap。
+ * 连拍模式按固定间隔把帧放进预分配的环形缓冲区（HardwareBuffer本身在堆外），统计抖动和丢帧。
+ * 截图之间不互斥（连拍不会挡住单张截图）；返回的buffer在回复写入Parcel后由定时任务释放，不会长期占用。
+ */
+public class RearScreenCapturer {
+    private static final String TAG = "RearScreenCapturer";
+
+    public static final String KEY_BUFFER = "buffer";
+    public static final String KEY_COLOR_SPACE = "colorSpace";   // ColorSpace.Named 序号
+    public static final String KEY_CAPTURE_MS = "captureMs";
+
+    // 连拍结果
+    public static final String KEY_BUFFERS = "buffers";
+    public static final String KEY_TIMESTAMPS = "timestamps";      // 相对第一帧的毫秒数
+    public static final String KEY_SCHEDULED = "scheduled";
+    public static final String KEY_DROPPED = "dropped";
+    public static final String KEY_JITTER_AVG_US = "jitterAvgUs";
+    public static final String KEY_JITTER_MAX_US = "jitterMaxUs";
+
+    private static final int MAX_BURST_FRAMES = 30;
+    private static final int MIN_BURST_INTERVAL_MS = 16;
+    private static final int MAX_BURST_DURATION_MS = 60_000;  // durationMs来自URI，必须有上限
+
+    // 返回给客户端的buffer在这之后释放（方法返回后回复立即写入Parcel，远用不了这么久）
+    private static final long BUFFER_EXPIRY_MS = 5000;
+
+    private static final long WAKEUP_TIMEOUT_MS = 300;
+    private static final long WAKEUP_POLL_MS = 20;
+    private static final int DISPLAY_STATE_ON = 2;   // Display.STATE_ON
+
+    private final ShellSessionPool shell;
+
+    private boolean resolved = false;
+    private Method captureMethod;          // static captureDisplay(DisplayCaptureArgs)
+    private Constructor<?> argsBuilderCtor; // DisplayCaptureArgs.Builder(IBinder)
+    private Method argsBuild;
+    private Method getHardwareBuffer;
+    private Method getColorSpace;
+    private Method tokenMethod;            // static getPhysicalDisplayToken(long)
+
+    private final ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mrss-capture-release");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RearScreenCapturer(ShellSessionPool shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 截取指定显示屏
+     * @return buffer/colorSpace/captureMs，不支持或失败时返回null
+     */
+    public Bundle capture(int displayId) {
+        if (!prepare()) {
+            return null;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        try {
+            ensureDisplayOn(displayId);
+            IBinder token = getDisplayToken(displayId);
+            if (token == null) {
+                return null;
+            }
+
+            Object screenshot = captureFrame(token);
+            if (screenshot == null) {
+                Log.w(TAG, "⚠️ captureDisplay返回null");
+                return null;
+            }
+
+            HardwareBuffer buffer = (HardwareBuffer) getHardwareBuffer.invoke(screenshot);
+            releaseLater(buffer);
+
+            Bundle result = new Bundle();
+            result.putParcelable(KEY_BUFFER, buffer);
+            result.putInt(KEY_COLOR_SPACE, colorSpaceId(screenshot));
+            result.putLong(KEY_CAPTURE_MS, SystemClock.uptimeMillis() - start);
+            Log.d(TAG, "📸 截图完成 " + buffer.getWidth() + "x" + buffer.getHeight()
+                + " (" + (SystemClock.uptimeMillis() - start) + "ms)");
+            return result;
+
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 进程内截图失败: " + t);
+            return null;
+        }
+    }
+
+    /**
+     * 连拍/连续截图：按固定间隔截取，帧存入预分配的环形缓冲区
+     *
+     * @param frameCount 环形缓冲区容量（连拍时即总帧数）
+     * @param intervalMs 截图间隔
+     * @param durationMs 连续模式的总时长，0=连拍模式（截满frameCount帧即停止）；
+     *                   连续模式下只保留最后frameCount帧，更早的帧被覆盖并立即释放
+     * @return buffers/timestamps/colorSpace/scheduled/dropped/jitterAvgUs/jitterMaxUs，不支持时返回null
+     */
+    public Bundle captureBurst(int displayId, int frameCount, int intervalMs, int durationMs) {
+        if (!prepare()) {
+            return null;
+        }
+        frameCount = Math.max(1, Math.min(MAX_BURST_FRAMES, frameCount));
+        intervalMs = Math.max(MIN_BURST_INTERVAL_MS, intervalMs);
+        durationMs = Math.min(MAX_BURST_DURATION_MS, durationMs);
+
+        // 预分配：循环中不再分配数组
+        HardwareBuffer[] ring = new HardwareBuffer[frameCount];
+        long[] ringTimes = new long[frameCount];
+        int head = 0;       // 下一个写入位置
+        int size = 0;
+        int colorSpaceId = ColorSpace.Named.SRGB.ordinal();
+
+        int scheduled = 0;
+        int dropped = 0;
+        long jitterSumUs = 0;
+        long jitterMaxUs = 0;
+
+        try {
+            ensureDisplayOn(displayId);
+            IBinder token = getDisplayToken(displayId);
+            if (token == null) {
+                return null;
+            }
+
+            long startNs = System.nanoTime();
+            long intervalNs = intervalMs * 1_000_000L;
+            long endNs = durationMs > 0 ? startNs + durationMs * 1_000_000L : Long.MAX_VALUE;
+            int tick = 0;
+
+            while (true) {
+                long targetNs = startNs + tick * intervalNs;
+                if (targetNs >= endNs || (durationMs <= 0 && scheduled >= frameCount)) {
+                    break;
+                }
+                long waitNs = targetNs - System.nanoTime();
+                if (waitNs > 0) {
+                    SystemClock.sleep(waitNs / 1_000_000L);
+                    while (System.nanoTime() < targetNs) {
+                        Thread.yield();
+                    }
+                }
+
+                long captureNs = System.nanoTime();
+                scheduled++;
+                long jitterUs = Math.abs(captureNs - targetNs) / 1000;
+                jitterSumUs += jitterUs;
+                jitterMaxUs = Math.max(jitterMaxUs, jitterUs);
+
+                Object screenshot = captureFrame(token);
+                if (screenshot == null) {
+                    dropped++;
+                } else {
+                    if (ring[head] != null) {
+                        ring[head].close();   // 连续模式覆盖最旧的帧
+                    }
+                    ring[head] = (HardwareBuffer) getHardwareBuffer.invoke(screenshot);
+                    ringTimes[head] = (captureNs - startNs) / 1_000_000L;
+                    colorSpaceId = colorSpaceId(screenshot);
+                    head = (head + 1) % frameCount;
+                    size = Math.min(size + 1, frameCount);
+                }
+
+                // 截图耗时超过间隔：错过的时间点记为丢帧，直接对齐到下一个未来时间点
+                tick++;
+                long nowNs = System.nanoTime();
+                while (startNs + tick * intervalNs < nowNs - intervalNs / 2
+                        && startNs + tick * intervalNs < endNs
+                        && (durationMs > 0 || scheduled < frameCount)) {
+                    tick++;
+                    scheduled++;
+                    dropped++;
+                }
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 连拍中断: " + t);
+            if (size == 0) {
+                return null;
+            }
+        }
+
+        // 按时间顺序取出
+        HardwareBuffer[] buffers = new HardwareBuffer[size];
+        long[] timestamps = new long[size];
+        int oldest = (head - size + frameCount) % frameCount;
+        for (int i = 0; i < size; i++) {
+            int slot = (oldest + i) % frameCount;
+            buffers[i] = ring[slot];
+            timestamps[i] = ringTimes[slot];
+        }
+        releaseLater(buffers);
+
+        int captured = scheduled - dropped;
+        Bundle result = new Bundle();
+        result.putParcelableArray(KEY_BUFFERS, buffers);
+        result.putLongArray(KEY_TIMESTAMPS, timestamps);
+        result.putInt(KEY_COLOR_SPACE, colorSpaceId);
+        result.putInt(KEY_SCHEDULED, scheduled);
+        result.putInt(KEY_DROPPED, dropped);
+        result.putLong(KEY_JITTER_AVG_US, captured > 0 ? jitterSumUs / captured : 0);
+        result.putLong(KEY_JITTER_MAX_US, jitterMaxUs);
+        Log.d(TAG, "📸 连拍完成: 计划" + scheduled + "帧, 丢帧" + dropped + ", 返回" + size
+            + "帧, 抖动avg=" + (captured > 0 ? jitterSumUs / captured : 0) + "us max=" + jitterMaxUs + "us");
+        return result;
+    }
+
+    /**
+     * 通用准备：系统版本、反射解析（加锁只为解析一次，截图本身不互斥）
+     */
+    private synchronized boolean prepare() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+            return false;
+        }
+        resolve();
+        if (captureMethod == null || tokenMethod == null) {
+            return false;
+        }
+        return true;
+    }
+
+    private IBinder getDisplayToken(int displayId) throws Exception {
+        long physicalId = getPhysicalDisplayId(displayId);
+        if (physicalId < 0) {
+            Log.w(TAG, "⚠️ 未找到显示屏" + displayId + "的物理id");
+            return null;
+        }
+        IBinder token = (IBinder) tokenMethod.invoke(null, physicalId);
+        if (token == null) {
+            Log.w(TAG, "⚠️ 获取显示屏token失败");
+        }
+        return token;
+    }
+
+    private Object captureFrame(IBinder token) throws Exception {
+        Object args = argsBuild.invoke(argsBuilderCtor.newInstance(token));
+        return captureMethod.invoke(null, args);
+    }
+
+    private int colorSpaceId(Object screenshot) throws Exception {
+        ColorSpace colorSpace = (ColorSpace) getColorSpace.invoke(screenshot);
+        return colorSpace != null && colorSpace.getId() >= 0 ? colorSpace.getId() : ColorSpace.Named.SRGB.ordinal();
+    }
+
+    /**
+     * 物理display id（screencap -d 用的也是它），找不到返回-1
+     */
+    public long getPhysicalDisplayId(int displayId) {
+        try {
+            Class<?> dmgClass = Class.forName("android.hardware.display.DisplayManagerGlobal");
+            Object dmg = dmgClass.getMethod("getInstance").invoke(null);
+            Object displayInfo = dmgClass.getMethod("getDisplayInfo", int.class).invoke(dmg, displayId);
+            if (displayInfo == null) {
+                return -1;
+            }
+            Object address = displayInfo.getClass().getField("address").get(displayInfo);
+            if (address == null) {
+                return -1;
+            }
+            return (long) address.getClass().getMethod("getPhysicalDisplayId").invoke(address);
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /**
+     * 背屏熄屏时截到的是黑图：只有确实没亮时才唤醒，并等待亮屏（不再无条件sleep 200ms）
+     */
+    void ensureDisplayOn(int displayId) {
+        if (getDisplayState(displayId) == DISPLAY_STATE_ON) {
+            return;
+        }
+        shell.exec("input -d " + displayId + " keyevent KEYCODE_WAKEUP");
+        long deadline = SystemClock.uptimeMillis() + WAKEUP_TIMEOUT_MS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            if (getDisplayState(displayId) == DISPLAY_STATE_ON) {
+                return;
+            }
+            SystemClock.sleep(WAKEUP_POLL_MS);
+        }
+    }
+
+    private static int getDisplayState(int displayId) {
+        try {
+            Class<?> dmgClass = Class.forName("android.hardware.display.DisplayManagerGlobal");
+            Object dmg = dmgClass.getMethod("getInstance").invoke(null);
+            Object displayInfo = dmgClass.getMethod("getDisplayInfo", int.class).invoke(dmg, displayId);
+            return displayInfo != null ? displayInfo.getClass().getField("state").getInt(displayInfo) : -1;
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /**
+     * 回复写入Parcel后释放（Bundle写入时不传递PARCELABLE_WRITE_RETURN_VALUE，buffer不会自动关闭）
+     */
+    private void releaseLater(HardwareBuffer... buffers) {
+        releaser.schedule(() -> {
+            for (HardwareBuffer buffer : buffers) {
+                try {
+                    buffer.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }, BUFFER_EXPIRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // ========================================
+    // 反射解析（只做一次）
+    // ========================================
+
+    private void resolve() {
+        if (resolved) {
+            return;
+        }
+        resolved = true;
+
+        try {
+            Class<?> captureClass;
+            try {
+                // Android 14+
+                captureClass = Class.forName("android.window.ScreenCapture");
+            } catch (ClassNotFoundException e) {
+                // Android 12/13
+                captureClass = Class.forName("android.view.SurfaceControl");
+            }
+
+            Class<?> argsClass = Class.forName(captureClass.getName() + "$DisplayCaptureArgs");
+            Class<?> builderClass = Class.forName(argsClass.getName() + "$Builder");
+            argsBuilderCtor = builderClass.getConstructor(IBinder.class);
+            argsBuild = builderClass.getMethod("build");
+            captureMethod = captureClass.getMethod("captureDisplay", argsClass);
+
+            Class<?> bufferClass = captureMethod.getReturnType();
+            getHardwareBuffer = bufferClass.getMethod("getHardwareBuffer");
+            getColorSpace = bufferClass.getMethod("getColorSpace");
+
+            tokenMethod = resolveTokenMethod();
+            Log.d(TAG, "✅ 使用 " + captureClass.getName() + ".captureDisplay"
+                + (tokenMethod != null ? "" : "（但无法获取显示屏token）"));
+        } catch (Throwable t) {
+            captureMethod = null;
+            Log.w(TAG, "⚠️ 进程内截图不可用，使用screencap: " + t);
+        }
+    }
+
+    /**
+     * Android 14 起 getPhysicalDisplayToken 从 SurfaceControl 移到了 services.jar 的 DisplayControl
+     */
+    private static Method resolveTokenMethod() {
+        try {
+            return Class.forName("android.view.SurfaceControl").getMethod("getPhysicalDisplayToken", long.class);
+        } catch (Throwable ignored) {
+        }
+
+        try {
+            ClassLoader loader = new dalvik.system.PathClassLoader("/system/framework/services.jar",
+                ClassLoader.getSystemClassLoader());
+            Class<?> displayControl = loader.loadClass("com.android.server.display.DisplayControl");
+
+            // DisplayControl 的native方法在 libandroid_servers 中
+            Method loadLibrary0 = Runtime.class.getDeclaredMethod("loadLibrary0", Class.class, String.class);
+            loadLibrary0.setAccessible(true);
+            loadLibrary0.invoke(Runtime.getRuntime(), displayControl, "android_servers");
+
+            return displayControl.getMethod("getPhysicalDisplayToken", long.class);
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ DisplayControl不可用: " + t);
+            return null;
+        }
+    }
+}
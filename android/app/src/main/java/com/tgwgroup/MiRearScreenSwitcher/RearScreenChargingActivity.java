@@ -82,6 +82,9 @@ public class RearScreenChargingActivity extends Activity {
         
         super.onCreate(savedInstanceState);
         
+        // V4.0: 向启动方回报taskId（不再轮询 am stack list）
+        RearLaunchHelper.reportLaunched(this, getIntent());
+        
         // 判断当前所在的屏幕
         int displayId = 0;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.R) {
@@ -199,6 +202,22 @@ public class RearScreenChargingActivity extends Activity {
         // 测试代码已移除
     }
     
+    /**
+     * V4.0: singleInstance，已存在时再次启动从这里进来：回报启动方并更新电量
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        // 同一次启动重复到达（am start回退）时忽略
+        if (!RearLaunchHelper.reportLaunched(this, intent)) {
+            return;
+        }
+        setIntent(intent);
+        if (intent.hasExtra("batteryLevel")) {
+            updateBatteryLevel(intent.getIntExtra("batteryLevel", 0));
+        }
+    }
+    
     @Override
     protected void onResume() {
         super.onResume();
@@ -315,10 +334,8 @@ public class RearScreenChargingActivity extends Activity {
                     Thread.sleep(200);
                 } catch (InterruptedException ignored) {}
                 
-                // 步骤3: 移动投送app回到背屏
-                taskService.executeShellCommand(
-                    "service call activity_task 50 i32 " + taskId + " i32 1"
-                );
+                // 步骤3: 移动投送app回到背屏（V4.0: TaskMover binder调用）
+                taskService.moveTaskToDisplay(taskId, 1);
                 
                 // 步骤4: 再等待200ms确保app已移动
                 try {
@@ -326,9 +343,7 @@ public class RearScreenChargingActivity extends Activity {
                 } catch (InterruptedException ignored) {}
                 
                 // 步骤5: 再次确认移动（双重保险）
-                taskService.executeShellCommand(
-                    "service call activity_task 50 i32 " + taskId + " i32 1"
-                );
+                taskService.moveTaskToDisplay(taskId, 1);
                 
                 // 步骤6: 等待300ms让app完全显示
                 try {
@@ -417,48 +432,19 @@ public class RearScreenChargingActivity extends Activity {
      */
     private void forceRearScreenDensityBeforeInflate() {
         try {
-            // 从缓存获取背屏DPI（适配所有小米双屏设备）
-            RearDisplayHelper.RearDisplayInfo info = DisplayInfoCache.getInstance().getCachedInfo();
+            // 从注册表获取背屏DPI（适配所有小米双屏设备）
+            // V4.0: 只读快照，不在inflate时阻塞等待shell；尚未扫描时用默认值并在后台扫描
+            DisplayRegistry registry = DisplayRegistry.getInstance();
+            RearDisplayHelper.RearDisplayInfo info = registry.getRearInfo();
             int rearScreenDpi = info.densityDpi;
             
-            // 如果缓存未初始化，立即执行dumpsys获取真实DPI
-            if (rearScreenDpi <= 0) {
-                Log.w(TAG, "⚠️ 背屏DPI未缓存，尝试实时获取");
-                
-                // 尝试获取TaskService（带重试机制）
-                ITaskService taskService = null;
-                for (int retry = 0; retry < 3; retry++) {
-                    taskService = ChargingService.getTaskService();
-                    if (taskService == null) {
-                        taskService = NotificationService.getTaskService();
-                    }
-                    
-                    if (taskService != null) {
-                        break;
-                    }
-                    
-                    Log.w(TAG, String.format("⏳ TaskService未连接，重试 %d/3", retry + 1));
-                    try {
-                        Thread.sleep(200);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                
-                if (taskService != null) {
-                    try {
-                        DisplayInfoCache.getInstance().initialize(taskService);
-                        info = DisplayInfoCache.getInstance().getCachedInfo();
-                        rearScreenDpi = info.densityDpi;
-                        Log.d(TAG, "✅ 实时获取背屏DPI: " + rearScreenDpi);
-                    } catch (Exception e) {
-                        Log.e(TAG, "❌ 实时获取背屏DPI失败", e);
-                        return;
-                    }
-                } else {
-                    Log.e(TAG, "❌ TaskService重试3次后仍不可用，跳过DPI强制");
-                    return;
+            if (!registry.isPopulated()) {
+                Log.w(TAG, "⚠️ 背屏信息尚未扫描，暂用默认DPI: " + rearScreenDpi);
+                ITaskService taskService = ChargingService.getTaskService();
+                if (taskService == null) {
+                    taskService = NotificationService.getTaskService();
                 }
+                registry.attach(this, taskService);
             }
             
             android.util.DisplayMetrics metrics = getResources().getDisplayMetrics();
@@ -550,7 +536,7 @@ public class RearScreenChargingActivity extends Activity {
     private void applySafeAreaToText(TextView textView) {
         try {
             // 从缓存获取背屏信息
-            RearDisplayHelper.RearDisplayInfo info = DisplayInfoCache.getInstance().getCachedInfo();
+            RearDisplayHelper.RearDisplayInfo info = DisplayRegistry.getInstance().getRearInfo();
             
             if (info == null) {
                 Log.w(TAG, "⚠️ 背屏信息缓存为空");
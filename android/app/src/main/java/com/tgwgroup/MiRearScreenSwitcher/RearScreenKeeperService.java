@@ -20,10 +20,8 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -31,6 +29,7 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
@@ -40,7 +39,6 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
-import rikka.shizuku.Shizuku;
 
 /**
  * 前台Service - 保持背屏常亮
@@ -61,6 +59,9 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
     private PowerManager.WakeLock wakeLock;
     private Handler handler;
     private ITaskService taskService = null;
+    // V4.0: 轮询检查在工作线程执行，主线程只处理结果
+    private final TaskServiceClient taskClient = new TaskServiceClient(() -> taskService);
+    private CompletableFuture<String> pendingTaskCheck;
     
     // V12.3: 初始杀进程策略 - 只杀1次，不持续监控
     private static final int INITIAL_KILL_COUNT = 1;  // 初始杀1次
@@ -77,15 +78,20 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
     private boolean proximitySensorEnabled = true; // 默认启用
     
     // V14.5: 监听应用是否手动移回主屏
-    private static final long CHECK_TASK_INTERVAL_MS = 2000; // 每2秒检查一次
+    private static final long CHECK_TASK_INTERVAL_MS = 2000; // 每2秒检查一次（仅在任务栈监听不可用时轮询）
     private String monitoredTaskInfo = null; // 格式: "packageName:taskId"
     
+    // V4.0: 任务栈事件监听（可用时不再轮询）
+    private volatile boolean taskWatcherActive = false;
+    private boolean monitoredTaskSeenOnRear = false; // 监控的任务是否已确认到达背屏（之前的事件不作数）
+    
     // V2.3: 临时暂停监控（充电动画显示期间）
     private boolean monitoringPaused = false;
     
     // V2.4: 持续唤醒背屏（防止自动熄屏）
-    private static final long WAKEUP_INTERVAL_MS = 100; // 持续发送，每0.1秒唤醒一次（对熄屏几乎无感）
+    // V4.0: 改为共享的RearWakeupScheduler，周期自适应
     private boolean keepScreenOnEnabled = true; // 默认启用背屏常亮
+    private RearWakeupScheduler.Token wakeupToken = null;
     
     public static void pauseMonitoring() {
         if (instance != null) {
@@ -199,13 +205,12 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
             Log.d(TAG, "🔆 背屏常亮开关已" + (enabled ? "开启" : "关闭"));
             
             // 如果关闭了常亮，停止发送WAKEUP
-            if (!enabled && handler != null) {
-                handler.removeCallbacks(wakeupRearScreenRunnable);
+            if (!enabled) {
+                stopRearScreenWakeup();
                 Log.d(TAG, "⏸️ 背屏WAKEUP发送已停止");
             }
             // 如果打开了常亮，启动发送WAKEUP
-            else if (enabled && handler != null) {
-                handler.removeCallbacks(wakeupRearScreenRunnable);
+            else {
                 startRearScreenWakeup();
             }
             
@@ -217,6 +222,9 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
             if (intent != null) {
                 String newMonitoredTask = intent.getStringExtra("lastMovedTask");
                 if (newMonitoredTask != null) {
+                    if (!newMonitoredTask.equals(monitoredTaskInfo)) {
+                        monitoredTaskSeenOnRear = false;
+                    }
                     monitoredTaskInfo = newMonitoredTask;
                 }
             }
@@ -265,8 +273,12 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
                 startTaskMonitoring();
             }
             
-            // 5. V2.5: 启动持续唤醒背屏（每0.5秒，根据开关状态）
-            startRearScreenWakeup();
+            // 5. V2.5: 启动持续唤醒背屏（根据开关状态）
+            if (keepScreenOnEnabled) {
+                startRearScreenWakeup();
+            } else {
+                stopRearScreenWakeup();
+            }
             
         } catch (Exception e) {
             Log.e(TAG, "✗ Error starting service", e);
@@ -286,78 +298,194 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
         public void run() {
             // V2.3: 如果监控已暂停（充电动画显示中），跳过本次检查
             if (monitoringPaused) {
-                handler.postDelayed(this, CHECK_TASK_INTERVAL_MS);
+                scheduleNextCheck();
                 return;
             }
             
             if (monitoredTaskInfo != null && taskService != null) {
-                try {
-                    // V15.2: 检查背屏(displayId=1)的前台应用是否还是我们监控的应用
-                    String rearForegroundApp = taskService.getForegroundAppOnDisplay(1);
-                    
-                    // V2.3: 排除充电动画/通知动画（临时占用背屏，不应导致Service销毁）
-                    if (rearForegroundApp != null && (rearForegroundApp.contains("RearScreenChargingActivity") || rearForegroundApp.contains("RearScreenNotificationActivity"))) {
-                        // 充电动画正在显示，跳过本次检查
-                        handler.postDelayed(this, CHECK_TASK_INTERVAL_MS);
+                // V15.2: 检查背屏(displayId=1)的前台应用是否还是我们监控的应用
+                // V4.0: 查询在TaskServiceClient工作线程执行，不再阻塞主线程
+                if (pendingTaskCheck != null && !pendingTaskCheck.isDone()) {
+                    return; // 上一次检查还没返回，返回后会继续调度
+                }
+                CompletableFuture<String> check = taskClient.submit(
+                    "getForegroundAppOnDisplay", service -> service.getForegroundAppOnDisplay(1), CHECK_TASK_INTERVAL_MS);
+                pendingTaskCheck = check;
+                check.whenCompleteAsync((rearForegroundApp, error) -> {
+                    if (pendingTaskCheck != check || check.isCancelled()) {
+                        return; // Service已销毁
+                    }
+                    pendingTaskCheck = null;
+                    if (error != null) {
+                        Log.w(TAG, "Task check failed: " + error.getMessage());
+                        scheduleNextCheck();
                         return;
                     }
-                    
-                    // 如果背屏前台应用不是我们监控的应用，说明它被关闭或切换了
-                    if (rearForegroundApp == null || !rearForegroundApp.equals(monitoredTaskInfo)) {
-                        // 应用不在背屏前台了（被关闭或切换），停止服务
-                        stopForeground(Service.STOP_FOREGROUND_REMOVE);
-                        stopSelf();
+                    if (handleRearTopChanged(rearForegroundApp, null)) {
                         return;
                     }
                     
                     // 继续监听
-                    handler.postDelayed(this, CHECK_TASK_INTERVAL_MS);
-                    
-                } catch (Exception e) {
-                    Log.w(TAG, "Task check failed: " + e.getMessage());
-                    handler.postDelayed(this, CHECK_TASK_INTERVAL_MS);
-                }
+                    scheduleNextCheck();
+                }, TaskServiceClient.MAIN);
             } else {
-                handler.postDelayed(this, CHECK_TASK_INTERVAL_MS);
+                scheduleNextCheck();
             }
         }
     };
     
     private void startTaskMonitoring() {
+        // 首次检查总会执行（兜底：移动失败时任务从未到达背屏，不会产生事件），之后由事件驱动
         if (monitoredTaskInfo != null && handler != null) {
+            handler.removeCallbacks(checkTaskRunnable);
+            handler.postDelayed(checkTaskRunnable, CHECK_TASK_INTERVAL_MS);
+        }
+    }
+    
+    /**
+     * V4.0: 任务栈监听可用时不再轮询
+     */
+    private void scheduleNextCheck() {
+        if (!taskWatcherActive) {
             handler.postDelayed(checkTaskRunnable, CHECK_TASK_INTERVAL_MS);
         }
     }
     
     /**
-     * V2.5: 持续唤醒背屏任务 - 每0.5秒发送WAKEUP，防止背屏自动熄屏
+     * 背屏顶层任务变化处理（轮询和事件共用）
+     * @param rearTaskInfo 背屏顶层任务 "package:taskId"
+     * @param topActivity 背屏顶层Activity（事件才有，轮询为null）
+     * @return true=监控的应用已离开背屏，Service已停止
+     */
+    private boolean handleRearTopChanged(String rearTaskInfo, String topActivity) {
+        if (monitoringPaused || monitoredTaskInfo == null) {
+            return false;
+        }
+        
+        // V2.3: 排除充电动画/通知动画（临时占用背屏，不应导致Service销毁）
+        if (rearTaskInfo != null && (rearTaskInfo.contains("RearScreenChargingActivity") || rearTaskInfo.contains("RearScreenNotificationActivity"))) {
+            return false;
+        }
+        // V4.0: 事件比轮询快，本应用的临时Activity（充电/通知/唤醒）短暂置顶时也会收到，一律忽略
+        if (topActivity != null && topActivity.startsWith(getPackageName() + "/")) {
+            return false;
+        }
+        
+        if (monitoredTaskInfo.equals(rearTaskInfo)) {
+            monitoredTaskSeenOnRear = true;
+            return false;
+        }
+        
+        // V4.0: Service在移动任务之前就已启动，任务到达背屏前的事件不作数（由首次检查兜底）
+        if (topActivity != null && !monitoredTaskSeenOnRear) {
+            return false;
+        }
+        
+        // 背屏前台应用不是我们监控的应用，说明它被关闭或切换了，停止服务
+        stopForeground(Service.STOP_FOREGROUND_REMOVE);
+        stopSelf();
+        return true;
+    }
+    
+    /**
+     * 监控的任务是否为指定taskId
+     */
+    private boolean isMonitoredTask(int taskId) {
+        String info = monitoredTaskInfo;
+        return info != null && info.endsWith(":" + taskId);
+    }
+    
+    /**
+     * V4.0: 任务栈事件回调（binder线程 → 主线程处理）
      */
-    private final Runnable wakeupRearScreenRunnable = new Runnable() {
+    private final ITaskWatcherCallback taskWatcherCallback = new ITaskWatcherCallback.Stub() {
         @Override
-        public void run() {
-            // 检查开关状态
-            if (keepScreenOnEnabled && taskService != null) {
-                try {
-                    // 向背屏(displayId=1)发送WAKEUP唤醒信号
-                    taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                    // Log.d(TAG, "✨ 背屏保活唤醒已发送");  // 注释掉以减少日志
-                } catch (Exception e) {
-                    Log.w(TAG, "背屏唤醒失败: " + e.getMessage());
-                }
+        public void onTaskMoved(int taskId, String packageName, int fromDisplayId, int toDisplayId) {
+            if (toDisplayId == 1) {
+                return;
             }
-            
-            // 持续发送，每0.5秒执行一次
-            if (keepScreenOnEnabled) {
-                handler.postDelayed(this, WAKEUP_INTERVAL_MS);
+            handler.post(() -> {
+                if (!monitoringPaused && monitoredTaskSeenOnRear && isMonitoredTask(taskId)) {
+                    Log.d(TAG, "📤 监控的任务已移出背屏: " + packageName + ":" + taskId);
+                    stopForeground(Service.STOP_FOREGROUND_REMOVE);
+                    stopSelf();
+                }
+            });
+        }
+        
+        @Override
+        public void onTaskRemoved(int taskId, String packageName) {
+            handler.post(() -> {
+                if (!monitoringPaused && isMonitoredTask(taskId)) {
+                    Log.d(TAG, "🗑️ 监控的任务已关闭: " + packageName + ":" + taskId);
+                    stopForeground(Service.STOP_FOREGROUND_REMOVE);
+                    stopSelf();
+                }
+            });
+        }
+        
+        @Override
+        public void onDisplayTopChanged(int displayId, String taskInfo, String topActivity) {
+            if (displayId != 1) {
+                return;
             }
+            handler.post(() -> handleRearTopChanged(taskInfo, topActivity));
         }
     };
     
+    /**
+     * V4.0: 注册任务栈监听，失败时保留轮询
+     */
+    private void registerTaskWatcher() {
+        ITaskService service = taskService;
+        if (service == null) {
+            return;
+        }
+        boolean active = false;
+        try {
+            active = service.registerTaskWatcher(taskWatcherCallback);
+        } catch (Exception e) {
+            Log.w(TAG, "⚠ 注册任务栈监听失败: " + e.getMessage());
+        }
+        
+        final boolean watcherActive = active;
+        handler.post(() -> {
+            taskWatcherActive = watcherActive;
+            if (watcherActive) {
+                // 已排队的一次检查保留，之后不再重复
+                Log.d(TAG, "✅ 任务栈监听已启用，停止轮询");
+            } else {
+                Log.w(TAG, "⚠ 任务栈监听不可用，回退到轮询");
+                startTaskMonitoring();
+            }
+        });
+    }
+    
+    private void unregisterTaskWatcher() {
+        if (taskService != null && taskWatcherActive) {
+            try {
+                taskService.unregisterTaskWatcher(taskWatcherCallback);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to unregister task watcher", e);
+            }
+        }
+        taskWatcherActive = false;
+    }
+    
+    /**
+     * V2.5: 持续唤醒背屏，防止背屏自动熄屏
+     * V4.0: 由共享调度器发送，与充电/通知/录屏等共用同一个周期
+     */
     private void startRearScreenWakeup() {
-        if (handler != null && keepScreenOnEnabled) {
-            // 立即执行第一次唤醒，然后开始持续发送
-            handler.post(wakeupRearScreenRunnable);
-            Log.d(TAG, "⏰ 背屏持续唤醒已启动 (0.5秒间隔)");
+        if (keepScreenOnEnabled && wakeupToken == null) {
+            wakeupToken = RearWakeupScheduler.getInstance().acquire(this, TAG, () -> taskService);
+        }
+    }
+    
+    private void stopRearScreenWakeup() {
+        if (wakeupToken != null) {
+            RearWakeupScheduler.getInstance().release(wakeupToken);
+            wakeupToken = null;
         }
     }
     
@@ -397,50 +525,25 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
     
     /**
      * Shizuku TaskService连接回调
+     * V4.0: 连接由TaskServiceManager统一管理（含重连），这里只订阅
      */
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
             
-            // 取消重连任务（如果存在）
-            if (handler != null) {
-                handler.removeCallbacks(reconnectTaskServiceRunnable);
-            }
+            // V4.0: 订阅任务栈事件（binder调用放到后台线程）
+            new Thread(RearScreenKeeperService.this::registerTaskWatcher).start();
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             Log.w(TAG, "⚠ TaskService disconnected - will attempt to reconnect");
             taskService = null;
             
-            // 启动重连任务
-            scheduleReconnectTaskService();
-        }
-    };
-    
-    /**
-     * TaskService重连任务
-     */
-    private final Runnable reconnectTaskServiceRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (taskService == null) {
-                bindTaskService();
-                
-                // 如果重连失败，1秒后再次尝试
-                handler.postDelayed(this, 1000);
-            } else {
-            }
-        }
-    };
-    
-    /**
-     * 安排TaskService重连
-     */
-    private void scheduleReconnectTaskService() {
-        if (handler != null) {
-            handler.postDelayed(reconnectTaskServiceRunnable, 300);
+            // V4.0: 监听随TaskService进程失效，重连前先回退到轮询
+            taskWatcherActive = false;
+            startTaskMonitoring();
         }
     };
     
@@ -448,47 +551,16 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
      * 绑定Shizuku TaskService
      */
     private void bindTaskService() {
-        if (taskService != null) {
-            return;
-        }
-        
-        try {
-            Shizuku.UserServiceArgs args = new Shizuku.UserServiceArgs(
-                new ComponentName(getPackageName(), TaskService.class.getName())
-            )
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
-            
-            Shizuku.bindUserService(args, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "✗ Failed to bind TaskService", e);
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     /**
      * 解绑TaskService
+     * V4.0: 只取消订阅，共享连接保持（之前 unbind(remove=true) 会杀掉其他组件正在用的进程）
      */
     private void unbindTaskService() {
-        if (taskService != null) {
-            try {
-                Shizuku.unbindUserService(
-                    new Shizuku.UserServiceArgs(
-                        new ComponentName(getPackageName(), TaskService.class.getName())
-                    )
-                    .daemon(false)
-                    .processNameSuffix("task_service")
-                    .debuggable(false)
-                    .version(1),
-                    taskServiceConnection,
-                    true
-                );
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to unbind TaskService", e);
-            }
-            taskService = null;
-        }
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
     }
     
     @Override
@@ -505,24 +577,30 @@ public class RearScreenKeeperService extends Service implements SensorEventListe
         if (handler != null) {
             handler.removeCallbacksAndMessages(null);
         }
+        if (pendingTaskCheck != null) {
+            pendingTaskCheck.cancel(false);
+            pendingTaskCheck = null;
+        }
+        
+        // V4.0: 释放背屏唤醒
+        stopRearScreenWakeup();
         
         // V12.2: 恢复并主动唤醒Launcher
         if (taskService != null) {
             try {
                 
                 // 1. 恢复Launcher（unsuspend）
+                // V4.0: 连接不再随本Service解绑而销毁，不需要等待300ms再解绑
                 taskService.enableSubScreenLauncher();
                 
-                // 2. 短暂延迟，确保unsuspend生效
-                Thread.sleep(300);
-                
-                // 3. 主动启动Launcher的Activity来唤醒它
-                
             } catch (Exception e) {
                 Log.w(TAG, "Failed to restore launcher", e);
             }
         }
         
+        // V4.0: 注销任务栈监听
+        unregisterTaskWatcher();
+        
         // 解绑TaskService
         unbindTaskService();
         
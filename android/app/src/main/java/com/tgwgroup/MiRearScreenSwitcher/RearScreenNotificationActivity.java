@@ -37,11 +37,15 @@ public class RearScreenNotificationActivity extends Activity {
     
     private String packageName;
     private boolean contentInitialized = false;  // 标记内容是否已初始化
+    private int messageCount = 1;  // V4.0: 当前显示的应用累计通知条数（合并/原地更新）
+    private boolean hideContent = false;  // V3.2隐私模式：隐藏内容时按条数显示提示
+    private final Runnable autoFinishRunnable = this::finish;  // V4.0: 原地更新时需要重新计时
     
     // 通知动画期间持续唤醒和杀死launcher
     private android.os.Handler wakeupHandler;
     private Runnable wakeupRunnable;
     private boolean isWakeupRunning = false;
+    private RearWakeupScheduler.Token wakeupToken = null; // V4.0: 共享背屏唤醒
     
     // 广播接收器：接收打断命令
     private android.content.BroadcastReceiver interruptReceiver = new android.content.BroadcastReceiver() {
@@ -67,6 +71,9 @@ public class RearScreenNotificationActivity extends Activity {
         
         super.onCreate(savedInstanceState);
         
+        // V4.0: 向启动方回报taskId（不再轮询 am stack list）
+        RearLaunchHelper.reportLaunched(this, getIntent());
+        
         // 判断当前所在的屏幕
         int displayId = 0;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.R) {
@@ -80,6 +87,8 @@ public class RearScreenNotificationActivity extends Activity {
         String text = getIntent().getStringExtra("text");
         long when = getIntent().getLongExtra("when", System.currentTimeMillis());
         boolean darkMode = getIntent().getBooleanExtra("darkMode", false);
+        messageCount = Math.max(1, getIntent().getIntExtra("count", 1));
+        hideContent = getIntent().getBooleanExtra("hideContent", false);
         
         // ⚠️ 关键：在 setContentView 之前强制使用背屏DPI
         forceRearScreenDensityBeforeInflate();
@@ -168,6 +177,7 @@ public class RearScreenNotificationActivity extends Activity {
                 notificationTitle.setVisibility(View.GONE);
             }
             
+            text = formatContent(text);
             if (text != null && !text.isEmpty()) {
                 notificationContent.setText(text);
                 notificationContent.setVisibility(View.VISIBLE);
@@ -293,8 +303,7 @@ public class RearScreenNotificationActivity extends Activity {
         });
         
         // V3.4: 根据设置的时间自动关闭
-        int duration = getSharedPreferences("mrss_settings", MODE_PRIVATE).getInt("notification_duration", 10);
-        container.postDelayed(this::finish, duration * 1000L);
+        scheduleAutoFinish(container);
         
         long onCreateEndTime = System.currentTimeMillis();
         Log.d(TAG, String.format("[%tT.%tL] ✓ onCreate完成 (总耗时%dms)", 
@@ -321,13 +330,117 @@ public class RearScreenNotificationActivity extends Activity {
         }
     }
     
+    /**
+     * V3.4: 根据设置的时间自动关闭（V4.0: 原地更新时重新计时）
+     */
+    private void scheduleAutoFinish(View container) {
+        int duration = getSharedPreferences("mrss_settings", MODE_PRIVATE).getInt("notification_duration", 10);
+        container.removeCallbacks(autoFinishRunnable);
+        container.postDelayed(autoFinishRunnable, duration * 1000L);
+    }
+    
+    /**
+     * V4.0: 通知内容加上合并条数，如"[3条] 内容"
+     */
+    private String formatContent(String text) {
+        return formatContent(text, messageCount, hideContent);
+    }
+    
+    static String formatContent(String text, int count, boolean hideContent) {
+        if (hideContent) {
+            return count > 1 ? "你有" + count + "条新消息" : text;
+        }
+        if (count > 1 && text != null) {
+            return "[" + count + "条] " + text;
+        }
+        return text;
+    }
+    
+    /**
+     * V4.0: 原地更新正在显示的通知（NotificationService合并后在主线程调用）
+     * 不再打断+重新启动Activity，避免群聊刷屏时背屏反复闪烁
+     * @param count 本次合并的条数，同一应用会累加到当前显示的条数上
+     * @return false=没有可更新的实例（未启动/主屏占位中/正在关闭），调用方需要重新启动
+     */
+    static boolean updateInPlace(String packageName, String title, String text, int count, boolean hideContent) {
+        RearScreenNotificationActivity activity = currentInstance;
+        if (activity == null || !activity.contentInitialized || activity.isFinishing() || activity.isDestroyed()) {
+            return false;
+        }
+        activity.applyUpdate(packageName, title, text, count, hideContent);
+        return true;
+    }
+    
+    private void applyUpdate(String newPackageName, String title, String text, int count, boolean hide) {
+        boolean samePackage = newPackageName.equals(packageName);
+        messageCount = samePackage ? messageCount + count : count;
+        hideContent = hide;
+        
+        ImageView appIconCenter = findViewById(R.id.app_icon_center);
+        ImageView appIconSmall = findViewById(R.id.app_icon_small);
+        TextView appNameText = findViewById(R.id.app_name);
+        TextView notificationTitle = findViewById(R.id.notification_title);
+        TextView notificationContent = findViewById(R.id.notification_content);
+        View container = findViewById(R.id.notification_container);
+        View contentContainer = findViewById(R.id.notification_content_container);
+        
+        // 换了应用：更新图标、应用名（点击跳转使用packageName字段，随之更新）
+        if (!samePackage) {
+            packageName = newPackageName;
+            try {
+                PackageManager pm = getPackageManager();
+                android.content.pm.ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
+                Drawable icon = pm.getApplicationIcon(packageName);
+                appIconCenter.setImageDrawable(icon);
+                appIconSmall.setImageDrawable(icon);
+                appNameText.setText(pm.getApplicationLabel(appInfo).toString());
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to load app info for update: " + e.getMessage());
+                appNameText.setText(packageName);
+            }
+        }
+        
+        if (title != null && !title.isEmpty()) {
+            notificationTitle.setText(title);
+            notificationTitle.setVisibility(View.VISIBLE);
+        } else {
+            notificationTitle.setVisibility(View.GONE);
+        }
+        
+        String content = formatContent(text);
+        if (content != null && !content.isEmpty()) {
+            notificationContent.setText(content);
+            notificationContent.setVisibility(View.VISIBLE);
+        } else {
+            notificationContent.setVisibility(View.GONE);
+        }
+        
+        // 内容容器轻微弹一下，提示有新消息（不cancel，入场动画的淡入/上滑继续）
+        contentContainer.setScaleX(1.04f);
+        contentContainer.setScaleY(1.04f);
+        contentContainer.animate()
+            .scaleX(1f)
+            .scaleY(1f)
+            .setStartDelay(0)
+            .setDuration(200)
+            .setInterpolator(new AccelerateDecelerateInterpolator())
+            .start();
+        
+        scheduleAutoFinish(container);
+        
+        long updateTime = System.currentTimeMillis();
+        Log.d(TAG, String.format("[%tT.%tL] 🔁 原地更新: %s 共%d条 - %s: %s",
+            updateTime, updateTime, packageName, messageCount, title, content));
+    }
+    
     /**
      * 执行通知动画
      * 1. 大图标从中心缩放
      * 2. 应用名毛玻璃容器淡入
      * 3. 通知内容毛玻璃容器淡入
+     * V4.0: 静态方法，RearPresentationHost复用
      */
-    private void startNotificationAnimation(ImageView iconCenter, View appNameContainer, View contentContainer) {
+    static void startNotificationAnimation(ImageView iconCenter, View appNameContainer, View contentContainer) {
         // 初始状态
         appNameContainer.setAlpha(0f);
         appNameContainer.setScaleX(0.9f);
@@ -391,6 +504,30 @@ public class RearScreenNotificationActivity extends Activity {
             .start();
     }
     
+    /**
+     * V4.0: singleInstance，已存在时新通知从这里进来：回报启动方并原地更新
+     */
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        // 慢启动时am start回退会让同一次启动再到达一次，不能重复累加条数
+        if (!RearLaunchHelper.reportLaunched(this, intent)) {
+            return;
+        }
+        setIntent(intent);
+        
+        String newPackageName = intent.getStringExtra("packageName");
+        if (contentInitialized && newPackageName != null) {
+            applyUpdate(newPackageName, intent.getStringExtra("title"), intent.getStringExtra("text"),
+                Math.max(1, intent.getIntExtra("count", 1)), intent.getBooleanExtra("hideContent", false));
+        } else if (newPackageName != null) {
+            // 主屏占位中：onResume初始化内容时使用新Intent
+            packageName = newPackageName;
+            messageCount = Math.max(1, intent.getIntExtra("count", 1));
+            hideContent = intent.getBooleanExtra("hideContent", false);
+        }
+    }
+    
     @Override
     protected void onResume() {
         super.onResume();
@@ -465,6 +602,7 @@ public class RearScreenNotificationActivity extends Activity {
                         notificationTitle.setVisibility(View.GONE);
                     }
                     
+                    text = formatContent(text);
                     if (text != null && !text.isEmpty()) {
                         notificationContent.setText(text);
                         notificationContent.setVisibility(View.VISIBLE);
@@ -587,8 +725,7 @@ public class RearScreenNotificationActivity extends Activity {
                 });
                 
                 // V3.4: 根据设置的时间自动关闭
-                int duration = getSharedPreferences("mrss_settings", MODE_PRIVATE).getInt("notification_duration", 10);
-                container.postDelayed(this::finish, duration * 1000L);
+                scheduleAutoFinish(container);
                 
                 // 启动wakeup循环
                 startWakeupAndKillLoop();
@@ -701,48 +838,19 @@ public class RearScreenNotificationActivity extends Activity {
      */
     private void forceRearScreenDensityBeforeInflate() {
         try {
-            // 从缓存获取背屏DPI（适配所有小米双屏设备）
-            RearDisplayHelper.RearDisplayInfo info = DisplayInfoCache.getInstance().getCachedInfo();
+            // 从注册表获取背屏DPI（适配所有小米双屏设备）
+            // V4.0: 只读快照，不在inflate时阻塞等待shell；尚未扫描时用默认值并在后台扫描
+            DisplayRegistry registry = DisplayRegistry.getInstance();
+            RearDisplayHelper.RearDisplayInfo info = registry.getRearInfo();
             int rearScreenDpi = info.densityDpi;
             
-            // 如果缓存未初始化，立即执行dumpsys获取真实DPI
-            if (rearScreenDpi <= 0) {
-                Log.w(TAG, "⚠️ 背屏DPI未缓存，尝试实时获取");
-                
-                // 尝试获取TaskService（带重试机制）
-                ITaskService taskService = null;
-                for (int retry = 0; retry < 3; retry++) {
-                    taskService = NotificationService.getTaskService();
-                    if (taskService == null) {
-                        taskService = ChargingService.getTaskService();
-                    }
-                    
-                    if (taskService != null) {
-                        break;
-                    }
-                    
-                    Log.w(TAG, String.format("⚠️ TaskService未连接，重试 %d/3", retry + 1));
-                    try {
-                        Thread.sleep(200);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                
-                if (taskService != null) {
-                    try {
-                        DisplayInfoCache.getInstance().initialize(taskService);
-                        info = DisplayInfoCache.getInstance().getCachedInfo();
-                        rearScreenDpi = info.densityDpi;
-                        Log.d(TAG, "✓ 实时获取背屏DPI: " + rearScreenDpi);
-                    } catch (Exception e) {
-                        Log.e(TAG, "❌ 实时获取背屏DPI失败", e);
-                        return;
-                    }
-                } else {
-                    Log.e(TAG, "❌ TaskService重试3次后仍不可用，跳过DPI强制");
-                    return;
+            if (!registry.isPopulated()) {
+                Log.w(TAG, "⚠️ 背屏信息尚未扫描，暂用默认DPI: " + rearScreenDpi);
+                ITaskService taskService = NotificationService.getTaskService();
+                if (taskService == null) {
+                    taskService = ChargingService.getTaskService();
                 }
+                registry.attach(this, taskService);
             }
             
             // 获取当前的 DisplayMetrics
@@ -777,7 +885,7 @@ public class RearScreenNotificationActivity extends Activity {
     private void applyRearScreenDensity() {
         try {
             // 获取背屏的DPI
-            RearDisplayHelper.RearDisplayInfo info = DisplayInfoCache.getInstance().getCachedInfo();
+            RearDisplayHelper.RearDisplayInfo info = DisplayRegistry.getInstance().getRearInfo();
             int rearScreenDpi = info.densityDpi;
             
             // 获取当前的 DisplayMetrics
@@ -818,7 +926,7 @@ public class RearScreenNotificationActivity extends Activity {
     private void applySafeAreaPadding() {
         try {
             // 从缓存获取背屏信息
-            RearDisplayHelper.RearDisplayInfo info = DisplayInfoCache.getInstance().getCachedInfo();
+            RearDisplayHelper.RearDisplayInfo info = DisplayRegistry.getInstance().getRearInfo();
             
             // 如果没有cutout，不需要额外处理
             if (!info.hasCutout()) {
@@ -1027,6 +1135,9 @@ public class RearScreenNotificationActivity extends Activity {
         
         isWakeupRunning = true;
         
+        // V4.0: wakeup由共享调度器发送（周期自适应），本循环只负责杀launcher
+        wakeupToken = RearWakeupScheduler.getInstance().acquire(this, TAG, NotificationService::getTaskService);
+        
         wakeupRunnable = new Runnable() {
             @Override
             public void run() {
@@ -1042,14 +1153,6 @@ public class RearScreenNotificationActivity extends Activity {
                 ITaskService taskService = NotificationService.getTaskService();
                 
                 if (taskService != null) {
-                    // 发送wakeup命令
-                    try {
-                        taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                        Log.d(TAG, "✓ Wakeup sent");
-                    } catch (Throwable t) {
-                        Log.w(TAG, "发送wakeup失败: " + t.getMessage());
-                    }
-                    
                     // 持续杀死官方launcher（防止其抢占背屏）
                     try {
                         taskService.disableSubScreenLauncher();
@@ -1058,7 +1161,7 @@ public class RearScreenNotificationActivity extends Activity {
                         Log.w(TAG, "杀死launcher失败: " + t.getMessage());
                     }
                 } else {
-                    Log.w(TAG, "⚠️ TaskService is null, skipping wakeup and kill");
+                    Log.w(TAG, "⚠️ TaskService is null, skipping kill");
                 }
                 
                 // 100ms后继续
@@ -1083,6 +1186,10 @@ public class RearScreenNotificationActivity extends Activity {
         if (wakeupHandler != null && wakeupRunnable != null) {
             wakeupHandler.removeCallbacks(wakeupRunnable);
         }
+        if (wakeupToken != null) {
+            RearWakeupScheduler.getInstance().release(wakeupToken);
+            wakeupToken = null;
+        }
         Log.d(TAG, "✓ Wakeup loop stopped");
     }
 }
@@ -0,0 +1,623 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.graphics.Rect;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * V4.0: 进程内背屏录屏（运行在Shizuku进程中）
+ *
+ * 取代后台 screenrecord 进程 + pid文件 + 轮询日志/ls 的做法：
+ * - 镜像显示屏1到一个VirtualDisplay（Android 14+ DisplayManager.createVirtualDisplay(..., displayIdToMirror, ...)，
+ *   之前版本用 SurfaceControl.createDisplay + setDisplayLayerStack）
+ * - 画面直接进入MediaCodec的输入Surface（H.264），输出由MediaMuxer写入MP4
+ * - 第一帧写入时回调 onRecordingStarted，文件关闭后回调 onRecordingStopped，不再靠sleep猜测
+ * - 统计 编码帧数/丢帧/编码器队列深度/编码延迟
+ * - 分段录制：每段到时长后在下一个关键帧处关闭（写完moov，可独立播放）并开始新的一段，
+ *   进程被杀最多丢失当前一段；可按总大小/总时长滚动删除最旧的分段，长时间录制磁盘占用恒定
+ *   （MediaMuxer不支持fragmented MP4，所以用多个完整的小MP4实现）
+ * - 媒体库扫描和滚动删除在单独的线程执行，分段切换时不阻塞输出线程（新分段的关键帧正在排队）
+ *
+ * 队列深度无法从MediaCodec直接读取，按 (当前时间 - 帧时间戳) / 帧间隔 估算：
+ * Surface输入帧的时间戳与 System.nanoTime() 同为CLOCK_MONOTONIC。
+ */
+public class RearScreenRecorder {
+    private static final String TAG = "RearScreenRecorder";
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final String DISPLAY_NAME = "mrss-rear-record";
+    private static final long DRAIN_TIMEOUT_US = 10_000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+
+    private final ShellSessionPool shell;
+    private Session session;
+
+    // 分段文件的媒体库扫描/删除（单线程，保证先扫描新分段再删除旧分段）
+    private final ExecutorService fileWorker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mrss-recorder-files");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RearScreenRecorder(ShellSessionPool shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 开始录制指定显示屏
+     * @return 编码器和镜像显示屏都已创建；真正开始（第一帧写入）通过回调通知
+     */
+    public synchronized boolean start(int displayId, RecordingProfile profile, String path, IRecordingCallback callback) {
+        if (session != null && !session.finished) {
+            Log.w(TAG, "⚠️ 已在录制中");
+            return false;
+        }
+
+        Session s = new Session(displayId, profile != null ? profile : RecordingProfile.standard(), path, callback);
+        if (!s.prepare()) {
+            s.release();
+            new File(s.segmentPath).delete();
+            return false;
+        }
+        session = s;
+        s.thread.start();
+        return true;
+    }
+
+    /**
+     * 停止录制，等待文件写完
+     * @return 统计信息，未在录制时返回null
+     */
+    public Bundle stop() {
+        Session s;
+        synchronized (this) {
+            s = session;
+        }
+        if (s == null) {
+            return null;
+        }
+        s.requestStop();
+        return s.getStats();
+    }
+
+    public synchronized boolean isRecording() {
+        return session != null && !session.finished;
+    }
+
+    /**
+     * 当前（或上一次）录制的统计
+     */
+    public synchronized Bundle getStats() {
+        return session != null ? session.getStats() : null;
+    }
+
+    // ========================================
+    // 单次录制
+    // ========================================
+
+    private final class Session implements Runnable {
+        final int displayId;
+        final RecordingProfile profile;
+        final String path;
+        final IRecordingCallback callback;
+        final Thread thread = new Thread(this, "mrss-recorder");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        int width;
+        int height;
+        int bitRate;
+        long frameIntervalUs;
+
+        MediaCodec encoder;
+        Surface inputSurface;
+        MediaMuxer muxer;
+        boolean muxerStarted = false;
+        int track = -1;
+        MediaFormat outputFormat;
+        VirtualDisplay virtualDisplay;   // Android 14+
+        IBinder mirrorToken;             // 旧版本 SurfaceControl display
+
+        volatile boolean finished = false;
+        volatile boolean stopRequested = false;
+        volatile boolean abortRequested = false;  // 等待EOS超时：输出线程放弃EOS直接退出
+        String error;
+
+        // 统计
+        final long prepareTime = SystemClock.uptimeMillis();
+        volatile long startLatencyMs = -1;  // 从start到第一帧写入
+        volatile long framesEncoded = 0;
+        volatile long droppedFrames = 0;
+        volatile long bytesWritten = 0;
+        volatile long queueDepth = 0;
+        volatile long maxQueueDepth = 0;
+        volatile long latencySumUs = 0;
+        volatile long maxLatencyUs = 0;
+        volatile long firstPtsUs = -1;
+        volatile long lastPtsUs = -1;
+
+        // 分段
+        final long segmentDurationUs;
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();   // 已关闭且保留的分段（旧->新）
+        volatile String segmentPath;
+        int segmentIndex = 0;
+        long segmentStartPtsUs = -1;
+        long segmentBytes = 0;
+        boolean syncFrameRequested = false;
+        volatile int segmentsClosed = 0;
+        volatile int segmentsDeleted = 0;
+        volatile long retainedBytes = 0;
+        long retainedUs = 0;
+
+        Session(int displayId, RecordingProfile profile, String path, IRecordingCallback callback) {
+            this.displayId = displayId;
+            this.profile = profile;
+            this.path = path;
+            this.callback = callback;
+            this.segmentDurationUs = profile.segmentDurationSec > 0 ? profile.segmentDurationSec * 1_000_000L : 0;
+            this.segmentPath = segmentPathFor(0);
+        }
+
+        /**
+         * 不分段时就是path本身，分段时为 xxx_001.mp4、xxx_002.mp4 ...
+         */
+        String segmentPathFor(int index) {
+            if (segmentDurationUs <= 0) {
+                return path;
+            }
+            String base = path.endsWith(".mp4") ? path.substring(0, path.length() - 4) : path;
+            return String.format(Locale.US, "%s_%03d.mp4", base, index + 1);
+        }
+
+        boolean prepare() {
+            try {
+                Object displayInfo = getDisplayInfo(displayId);
+                if (displayInfo == null) {
+                    Log.e(TAG, "❌ 显示屏" + displayId + "不存在");
+                    return false;
+                }
+                int srcWidth = displayInfo.getClass().getField("logicalWidth").getInt(displayInfo);
+                int srcHeight = displayInfo.getClass().getField("logicalHeight").getInt(displayInfo);
+                int layerStack = displayInfo.getClass().getField("layerStack").getInt(displayInfo);
+
+                width = profile.scaledSize(srcWidth);
+                height = profile.scaledSize(srcHeight);
+                bitRate = profile.bitRateFor(width, height);
+                frameIntervalUs = 1_000_000L / Math.max(1, profile.fps);
+
+                MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+                format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, profile.fps);
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, profile.iFrameIntervalSec);
+                // 画面静止时也按帧率补帧，否则丢帧统计没有意义
+                format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, frameIntervalUs);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    // 背屏刷新率高于目标帧率时由编码器丢弃多余帧
+                    format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, profile.fps);
+                }
+
+                encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                inputSurface = encoder.createInputSurface();
+
+                File parent = new File(path).getParentFile();
+                if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                    Log.w(TAG, "⚠️ 创建目录失败: " + parent);
+                }
+                muxer = new MediaMuxer(segmentPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+                encoder.start();
+                if (!createMirror(srcWidth, srcHeight, layerStack)) {
+                    Log.e(TAG, "❌ 无法镜像显示屏" + displayId);
+                    return false;
+                }
+
+                Log.d(TAG, "✅ 录屏已就绪 " + width + "x" + height + "@" + profile.fps + "fps "
+                    + (bitRate / 1000) + "kbps " + profile + " -> " + segmentPath);
+                return true;
+
+            } catch (Throwable t) {
+                Log.e(TAG, "❌ 初始化录屏失败", t);
+                error = t.toString();
+                return false;
+            }
+        }
+
+        /**
+         * 镜像源显示屏到编码器输入Surface
+         */
+        private boolean createMirror(int srcWidth, int srcHeight, int layerStack) throws Exception {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                try {
+                    Method method = DisplayManager.class.getMethod("createVirtualDisplay",
+                        String.class, int.class, int.class, int.class, Surface.class);
+                    virtualDisplay = (VirtualDisplay) method.invoke(null, DISPLAY_NAME, width, height, displayId, inputSurface);
+                    if (virtualDisplay != null) {
+                        return true;
+                    }
+                } catch (NoSuchMethodException e) {
+                    // 回退到SurfaceControl
+                }
+            }
+
+            Class<?> sc = Class.forName("android.view.SurfaceControl");
+            mirrorToken = (IBinder) sc.getMethod("createDisplay", String.class, boolean.class)
+                .invoke(null, DISPLAY_NAME, false);
+            if (mirrorToken == null) {
+                return false;
+            }
+            sc.getMethod("openTransaction").invoke(null);
+            try {
+                sc.getMethod("setDisplaySurface", IBinder.class, Surface.class).invoke(null, mirrorToken, inputSurface);
+                sc.getMethod("setDisplayProjection", IBinder.class, int.class, Rect.class, Rect.class)
+                    .invoke(null, mirrorToken, 0, new Rect(0, 0, srcWidth, srcHeight), new Rect(0, 0, width, height));
+                sc.getMethod("setDisplayLayerStack", IBinder.class, int.class).invoke(null, mirrorToken, layerStack);
+            } finally {
+                sc.getMethod("closeTransaction").invoke(null);
+            }
+            return true;
+        }
+
+        private void releaseMirror() {
+            if (virtualDisplay != null) {
+                try {
+                    virtualDisplay.release();
+                } catch (Exception ignored) {
+                }
+                virtualDisplay = null;
+            }
+            if (mirrorToken != null) {
+                try {
+                    Class.forName("android.view.SurfaceControl").getMethod("destroyDisplay", IBinder.class)
+                        .invoke(null, mirrorToken);
+                } catch (Throwable ignored) {
+                }
+                mirrorToken = null;
+            }
+        }
+
+        /**
+         * 编码输出线程：取出编码数据写入MP4
+         */
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            try {
+                while (!abortRequested) {
+                    int index = encoder.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+                    if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        continue;
+                    }
+                    if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        outputFormat = encoder.getOutputFormat();
+                        track = muxer.addTrack(outputFormat);
+                        muxer.start();
+                        muxerStarted = true;
+                        continue;
+                    }
+                    if (index < 0) {
+                        continue;
+                    }
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        info.size = 0;   // 配置数据已包含在输出格式中
+                    }
+                    if (info.size > 0 && muxerStarted) {
+                        maybeRotateSegment(info);
+                        ByteBuffer data = encoder.getOutputBuffer(index);
+                        data.position(info.offset);
+                        data.limit(info.offset + info.size);
+                        muxer.writeSampleData(track, data, info);
+                        onFrameWritten(info);
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                Log.e(TAG, "❌ 编码输出异常", t);
+                error = t.toString();
+            }
+            finish();
+        }
+
+        // ========================================
+        // 分段
+        // ========================================
+
+        /**
+         * 当前分段到时长后：请求一个关键帧，在关键帧处切到新分段（新分段必须从关键帧开始）
+         */
+        private void maybeRotateSegment(MediaCodec.BufferInfo info) throws Exception {
+            if (segmentDurationUs <= 0 || segmentStartPtsUs < 0
+                    || info.presentationTimeUs - segmentStartPtsUs < segmentDurationUs) {
+                return;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                if (!syncFrameRequested) {
+                    Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                    encoder.setParameters(params);
+                    syncFrameRequested = true;
+                }
+                return;
+            }
+
+            closeSegment();
+            segmentIndex++;
+            segmentPath = segmentPathFor(segmentIndex);
+            muxer = new MediaMuxer(segmentPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            track = muxer.addTrack(outputFormat);
+            muxer.start();
+            muxerStarted = true;
+            Log.d(TAG, "🎞️ 新分段: " + segmentPath);
+        }
+
+        /**
+         * 关闭当前分段（写完moov），成功则保留并执行滚动删除，失败则删除文件
+         * @return 是否得到了可播放的分段
+         */
+        private boolean closeSegment() {
+            boolean ok = muxerStarted && segmentBytes > 0;
+            if (muxer != null) {
+                if (muxerStarted) {
+                    try {
+                        muxer.stop();
+                    } catch (Exception e) {
+                        ok = false;
+                        if (error == null) {
+                            error = "muxer.stop: " + e.getMessage();
+                        }
+                    }
+                }
+                try {
+                    muxer.release();
+                } catch (Exception ignored) {
+                }
+                muxer = null;
+            }
+            muxerStarted = false;
+
+            String closedPath = segmentPath;
+            long durationUs = segmentStartPtsUs >= 0 ? lastPtsUs - segmentStartPtsUs : 0;
+            segmentStartPtsUs = -1;
+            segmentBytes = 0;
+            syncFrameRequested = false;
+
+            if (!ok) {
+                fileWorker.execute(() -> new File(closedPath).delete());   // 不完整的MP4无法播放
+                return false;
+            }
+
+            Segment segment = new Segment(closedPath, new File(closedPath).length(), durationUs);
+            segments.addLast(segment);
+            segmentsClosed++;
+            retainedBytes += segment.bytes;
+            retainedUs += segment.durationUs;
+            // 刷新媒体库，让视频出现在相册中
+            fileWorker.execute(() -> scanFile(closedPath));
+            enforceRetention();
+            return true;
+        }
+
+        /**
+         * 超过保留上限（MB或分钟）时删除最旧的分段，至少保留最新一段
+         */
+        private void enforceRetention() {
+            long maxBytes = profile.retentionMaxMb * 1024L * 1024L;
+            long maxUs = profile.retentionMaxMinutes * 60_000_000L;
+            while (segments.size() > 1
+                    && ((maxBytes > 0 && retainedBytes > maxBytes) || (maxUs > 0 && retainedUs > maxUs))) {
+                Segment oldest = segments.removeFirst();
+                retainedBytes -= oldest.bytes;
+                retainedUs -= oldest.durationUs;
+                segmentsDeleted++;
+                fileWorker.execute(() -> {
+                    if (new File(oldest.path).delete()) {
+                        // 文件已不存在时扫描会把它从媒体库移除
+                        scanFile(oldest.path);
+                    }
+                });
+                Log.d(TAG, "🗑️ 超出保留上限，删除最旧分段: " + oldest.path);
+            }
+        }
+
+        private void scanFile(String path) {
+            shell.exec("am broadcast -a android.intent.action.MEDIA_SCANNER_SCAN_FILE -d file://" + path);
+        }
+
+        private void onFrameWritten(MediaCodec.BufferInfo info) {
+            long pts = info.presentationTimeUs;
+            if (firstPtsUs < 0) {
+                firstPtsUs = pts;
+            }
+            if (lastPtsUs >= 0 && pts - lastPtsUs > frameIntervalUs * 3 / 2) {
+                droppedFrames += (pts - lastPtsUs) / frameIntervalUs - 1;
+            }
+            lastPtsUs = pts;
+            if (segmentStartPtsUs < 0) {
+                segmentStartPtsUs = pts;
+            }
+            segmentBytes += info.size;
+            framesEncoded++;
+            bytesWritten += info.size;
+
+            long latencyUs = Math.max(0, System.nanoTime() / 1000 - pts);
+            latencySumUs += latencyUs;
+            maxLatencyUs = Math.max(maxLatencyUs, latencyUs);
+            queueDepth = (latencyUs + frameIntervalUs - 1) / frameIntervalUs;
+            maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+
+            if (framesEncoded == 1) {
+                startLatencyMs = SystemClock.uptimeMillis() - prepareTime;
+                Log.d(TAG, "🎬 第一帧已写入 (" + startLatencyMs + "ms)");
+                try {
+                    if (callback != null) {
+                        callback.onRecordingStarted(path, width, height, profile.fps, bitRate);
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+        }
+
+        /**
+         * 停止输入，等待编码器输出EOS并写完文件
+         */
+        void requestStop() {
+            if (!stopRequested) {
+                stopRequested = true;
+                releaseMirror();
+                try {
+                    encoder.signalEndOfInputStream();
+                } catch (Exception e) {
+                    Log.w(TAG, "⚠️ signalEndOfInputStream失败: " + e.getMessage());
+                }
+            }
+            try {
+                if (!done.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    // 编码器/muxer只在输出线程中释放：这里只标记退出并等待，
+                    // 不能在binder线程里stop/release（输出线程可能正在dequeueOutputBuffer/writeSampleData）
+                    Log.w(TAG, "⚠️ 等待编码器结束超时，放弃EOS");
+                    error = "编码器结束超时";
+                    abortRequested = true;
+                    thread.join(STOP_TIMEOUT_MS);
+                    if (thread.isAlive()) {
+                        Log.e(TAG, "❌ 输出线程仍未退出（编码器卡住），资源由输出线程退出时释放");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            // 出错时当前分段可能不完整，之前关闭的分段不受影响
+            closeSegment();
+            release();
+
+            boolean fileOk = !segments.isEmpty();
+            Bundle stats = getStats();
+            Log.d(TAG, "⏹️ 录屏结束: " + stats);
+
+            try {
+                if (callback != null) {
+                    if (fileOk) {
+                        callback.onRecordingStopped(segments.peekLast().path, stats);
+                    } else {
+                        callback.onRecordingError(error != null ? error : "没有录到任何画面");
+                    }
+                }
+            } catch (Exception ignored) {
+            }
+            done.countDown();
+        }
+
+        void release() {
+            releaseMirror();
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (Exception ignored) {
+                }
+                encoder.release();
+                encoder = null;
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+                inputSurface = null;
+            }
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (Exception ignored) {
+                }
+                muxer = null;
+            }
+        }
+
+        Bundle getStats() {
+            Bundle stats = new Bundle();
+            stats.putString("path", segmentPath);
+            stats.putString("profile", profile.name);
+            stats.putInt("width", width);
+            stats.putInt("height", height);
+            stats.putInt("fps", profile.fps);
+            stats.putInt("bitRate", bitRate);
+            stats.putBoolean("recording", !finished);
+            stats.putString("error", error);
+            stats.putLong("startLatencyMs", startLatencyMs);
+            stats.putLong("framesEncoded", framesEncoded);
+            stats.putLong("droppedFrames", droppedFrames);
+            stats.putLong("bytesWritten", bytesWritten);
+            stats.putLong("queueDepth", queueDepth);
+            stats.putLong("maxQueueDepth", maxQueueDepth);
+            stats.putLong("avgEncodeLatencyUs", framesEncoded > 0 ? latencySumUs / framesEncoded : 0);
+            stats.putLong("maxEncodeLatencyUs", maxLatencyUs);
+            stats.putLong("durationMs", firstPtsUs >= 0 ? (lastPtsUs - firstPtsUs) / 1000 : 0);
+            stats.putInt("segmentsClosed", segmentsClosed);
+            stats.putInt("segmentsDeleted", segmentsDeleted);
+            stats.putLong("retainedBytes", retainedBytes);
+            return stats;
+        }
+    }
+
+    private static final class Segment {
+        final String path;
+        final long bytes;
+        final long durationUs;
+
+        Segment(String path, long bytes, long durationUs) {
+            this.path = path;
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+        }
+    }
+
+    private static Object getDisplayInfo(int displayId) throws Exception {
+        Class<?> dmgClass = Class.forName("android.hardware.display.DisplayManagerGlobal");
+        Object dmg = dmgClass.getMethod("getInstance").invoke(null);
+        return dmgClass.getMethod("getDisplayInfo", int.class).invoke(dmg, displayId);
+    }
+}
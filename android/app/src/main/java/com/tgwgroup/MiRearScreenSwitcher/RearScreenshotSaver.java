@@ -0,0 +1,298 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ColorSpace;
+import android.hardware.HardwareBuffer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * V4.0: 背屏截图（应用端）
+ *
+ * 1. TaskService.captureRearDisplay() 在Shizuku进程内抓取背屏，返回HardwareBuffer
+ * 2. 在后台线程把buffer包装成Bitmap、编码PNG、写入MediaStore（Pictures/RearDisplay）
+ * 3. 回调真实的成功/失败和端到端耗时
+ * 系统不支持进程内截图时回退到 takeRearScreenshot()（screencap）。
+ * 连拍：captureRearBurst() 一次返回所有帧，截图结束后在线程池中并行编码保存。
+ */
+public class RearScreenshotSaver {
+    private static final String TAG = "RearScreenshotSaver";
+
+    private static final String RELATIVE_DIR = Environment.DIRECTORY_PICTURES + "/RearDisplay";
+
+    public interface Callback {
+        /**
+         * 主线程回调
+         * @param success 是否已保存
+         * @param latencyMs 从请求到保存完成的耗时
+         */
+        void onResult(boolean success, long latencyMs);
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mrss-screenshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private RearScreenshotSaver() {
+    }
+
+    /**
+     * 截取背屏并保存（不阻塞调用线程）
+     */
+    public static void takeAsync(Context context, ITaskService taskService, Callback callback) {
+        Context appContext = context.getApplicationContext();
+        long start = SystemClock.uptimeMillis();
+        executor.execute(() -> {
+            boolean success = takeBlocking(appContext, taskService);
+            long latency = SystemClock.uptimeMillis() - start;
+            Log.d(TAG, (success ? "✅ 背屏截图已保存" : "❌ 背屏截图失败") + " (" + latency + "ms)");
+            if (callback != null) {
+                mainHandler.post(() -> callback.onResult(success, latency));
+            }
+        });
+    }
+
+    /**
+     * 截取背屏并保存（同步，只能在后台线程调用，如IntentService）
+     */
+    public static boolean take(Context context, ITaskService taskService) {
+        long start = SystemClock.uptimeMillis();
+        boolean success = takeBlocking(context.getApplicationContext(), taskService);
+        Log.d(TAG, (success ? "✅ 背屏截图已保存" : "❌ 背屏截图失败") + " (" + (SystemClock.uptimeMillis() - start) + "ms)");
+        return success;
+    }
+
+    private static boolean takeBlocking(Context context, ITaskService taskService) {
+        if (taskService == null) {
+            return false;
+        }
+
+        try {
+            Bundle result = taskService.captureRearDisplay();
+            if (result != null) {
+                return save(context, result);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ 进程内截图失败，回退screencap: " + e.getMessage());
+        }
+
+        try {
+            return taskService.takeRearScreenshot();
+        } catch (Exception e) {
+            Log.e(TAG, "screencap截图失败", e);
+            return false;
+        }
+    }
+
+    /**
+     * 单张截图结果 -> MediaStore
+     */
+    private static boolean save(Context context, Bundle result) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return false;
+        }
+        HardwareBuffer buffer = result.getParcelable(RearScreenCapturer.KEY_BUFFER);
+        if (buffer == null) {
+            return false;
+        }
+        String name = "RD_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        boolean success = saveBuffer(context, buffer,
+            result.getInt(RearScreenCapturer.KEY_COLOR_SPACE, ColorSpace.Named.SRGB.ordinal()), name);
+        if (success) {
+            Log.d(TAG, "截图已编码 (采集" + result.getLong(RearScreenCapturer.KEY_CAPTURE_MS) + "ms)");
+        }
+        return success;
+    }
+
+    // ========================================
+    // 连拍
+    // ========================================
+
+    /**
+     * 连拍结果
+     */
+    public static class BurstResult {
+        public int scheduled;      // 计划截取的帧数
+        public int dropped;        // 丢帧（截图超时错过的时间点或截图失败）
+        public int captured;       // 返回的帧数（连续模式只保留最后N帧）
+        public int saved;          // 成功保存的帧数
+        public long jitterAvgUs;
+        public long jitterMaxUs;
+        public long latencyMs;     // 端到端耗时（含编码保存）
+
+        public boolean isSuccess() {
+            return captured > 0 && saved == captured;
+        }
+
+        @Override
+        public String toString() {
+            return "BurstResult{scheduled=" + scheduled + ", dropped=" + dropped + ", captured=" + captured
+                + ", saved=" + saved + ", jitterAvg=" + jitterAvgUs + "us, jitterMax=" + jitterMaxUs
+                + "us, latency=" + latencyMs + "ms}";
+        }
+    }
+
+    /**
+     * 连拍并保存（同步，只能在后台线程调用）
+     * 截图结束后在工作线程池中并行编码
+     * @return 结果，系统不支持进程内截图时返回null
+     */
+    public static BurstResult takeBurst(Context context, ITaskService taskService,
+                                        int frameCount, int intervalMs, int durationMs) {
+        if (taskService == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return null;
+        }
+        long start = SystemClock.uptimeMillis();
+        Context appContext = context.getApplicationContext();
+
+        Bundle burst;
+        try {
+            burst = taskService.captureRearBurst(frameCount, intervalMs, durationMs);
+        } catch (Exception e) {
+            Log.e(TAG, "连拍失败", e);
+            return null;
+        }
+        if (burst == null) {
+            return null;
+        }
+
+        Parcelable[] buffers = burst.getParcelableArray(RearScreenCapturer.KEY_BUFFERS);
+        long[] timestamps = burst.getLongArray(RearScreenCapturer.KEY_TIMESTAMPS);
+        int colorSpaceId = burst.getInt(RearScreenCapturer.KEY_COLOR_SPACE, ColorSpace.Named.SRGB.ordinal());
+
+        BurstResult result = new BurstResult();
+        result.scheduled = burst.getInt(RearScreenCapturer.KEY_SCHEDULED);
+        result.dropped = burst.getInt(RearScreenCapturer.KEY_DROPPED);
+        result.jitterAvgUs = burst.getLong(RearScreenCapturer.KEY_JITTER_AVG_US);
+        result.jitterMaxUs = burst.getLong(RearScreenCapturer.KEY_JITTER_MAX_US);
+        result.captured = buffers != null ? buffers.length : 0;
+
+        if (result.captured > 0) {
+            String prefix = "RD_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + "_burst_";
+            int threads = Math.max(1, Math.min(result.captured, Runtime.getRuntime().availableProcessors() - 1));
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<Boolean>> futures = new ArrayList<>(result.captured);
+            for (int i = 0; i < result.captured; i++) {
+                HardwareBuffer buffer = (HardwareBuffer) buffers[i];
+                String name = String.format(Locale.US, "%s%02d_%dms", prefix, i,
+                    timestamps != null && i < timestamps.length ? timestamps[i] : 0);
+                futures.add(pool.submit(() -> saveBuffer(appContext, buffer, colorSpaceId, name)));
+            }
+            for (Future<Boolean> future : futures) {
+                try {
+                    if (future.get()) {
+                        result.saved++;
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "连拍帧保存失败: " + e.getMessage());
+                }
+            }
+            pool.shutdown();
+        }
+
+        result.latencyMs = SystemClock.uptimeMillis() - start;
+        Log.d(TAG, "📸 " + result);
+        return result;
+    }
+
+    /**
+     * HardwareBuffer -> PNG -> MediaStore（会关闭buffer）
+     */
+    private static boolean saveBuffer(Context context, HardwareBuffer buffer, int colorSpaceId, String name) {
+        Bitmap bitmap = null;
+        Uri uri = null;
+        ContentResolver resolver = context.getContentResolver();
+        try {
+            ColorSpace.Named[] named = ColorSpace.Named.values();
+            ColorSpace colorSpace = ColorSpace.get(colorSpaceId >= 0 && colorSpaceId < named.length
+                ? named[colorSpaceId] : ColorSpace.Named.SRGB);
+
+            Bitmap hardware = Bitmap.wrapHardwareBuffer(buffer, colorSpace);
+            if (hardware == null) {
+                return false;
+            }
+            // 硬件Bitmap不能直接编码，拷贝到软件Bitmap
+            bitmap = hardware.copy(Bitmap.Config.ARGB_8888, false);
+            hardware.recycle();
+            if (bitmap == null) {
+                return false;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.DISPLAY_NAME, name + ".png");
+            values.put(MediaStore.Images.Media.MIME_TYPE, "image/png");
+            values.put(MediaStore.Images.Media.RELATIVE_PATH, RELATIVE_DIR);
+            values.put(MediaStore.Images.Media.IS_PENDING, 1);
+            uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            if (uri == null) {
+                return false;
+            }
+
+            try (OutputStream out = resolver.openOutputStream(uri)) {
+                if (out == null || !bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                    resolver.delete(uri, null, null);
+                    return false;
+                }
+            }
+
+            values.clear();
+            values.put(MediaStore.Images.Media.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+            return true;
+
+        } catch (Exception e) {
+            Log.e(TAG, "保存截图失败", e);
+            if (uri != null) {
+                try {
+                    resolver.delete(uri, null, null);
+                } catch (Exception ignored) {
+                }
+            }
+            return false;
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            buffer.close();
+        }
+    }
+}
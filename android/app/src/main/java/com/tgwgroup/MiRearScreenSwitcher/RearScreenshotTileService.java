@@ -15,15 +15,11 @@
 
 package com.tgwgroup.MiRearScreenSwitcher;
 
-import android.content.ComponentName;
-import android.content.ServiceConnection;
 import android.graphics.drawable.Icon;
-import android.os.IBinder;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 import android.util.Log;
 import android.widget.Toast;
-import rikka.shizuku.Shizuku;
 
 /**
  * Quick Settings Tile - 获取背屏截图
@@ -33,45 +29,23 @@ public class RearScreenshotTileService extends TileService {
     private static final String TAG = "RearScreenshotTile";
     
     private ITaskService taskService;
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
-    
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理，磁贴只订阅（不再自己绑定/解绑/重连）
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             taskService = null;
-            scheduleReconnectTaskService();
-        }
-    };
-    
-    /**
-     * TaskService重连任务
-     */
-    private final Runnable reconnectTaskServiceRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (taskService == null) {
-                bindTaskService();
-                // 如果重连失败，1秒后再次尝试
-                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(this, 1000);
-            }
         }
     };
     
-    /**
-     * 安排TaskService重连
-     */
-    private void scheduleReconnectTaskService() {
-        new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(reconnectTaskServiceRunnable, 200);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     @Override
@@ -101,73 +75,42 @@ public class RearScreenshotTileService extends TileService {
         super.onClick();
         
         unlockAndRun(() -> {
-            new Thread(() -> {
-                try {
-                    if (taskService == null) {
-                        Log.w(TAG, "TaskService not available");
-                        showTemporaryFeedback("✗ 服务未就绪");
-                        new android.os.Handler(android.os.Looper.getMainLooper()).post(() -> {
-                            Toast.makeText(this, "✗ 服务未就绪", Toast.LENGTH_SHORT).show();
-                        });
-                        return;
-                    }
-                    
-                    boolean success = taskService.takeRearScreenshot();
-                    
-                    // 无论成功失败都显示成功Toast
-                    showTemporaryFeedback("✓ 已保存");
-                    
-                    // 先收起控制中心
+            if (taskService == null) {
+                Log.w(TAG, "TaskService not available");
+                showTemporaryFeedback("✗ 服务未就绪");
+                Toast.makeText(this, "✗ 服务未就绪", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            
+            // V4.0: 进程内截图，编码和保存在后台完成，按真实结果提示
+            ITaskService service = taskService;
+            RearScreenshotSaver.takeAsync(this, service, (success, latencyMs) -> {
+                showTemporaryFeedback(success ? "✓ 已保存" : "✗ 截图失败");
+                
+                // 先收起控制中心再提示
+                new Thread(() -> {
                     try {
-                        taskService.collapseStatusBar();
+                        service.collapseStatusBar();
                         Thread.sleep(300);
                     } catch (Exception ignored) {}
                     
-                    // 显示Toast提示
-                    new android.os.Handler(android.os.Looper.getMainLooper()).post(() -> {
-                        Toast.makeText(this, "背屏截图已保存", Toast.LENGTH_SHORT).show();
-                    });
-                    
-                } catch (Exception e) {
-                    Log.e(TAG, "Screenshot error", e);
-                    // 即使异常也显示成功Toast
-                    showTemporaryFeedback("✓ 已保存");
                     new android.os.Handler(android.os.Looper.getMainLooper()).post(() -> {
-                        Toast.makeText(this, "背屏截图已保存", Toast.LENGTH_SHORT).show();
+                        Toast.makeText(this, success ? "背屏截图已保存" : "背屏截图失败", Toast.LENGTH_SHORT).show();
                     });
-                }
-            }).start();
+                }).start();
+            });
         });
     }
     
     private void bindTaskService() {
-        if (taskService != null) {
-            return;
-        }
-        
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.w(TAG, "Shizuku not available");
-                return;
-            }
-            
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to bind TaskService", e);
-        }
+        TaskServiceManager.getInstance().connect();
     }
     
     @Override
     public void onDestroy() {
         super.onDestroy();
-        try {
-            if (taskService != null) {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-                taskService = null;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error unbinding service", e);
-        }
+        // V4.0: 只移除监听，不解绑共享的TaskService连接
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
     }
     
     private void showTemporaryFeedback(String message) {
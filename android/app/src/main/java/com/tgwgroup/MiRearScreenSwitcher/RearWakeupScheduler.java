@@ -0,0 +1,322 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Display;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * V4.0: 背屏保持唤醒的共享调度器（引用计数）
+ *
+ * 充电动画、通知动画、投放常亮、录屏、未投放常亮都需要持续给背屏发送KEYCODE_WAKEUP，
+ * 之前各自以100ms间隔发送，同时运行时每秒几十次。现在统一由这里发送：
+ * - 任意多个持有者，每个周期最多发送一次
+ * - 周期根据背屏实际熄屏情况自适应：熄屏了就按观测到的超时缩短周期并立即唤醒，
+ *   长时间稳定则逐渐放宽
+ * - 最后一个持有者释放后停止一切工作
+ * - 每次启动有自己的代数（generation），释放后马上重新持有时，旧周期任务发现代数过期即退出，不会出现两个唤醒循环
+ *
+ * 用法：
+ *   token = RearWakeupScheduler.getInstance().acquire(this, TAG, () -> taskService);
+ *   ...
+ *   RearWakeupScheduler.getInstance().release(token);
+ */
+public class RearWakeupScheduler {
+    private static final String TAG = "RearWakeupScheduler";
+
+    private static final int REAR_DISPLAY_ID = 1;
+    private static final String WAKEUP_CMD = "input -d 1 keyevent KEYCODE_WAKEUP";
+
+    private static final long MIN_PERIOD_MS = 100;       // 下限（等于旧的固定间隔）
+    private static final long MAX_PERIOD_MS = 3000;      // 未观测到熄屏时的上限
+    private static final long INITIAL_PERIOD_MS = 500;
+    private static final int STABLE_PERIODS_TO_GROW = 20; // 连续多少个周期没熄屏才放宽一次
+    private static final float GROW_FACTOR = 1.25f;
+    private static final int TIMEOUT_SAFETY_DIVISOR = 3; // 周期 = 观测超时 / 3
+
+    /**
+     * 持有者提供TaskService（各组件各自绑定，谁先可用就用谁的）
+     */
+    public interface TaskServiceProvider {
+        ITaskService get();
+    }
+
+    /**
+     * acquire 返回的凭据，release 时交回（重复release无副作用）
+     */
+    public static final class Token {
+        final String tag;
+        final TaskServiceProvider provider;
+
+        Token(String tag, TaskServiceProvider provider) {
+            this.tag = tag;
+            this.provider = provider;
+        }
+    }
+
+    private static volatile RearWakeupScheduler instance;
+
+    private final List<Token> holders = new ArrayList<>();
+    private HandlerThread thread;
+    private Handler handler;
+    private Runnable tickRunnable;
+    private int generation = 0;           // 每次start/stop递增，旧的周期任务据此退出
+    private DisplayManager displayManager;
+
+    private long periodMs = INITIAL_PERIOD_MS;
+    private long observedTimeoutMs = 0;   // 0=尚未观测到
+    private int stablePeriods = 0;
+    private long lastWakeupTime = 0;
+    private boolean rearDisplayOn = true;
+    private long sentCount = 0;
+    private long heldSince = 0;
+
+    private RearWakeupScheduler() {
+    }
+
+    public static RearWakeupScheduler getInstance() {
+        if (instance == null) {
+            synchronized (RearWakeupScheduler.class) {
+                if (instance == null) {
+                    instance = new RearWakeupScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 开始保持背屏唤醒
+     * @param tag 持有者名称（日志用）
+     * @param provider TaskService来源
+     */
+    public synchronized Token acquire(Context context, String tag, TaskServiceProvider provider) {
+        Token token = new Token(tag, provider);
+        holders.add(token);
+        Log.d(TAG, "➕ " + tag + " 持有唤醒 (共" + holders.size() + ")");
+
+        if (holders.size() == 1) {
+            start(context.getApplicationContext());
+        } else if (handler != null) {
+            // 新持有者通常刚把内容放到背屏，尽快确认一次
+            handler.post(wakeNowRunnable);
+        }
+        return token;
+    }
+
+    public synchronized void release(Token token) {
+        if (token == null || !holders.remove(token)) {
+            return;
+        }
+        Log.d(TAG, "➖ " + token.tag + " 释放唤醒 (剩余" + holders.size() + ")");
+
+        if (holders.isEmpty()) {
+            stop();
+        }
+    }
+
+    public synchronized boolean isHeld() {
+        return !holders.isEmpty();
+    }
+
+    private void start(Context appContext) {
+        thread = new HandlerThread("mrss-rear-wakeup");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        tickRunnable = new Tick(++generation, handler);
+        heldSince = SystemClock.uptimeMillis();
+        sentCount = 0;
+        stablePeriods = 0;
+
+        displayManager = (DisplayManager) appContext.getSystemService(Context.DISPLAY_SERVICE);
+        if (displayManager != null) {
+            rearDisplayOn = isRearDisplayOn();
+            displayManager.registerDisplayListener(displayListener, handler);
+        }
+
+        handler.post(tickRunnable);
+        Log.d(TAG, "⏰ 背屏唤醒已启动 (周期" + periodMs + "ms)");
+    }
+
+    private void stop() {
+        generation++;
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+            displayManager = null;
+        }
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+            handler = null;
+        }
+        tickRunnable = null;
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+        }
+
+        long heldMs = SystemClock.uptimeMillis() - heldSince;
+        Log.d(TAG, "⏸️ 背屏唤醒已停止: " + heldMs + "ms内发送" + sentCount + "次, 最终周期" + periodMs
+            + "ms, 观测超时" + (observedTimeoutMs > 0 ? observedTimeoutMs + "ms" : "未知"));
+    }
+
+    private synchronized boolean isCurrent(int gen) {
+        return gen == generation;
+    }
+
+    /**
+     * 周期任务：发送一次唤醒，稳定一段时间后放宽周期
+     * 绑定启动时的代数和Handler：sendWakeup可能阻塞，返回时若已经release/重新acquire则直接退出
+     */
+    private final class Tick implements Runnable {
+        private final int gen;
+        private final Handler tickHandler;
+
+        Tick(int gen, Handler tickHandler) {
+            this.gen = gen;
+            this.tickHandler = tickHandler;
+        }
+
+        @Override
+        public void run() {
+            if (!isCurrent(gen)) {
+                return;
+            }
+            sendWakeup();
+            if (!isCurrent(gen)) {
+                return;
+            }
+
+            if (rearDisplayOn && ++stablePeriods >= STABLE_PERIODS_TO_GROW) {
+                stablePeriods = 0;
+                long grown = Math.min(periodCap(), (long) (periodMs * GROW_FACTOR));
+                if (grown > periodMs) {
+                    periodMs = grown;
+                    Log.d(TAG, "📈 周期放宽到 " + periodMs + "ms");
+                }
+            }
+
+            tickHandler.postDelayed(this, periodMs);
+        }
+    }
+
+    private final Runnable wakeNowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (SystemClock.uptimeMillis() - lastWakeupTime >= MIN_PERIOD_MS) {
+                sendWakeup();
+            }
+        }
+    };
+
+    private long periodCap() {
+        if (observedTimeoutMs > 0) {
+            return Math.max(MIN_PERIOD_MS, Math.min(MAX_PERIOD_MS, observedTimeoutMs / TIMEOUT_SAFETY_DIVISOR));
+        }
+        return MAX_PERIOD_MS;
+    }
+
+    private void sendWakeup() {
+        ITaskService service = findTaskService();
+        if (service == null) {
+            return;
+        }
+        try {
+            service.executeShellCommand(WAKEUP_CMD);
+            lastWakeupTime = SystemClock.uptimeMillis();
+            sentCount++;
+        } catch (Exception e) {
+            Log.w(TAG, "背屏唤醒失败: " + e.getMessage());
+        }
+    }
+
+    private ITaskService findTaskService() {
+        Token[] snapshot;
+        synchronized (this) {
+            snapshot = holders.toArray(new Token[0]);
+        }
+        for (Token token : snapshot) {
+            try {
+                ITaskService service = token.provider.get();
+                if (service != null) {
+                    return service;
+                }
+            } catch (Exception ignored) {
+            }
+        }
+        return null;
+    }
+
+    private boolean isRearDisplayOn() {
+        DisplayManager dm = displayManager;
+        Display display = dm != null ? dm.getDisplay(REAR_DISPLAY_ID) : null;
+        return display == null || display.getState() == Display.STATE_ON;
+    }
+
+    /**
+     * 背屏状态变化：持有期间熄屏说明周期太长，按观测到的超时缩短并立即唤醒
+     */
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId != REAR_DISPLAY_ID) {
+                return;
+            }
+            boolean on = isRearDisplayOn();
+            if (on == rearDisplayOn) {
+                return;
+            }
+            rearDisplayOn = on;
+            if (on) {
+                return;
+            }
+
+            long elapsed = SystemClock.uptimeMillis() - lastWakeupTime;
+            if (lastWakeupTime > 0) {
+                observedTimeoutMs = observedTimeoutMs > 0 ? Math.min(observedTimeoutMs, elapsed) : elapsed;
+            }
+            periodMs = Math.max(MIN_PERIOD_MS, Math.min(periodMs / 2, periodCap()));
+            stablePeriods = 0;
+            Log.w(TAG, "🌑 背屏在唤醒后" + elapsed + "ms熄屏，周期缩短到 " + periodMs + "ms");
+
+            Handler h;
+            Runnable tick;
+            synchronized (RearWakeupScheduler.this) {
+                h = handler;
+                tick = tickRunnable;
+            }
+            if (h != null && tick != null) {
+                h.removeCallbacks(tick);
+                h.post(tick);
+            }
+        }
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+    };
+}
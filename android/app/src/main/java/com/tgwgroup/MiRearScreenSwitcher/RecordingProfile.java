@@ -0,0 +1,196 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * V4.0: 背屏录屏参数（见 ITaskService.startRearRecording）
+ *
+ * 背屏只有904x572，之前固定 20Mbps 录制严重浪费。码率默认按 每像素比特数 × 分辨率 × 帧率 计算，
+ * 904x572@30fps 标准档约1.5Mbps。
+ *
+ * 档位保存在 mrss_settings 的 "record_profile"（low / standard / high）。
+ * 分段时长 "record_segment_seconds"（默认60，0=不分段），
+ * 滚动保留上限 "record_retention_mb" / "record_retention_minutes"（0=不限制）。
+ */
+public class RecordingProfile implements Parcelable {
+
+    public static final String PREF_KEY = "record_profile";
+    public static final String PREF_SEGMENT_SECONDS = "record_segment_seconds";
+    public static final String PREF_RETENTION_MB = "record_retention_mb";
+    public static final String PREF_RETENTION_MINUTES = "record_retention_minutes";
+
+    private static final int DEFAULT_SEGMENT_SECONDS = 60;
+
+    public static final String LOW = "low";
+    public static final String STANDARD = "standard";
+    public static final String HIGH = "high";
+
+    String name;
+    float scale;          // 相对背屏分辨率的缩放
+    int fps;
+    float bitsPerPixel;   // bitRate<=0 时用它计算码率
+    int bitRate;          // 固定码率，<=0=按bitsPerPixel计算
+    int iFrameIntervalSec;
+    int segmentDurationSec;   // 0=不分段
+    int retentionMaxMb;       // 已关闭分段的总大小上限，0=不限制
+    int retentionMaxMinutes;  // 已关闭分段的总时长上限，0=不限制
+
+    private RecordingProfile(String name, float scale, int fps, float bitsPerPixel) {
+        this.name = name;
+        this.scale = scale;
+        this.fps = fps;
+        this.bitsPerPixel = bitsPerPixel;
+        this.bitRate = 0;
+        this.iFrameIntervalSec = 2;
+        this.segmentDurationSec = DEFAULT_SEGMENT_SECONDS;
+        this.retentionMaxMb = 0;
+        this.retentionMaxMinutes = 0;
+    }
+
+    public static RecordingProfile low() {
+        return new RecordingProfile(LOW, 0.5f, 24, 0.08f);
+    }
+
+    public static RecordingProfile standard() {
+        return new RecordingProfile(STANDARD, 1.0f, 30, 0.1f);
+    }
+
+    public static RecordingProfile high() {
+        return new RecordingProfile(HIGH, 1.0f, 60, 0.15f);
+    }
+
+    public static RecordingProfile forName(String name) {
+        if (LOW.equals(name)) {
+            return low();
+        }
+        if (HIGH.equals(name)) {
+            return high();
+        }
+        return standard();
+    }
+
+    public static RecordingProfile fromPreferences(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("mrss_settings", Context.MODE_PRIVATE);
+        return forName(prefs.getString(PREF_KEY, STANDARD))
+            .segments(prefs.getInt(PREF_SEGMENT_SECONDS, DEFAULT_SEGMENT_SECONDS))
+            .retention(prefs.getInt(PREF_RETENTION_MB, 0), prefs.getInt(PREF_RETENTION_MINUTES, 0));
+    }
+
+    public RecordingProfile bitRate(int bitRate) {
+        this.bitRate = bitRate;
+        return this;
+    }
+
+    public RecordingProfile fps(int fps) {
+        this.fps = fps;
+        return this;
+    }
+
+    public RecordingProfile scale(float scale) {
+        this.scale = scale;
+        return this;
+    }
+
+    /**
+     * @param seconds 每段时长，0=单个文件
+     */
+    public RecordingProfile segments(int seconds) {
+        this.segmentDurationSec = Math.max(0, seconds);
+        return this;
+    }
+
+    /**
+     * 滚动保留上限（只统计已关闭的分段），0=不限制
+     */
+    public RecordingProfile retention(int maxMb, int maxMinutes) {
+        this.retentionMaxMb = Math.max(0, maxMb);
+        this.retentionMaxMinutes = Math.max(0, maxMinutes);
+        return this;
+    }
+
+    /**
+     * 编码尺寸：按scale缩放，对齐到8（部分硬件编码器要求）
+     */
+    int scaledSize(int size) {
+        int scaled = Math.round(size * Math.max(0.1f, Math.min(1.0f, scale)));
+        return Math.max(16, scaled & ~7);
+    }
+
+    int bitRateFor(int width, int height) {
+        if (bitRate > 0) {
+            return bitRate;
+        }
+        return Math.max(250_000, (int) (width * height * fps * bitsPerPixel));
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingProfile{" + name + ", scale=" + scale + ", fps=" + fps
+            + ", bitRate=" + (bitRate > 0 ? bitRate : bitsPerPixel + "bpp")
+            + ", segment=" + segmentDurationSec + "s, retention=" + retentionMaxMb + "MB/" + retentionMaxMinutes + "min}";
+    }
+
+    // ========================================
+    // Parcelable
+    // ========================================
+
+    protected RecordingProfile(Parcel in) {
+        name = in.readString();
+        scale = in.readFloat();
+        fps = in.readInt();
+        bitsPerPixel = in.readFloat();
+        bitRate = in.readInt();
+        iFrameIntervalSec = in.readInt();
+        segmentDurationSec = in.readInt();
+        retentionMaxMb = in.readInt();
+        retentionMaxMinutes = in.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(name);
+        dest.writeFloat(scale);
+        dest.writeInt(fps);
+        dest.writeFloat(bitsPerPixel);
+        dest.writeInt(bitRate);
+        dest.writeInt(iFrameIntervalSec);
+        dest.writeInt(segmentDurationSec);
+        dest.writeInt(retentionMaxMb);
+        dest.writeInt(retentionMaxMinutes);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<RecordingProfile> CREATOR = new Creator<RecordingProfile>() {
+        @Override
+        public RecordingProfile createFromParcel(Parcel in) {
+            return new RecordingProfile(in);
+        }
+
+        @Override
+        public RecordingProfile[] newArray(int size) {
+            return new RecordingProfile[size];
+        }
+    };
+}
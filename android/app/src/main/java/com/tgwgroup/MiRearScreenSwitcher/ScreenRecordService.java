@@ -20,9 +20,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
 import android.graphics.drawable.GradientDrawable;
@@ -38,13 +36,12 @@ import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
-import rikka.shizuku.Shizuku;
 
 /**
  * 背屏录屏服务
  * 功能：
  * 1. 显示悬浮窗（录制/停止按钮+关闭按钮）
- * 2. 录制背屏画面（screenrecord --display-id 1）
+ * 2. 录制背屏画面（V4.0: Shizuku进程内 VirtualDisplay + MediaCodec，不再启动screenrecord进程）
  * 3. 前台Service保活
  */
 public class ScreenRecordService extends Service {
@@ -57,28 +54,22 @@ public class ScreenRecordService extends Service {
     private View floatingView;
     private boolean isRecording = false;
     private String currentVideoPath;
-    private int recordPid = -1; // 录屏进程ID
-    private Handler wakeupHandler = new Handler(android.os.Looper.getMainLooper());
-    private static final long WAKEUP_INTERVAL_MS = 100; // 每100ms唤醒一次背屏
+    private View recordButtonView;
+    private android.widget.TextView closeButtonView;
+    private volatile RearWakeupScheduler.Token wakeupToken = null; // V4.0: 共享背屏唤醒
     
     // TaskService
     private ITaskService taskService;
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
-    
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理，这里只订阅
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
             Log.d(TAG, "✓ TaskService connected");
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             taskService = null;
         }
     };
@@ -128,28 +119,7 @@ public class ScreenRecordService extends Service {
     }
     
     private void bindTaskService() {
-        if (taskService != null) {
-            Log.d(TAG, "TaskService已连接，跳过绑定");
-            return;
-        }
-        
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.e(TAG, "❌ Shizuku不可用");
-                return;
-            }
-            
-            if (Shizuku.checkSelfPermission() != android.content.pm.PackageManager.PERMISSION_GRANTED) {
-                Log.e(TAG, "❌ 无Shizuku权限");
-                return;
-            }
-            
-            Log.d(TAG, "→ 正在绑定TaskService...");
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "❌ 绑定TaskService失败", e);
-            e.printStackTrace();
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     private void createNotificationChannel() {
@@ -280,6 +250,8 @@ public class ScreenRecordService extends Service {
         
         // 初始状态：录制按钮（实心圆）
         updateRecordButtonState(recordButton, false);
+        recordButtonView = recordButton;
+        closeButtonView = closeButton;
         
         // 点击事件
         recordButton.setOnClickListener(v -> {
@@ -365,20 +337,13 @@ public class ScreenRecordService extends Service {
             return true;
         }
         
-        Log.w(TAG, "⚠ TaskService未连接，尝试重新绑定...");
+        Log.w(TAG, "⚠ TaskService未连接，等待连接...");
         
-        // 尝试绑定
-        bindTaskService();
-        
-        // 等待连接（最多3秒）
-        int attempts = 0;
-        while (taskService == null && attempts < 30) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                break;
-            }
-            attempts++;
+        // V4.0: 等待共享连接就绪（最多3秒，工作线程调用），不再每100ms轮询
+        try {
+            taskService = TaskServiceManager.getInstance().awaitConnected(3000).get();
+        } catch (Exception e) {
+            Log.w(TAG, "等待TaskService失败: " + e.getMessage());
         }
         
         if (taskService != null) {
@@ -391,51 +356,68 @@ public class ScreenRecordService extends Service {
     }
     
     /**
-     * 持续唤醒背屏任务 - 录制期间防止背屏熄屏
+     * 启动背屏持续唤醒 - 录制期间防止背屏熄屏
+     * V4.0: 由共享调度器发送，不再单独100ms循环
      */
-    private final Runnable wakeupRearScreenRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (isRecording && taskService != null) {
-                try {
-                    // 向背屏(displayId=1)发送WAKEUP唤醒信号
-                    taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                    // 不输出日志以减少刷屏
-                } catch (Exception e) {
-                    Log.w(TAG, "背屏唤醒失败: " + e.getMessage());
-                }
-            }
-            
-            // 持续发送，每100ms执行一次
-            if (isRecording) {
-                wakeupHandler.postDelayed(this, WAKEUP_INTERVAL_MS);
-            }
+    private synchronized void startRearScreenWakeup() {
+        if (wakeupToken == null) {
+            wakeupToken = RearWakeupScheduler.getInstance().acquire(this, TAG, () -> taskService);
+            Log.d(TAG, "⏰ 背屏持续唤醒已启动");
         }
-    };
+    }
     
     /**
-     * 启动背屏持续唤醒
+     * 停止背屏持续唤醒
      */
-    private void startRearScreenWakeup() {
-        if (wakeupHandler != null) {
-            // 立即执行第一次唤醒，然后开始持续发送
-            wakeupHandler.post(wakeupRearScreenRunnable);
-            Log.d(TAG, "⏰ 背屏持续唤醒已启动 (100ms间隔)");
+    private synchronized void stopRearScreenWakeup() {
+        if (wakeupToken != null) {
+            RearWakeupScheduler.getInstance().release(wakeupToken);
+            wakeupToken = null;
+            Log.d(TAG, "⏸️ 背屏持续唤醒已停止");
         }
     }
     
     /**
-     * 停止背屏持续唤醒
+     * V4.0: 录制事件（来自Shizuku进程，oneway）
      */
-    private void stopRearScreenWakeup() {
-        if (wakeupHandler != null) {
-            wakeupHandler.removeCallbacks(wakeupRearScreenRunnable);
-            Log.d(TAG, "⏸️ 背屏持续唤醒已停止");
+    private final IRecordingCallback recordingCallback = new IRecordingCallback.Stub() {
+        @Override
+        public void onRecordingStarted(String path, int width, int height, int fps, int bitRate) {
+            Log.d(TAG, "🎬 录制已开始: " + width + "x" + height + "@" + fps + "fps " + (bitRate / 1000) + "kbps");
+            new Handler(Looper.getMainLooper()).post(() -> {
+                Toast.makeText(ScreenRecordService.this, "开始录制背屏", Toast.LENGTH_SHORT).show();
+            });
+        }
+        
+        @Override
+        public void onRecordingStopped(String path, android.os.Bundle stats) {
+            Log.d(TAG, "⏹️ 录制已保存: " + path + " " + stats);
+        }
+        
+        @Override
+        public void onRecordingError(String message) {
+            Log.e(TAG, "❌ 录制出错: " + message);
+            isRecording = false;
+            stopRearScreenWakeup();
+            new Handler(Looper.getMainLooper()).post(() -> {
+                resetButtons();
+                Toast.makeText(ScreenRecordService.this, "录屏失败: " + message, Toast.LENGTH_SHORT).show();
+            });
+        }
+    };
+    
+    private void resetButtons() {
+        if (recordButtonView != null) {
+            updateRecordButtonState(recordButtonView, false);
+        }
+        if (closeButtonView != null) {
+            closeButtonView.setVisibility(View.VISIBLE);
         }
     }
     
     /**
      * 开始录制
+     * V4.0: 在Shizuku进程内编码，开始/结束都有真实事件，不再轮询ps/ls
      */
     private void startRecording() {
         new Thread(() -> {
@@ -443,165 +425,52 @@ public class ScreenRecordService extends Service {
             if (!ensureTaskServiceConnected()) {
                 Log.e(TAG, "TaskService未连接");
                 new Handler(Looper.getMainLooper()).post(() -> {
+                    resetButtons();
                     Toast.makeText(this, "服务未就绪，请稍后重试", Toast.LENGTH_SHORT).show();
                 });
                 return;
             }
             
-            // 启动录制前先发送一次keycode wakeup到背屏
-            try {
-                taskService.executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                Thread.sleep(200); // 等待wakeup生效
-            } catch (Exception e) {
-                Log.w(TAG, "启动前背屏keycode wakeup失败: " + e.getMessage());
-            }
-            
             try {
                 // 生成文件名
                 String timestamp = new java.text.SimpleDateFormat("yyyyMMdd_HHmmss")
                     .format(new java.util.Date());
                 currentVideoPath = "/storage/emulated/0/Movies/MRSS_" + timestamp + ".mp4";
                 
-                // 创建保存目录
-                taskService.executeShellCommand("mkdir -p /storage/emulated/0/Movies");
-                Log.d(TAG, "✓ 目录已创建");
-                
-                // 获取背屏的真实display ID（照抄截图逻辑）
-                String getDisplayIdCmd = "dumpsys SurfaceFlinger --display-id | grep -oE 'Display [0-9]+' | awk 'NR==2{print $2}'";
-                String displayId = taskService.executeShellCommandWithResult(getDisplayIdCmd);
-                
-                if (displayId == null || displayId.trim().isEmpty()) {
-                    displayId = "1"; // 默认使用1
-                    Log.w(TAG, "⚠ 未能获取display ID，使用默认值: 1");
-                } else {
-                    displayId = displayId.trim();
-                    Log.d(TAG, "✓ 背屏display ID: " + displayId);
-                }
-                
-                // 先测试screenrecord命令是否可用
-                String testCmd = "which screenrecord";
-                String testResult = taskService.executeShellCommandWithResult(testCmd);
-                Log.d(TAG, "screenrecord路径: " + testResult);
+                // 分辨率/帧率/码率档位（背屏很小，默认约1.5Mbps）
+                RecordingProfile profile = RecordingProfile.fromPreferences(this);
+                Log.d(TAG, "→ 开始录制: " + profile + " -> " + currentVideoPath);
                 
-                if (testResult == null || testResult.trim().isEmpty()) {
-                    Log.e(TAG, "❌ screenrecord命令不存在");
-                    new Handler(Looper.getMainLooper()).post(() -> {
-                        Toast.makeText(this, "系统不支持screenrecord命令", Toast.LENGTH_LONG).show();
-                    });
-                    return;
-                }
-                
-                // 使用完整路径启动录屏
-                String screenrecordPath = testResult.trim();
-                String pidFile = "/data/local/tmp/mrss_record.pid";
-                String logFile = "/data/local/tmp/mrss_record.log";
-                
-                // 后台启动录屏并保存输出到日志
-                String recordCmd = String.format(
-                    "%s --display-id %s --bit-rate 20000000 %s > %s 2>&1 & echo $! > %s",
-                    screenrecordPath, displayId, currentVideoPath, logFile, pidFile
-                );
-                
-                Log.d(TAG, "→ 执行录屏命令: " + recordCmd);
-                
-                // 通过TaskService执行（有Shizuku权限）
-                boolean cmdSuccess = taskService.executeShellCommand(recordCmd);
-                Log.d(TAG, "命令执行结果: " + cmdSuccess);
-                
-                if (!cmdSuccess) {
-                    Log.e(TAG, "❌ 启动录屏命令失败");
+                // 录制前会确保背屏亮着（TaskService内部处理）
+                boolean started = taskService.startRearRecording(profile, currentVideoPath, recordingCallback);
+                if (!started) {
+                    Log.e(TAG, "❌ 启动录屏失败");
                     new Handler(Looper.getMainLooper()).post(() -> {
+                        resetButtons();
                         Toast.makeText(this, "启动录屏失败", Toast.LENGTH_SHORT).show();
                     });
                     return;
                 }
                 
-                // 等待进程启动和PID文件生成
-                Thread.sleep(800);
-                
-                // 读取PID
-                String pidStr = taskService.executeShellCommandWithResult("cat " + pidFile);
-                Log.d(TAG, "PID文件内容: " + pidStr);
-                
-                if (pidStr != null && !pidStr.trim().isEmpty()) {
-                    try {
-                        recordPid = Integer.parseInt(pidStr.trim());
-                        Log.d(TAG, "✓ 录屏进程PID: " + recordPid);
-                    } catch (NumberFormatException e) {
-                        Log.w(TAG, "⚠ 解析PID失败: " + pidStr);
-                    }
-                } else {
-                    Log.e(TAG, "❌ 无法读取PID文件");
-                }
-                
-                // 读取启动日志查看错误
-                String logContent = taskService.executeShellCommandWithResult("cat " + logFile);
-                if (logContent != null && !logContent.trim().isEmpty()) {
-                    Log.d(TAG, "录屏进程日志: " + logContent);
-                }
+                isRecording = true;
                 
-                // 验证进程是否真的在运行（多种方式）
-                Log.d(TAG, "→ 验证录屏进程...");
+                // 录制启动后，开始持续唤醒背屏
+                startRearScreenWakeup();
                 
-                // 方法1: ps aux
-                String checkCmd1 = "ps -A | grep screenrecord";
-                String checkResult1 = taskService.executeShellCommandWithResult(checkCmd1);
-                Log.d(TAG, "ps -A结果: " + checkResult1);
-                
-                // 方法2: ps -p
-                String checkCmd2 = "ps -p " + recordPid;
-                String checkResult2 = taskService.executeShellCommandWithResult(checkCmd2);
-                Log.d(TAG, "ps -p结果: " + checkResult2);
-                
-                // 方法3: 检查文件是否开始生成
-                Thread.sleep(500);
-                String checkFile = "ls -l " + currentVideoPath;
-                String fileCheck = taskService.executeShellCommandWithResult(checkFile);
-                Log.d(TAG, "文件检查: " + fileCheck);
-                
-                // 如果进程在运行 或 文件已开始生成，认为成功
-                boolean processRunning = (checkResult1 != null && checkResult1.contains("screenrecord")) ||
-                                       (checkResult2 != null && checkResult2.contains(String.valueOf(recordPid)));
-                boolean fileExists = (fileCheck != null && !fileCheck.contains("No such file"));
-                
-                if (processRunning || fileExists) {
-                    Log.d(TAG, "✓ 录屏已启动 (进程运行=" + processRunning + ", 文件存在=" + fileExists + ")");
-                    isRecording = true;
-                    
-                    // 录制成功启动后，开始持续唤醒背屏
-                    startRearScreenWakeup();
-                } else {
-                    Log.e(TAG, "❌ 录屏进程未启动");
-                    
-                    // 检查错误原因
-                    String errorCheck = "screenrecord --display-id 1 --help 2>&1 | head -n 5";
-                    String errorMsg = taskService.executeShellCommandWithResult(errorCheck);
-                    Log.e(TAG, "错误信息: " + errorMsg);
-                    
-                    new Handler(Looper.getMainLooper()).post(() -> {
-                        Toast.makeText(this, "录屏进程启动失败", Toast.LENGTH_SHORT).show();
-                    });
-                    return;
-                }
-                
-                // 更新通知和Toast
+                // 更新通知
                 new Handler(Looper.getMainLooper()).post(() -> {
                     Notification notification = buildNotification();
                     NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
                     if (nm != null) {
                         nm.notify(NOTIFICATION_ID, notification);
                     }
-                    
-                    Toast.makeText(this, "开始录制背屏", Toast.LENGTH_SHORT).show();
                 });
                 
-                Log.d(TAG, "✅ 录屏已开始: " + currentVideoPath);
-                
             } catch (Exception e) {
                 Log.e(TAG, "录屏失败", e);
-                e.printStackTrace();
                 isRecording = false;
                 new Handler(Looper.getMainLooper()).post(() -> {
+                    resetButtons();
                     Toast.makeText(this, "录屏失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                 });
             }
@@ -627,63 +496,48 @@ public class ScreenRecordService extends Service {
             }
             
             try {
-                if (recordPid > 0) {
-                    Log.d(TAG, "→ 停止录屏进程 (PID=" + recordPid + ")");
-                    
-                    // 发送SIGINT信号停止录制（优雅停止）
-                    String killCmd = "kill -2 " + recordPid;
-                    boolean killed = taskService.executeShellCommand(killCmd);
+                Log.d(TAG, "→ 停止录制");
+                
+                // 阻塞到编码器输出结束、MP4写完（不再盲等1000ms）
+                android.os.Bundle stats = taskService.stopRearRecording();
+                
+                isRecording = false;
+                
+                // 停止背屏持续唤醒
+                stopRearScreenWakeup();
+                
+                // 分段录制：出错时之前关闭的分段仍然完整
+                boolean saved = stats != null && stats.getInt("segmentsClosed") > 0;
+                if (stats != null) {
+                    Log.d(TAG, "📊 录制统计: " + stats.getLong("framesEncoded") + "帧, 丢帧" + stats.getLong("droppedFrames")
+                        + ", 最大队列" + stats.getLong("maxQueueDepth") + ", " + (stats.getLong("bytesWritten") / 1024) + "KB, "
+                        + stats.getLong("durationMs") + "ms, " + stats.getInt("segmentsClosed") + "段(已滚动删除"
+                        + stats.getInt("segmentsDeleted") + ")");
+                }
+                
+                // 更新通知和Toast
+                new Handler(Looper.getMainLooper()).post(() -> {
+                    Notification notification = buildNotification();
+                    NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+                    if (nm != null) {
+                        nm.notify(NOTIFICATION_ID, notification);
+                    }
                     
-                    if (killed) {
-                        Log.d(TAG, "✓ SIGINT信号已发送");
+                    if (saved) {
+                        Toast.makeText(this, "录屏已保存到Movies文件夹", Toast.LENGTH_LONG).show();
                     } else {
-                        Log.w(TAG, "⚠ SIGINT失败，尝试SIGTERM");
-                        taskService.executeShellCommand("kill " + recordPid);
+                        Toast.makeText(this, "录屏失败，未保存文件", Toast.LENGTH_LONG).show();
                     }
                     
-                    Thread.sleep(1000); // 等待进程优雅退出并保存文件
-                    
-                    isRecording = false;
-                    recordPid = -1;
-                    
-                    // 停止背屏持续唤醒
-                    stopRearScreenWakeup();
-                    
-                    // 验证文件是否存在
-                    String checkFile = "ls -lh " + currentVideoPath;
-                    String fileInfo = taskService.executeShellCommandWithResult(checkFile);
-                    Log.d(TAG, "文件信息: " + fileInfo);
-                    
-                    // 刷新媒体库
-                    String refreshCmd = "am broadcast -a android.intent.action.MEDIA_SCANNER_SCAN_FILE -d file://" + currentVideoPath;
-                    taskService.executeShellCommand(refreshCmd);
-                    Log.d(TAG, "✓ 媒体库已刷新");
-                    
-                    // 更新通知和Toast
-                    new Handler(Looper.getMainLooper()).post(() -> {
-                        Notification notification = buildNotification();
-                        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-                        if (nm != null) {
-                            nm.notify(NOTIFICATION_ID, notification);
-                        }
-                        
-                        if (fileInfo != null && !fileInfo.contains("No such file")) {
-                            Toast.makeText(this, "录屏已保存到Movies文件夹", Toast.LENGTH_LONG).show();
-                        } else {
-                            Toast.makeText(this, "录屏可能失败，请检查Movies文件夹", Toast.LENGTH_LONG).show();
-                        }
-                        
-                        // 显示关闭按钮
-                        if (closeButton != null) {
-                            closeButton.setVisibility(View.VISIBLE);
-                        }
-                    });
-                    
-                    Log.d(TAG, "✅ 录屏已停止并保存: " + currentVideoPath);
-                }
+                    // 显示关闭按钮
+                    if (closeButton != null) {
+                        closeButton.setVisibility(View.VISIBLE);
+                    }
+                });
+                
+                Log.d(TAG, "✅ 录屏已停止: " + currentVideoPath);
             } catch (Exception e) {
                 Log.e(TAG, "停止录屏失败", e);
-                e.printStackTrace();
             }
         }).start();
     }
@@ -717,15 +571,9 @@ public class ScreenRecordService extends Service {
             }
         }
         
-        // 解绑TaskService
-        if (taskService != null) {
-            try {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-            } catch (Exception e) {
-                Log.e(TAG, "解绑TaskService失败", e);
-            }
-            taskService = null;
-        }
+        // 取消订阅TaskService（V4.0: 共享连接不解绑）
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
         
         instance = null;
         Log.d(TAG, "⚠ Service已销毁");
@@ -0,0 +1,357 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 常驻shell会话池（运行在Shizuku进程中）
+ *
+ * 每条命令不再单独 fork 一个 "sh -c"，而是写入常驻 sh 的 stdin，
+ * 通过每条命令独有的结束标记切分输出并取回退出码。
+ * 每条命令在子shell ( ) 中执行：cd/export/umask/trap/set 等不会带到同一会话的后续命令，命令内exit也只退出子shell。
+ * 会话异常（被kill、超时等）时自动丢弃并重建，启动失败时回退到一次性进程。
+ * 命令已写入会话后会话才退出的，返回失败而不是重新执行（命令可能已经生效，不能执行两次）。
+ */
+public class ShellSessionPool {
+    private static final String TAG = "ShellSessionPool";
+
+    // 会话数量上限（binder线程会并发调用，留出余量避免慢命令阻塞其他调用）
+    private static final int MAX_SESSIONS = 4;
+
+    // 单条命令超时，超时后销毁该会话（防止卡死的命令永久占用会话）
+    private static final long COMMAND_TIMEOUT_MS = 30000;
+
+    private static final String MARKER_PREFIX = "__MRSS_END_";
+
+    private static volatile ShellSessionPool instance;
+
+    private final BlockingQueue<Session> idleSessions = new ArrayBlockingQueue<>(MAX_SESSIONS);
+    private final AtomicInteger sessionCount = new AtomicInteger(0);
+    private final AtomicLong commandSeq = new AtomicLong(0);
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * 命令执行结果
+     */
+    public static class Result {
+        public final int exitCode;
+        public final String output;
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    private ShellSessionPool() {
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mrss-shell-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static ShellSessionPool getInstance() {
+        if (instance == null) {
+            synchronized (ShellSessionPool.class) {
+                if (instance == null) {
+                    instance = new ShellSessionPool();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 执行命令，stderr合并到输出中
+     */
+    public Result exec(String cmd) {
+        return exec(cmd, true);
+    }
+
+    /**
+     * 执行命令
+     * @param cmd 要执行的命令（与 "sh -c" 语义一致）
+     * @param includeStderr true=stderr合并到输出，false=丢弃stderr
+     */
+    public Result exec(String cmd, boolean includeStderr) {
+        Session session = null;
+        try {
+            session = acquire();
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ 获取shell会话失败，回退到一次性进程: " + e.getMessage());
+        }
+
+        if (session == null) {
+            return execOneShot(cmd, includeStderr);
+        }
+
+        Result result = null;
+        boolean sent = true;
+        try {
+            result = session.run(cmd, includeStderr);
+        } catch (CommandNotSentException e) {
+            sent = false;
+            Log.w(TAG, "⚠️ 写入shell会话失败，丢弃会话: " + e.getMessage());
+        } catch (Exception e) {
+            Log.w(TAG, "⚠️ shell会话执行失败，丢弃会话: " + e.getMessage());
+        }
+
+        if (result != null) {
+            release(session);
+            return result;
+        }
+
+        discard(session);
+        if (!sent) {
+            // 命令还没有写入会话，用一次性进程执行是安全的
+            return execOneShot(cmd, includeStderr);
+        }
+        // 命令已写入（超时被销毁、命令内exit、stdout EOF），可能已经执行过：
+        // am start / force-stop / input keyevent 等不能重复执行，直接返回失败
+        Log.w(TAG, "⚠️ 会话在命令执行中退出，不重试: " + cmd);
+        return new Result(-1, "");
+    }
+
+    /**
+     * 关闭所有会话（TaskService.destroy时调用）
+     */
+    public void shutdown() {
+        Session session;
+        while ((session = idleSessions.poll()) != null) {
+            discard(session);
+        }
+        watchdog.shutdownNow();
+    }
+
+    private Session acquire() throws Exception {
+        Session session = idleSessions.poll();
+        if (session != null) {
+            return session;
+        }
+
+        // 未达上限则新建会话
+        while (true) {
+            int count = sessionCount.get();
+            if (count >= MAX_SESSIONS) {
+                break;
+            }
+            if (sessionCount.compareAndSet(count, count + 1)) {
+                try {
+                    return new Session();
+                } catch (Exception e) {
+                    sessionCount.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+
+        // 已达上限，等待空闲会话
+        return idleSessions.take();
+    }
+
+    private void release(Session session) {
+        if (!session.isAlive() || !idleSessions.offer(session)) {
+            discard(session);
+        }
+    }
+
+    private void discard(Session session) {
+        session.close();
+        sessionCount.decrementAndGet();
+    }
+
+    /**
+     * 一次性进程执行（会话不可用时的回退路径），超时与会话相同
+     */
+    private Result execOneShot(String cmd, boolean includeStderr) {
+        Process process;
+        try {
+            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
+            pb.redirectErrorStream(includeStderr);
+            process = pb.start();
+        } catch (Exception e) {
+            Log.e(TAG, "❌ 执行命令失败: " + cmd, e);
+            return new Result(-1, "");
+        }
+
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(process.getInputStream()), 8192
+        );
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "⏱️ 命令超时，结束进程: " + cmd);
+                timedOut.set(true);
+                process.destroy();
+                // 子进程可能还持有输出管道，关闭读端让阻塞的readLine返回
+                try {
+                    reader.close();
+                } catch (Exception ignored) {}
+            }
+        }, COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append("\n");
+            }
+
+            int exitCode = process.waitFor();
+            return new Result(timedOut.get() ? -1 : exitCode, output.toString());
+
+        } catch (Exception e) {
+            if (!timedOut.get()) {
+                Log.e(TAG, "❌ 执行命令失败: " + cmd, e);
+            }
+            process.destroy();
+            return new Result(-1, "");
+        } finally {
+            timeout.cancel(false);
+            try {
+                reader.close();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    /**
+     * 命令没有写入会话（可以安全地换一个进程重新执行）
+     */
+    private static class CommandNotSentException extends Exception {
+        CommandNotSentException(Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * 单个常驻sh会话
+     */
+    private class Session {
+        private final Process process;
+        private final OutputStream stdin;
+        private final BufferedReader stdout;
+
+        Session() throws Exception {
+            ProcessBuilder pb = new ProcessBuilder("sh");
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            stdin = process.getOutputStream();
+            stdout = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8), 8192
+            );
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        /**
+         * 执行一条命令
+         * @return 结果；命令已写入但会话在执行中退出时返回null
+         * @throws CommandNotSentException 命令未能写入会话
+         */
+        Result run(String cmd, boolean includeStderr) throws Exception {
+            String marker = MARKER_PREFIX + commandSeq.incrementAndGet() + "__";
+
+            // ( ... ) 子shell只是sh内部fork（没有exec），会话状态不会被命令修改；stdin重定向防止命令吞掉后续输入
+            // 结束时先输出一个换行，保证标记独占一行（命令输出可能没有结尾换行）
+            StringBuilder script = new StringBuilder();
+            script.append("(\n").append(cmd).append("\n) </dev/null ")
+                .append(includeStderr ? "2>&1" : "2>/dev/null").append("\n");
+            script.append("__mrss_rc=$?; printf '\\n%s %d\\n' '").append(marker).append("' $__mrss_rc\n");
+
+            ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, "⏱️ 命令超时，销毁会话: " + cmd);
+                    // 同时关闭管道：子进程可能还持有stdout，只杀sh不能让readLine返回
+                    close();
+                }
+            }, COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            try {
+                try {
+                    stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+                    stdin.flush();
+                } catch (Exception e) {
+                    // 命令包在 ( ) 里，sh读到完整的 ) 之前不会执行，写入失败时命令一定没有执行
+                    throw new CommandNotSentException(e);
+                }
+
+                StringBuilder output = new StringBuilder();
+                String line;
+                while ((line = stdout.readLine()) != null) {
+                    if (line.startsWith(marker)) {
+                        // 去掉为标记补上的那个换行
+                        int len = output.length();
+                        if (len > 0) {
+                            output.setLength(len - 1);
+                        }
+                        int exitCode = Integer.parseInt(line.substring(marker.length()).trim());
+                        return new Result(exitCode, output.toString());
+                    }
+                    output.append(line).append("\n");
+                }
+
+                // EOF：会话在命令中途退出（例如命令里调用了exit或超时被销毁）
+                return null;
+
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+
+        void close() {
+            try {
+                stdin.close();
+            } catch (Exception ignored) {}
+            try {
+                stdout.close();
+            } catch (Exception ignored) {}
+            process.destroy();
+        }
+    }
+}
@@ -16,17 +16,15 @@
 package com.tgwgroup.MiRearScreenSwitcher;
 
 import android.app.ActivityOptions;
-import android.content.ComponentName;
 import android.content.Intent;
-import android.content.ServiceConnection;
-import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.IBinder;
+import android.os.SystemClock;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 import android.util.Log;
 import android.widget.Toast;
-import rikka.shizuku.Shizuku;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Quick Settings Tile - 切换至背屏
@@ -38,46 +36,59 @@ public class SwitchToRearTileService extends TileService {
     // 静态变量：保存最后移动到背屏的任务信息（用于接近传感器恢复）
     private static String lastMovedTask = null; // 格式: "packageName:taskId"
     
-    private ITaskService taskService;
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
+    // V4.0: 热路径预算（一帧），超出时打警告日志
+    private static final long HOT_PATH_BUDGET_NANOS = 16_000_000L;
+    // 预热快照最长有效期（控制中心展开期间前台应用不会变化，这里只是兜底）
+    private static final long WARM_STATE_MAX_AGE_MS = 10_000;
     
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
+    /**
+     * V4.0: 预热快照（onStartListening时在后台获取）
+     * 点击时直接使用，热路径上不再有任何binder调用
+     */
+    private static final class WarmState {
+        final String currentApp;   // 主屏前台任务 "package:taskId"
+        final String rearTop;      // 背屏前台任务（lastMovedTask为空时不查询，null）
+        final String appName;
+        final long capturedAt = SystemClock.elapsedRealtime();
+        
+        WarmState(String currentApp, String rearTop, String appName) {
+            this.currentApp = currentApp;
+            this.rearTop = rearTop;
+            this.appName = appName;
         }
         
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            taskService = null;
-            scheduleReconnectTaskService();
+        boolean isFresh() {
+            return SystemClock.elapsedRealtime() - capturedAt < WARM_STATE_MAX_AGE_MS;
         }
-    };
+    }
     
-    /**
-     * TaskService重连任务
-     */
-    private final Runnable reconnectTaskServiceRunnable = new Runnable() {
+    private ITaskService taskService;
+    private final TaskServiceClient taskClient = new TaskServiceClient(() -> taskService);
+    private boolean listening = false;
+    private volatile WarmState warmState;
+    private CompletableFuture<WarmState> warmFuture;
+    
+    // V4.0: 连接由TaskServiceManager统一管理，磁贴只订阅（不再自己绑定/解绑/重连）
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void run() {
-            if (taskService == null) {
-                bindTaskService();
-                // 如果重连失败，1秒后再次尝试
-                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(this, 1000);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
+            // 控制中心展开后才连上：补一次预热
+            if (listening && warmState == null) {
+                prewarm();
             }
         }
+        
+        @Override
+        public void onTaskServiceDisconnected() {
+            taskService = null;
+        }
     };
     
-    /**
-     * 安排TaskService重连
-     */
-    private void scheduleReconnectTaskService() {
-        new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(reconnectTaskServiceRunnable, 200);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     @Override
@@ -94,13 +105,28 @@ public class SwitchToRearTileService extends TileService {
             tile.updateTile();
         }
         
+        listening = true;
         bindTaskService();
+        prewarm();
     }
     
     @Override
     public void onStopListening() {
         super.onStopListening();
-        unbindTaskService();
+        // 控制中心收起后前台应用可能变化，快照作废
+        listening = false;
+        warmState = null;
+        if (warmFuture != null) {
+            warmFuture.cancel(false);
+            warmFuture = null;
+        }
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // V4.0: 只移除监听；连接是进程共享的，unbind(remove=true)会杀掉其他组件正在用的TaskService进程
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
     }
     
     /**
@@ -123,66 +149,83 @@ public class SwitchToRearTileService extends TileService {
     @Override
     public void onClick() {
         super.onClick();
-        switchCurrentAppToRearDisplay();
+        long tapNanos = SystemClock.elapsedRealtimeNanos();
+        
+        // V4.0: 热路径：已连接且有新鲜快照，直接移动
+        WarmState state = warmState;
+        if (taskService != null && state != null && state.isFresh()) {
+            performSwitch(state, tapNanos, true);
+            return;
+        }
+        switchCurrentAppToRearDisplay(tapNanos);
     }
     
     private void bindTaskService() {
-        if (taskService != null) {
+        TaskServiceManager.getInstance().connect();
+    }
+    
+    /**
+     * V4.0: 后台获取前台任务、背屏占用和应用名
+     */
+    private void prewarm() {
+        if (taskService == null || (warmFuture != null && !warmFuture.isDone())) {
             return;
         }
-        
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.e(TAG, "Shizuku not available");
-                return;
+        long start = SystemClock.elapsedRealtime();
+        CompletableFuture<WarmState> future = resolveState();
+        warmFuture = future;
+        future.whenCompleteAsync((state, error) -> {
+            if (warmFuture != future) {
+                return; // 已作废
             }
-            
-            if (Shizuku.checkSelfPermission() != PackageManager.PERMISSION_GRANTED) {
-                Log.e(TAG, "No Shizuku permission");
+            warmFuture = null;
+            if (error != null) {
+                Log.w(TAG, "预热失败: " + error.getMessage());
                 return;
             }
-            
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to bind TaskService", e);
-        }
+            if (listening) {
+                warmState = state;
+                Log.d(TAG, "🔥 预热完成: " + state.currentApp + " (" + (SystemClock.elapsedRealtime() - start) + "ms)");
+            }
+        }, TaskServiceClient.MAIN);
     }
     
-    private void unbindTaskService() {
-        if (taskService != null) {
-            try {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-            } catch (Exception e) {
-                Log.e(TAG, "Error unbinding TaskService", e);
+    private CompletableFuture<WarmState> resolveState() {
+        String previous = lastMovedTask;
+        return taskClient.submit("resolveTileState", service -> {
+            String currentApp = service.getCurrentForegroundApp();
+            String rearTop = previous != null ? service.getForegroundAppOnDisplay(1) : null;
+            String appName = null;
+            if (currentApp != null && currentApp.contains(":")) {
+                appName = getAppName(currentApp.split(":")[0]);
             }
-            taskService = null;
-        }
+            return new WarmState(currentApp, rearTop, appName);
+        }, 3000);
     }
     
-    private void switchCurrentAppToRearDisplay() {
-        if (taskService == null) {
-            Log.w(TAG, "TaskService not available!");
-            showTemporaryFeedback("服务未就绪");
-            
-            // 尝试重新绑定
-            bindTaskService();
-            
-            // 延迟重试
-            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                if (taskService != null) {
-                    performSwitch();
-                } else {
-                    showTemporaryFeedback("请先打开应用授权");
-                }
-            }, 1000);
-            return;
-        }
+    /**
+     * 冷路径：等待连接 → 后台获取状态 → 切换
+     */
+    private void switchCurrentAppToRearDisplay(long tapNanos) {
+        showProgress();
         
-        performSwitch();
+        // V4.0: 等待连接就绪后立即执行（最多1秒），不再固定延迟1秒
+        TaskServiceManager.getInstance().awaitConnected(1000)
+            .thenCompose(service -> {
+                taskService = service;
+                return resolveState();
+            })
+            .whenCompleteAsync((state, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "TaskService not available: " + error.getMessage());
+                    showTemporaryFeedback(taskService == null ? "请先打开应用授权" : "✗ 操作失败");
+                    return;
+                }
+                performSwitch(state, tapNanos, false);
+            }, TaskServiceClient.MAIN);
     }
     
-    private void performSwitch() {
+    private void showProgress() {
         // 显示执行中状态 - 保持按钮外观，只改变副标题
         Tile tile = getQsTile();
         if (tile != null) {
@@ -194,150 +237,143 @@ public class SwitchToRearTileService extends TileService {
             }
             tile.updateTile();
         }
+    }
+    
+    /**
+     * V4.0: 主线程只做判断和启动Service，禁用Launcher+移动任务作为一个显示操作在后台执行
+     */
+    private void performSwitch(WarmState state, long tapNanos, boolean warm) {
+        // 快照只用一次，下次点击重新获取
+        warmState = null;
+        showProgress();
         
-        try {
-            // 步骤0: 检查背屏是否已有应用在运行
-            if (lastMovedTask != null && lastMovedTask.contains(":")) {
-                try {
-                    String[] oldParts = lastMovedTask.split(":");
-                    String oldPackageName = oldParts[0];
-                    int oldTaskId = Integer.parseInt(oldParts[1]);
-                    
-                    // 检查旧应用是否还在背屏
-                    String rearForegroundApp = taskService.getForegroundAppOnDisplay(1);
-                    if (rearForegroundApp != null && rearForegroundApp.equals(lastMovedTask)) {
-                        // 背屏已有应用在运行，禁止操作
-                        String oldAppName = getAppName(oldPackageName);
-                        
-                        // 先收起控制中心，Toast才能显示
-                        try {
-                            taskService.collapseStatusBar();
-                        } catch (Exception e) {
-                            Log.w(TAG, "Failed to collapse for toast: " + e.getMessage());
-                        }
-                        
-                        // 延迟显示Toast，确保控制中心已收起
-                        new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                            Toast.makeText(this, "请先将 " + oldAppName + " 切换回主屏", Toast.LENGTH_LONG).show();
-                        }, 300);
-                        
-                        showTemporaryFeedback("✗ 背屏已占用");
-                        return;
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to check previous app: " + e.getMessage());
-                }
-            }
+        // 步骤0: 检查背屏是否已有应用在运行
+        String previous = lastMovedTask;
+        if (previous != null && previous.contains(":") && previous.equals(state.rearTop)) {
+            // 背屏已有应用在运行，禁止操作
+            String oldAppName = getAppName(previous.split(":")[0]);
             
-            // 步骤1: 禁用系统背屏Launcher（关键！防止挤占）
-            try {
-                taskService.disableSubScreenLauncher();
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to disable SubScreenLauncher", e);
-            }
+            // 先收起控制中心，Toast才能显示
+            collapseStatusBar();
             
-            // 步骤2: 获取当前前台应用
-            String currentApp = taskService.getCurrentForegroundApp();
-            
-            // 步骤3: 立即启动前台Service（不延迟，让通知快速出现）
-            Intent serviceIntent = new Intent(this, RearScreenKeeperService.class);
-            serviceIntent.putExtra("lastMovedTask", currentApp);
+            // 延迟显示Toast，确保控制中心已收起
+            new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
+                Toast.makeText(this, "请先将 " + oldAppName + " 切换回主屏", Toast.LENGTH_LONG).show();
+            }, 300);
             
-            // V2.5: 传递背屏常亮开关状态
+            showTemporaryFeedback("✗ 背屏已占用");
+            return;
+        }
+        
+        // 步骤1: 前台应用（快照中已获取）
+        String currentApp = state.currentApp;
+        int taskId;
+        try {
+            if (currentApp == null || !currentApp.contains(":")) {
+                throw new IllegalArgumentException("no foreground app");
+            }
+            taskId = Integer.parseInt(currentApp.split(":")[1]);
+        } catch (Exception e) {
+            Log.w(TAG, "No foreground app found");
+            showTemporaryFeedback("✗ 未找到应用");
+            return;
+        }
+        String appName = state.appName != null ? state.appName : currentApp.split(":")[0];
+        
+        // 步骤2: 立即启动前台Service（不延迟，让通知快速出现）
+        startKeeperService(currentApp);
+        
+        // 步骤3: 禁用系统背屏Launcher（关键！防止挤占）+ 切换到display 1 (背屏)
+        CompletableFuture<Boolean> move = taskClient.submitDisplay("switchToRear", service -> {
             try {
-                android.content.SharedPreferences prefs = getSharedPreferences("FlutterSharedPreferences", MODE_PRIVATE);
-                boolean keepScreenOnEnabled = prefs.getBoolean("flutter.keep_screen_on_enabled", true);
-                serviceIntent.putExtra("keepScreenOnEnabled", keepScreenOnEnabled);
+                service.disableSubScreenLauncher();
             } catch (Exception e) {
-                // 默认为开启
-                serviceIntent.putExtra("keepScreenOnEnabled", true);
-            }
-            
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-                startForegroundService(serviceIntent);
-            } else {
-                startService(serviceIntent);
+                Log.w(TAG, "Failed to disable SubScreenLauncher", e);
             }
+            return service.moveTaskToDisplay(taskId, 1);
+        });
+        
+        long hotPathNanos = SystemClock.elapsedRealtimeNanos() - tapNanos;
+        if (hotPathNanos > HOT_PATH_BUDGET_NANOS && warm) {
+            Log.w(TAG, String.format("⚠️ 点击热路径超出一帧: %.2fms", hotPathNanos / 1_000_000f));
+        } else {
+            Log.d(TAG, String.format("⚡ 点击热路径: %.2fms (%s)", hotPathNanos / 1_000_000f, warm ? "预热" : "冷启动"));
+        }
+        
+        move.whenCompleteAsync((success, error) -> {
+            Log.d(TAG, String.format("⏱️ 点击→移动完成: %dms (%s)",
+                (SystemClock.elapsedRealtimeNanos() - tapNanos) / 1_000_000, warm ? "预热" : "冷启动"));
             
-            if (currentApp != null && currentApp.contains(":")) {
-                String[] parts = currentApp.split(":");
-                String packageName = parts[0];
-                int taskId = Integer.parseInt(parts[1]);
+            if (error == null && Boolean.TRUE.equals(success)) {
+                // 保存最后移动的任务信息（用于接近传感器恢复）
+                lastMovedTask = currentApp;
                 
-                // 获取应用名
-                String appName = getAppName(packageName);
+                // 自动收回控制中心（提升用户体验）
+                collapseStatusBar();
                 
-                // 步骤4: 切换到display 1 (背屏)
-                boolean success = taskService.moveTaskToDisplay(taskId, 1);
+                // 延迟显示Toast，确保控制中心已收起
+                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
+                    Toast.makeText(this, appName + " 已投放到背屏", Toast.LENGTH_SHORT).show();
+                }, 300);
                 
-                if (success) {
-                    // 保存最后移动的任务信息（用于接近传感器恢复）
-                    lastMovedTask = currentApp;
-                    
-                    // 自动收回控制中心（提升用户体验）
-                    try {
-                        new Thread(() -> {
-                            try {
-                                if (taskService != null) {
-                                    taskService.collapseStatusBar();
-                                }
-                            } catch (Exception e) {
-                                Log.w(TAG, "Failed to collapse: " + e.getMessage());
-                            }
-                        }).start();
-                    } catch (Exception e) {
-                        Log.w(TAG, "Failed to start collapse thread: " + e.getMessage());
-                    }
-                    
-                    // 延迟显示Toast，确保控制中心已收起
-                    new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                        Toast.makeText(this, appName + " 已投放到背屏", Toast.LENGTH_SHORT).show();
-                    }, 300);
-                    
-                    // 步骤5: 主动点亮背屏 (通过TaskService启动Activity，绕过BAL限制)
-                    try {
-                        if (taskService != null) {
-                            try {
-                                boolean launchResult = taskService.launchWakeActivity(1);
-                                if (!launchResult) {
-                                    Log.w(TAG, "TaskService launch failed");
-                                }
-                            } catch (Exception e) {
-                                Log.w(TAG, "launchWakeActivity exception: " + e.getMessage());
-                            }
-                        } else {
-                            Log.w(TAG, "TaskService not available");
+                // 步骤4: 主动点亮背屏 (通过TaskService启动Activity，绕过BAL限制)
+                taskClient.submit("launchWakeActivity", service -> service.launchWakeActivity(1))
+                    .whenComplete((launched, launchError) -> {
+                        if (launchError != null) {
+                            Log.w(TAG, "launchWakeActivity exception: " + launchError.getMessage());
+                        } else if (!Boolean.TRUE.equals(launched)) {
+                            Log.w(TAG, "TaskService launch failed");
                         }
-                    } catch (Exception e) {
-                        Log.w(TAG, "Failed to launch wakeup activity", e);
-                    }
-                    
-                    showTemporaryFeedback("✓ 已切换");
-                } else {
-                    // 先收起控制中心
-                    try {
-                        taskService.collapseStatusBar();
-                    } catch (Exception e) {
-                        Log.w(TAG, "Failed to collapse: " + e.getMessage());
-                    }
-                    
-                    // 延迟显示Toast
-                    new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
-                        Toast.makeText(this, "切换失败", Toast.LENGTH_SHORT).show();
-                    }, 300);
-                    
-                    showTemporaryFeedback("✗ 失败");
-                }
+                    });
+                
+                showTemporaryFeedback("✓ 已切换");
             } else {
-                Log.w(TAG, "No foreground app found");
-                showTemporaryFeedback("✗ 未找到应用");
+                if (error != null) {
+                    Log.e(TAG, "Error switching app", error);
+                }
+                // 先收起控制中心
+                collapseStatusBar();
+                
+                // 延迟显示Toast
+                new android.os.Handler(android.os.Looper.getMainLooper()).postDelayed(() -> {
+                    Toast.makeText(this, "切换失败", Toast.LENGTH_SHORT).show();
+                }, 300);
+                
+                showTemporaryFeedback("✗ 失败");
             }
+        }, TaskServiceClient.MAIN);
+    }
+    
+    private void startKeeperService(String currentApp) {
+        Intent serviceIntent = new Intent(this, RearScreenKeeperService.class);
+        serviceIntent.putExtra("lastMovedTask", currentApp);
+        
+        // V2.5: 传递背屏常亮开关状态
+        try {
+            android.content.SharedPreferences prefs = getSharedPreferences("FlutterSharedPreferences", MODE_PRIVATE);
+            boolean keepScreenOnEnabled = prefs.getBoolean("flutter.keep_screen_on_enabled", true);
+            serviceIntent.putExtra("keepScreenOnEnabled", keepScreenOnEnabled);
         } catch (Exception e) {
-            Log.e(TAG, "Error switching app", e);
-            showTemporaryFeedback("✗ 操作失败");
+            // 默认为开启
+            serviceIntent.putExtra("keepScreenOnEnabled", true);
+        }
+        
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+            startForegroundService(serviceIntent);
+        } else {
+            startService(serviceIntent);
         }
     }
     
+    private void collapseStatusBar() {
+        taskClient.submit("collapseStatusBar", ITaskService::collapseStatusBar)
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "Failed to collapse: " + error.getMessage());
+                }
+            });
+    }
+    
     private void showTemporaryFeedback(String message) {
         Tile tile = getQsTile();
         if (tile != null) {
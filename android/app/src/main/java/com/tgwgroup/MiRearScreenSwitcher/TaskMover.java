@@ -0,0 +1,217 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * V4.0: 任务跨屏移动（运行在Shizuku进程中）
+ *
+ * 之前每次移动都执行 service call activity_task 50 ...：写死的事务号，外加fork一个service进程。
+ * 现在直接通过反射调用 IActivityTaskManager：
+ * - Android 12+ moveRootTaskToDisplay(rootTaskId, displayId)
+ * - Android 10/11 moveStackToDisplay(stackId, displayId)
+ * - Android 9 及以下 IActivityManager.moveStackToDisplay
+ * - 部分ROM保留的 moveTaskToDisplay(taskId, displayId)
+ * 第一次解析到的方法缓存下来，之后每次只是一次binder调用。
+ * 根任务方法只用于任务本身就是根任务（或根任务未知）的情况：分屏等嵌套在其他根任务里的任务
+ * 如果按根任务移动会把同一根任务里的其他应用一起带走，这时改用 moveTaskToDisplay，没有则走shell。
+ * 反射不可用或调用失败时回退到原来的shell命令，并统计走了哪条路径。
+ */
+public class TaskMover {
+    private static final String TAG = "TaskMover";
+
+    // 按优先级尝试，第一个参数是根任务id
+    private static final String[] ROOT_TASK_METHODS = {
+        "moveRootTaskToDisplay",
+        "moveStackToDisplay",
+    };
+    private static final String TASK_METHOD = "moveTaskToDisplay";
+
+    private final ShellSessionPool shell;
+
+    private Object service;            // IActivityTaskManager / IActivityManager
+    private Method moveMethod;         // 根任务方法，没有时为 moveTaskToDisplay
+    private boolean takesRootTaskId;
+    private Object taskService;        // 提供 moveTaskToDisplay(taskId, displayId) 的服务
+    private Method taskMoveMethod;
+    private boolean resolved = false;  // 只解析一次，失败后不再重复尝试
+
+    // 统计
+    private long binderMoves = 0;
+    private long binderFailures = 0;   // binder调用抛异常后回退shell的次数
+    private long shellMoves = 0;
+    private long binderTotalMs = 0;
+    private long shellTotalMs = 0;
+
+    public TaskMover(ShellSessionPool shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 移动任务到指定显示屏
+     * @param taskId 任务id
+     * @param rootTaskId 根任务id，未知时传-1（按taskId处理）
+     */
+    public synchronized boolean move(int taskId, int rootTaskId, int displayId) {
+        resolve();
+
+        boolean nested = rootTaskId > 0 && rootTaskId != taskId;
+        if (moveMethod != null && (!takesRootTaskId || !nested)) {
+            // 任务本身是根任务（或根任务未知，与旧的service call一致按taskId）
+            if (invoke(service, moveMethod, taskId, displayId)) {
+                return true;
+            }
+        } else if (nested && taskMoveMethod != null) {
+            // 嵌套任务只移动它自己
+            if (invoke(taskService, taskMoveMethod, taskId, displayId)) {
+                return true;
+            }
+        }
+
+        return moveByShell(taskId, displayId);
+    }
+
+    private boolean invoke(Object target, Method method, int id, int displayId) {
+        long start = SystemClock.uptimeMillis();
+        try {
+            method.invoke(target, id, displayId);
+            binderMoves++;
+            binderTotalMs += SystemClock.uptimeMillis() - start;
+            logStatsIfNeeded();
+            return true;
+        } catch (InvocationTargetException e) {
+            // 系统端拒绝（任务不存在、显示屏不允许等），shell路径也会失败，但保持旧行为再试一次
+            binderFailures++;
+            Log.w(TAG, "⚠️ " + method.getName() + " 失败: " + e.getCause());
+        } catch (Exception e) {
+            binderFailures++;
+            Log.w(TAG, "⚠️ 反射调用失败，以后只走shell: " + e);
+            moveMethod = null;
+            taskMoveMethod = null;
+        }
+        return false;
+    }
+
+    /**
+     * 统计信息（哪条路径、各自耗时）
+     */
+    public synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putString("method", moveMethod != null ? moveMethod.getName() : "shell");
+        stats.putLong("binderMoves", binderMoves);
+        stats.putLong("binderFailures", binderFailures);
+        stats.putLong("shellMoves", shellMoves);
+        stats.putLong("binderAvgMs", binderMoves > 0 ? binderTotalMs / binderMoves : 0);
+        stats.putLong("shellAvgMs", shellMoves > 0 ? shellTotalMs / shellMoves : 0);
+        return stats;
+    }
+
+    private boolean moveByShell(int taskId, int displayId) {
+        long start = SystemClock.uptimeMillis();
+        boolean success = shell.exec("service call activity_task 50 i32 " + taskId + " i32 " + displayId).isSuccess();
+        shellMoves++;
+        shellTotalMs += SystemClock.uptimeMillis() - start;
+        logStatsIfNeeded();
+        return success;
+    }
+
+    private void logStatsIfNeeded() {
+        long total = binderMoves + shellMoves;
+        if (total == 1 || total % 20 == 0) {
+            Log.d(TAG, "📊 binder=" + binderMoves + " (avg " + (binderMoves > 0 ? binderTotalMs / binderMoves : 0)
+                + "ms) shell=" + shellMoves + " (avg " + (shellMoves > 0 ? shellTotalMs / shellMoves : 0)
+                + "ms) failures=" + binderFailures);
+        }
+    }
+
+    // ========================================
+    // 方法解析（反射，结果缓存）
+    // ========================================
+
+    private void resolve() {
+        if (resolved) {
+            return;
+        }
+        resolved = true;
+
+        try {
+            Object atm = getService("android.app.ActivityTaskManager");
+            if (atm != null && findMethod(atm)) {
+                return;
+            }
+            Object am = getService("android.app.ActivityManager");
+            if (am != null && findMethod(am)) {
+                return;
+            }
+            Log.w(TAG, "⚠️ 未找到可用的移动方法，使用shell");
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 解析移动方法失败，使用shell: " + t);
+        }
+    }
+
+    private boolean findMethod(Object target) {
+        Class<?> clazz = target.getClass();
+        Method taskMethod = findIntIntMethod(clazz, TASK_METHOD);
+        for (String name : ROOT_TASK_METHODS) {
+            Method method = findIntIntMethod(clazz, name);
+            if (method != null) {
+                cache(target, method, true, taskMethod);
+                return true;
+            }
+        }
+        if (taskMethod != null) {
+            cache(target, taskMethod, false, taskMethod);
+            return true;
+        }
+        return false;
+    }
+
+    private void cache(Object target, Method method, boolean rootTask, Method taskMethod) {
+        service = target;
+        moveMethod = method;
+        takesRootTaskId = rootTask;
+        if (taskMethod != null) {
+            taskService = target;
+            taskMoveMethod = taskMethod;
+        }
+        Log.d(TAG, "✅ 使用 " + target.getClass().getName() + "." + method.getName()
+            + (rootTask ? "（嵌套任务: " + (taskMethod != null ? TASK_METHOD : "shell") + "）" : ""));
+    }
+
+    private static Method findIntIntMethod(Class<?> clazz, String name) {
+        try {
+            Method method = clazz.getMethod(name, int.class, int.class);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object getService(String managerClass) {
+        try {
+            return Class.forName(managerClass).getMethod("getService").invoke(null);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+}
@@ -15,17 +15,59 @@
 
 package com.tgwgroup.MiRearScreenSwitcher;
 
+import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Keep;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * 运行在Shizuku进程中的服务，具有shell权限
  */
 public class TaskService extends ITaskService.Stub {
     private static final String TAG = "TaskService";
+    
+    // V4.0: 常驻shell会话池，避免每次调用都 fork 一个 "sh -c"
+    private final ShellSessionPool shell = ShellSessionPool.getInstance();
+    
+    // V4.0: am stack list 快照缓存（几十毫秒内的调用共用一次解析）
+    private static final long SNAPSHOT_TTL_MS = 50;
+    
+    // V4.0: 可能改变任务栈的命令（其余命令如背屏唤醒的input keyevent不丢弃快照缓存）
+    private static final Pattern TASK_STACK_COMMAND = Pattern.compile(
+        "(^|[;&|(\\s])(am|pm|monkey|kill|killall|pkill)\\s|cmd\\s+activity|service\\s+call|keyevent\\s+(KEYCODE_)?(HOME|BACK|APP_SWITCH|3|4|187)\\b");
+    private final Object snapshotLock = new Object();
+    private TaskStackSnapshot cachedSnapshot;
+    
+    // V4.0: 批量命令执行器
+    private final BatchExecutor batchExecutor = new BatchExecutor(shell, this::runBatchAction);
+    
+    // V4.0: 背屏Launcher压制（只在进程存在时杀，进程不在时退避）
+    private final LauncherSuppressor launcherSuppressor = new LauncherSuppressor(shell);
+    
+    // V4.0: 任务栈变化监听（有客户端注册时才向系统注册）
+    private final TaskStackWatcher taskWatcher = new TaskStackWatcher(this);
+    
+    // V4.0: 任务跨屏移动（反射binder调用，shell回退）
+    private final TaskMover taskMover = new TaskMover(shell);
+    
+    // V4.0: 进程内背屏截图
+    private final RearScreenCapturer screenCapturer = new RearScreenCapturer(shell);
+    
+    // V4.0: 进程内背屏录屏（MediaCodec + MediaMuxer）
+    private final RearScreenRecorder screenRecorder = new RearScreenRecorder(shell);
+    
+    // V4.0: DPI/旋转控制（反射binder调用IWindowManager，wm命令回退）
+    private final WindowManagerBridge windowManager = new WindowManagerBridge(shell);
+    
+    // V4.0: 显示配置事务（DPI/旋转/Launcher压制并行，等待显示屏变化确认）
+    private final DisplayConfigTransaction displayConfig = new DisplayConfigTransaction(this, windowManager, launcherSuppressor);
 
     @Keep
     public TaskService() {
@@ -35,6 +77,10 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public void destroy() {
 
+        screenRecorder.stop();
+        taskWatcher.shutdown();
+        displayConfig.shutdown();
+        shell.shutdown();
         System.exit(0);
     }
 
@@ -42,55 +88,9 @@ public class TaskService extends ITaskService.Stub {
     public String getCurrentForegroundApp() throws RemoteException {
         try {
 
-            // 执行am stack list，在Shizuku进程中具有shell权限
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", "am stack list");
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            boolean inDisplayZero = false;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // RootTask行：判断displayId
-                if (line.startsWith("RootTask")) {
-                    inDisplayZero = line.contains("displayId=0");
-                    continue;
-                }
-                
-                // taskId行（缩进的子行）
-                if (inDisplayZero && line.contains("taskId=") && line.contains("/")) {
-                    // 解析:   taskId=1471: com.example.display_switcher/com.example.display_switcher.MainActivity
-                    int tidStart = line.indexOf("taskId=") + 7;
-                    int tidEnd = line.indexOf(':', tidStart);
-                    String taskId = line.substring(tidStart, tidEnd).trim();
-                    
-                    int pkgStart = tidEnd + 2;
-                    int pkgEnd = line.indexOf('/', pkgStart);
-                    String packageName = line.substring(pkgStart, pkgEnd).trim();
-                    
-                    // 跳过Launcher和应用自己
-                    if (packageName.contains("launcher") || 
-                        packageName.contains("miui.home") ||
-                        packageName.equals("com.tgwgroup.MiRearScreenSwitcher")) {
-                        continue;
-                    }
-                    
-                    reader.close();
-                    process.destroy();
-                    
-                    String result = packageName + ":" + taskId;
-
-                    return result;
-                }
-            }
-            
-            int exitCode = process.waitFor();
-            reader.close();
-
-            return null;
+            // 主屏顶层任务（跳过Launcher和应用自己）
+            TaskStackSnapshot.Entry entry = getTaskStackSnapshot().findTopOnDisplay(0, true);
+            return entry != null ? entry.toTaskInfo() : null;
             
         } catch (Exception e) {
             Log.e(TAG, "Error getting current app", e);
@@ -102,34 +102,8 @@ public class TaskService extends ITaskService.Stub {
     public int getTaskIdByPackage(String packageName) throws RemoteException {
         try {
 
-            // 执行am stack list，在Shizuku进程中具有shell权限
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", "am stack list");
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("taskId=") && line.contains(packageName)) {
-                    // 解析: taskId=1434: com.android.camera/...
-                    int start = line.indexOf("taskId=") + 7;
-                    int end = line.indexOf(':', start);
-                    String taskId = line.substring(start, end).trim();
-                    int tid = Integer.parseInt(taskId);
-                    
-                    reader.close();
-                    process.destroy();
-
-                    return tid;
-                }
-            }
-            
-            reader.close();
-            process.waitFor();
-
-            return -1;
+            TaskStackSnapshot.Entry entry = getTaskStackSnapshot().findByPackage(packageName);
+            return entry != null ? entry.taskId : -1;
             
         } catch (Exception e) {
             Log.e(TAG, "Error getting taskId", e);
@@ -142,20 +116,16 @@ public class TaskService extends ITaskService.Stub {
         try {
             long startTime = System.currentTimeMillis();
 
-            // 先获取包名
-            String packageName = getPackageNameFromTaskId(taskId);
-
-            // 执行service call命令，在Shizuku进程中具有shell权限
-            // 注意：Android系统的每个显示器都有独立的状态栏（SystemUI�?
-            // 当应用切换到背屏时，它会显示背屏的状态栏，这是系统默认行�?
-            // 要保持主屏状态栏可见需要系统级修改，无法通过应用层实�?
-            String cmd = "service call activity_task 50 i32 " + taskId + " i32 " + displayId;
+            // 先获取包名和根任务id
+            TaskStackSnapshot.Entry entry = findEntryByTaskId(taskId);
+            String packageName = entry != null ? entry.packageName : null;
 
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
-            boolean success = (exitCode == 0);
+            // V4.0: 直接binder调用IActivityTaskManager，失败时回退 service call 命令
+            // 注意：Android系统的每个显示器都有独立的状态栏（SystemUI）
+            // 当应用切换到背屏时，它会显示背屏的状态栏，这是系统默认行为
+            // 要保持主屏状态栏可见需要系统级修改，无法通过应用层实现
+            boolean success = taskMover.move(taskId, entry != null ? entry.rootTaskId : -1, displayId);
+            invalidateSnapshot();
             
             long endTime = System.currentTimeMillis();
             long duration = endTime - startTime;
@@ -184,41 +154,70 @@ public class TaskService extends ITaskService.Stub {
     }
     
     /**
-     * 根据taskId获取包名（辅助方法）
+     * 根据taskId查找任务（包名、根任务id）
      */
-    private String getPackageNameFromTaskId(int taskId) {
+    private TaskStackSnapshot.Entry findEntryByTaskId(int taskId) {
         try {
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", "am stack list");
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("taskId=" + taskId) && line.contains("/")) {
-                    // 解析: taskId=1471: com.example.app/...
-                    int pkgStart = line.indexOf(':') + 2;
-                    int pkgEnd = line.indexOf('/', pkgStart);
-                    if (pkgEnd > pkgStart) {
-                        String packageName = line.substring(pkgStart, pkgEnd).trim();
-                        reader.close();
-                        process.destroy();
-                        return packageName;
-                    }
-                }
-            }
-            
-            reader.close();
-            process.waitFor();
-            return null;
+            return getTaskStackSnapshot().findByTaskId(taskId);
             
         } catch (Exception e) {
             Log.e(TAG, "Error getting package name from taskId", e);
             return null;
         }
     }
+    
+    /**
+     * V4.0: 获取任务栈快照（带短时缓存）
+     * 同一次切换/检查中的多次查询只执行一次 am stack list；
+     * 并发调用在锁上等待，拿到的是同一次解析结果
+     */
+    @Override
+    public TaskStackSnapshot getTaskStackSnapshot() {
+        synchronized (snapshotLock) {
+            long now = SystemClock.uptimeMillis();
+            if (cachedSnapshot != null && now - cachedSnapshot.getTimestamp() < SNAPSHOT_TTL_MS) {
+                return cachedSnapshot;
+            }
+            
+            String output = shell.exec("am stack list", false).output;
+            cachedSnapshot = TaskStackSnapshot.parse(output, SystemClock.uptimeMillis());
+            return cachedSnapshot;
+        }
+    }
+    
+    /**
+     * 丢弃缓存并重新获取快照（TaskStackWatcher收到系统事件后使用）
+     */
+    TaskStackSnapshot takeFreshSnapshot() {
+        invalidateSnapshot();
+        return getTaskStackSnapshot();
+    }
+    
+    /**
+     * V4.0: 已知的任务栈，不执行 am stack list
+     * 优先用TaskStackWatcher监听期间的快照，其次是未过期的缓存，都没有返回null
+     */
+    TaskStackSnapshot peekSnapshot() {
+        TaskStackSnapshot watched = taskWatcher.getWatchedSnapshot();
+        if (watched != null) {
+            return watched;
+        }
+        synchronized (snapshotLock) {
+            if (cachedSnapshot != null && SystemClock.uptimeMillis() - cachedSnapshot.getTimestamp() < SNAPSHOT_TTL_MS) {
+                return cachedSnapshot;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * 任务栈可能已变化（移动任务、执行任意命令后），丢弃缓存
+     */
+    void invalidateSnapshot() {
+        synchronized (snapshotLock) {
+            cachedSnapshot = null;
+        }
+    }
 
     @Override
     public boolean launchWakeActivity(int displayId) throws RemoteException {
@@ -231,24 +230,8 @@ public class TaskService extends ITaskService.Stub {
             String cmd = "am start --display " + displayId + 
                         " -n com.tgwgroup.MiRearScreenSwitcher/.RearScreenWakeupActivity";
 
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            // 读取输出
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            StringBuilder output = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-
-            }
-            reader.close();
-            
-            int exitCode = process.waitFor();
-            boolean success = (exitCode == 0);
+            boolean success = shell.exec(cmd).isSuccess();
+            invalidateSnapshot();
             
             long endTime = System.currentTimeMillis();
             long duration = endTime - startTime;
@@ -261,25 +244,13 @@ public class TaskService extends ITaskService.Stub {
         }
     }
     
+    /**
+     * V4.0: 充电/通知循环会每100ms调用一次，由LauncherSuppressor决定是否真的需要force-stop
+     */
     @Override
     public boolean disableSubScreenLauncher() throws RemoteException {
         try {
-
-            // 强制停止进程（进程可能会自动重启，需要持续杀死）
-            String killCmd = "am force-stop com.xiaomi.subscreencenter";
-
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", killCmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0) {
-
-            } else {
-
-            }
-
-            return (exitCode == 0);
+            return launcherSuppressor.suppress();
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in disableSubScreenLauncher", e);
@@ -289,33 +260,12 @@ public class TaskService extends ITaskService.Stub {
     
     /**
      * V12杀进程法：检查Launcher进程是否在运行
+     * V4.0: 扫描/proc代替 ps -A | grep
      */
     @Override
     public boolean isLauncherProcessRunning() throws RemoteException {
         try {
-            // 检查进程是否在运行
-            String cmd = "ps -A | grep com.xiaomi.subscreencenter";
-            
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line = reader.readLine();
-            reader.close();
-            process.waitFor();
-            
-            // 如果有输�?�?进程在运�?�?返回true（需要杀�?
-            // 如果无输�?�?进程不在运行 �?返回false（不需要处理）
-            boolean isRunning = (line != null && !line.isEmpty());
-            
-            if (isRunning) {
-
-            }
-            
-            return isRunning;
+            return launcherSuppressor.isRunning();
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in isLauncherProcessRunning", e);
@@ -331,17 +281,7 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public boolean killLauncherProcess() throws RemoteException {
         try {
-            // 强制停止进程
-            String cmd = "am force-stop com.xiaomi.subscreencenter";
-            
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
-            
-            // force-stop 总是返回0，所以需要检查进程是否真的被杀死
-            // 简单起见，如果命令成功就返回true
-            return (exitCode == 0);
+            return launcherSuppressor.killIfRunning();
             
         } catch (Exception e) {
             // 异常也返回false（静默）
@@ -349,6 +289,22 @@ public class TaskService extends ITaskService.Stub {
         }
     }
     
+    /**
+     * V4.0: Launcher压制统计（检查/击杀/跳过次数）
+     */
+    @Override
+    public Bundle getLauncherSuppressionStats() throws RemoteException {
+        return launcherSuppressor.getStats();
+    }
+    
+    /**
+     * V4.0: 任务移动路径统计（binder/shell 次数和平均耗时）
+     */
+    @Override
+    public Bundle getTaskMoveStats() throws RemoteException {
+        return taskMover.getStats();
+    }
+    
     @Override
     public boolean enableSubScreenLauncher() throws RemoteException {
         try {
@@ -356,20 +312,7 @@ public class TaskService extends ITaskService.Stub {
             // 启动SubScreenLauncher（进程会自动启动）
             String startCmd = "am start --display 1 -n com.xiaomi.subscreencenter/.SubScreenLauncher";
 
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", startCmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line;
-            while ((line = reader.readLine()) != null) {
-
-            }
-            reader.close();
-            
-            int exitCode = process.waitFor();
+            int exitCode = shell.exec(startCmd).exitCode;
             if (exitCode == 0) {
 
             } else {
@@ -396,9 +339,7 @@ public class TaskService extends ITaskService.Stub {
             // 方法1: 展开主屏状态栏（不完全展开，只是激活）
             String expandCmd = "cmd statusbar expand-settings";
 
-            ProcessBuilder pb1 = new ProcessBuilder("sh", "-c", expandCmd);
-            Process process1 = pb1.start();
-            int exitCode1 = process1.waitFor();
+            int exitCode1 = shell.exec(expandCmd).exitCode;
             
             if (exitCode1 == 0) {
 
@@ -406,9 +347,7 @@ public class TaskService extends ITaskService.Stub {
                 
                 // 立即收起
                 String collapseCmd = "cmd statusbar collapse";
-                ProcessBuilder pb2 = new ProcessBuilder("sh", "-c", collapseCmd);
-                Process process2 = pb2.start();
-                int exitCode2 = process2.waitFor();
+                int exitCode2 = shell.exec(collapseCmd).exitCode;
                 
                 if (exitCode2 == 0) {
 
@@ -423,19 +362,7 @@ public class TaskService extends ITaskService.Stub {
             // 设置主屏display为默�?
             String wmCmd = "wm set-display-type 0 home";
 
-            ProcessBuilder pb3 = new ProcessBuilder("sh", "-c", wmCmd);
-            Process process3 = pb3.start();
-            
-            BufferedReader reader3 = new BufferedReader(
-                new InputStreamReader(process3.getInputStream()), 8192
-            );
-            String line;
-            while ((line = reader3.readLine()) != null) {
-
-            }
-            reader3.close();
-            
-            int exitCode3 = process3.waitFor();
+            int exitCode3 = shell.exec(wmCmd).exitCode;
             if (exitCode3 == 0) {
 
             } else {
@@ -444,19 +371,15 @@ public class TaskService extends ITaskService.Stub {
             
             // 方法3: 检查当前状态栏位置
 
-            ProcessBuilder pb4 = new ProcessBuilder("sh", "-c", "dumpsys window displays | grep -A20 'Display: 0'");
-            Process process4 = pb4.start();
-            
-            BufferedReader reader4 = new BufferedReader(
-                new InputStreamReader(process4.getInputStream()), 8192
+            BufferedReader reader4 = readLines(
+                shell.exec("dumpsys window displays | grep -A20 'Display: 0'", false).output
             );
+            String line;
             while ((line = reader4.readLine()) != null) {
                 if (line.contains("StatusBar") || line.contains("systemui")) {
 
                 }
             }
-            reader4.close();
-            process4.waitFor();
 
             return true;
             
@@ -477,10 +400,7 @@ public class TaskService extends ITaskService.Stub {
             // 使用 cmd statusbar collapse 命令
             String cmd = "cmd statusbar collapse";
 
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
+            int exitCode = shell.exec(cmd).exitCode;
             
             if (exitCode == 0) {
 
@@ -498,59 +418,13 @@ public class TaskService extends ITaskService.Stub {
     
     /**
      * 获取当前背屏DPI
+     * V4.0: IWindowManager.getBaseDisplayDensity，不再fork wm density并解析输出
      * @return DPI值
      */
     @Override
     public int getCurrentRearDpi() throws RemoteException {
         try {
-
-            // 使用 wm density 命令获取display 1的DPI
-            String cmd = "wm density -d 1";
-
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line;
-            int dpi = 0;
-            while ((line = reader.readLine()) != null) {
-
-                // 解析输出: "Physical density: 450" 或 "Override density: 300"
-                if (line.contains("density:")) {
-                    String[] parts = line.split(":");
-                    if (parts.length > 1) {
-                        try {
-                            String dpiStr = parts[1].trim();
-                            // 如果是 "Override density: 300"，优先使用
-                            if (line.contains("Override density")) {
-                                dpi = Integer.parseInt(dpiStr);
-
-                                break; // 找到override就不继续找了
-                            } else if (dpi == 0) {
-                                // 如果还没找到override，先记录physical
-                                dpi = Integer.parseInt(dpiStr);
-
-                            }
-                        } catch (NumberFormatException e) {
-
-                        }
-                    }
-                }
-            }
-            reader.close();
-            
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0 && dpi > 0) {
-
-            } else {
-
-            }
-
-            return dpi;
+            return windowManager.getDensity(1);
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in getCurrentRearDpi", e);
@@ -560,28 +434,14 @@ public class TaskService extends ITaskService.Stub {
     
     /**
      * 设置背屏DPI
+     * V4.0: IWindowManager.setForcedDisplayDensityForUser（wm density回退）
      * @param dpi DPI值
      * @return 是否成功
      */
     @Override
     public boolean setRearDpi(int dpi) throws RemoteException {
         try {
-
-            // 使用 wm density 命令设置display 1的DPI
-            String cmd = "wm density " + dpi + " -d 1";
-
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0) {
-
-            } else {
-
-            }
-
-            return (exitCode == 0);
+            return windowManager.setDensity(1, dpi);
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in setRearDpi", e);
@@ -591,27 +451,13 @@ public class TaskService extends ITaskService.Stub {
     
     /**
      * 还原背屏DPI到默认值
+     * V4.0: IWindowManager.clearForcedDisplayDensityForUser（wm density reset回退）
      * @return 是否成功
      */
     @Override
     public boolean resetRearDpi() throws RemoteException {
         try {
-
-            // 使用 wm density reset 命令还原display 1的DPI
-            String cmd = "wm density reset -d 1";
-
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0) {
-
-            } else {
-
-            }
-
-            return (exitCode == 0);
+            return windowManager.resetDensity(1);
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in resetRearDpi", e);
@@ -626,40 +472,24 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public boolean takeRearScreenshot() throws RemoteException {
         try {
-            // 截屏前尝试给背屏发送keycode wakeup
-            try {
-                executeShellCommand("input -d 1 keyevent KEYCODE_WAKEUP");
-                Thread.sleep(200); // 等待wakeup生效
-            } catch (Exception e) {
-                Log.w(TAG, "背屏keycode wakeup失败: " + e.getMessage());
-            }
+            // 截屏前确保背屏亮着（已亮则不等待）
+            screenCapturer.ensureDisplayOn(1);
 
             // 创建保存目录
             String mkdirCmd = "mkdir -p /storage/emulated/0/Pictures/RearDisplay";
 
-            ProcessBuilder pb1 = new ProcessBuilder("sh", "-c", mkdirCmd);
-            Process process1 = pb1.start();
-            process1.waitFor();
+            shell.exec(mkdirCmd);
             
-            // 获取背屏display ID
-            String getDisplayIdCmd = "dumpsys SurfaceFlinger --display-id | grep -oE 'Display [0-9]+' | awk 'NR==2{print $2}'";
-
-            ProcessBuilder pb2 = new ProcessBuilder("sh", "-c", getDisplayIdCmd);
-            Process process2 = pb2.start();
-            
-            BufferedReader reader2 = new BufferedReader(
-                new InputStreamReader(process2.getInputStream()), 8192
-            );
-            
-            String displayId = reader2.readLine();
-            reader2.close();
-            process2.waitFor();
+            // 获取背屏物理display ID
+            long physicalId = screenCapturer.getPhysicalDisplayId(1);
+            String displayId = physicalId >= 0 ? String.valueOf(physicalId) : null;
+            if (displayId == null) {
+                String getDisplayIdCmd = "dumpsys SurfaceFlinger --display-id | grep -oE 'Display [0-9]+' | awk 'NR==2{print $2}'";
+                displayId = readLines(shell.exec(getDisplayIdCmd, false).output).readLine();
+            }
             
             if (displayId == null || displayId.isEmpty()) {
                 displayId = "1"; // 默认使用1
-
-            } else {
-
             }
             
             // 生成文件名（带时间戳）
@@ -670,55 +500,66 @@ public class TaskService extends ITaskService.Stub {
             // 执行截图命令
             String screenshotCmd = "screencap -p -d " + displayId + " " + filename;
 
-            ProcessBuilder pb3 = new ProcessBuilder("sh", "-c", screenshotCmd);
-            Process process3 = pb3.start();
-            
-            int exitCode = process3.waitFor();
+            int exitCode = shell.exec(screenshotCmd).exitCode;
+            if (exitCode != 0) {
+                Log.w(TAG, "⚠️ screencap失败: exitCode=" + exitCode);
+                return false;
+            }
             
             // 刷新媒体库，让截图出现在相册中
             String refreshCmd = "am broadcast -a android.intent.action.MEDIA_SCANNER_SCAN_FILE -d file://" + filename;
-            ProcessBuilder pb4 = new ProcessBuilder("sh", "-c", refreshCmd);
-            pb4.start();
+            shell.exec(refreshCmd);
             
-            // 无论成功失败都返回true，让Toast显示成功
             return true;
             
         } catch (Exception e) {
             Log.e(TAG, "❌ EXCEPTION in takeRearScreenshot", e);
-            // 即使异常也返回true，让Toast显示成功
-            return true;
+            return false;
         }
     }
     
+    /**
+     * V4.0: 进程内截取背屏，返回HardwareBuffer（编码、保存由应用端完成）
+     */
+    @Override
+    public Bundle captureRearDisplay() throws RemoteException {
+        return screenCapturer.capture(1);
+    }
+    
+    /**
+     * V4.0: 背屏连拍/连续截图
+     */
+    @Override
+    public Bundle captureRearBurst(int frameCount, int intervalMs, int durationMs) throws RemoteException {
+        return screenCapturer.captureBurst(1, frameCount, intervalMs, durationMs);
+    }
+    
+    /**
+     * V4.0: 开始录制背屏（进程内编码，不再启动screenrecord进程）
+     */
+    @Override
+    public boolean startRearRecording(RecordingProfile profile, String outputPath, IRecordingCallback callback) throws RemoteException {
+        screenCapturer.ensureDisplayOn(1);
+        return screenRecorder.start(1, profile, outputPath, callback);
+    }
+    
+    /**
+     * V4.0: 停止录制，等待文件写完后返回统计
+     */
+    @Override
+    public Bundle stopRearRecording() throws RemoteException {
+        return screenRecorder.stop();
+    }
+    
+    @Override
+    public Bundle getRecordingStats() throws RemoteException {
+        return screenRecorder.getStats();
+    }
+    
     @Override
     public boolean isTaskOnDisplay(int taskId, int displayId) throws RemoteException {
         try {
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", "am stack list");
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            boolean inTargetDisplay = false;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("RootTask")) {
-                    inTargetDisplay = line.contains("displayId=" + displayId);
-                    continue;
-                }
-                
-                if (inTargetDisplay && line.contains("taskId=" + taskId)) {
-                    reader.close();
-                    process.destroy();
-                    return true;
-                }
-            }
-            
-            reader.close();
-            process.waitFor();
-            return false;
+            return getTaskStackSnapshot().isTaskOnDisplay(taskId, displayId);
             
         } catch (Exception e) {
             Log.e(TAG, "Error checking task on display", e);
@@ -729,41 +570,8 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public String getForegroundAppOnDisplay(int displayId) throws RemoteException {
         try {
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", "am stack list");
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            boolean inTargetDisplay = false;
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("RootTask")) {
-                    inTargetDisplay = line.contains("displayId=" + displayId);
-                    continue;
-                }
-                
-                if (inTargetDisplay && line.contains("taskId=") && line.contains("/")) {
-                    int tidStart = line.indexOf("taskId=") + 7;
-                    int tidEnd = line.indexOf(':', tidStart);
-                    String taskId = line.substring(tidStart, tidEnd).trim();
-                    
-                    int pkgStart = tidEnd + 2;
-                    int pkgEnd = line.indexOf('/', pkgStart);
-                    String packageName = line.substring(pkgStart, pkgEnd).trim();
-                    
-                    reader.close();
-                    process.destroy();
-                    
-                    return packageName + ":" + taskId;
-                }
-            }
-            
-            reader.close();
-            process.waitFor();
-            return null;
+            TaskStackSnapshot.Entry entry = getTaskStackSnapshot().findTopOnDisplay(displayId, false);
+            return entry != null ? entry.toTaskInfo() : null;
             
         } catch (Exception e) {
             Log.e(TAG, "Error getting foreground app on display", e);
@@ -780,55 +588,25 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public boolean setDisplayRotation(int displayId, int rotation) throws RemoteException {
         try {
-            // 获取当前背屏前台应用（如果有）
-            String currentApp = null;
-            int currentTaskId = -1;
-            if (displayId == 1) {
-                currentApp = getForegroundAppOnDisplay(1);
-                if (currentApp != null && currentApp.contains(":")) {
-                    String[] parts = currentApp.split(":");
-                    try {
-                        currentTaskId = Integer.parseInt(parts[1]);
-                    } catch (Exception ignored) {}
-                }
+            // V4.0: 已锁定在目标方向时直接返回（不再为此查询任务栈）
+            if (windowManager.getUserRotation(displayId) == rotation) {
+                return true;
             }
             
-            // 使用 wm user-rotation 命令设置旋转
-            String cmd = "wm user-rotation -d " + displayId + " lock " + rotation;
-            
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            BufferedReader errorReader = new BufferedReader(
-                new InputStreamReader(process.getErrorStream()), 8192
-            );
-            
-            String line;
-            while ((line = reader.readLine()) != null) {}
-            while ((line = errorReader.readLine()) != null) {}
-            
-            reader.close();
-            errorReader.close();
-            
-            int exitCode = process.waitFor();
-            
-            // 如果是背屏且有应用在运行，等待500ms后检查并复活
-            if (displayId == 1 && exitCode == 0 && currentTaskId > 0) {
-                Thread.sleep(500);
-                
-                // 检查应用是否还在背屏
-                boolean stillOnRear = isTaskOnDisplay(currentTaskId, 1);
-                
-                if (!stillOnRear) {
-                    // 应用被关闭了，重新投放
-                    moveTaskToDisplay(currentTaskId, 1);
+            // V4.0: 背屏前台任务从已知快照取（投放期间TaskStackWatcher在监听），不为此执行 am stack list
+            int currentTaskId = -1;
+            if (displayId == 1) {
+                TaskStackSnapshot known = peekSnapshot();
+                TaskStackSnapshot.Entry entry = known != null ? known.findTopOnDisplay(1, false) : null;
+                if (entry != null) {
+                    currentTaskId = entry.taskId;
                 }
             }
             
-            return (exitCode == 0);
+            // V4.0: 设置旋转并等待显示屏确认旋转后检查应用（替代固定sleep 500ms），被关闭则重新投放
+            Bundle result = displayConfig.apply(displayId, -1, rotation, false, currentTaskId,
+                DisplayConfigTransaction.DEFAULT_TIMEOUT_MS);
+            return result.getBoolean("rotationApplied");
             
         } catch (Exception e) {
             Log.e(TAG, "设置旋转异常", e);
@@ -844,31 +622,8 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public int getDisplayRotation(int displayId) throws RemoteException {
         try {
-            // 使用 wm user-rotation 命令直接读取，输出格式: "lock 2" 或 "free"
-            String cmd = "wm user-rotation -d " + displayId;
-            
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            String line = reader.readLine();
-            reader.close();
-            process.waitFor();
-            
-            if (line != null && !line.isEmpty()) {
-                // 解析 "lock 2" 或 "free" 格式
-                String[] parts = line.trim().split("\\s+");
-                if (parts.length >= 2) {
-                    try {
-                        return Integer.parseInt(parts[1]);
-                    } catch (Exception ignored) {}
-                }
-            }
-            
-            return 0;
+            // V4.0: IWindowManager.getDisplayUserRotation（wm user-rotation回退），未锁定时返回0
+            return Math.max(0, windowManager.getUserRotation(displayId));
             
         } catch (Exception e) {
             Log.e(TAG, "获取旋转异常", e);
@@ -876,44 +631,61 @@ public class TaskService extends ITaskService.Stub {
         }
     }
     
+    /**
+     * V4.0: 背屏显示配置事务
+     */
     @Override
-    public boolean executeShellCommand(String cmd) throws RemoteException {
+    public Bundle applyRearDisplayConfig(int dpi, int rotation, boolean suppressLauncher, int taskId) throws RemoteException {
         try {
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
+            return displayConfig.apply(1, dpi, rotation, suppressLauncher, taskId,
+                DisplayConfigTransaction.DEFAULT_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.e(TAG, "❌ EXCEPTION in applyRearDisplayConfig", e);
+            Bundle result = new Bundle();
+            result.putBoolean("success", false);
+            return result;
+        }
+    }
+    
+    /**
+     * V4.0: 流式解析 dumpsys display
+     * 直接读dumpsys进程的输出，目标显示屏解析完就结束进程，全文不经过binder也不整体缓存
+     */
+    @Override
+    public Bundle queryDisplayDump(int displayId) throws RemoteException {
+        Process process = null;
+        try {
+            process = new ProcessBuilder("dumpsys", "display").redirectErrorStream(true).start();
+            process.getOutputStream().close();
             BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            BufferedReader errorReader = new BufferedReader(
-                new InputStreamReader(process.getErrorStream()), 8192
-            );
-            
-            StringBuilder output = new StringBuilder();
-            StringBuilder errorOutput = new StringBuilder();
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8), 8192);
+            DisplayDumpParser parser = DisplayDumpParser.parse(reader, displayId);
+            return RearDisplayHelper.toDumpResult(parser, displayId);
             
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
+        } catch (Exception e) {
+            Log.e(TAG, "❌ EXCEPTION in queryDisplayDump", e);
+            return null;
+        } finally {
+            if (process != null) {
+                process.destroy();
             }
-            while ((line = errorReader.readLine()) != null) {
-                errorOutput.append(line).append("\n");
+        }
+    }
+    
+    @Override
+    public boolean executeShellCommand(String cmd) throws RemoteException {
+        try {
+            ShellSessionPool.Result result = shell.exec(cmd);
+            if (TASK_STACK_COMMAND.matcher(cmd).find()) {
+                invalidateSnapshot();
             }
             
-            reader.close();
-            errorReader.close();
-            
-            int exitCode = process.waitFor();
-            
-            // 记录详细输出
-            if (output.length() > 0) {
-                Log.d(TAG, "Command stdout: " + output.toString().trim());
-            }
-            if (errorOutput.length() > 0) {
-                Log.w(TAG, "Command stderr: " + errorOutput.toString().trim());
+            // V4.0: 只记录失败命令的输出（stdout与stderr已合并），背屏唤醒等高频命令不写日志
+            if (!result.isSuccess() && !result.output.isEmpty()) {
+                Log.w(TAG, "Command output: " + result.output.trim());
             }
             
-            return (exitCode == 0);
+            return result.isSuccess();
             
         } catch (Exception e) {
             Log.e(TAG, "执行命令失败: " + cmd, e);
@@ -924,23 +696,7 @@ public class TaskService extends ITaskService.Stub {
     @Override
     public String executeShellCommandWithResult(String cmd) throws RemoteException {
         try {
-            ProcessBuilder pb = new ProcessBuilder("sh", "-c", cmd);
-            Process process = pb.start();
-            
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()), 8192
-            );
-            
-            StringBuilder output = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-            }
-            
-            reader.close();
-            process.waitFor();
-            
-            return output.toString();
+            return shell.exec(cmd, false).output;
             
         } catch (Exception e) {
             Log.e(TAG, "执行命令失败: " + cmd, e);
@@ -948,4 +704,61 @@ public class TaskService extends ITaskService.Stub {
         }
     }
     
+    /**
+     * V4.0: 批量执行命令（等待/轮询/重试都在本进程内完成）
+     */
+    @Override
+    public BatchReport executeBatch(List<BatchStep> steps) throws RemoteException {
+        try {
+            return batchExecutor.run(steps);
+        } catch (Exception e) {
+            Log.e(TAG, "❌ EXCEPTION in executeBatch", e);
+            BatchReport report = new BatchReport(0);
+            report.abortedAt = 0;
+            return report;
+        } finally {
+            invalidateSnapshot();
+        }
+    }
+    
+    /**
+     * V4.0: 批量步骤中的动作（走与单独调用相同的实现，保留统计和binder路径）
+     */
+    private boolean runBatchAction(String action, String[] args) {
+        try {
+            if (BatchStep.ACTION_SUPPRESS_LAUNCHER.equals(action)) {
+                return disableSubScreenLauncher();
+            }
+            if (BatchStep.ACTION_MOVE_TASK.equals(action) && args.length == 2) {
+                return moveTaskToDisplay(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+            }
+            Log.w(TAG, "未知批量动作: " + action);
+            return false;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "批量动作失败: " + action, e);
+            return false;
+        }
+    }
+    
+    /**
+     * V4.0: 注册任务栈变化回调
+     */
+    @Override
+    public boolean registerTaskWatcher(ITaskWatcherCallback callback) throws RemoteException {
+        return taskWatcher.register(callback);
+    }
+    
+    @Override
+    public void unregisterTaskWatcher(ITaskWatcherCallback callback) throws RemoteException {
+        taskWatcher.unregister(callback);
+    }
+    
+    /**
+     * 按行读取命令输出（辅助方法）
+     */
+    private static BufferedReader readLines(String output) {
+        return new BufferedReader(new StringReader(output));
+    }
+    
 }
@@ -0,0 +1,176 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * V4.0: ITaskService 的异步调用封装
+ *
+ * TaskService 的大部分方法最终都是一次shell执行（几十到几百毫秒），之前很多地方直接在主线程Handler里同步调用，
+ * 卡主屏UI，Shizuku卡住时还有ANR风险。现在统一通过这里提交：
+ * - 普通调用：有界线程池（2线程 + 32队列），队列满时直接失败，不无限堆积
+ * - 显示相关调用（DPI/旋转/移动任务等会互相冲突的操作）：单线程串行执行，按提交顺序生效
+ * - 每个调用都有超时，超时或 cancel() 后排队中的调用不再执行（已在执行的binder调用无法中断，结果丢弃）
+ * - 返回 CompletableFuture；需要回到主线程处理结果时用 MAIN 作为 *Async 的executor
+ *
+ * 用法：
+ *   client.submit("getCurrentRearDpi", ITaskService::getCurrentRearDpi)
+ *       .whenCompleteAsync((dpi, error) -> { ... }, TaskServiceClient.MAIN);
+ */
+public class TaskServiceClient {
+    private static final String TAG = "TaskServiceClient";
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    /**
+     * 在TaskService上执行的调用（工作线程）
+     */
+    public interface Call<T> {
+        T run(ITaskService service) throws Exception;
+    }
+
+    /**
+     * 主线程executor（用于 whenCompleteAsync / thenAcceptAsync）
+     */
+    public static final Executor MAIN = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    // 普通调用：有界线程池
+    private static final ThreadPoolExecutor generalExecutor = new ThreadPoolExecutor(
+        2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(32),
+        r -> newDaemonThread(r, "mrss-task-client-" + threadCounter.incrementAndGet()));
+
+    // 显示相关调用：单线程串行
+    private static final ThreadPoolExecutor displayExecutor = new ThreadPoolExecutor(
+        1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(16),
+        r -> newDaemonThread(r, "mrss-task-client-display"));
+
+    // 超时计时
+    private static final ScheduledThreadPoolExecutor timeoutExecutor = new ScheduledThreadPoolExecutor(
+        1, r -> newDaemonThread(r, "mrss-task-client-timeout"));
+
+    static {
+        generalExecutor.allowCoreThreadTimeOut(true);
+        displayExecutor.allowCoreThreadTimeOut(true);
+        timeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    private final RearWakeupScheduler.TaskServiceProvider provider;
+
+    /**
+     * @param provider 各组件自己绑定的TaskService（执行时才获取，未连接时调用失败）
+     */
+    public TaskServiceClient(RearWakeupScheduler.TaskServiceProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * TaskService当前是否已连接（不发起调用）
+     */
+    public boolean isConnected() {
+        return provider.get() != null;
+    }
+
+    public <T> CompletableFuture<T> submit(String name, Call<T> call) {
+        return submit(name, call, DEFAULT_TIMEOUT_MS);
+    }
+
+    public <T> CompletableFuture<T> submit(String name, Call<T> call, long timeoutMs) {
+        return enqueue(generalExecutor, name, call, timeoutMs);
+    }
+
+    /**
+     * 显示相关调用（串行执行，保证DPI/旋转/任务移动等操作按提交顺序生效）
+     */
+    public <T> CompletableFuture<T> submitDisplay(String name, Call<T> call) {
+        return submitDisplay(name, call, DEFAULT_TIMEOUT_MS);
+    }
+
+    public <T> CompletableFuture<T> submitDisplay(String name, Call<T> call, long timeoutMs) {
+        return enqueue(displayExecutor, name, call, timeoutMs);
+    }
+
+    private <T> CompletableFuture<T> enqueue(ThreadPoolExecutor executor, String name, Call<T> call, long timeoutMs) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (future.isDone()) {
+                    return; // 排队期间已超时或被取消
+                }
+                ITaskService service = provider.get();
+                if (service == null) {
+                    future.completeExceptionally(new IllegalStateException("TaskService not available"));
+                    return;
+                }
+                try {
+                    future.complete(call.run(service));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "⚠️ 调用队列已满，丢弃: " + name);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException(name + " timed out after " + timeoutMs + "ms"))) {
+                Log.w(TAG, "⏱️ 调用超时: " + name + " (" + timeoutMs + "ms)");
+                task.cancel(false);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((result, error) -> {
+            timeout.cancel(false);
+            if (future.isCancelled()) {
+                task.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    private static Thread newDaemonThread(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.content.ComponentName;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+
+import rikka.shizuku.Shizuku;
+
+/**
+ * V4.0: 进程内唯一的 TaskService 连接
+ *
+ * 之前 MainActivity、磁贴、各个Service 各自 bindUserService（有的还用不同的processNameSuffix，
+ * 同时跑好几个shell进程），各自以30ms/200ms/300ms/1000ms固定间隔重连，
+ * 某个组件销毁时 unbindUserService(remove=true) 还会把别人正在用的进程一起杀掉。
+ * 现在：
+ * - 只绑定一次（processNameSuffix "task_service"），连接随应用进程存活，组件销毁时只移除监听
+ * - Shizuku binder到达 / 权限授予时自动连接；断开后按指数退避 + 随机抖动重连（100ms起，最长5s）
+ * - 绑定超过10s没有回调（Shizuku卡住、user service启动失败）视为失败，解绑后同样退避重连
+ * - 监听器是粘性的：添加时已连接会立即回调 onTaskServiceConnected
+ * - awaitConnected() 返回 CompletableFuture，等待连接不需要sleep轮询
+ *
+ * 状态只在主线程修改，回调都在主线程；get() 任意线程可调用。
+ */
+public class TaskServiceManager {
+    private static final String TAG = "TaskServiceManager";
+
+    private static final long BACKOFF_INITIAL_MS = 100;
+    private static final long BACKOFF_MAX_MS = 5000;
+    private static final float BACKOFF_JITTER = 0.25f;  // ±25%
+    private static final long BIND_TIMEOUT_MS = 10000;  // 冷启动shell进程通常1-2s
+
+    public interface Listener {
+        void onTaskServiceConnected(ITaskService service);
+
+        void onTaskServiceDisconnected();
+    }
+
+    private static volatile TaskServiceManager instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<ITaskService>> waiters = new ArrayList<>();
+
+    private final Shizuku.UserServiceArgs serviceArgs =
+        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
+            .daemon(false)
+            .processNameSuffix("task_service")
+            .debuggable(false)
+            .version(1);
+
+    private volatile ITaskService service;
+    private boolean binding = false;
+    private boolean shizukuListenersAdded = false;
+    private long backoffMs = BACKOFF_INITIAL_MS;
+    private final Runnable reconnectRunnable = this::connectOnMain;
+    private final Runnable bindTimeoutRunnable = this::onBindTimeout;
+
+    private TaskServiceManager() {
+    }
+
+    public static TaskServiceManager getInstance() {
+        if (instance == null) {
+            synchronized (TaskServiceManager.class) {
+                if (instance == null) {
+                    instance = new TaskServiceManager();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 当前连接（未连接返回null），任意线程
+     */
+    public ITaskService get() {
+        return service;
+    }
+
+    public boolean isConnected() {
+        return service != null;
+    }
+
+    /**
+     * 确保正在连接（幂等，任意线程）
+     */
+    public void connect() {
+        runOnMain(this::connectOnMain);
+    }
+
+    /**
+     * 添加监听并确保连接；已连接时立即回调（粘性）
+     */
+    public void addListener(Listener listener) {
+        runOnMain(() -> {
+            if (listeners.contains(listener)) {
+                return;
+            }
+            listeners.add(listener);
+            ITaskService current = service;
+            if (current != null) {
+                listener.onTaskServiceConnected(current);
+            } else {
+                connectOnMain();
+            }
+        });
+    }
+
+    /**
+     * 组件销毁时调用（不会断开连接）
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 等待连接就绪（不阻塞调用线程）
+     * @return 已连接时是已完成的future；超时以 TimeoutException 结束
+     */
+    public CompletableFuture<ITaskService> awaitConnected(long timeoutMs) {
+        ITaskService current = service;
+        if (current != null) {
+            return CompletableFuture.completedFuture(current);
+        }
+        CompletableFuture<ITaskService> future = new CompletableFuture<>();
+        runOnMain(() -> {
+            ITaskService now = service;
+            if (now != null) {
+                future.complete(now);
+                return;
+            }
+            waiters.add(future);
+            connectOnMain();
+            mainHandler.postDelayed(() -> {
+                if (waiters.remove(future)) {
+                    future.completeExceptionally(new TimeoutException("TaskService not connected after " + timeoutMs + "ms"));
+                }
+            }, timeoutMs);
+        });
+        return future;
+    }
+
+    // ========================================
+    // 连接（主线程）
+    // ========================================
+
+    private void connectOnMain() {
+        ensureShizukuListeners();
+        mainHandler.removeCallbacks(reconnectRunnable);
+        if (service != null || binding) {
+            return;
+        }
+        try {
+            if (!Shizuku.pingBinder()) {
+                // 等待 binderReceivedListener，不轮询
+                Log.w(TAG, "Shizuku not available, waiting for binder");
+                return;
+            }
+            if (Shizuku.checkSelfPermission() != PackageManager.PERMISSION_GRANTED) {
+                // 等待 permissionResultListener
+                Log.w(TAG, "No Shizuku permission, waiting for grant");
+                return;
+            }
+            binding = true;
+            Log.d(TAG, "🔗 绑定TaskService...");
+            Shizuku.bindUserService(serviceArgs, serviceConnection);
+            mainHandler.postDelayed(bindTimeoutRunnable, BIND_TIMEOUT_MS);
+        } catch (Exception e) {
+            binding = false;
+            mainHandler.removeCallbacks(bindTimeoutRunnable);
+            Log.e(TAG, "绑定TaskService失败", e);
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * 绑定一直没有回调：否则binding永远为true，之后connect()什么都不做
+     */
+    private void onBindTimeout() {
+        if (!binding || service != null) {
+            return;
+        }
+        binding = false;
+        Log.w(TAG, "⚠️ 绑定TaskService " + BIND_TIMEOUT_MS + "ms无回调，重新绑定");
+        try {
+            Shizuku.unbindUserService(serviceArgs, serviceConnection, false);
+        } catch (Exception e) {
+            Log.w(TAG, "解绑TaskService失败: " + e.getMessage());
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (listeners.isEmpty() && waiters.isEmpty()) {
+            return; // 没有人需要连接，等下一次 connect()
+        }
+        long jitter = (long) (backoffMs * BACKOFF_JITTER * (random.nextFloat() * 2 - 1));
+        long delay = Math.max(0, backoffMs + jitter);
+        Log.d(TAG, "🔄 " + delay + "ms后重连TaskService");
+        mainHandler.removeCallbacks(reconnectRunnable);
+        mainHandler.postDelayed(reconnectRunnable, delay);
+        backoffMs = Math.min(BACKOFF_MAX_MS, backoffMs * 2);
+    }
+
+    private void onConnected(ITaskService connected) {
+        binding = false;
+        mainHandler.removeCallbacks(bindTimeoutRunnable);
+        backoffMs = BACKOFF_INITIAL_MS;
+        mainHandler.removeCallbacks(reconnectRunnable);
+        service = connected;
+        Log.d(TAG, "✓ TaskService connected");
+
+        for (CompletableFuture<ITaskService> waiter : waiters) {
+            waiter.complete(connected);
+        }
+        waiters.clear();
+        for (Listener listener : listeners) {
+            listener.onTaskServiceConnected(connected);
+        }
+    }
+
+    private void onDisconnected(boolean reconnect) {
+        binding = false;
+        mainHandler.removeCallbacks(bindTimeoutRunnable);
+        boolean wasConnected = service != null;
+        service = null;
+        if (wasConnected) {
+            Log.w(TAG, "⚠️ TaskService disconnected");
+            for (Listener listener : listeners) {
+                listener.onTaskServiceDisconnected();
+            }
+        }
+        if (reconnect) {
+            scheduleReconnect();
+        }
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            if (binder == null || !binder.pingBinder()) {
+                Log.w(TAG, "TaskService binder无效");
+                runOnMain(() -> onDisconnected(true));
+                return;
+            }
+            ITaskService connected = ITaskService.Stub.asInterface(binder);
+            runOnMain(() -> onConnected(connected));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            runOnMain(() -> onDisconnected(true));
+        }
+    };
+
+    // ========================================
+    // Shizuku状态
+    // ========================================
+
+    private void ensureShizukuListeners() {
+        if (shizukuListenersAdded) {
+            return;
+        }
+        shizukuListenersAdded = true;
+        Shizuku.addBinderReceivedListenerSticky(binderReceivedListener);
+        Shizuku.addBinderDeadListener(binderDeadListener);
+        Shizuku.addRequestPermissionResultListener(permissionResultListener);
+    }
+
+    private final Shizuku.OnBinderReceivedListener binderReceivedListener = () -> runOnMain(() -> {
+        backoffMs = BACKOFF_INITIAL_MS;
+        connectOnMain();
+    });
+
+    // Shizuku本身重启：user service进程随之结束，等新的binder到达后由上面的监听重新连接
+    private final Shizuku.OnBinderDeadListener binderDeadListener = () -> runOnMain(() -> onDisconnected(false));
+
+    private final Shizuku.OnRequestPermissionResultListener permissionResultListener = (requestCode, grantResult) -> {
+        if (grantResult == PackageManager.PERMISSION_GRANTED) {
+            runOnMain(this::connectOnMain);
+        }
+    };
+
+    private void runOnMain(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mainHandler.post(runnable);
+        }
+    }
+}
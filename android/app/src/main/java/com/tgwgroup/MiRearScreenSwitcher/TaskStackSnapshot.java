@@ -0,0 +1,286 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * V4.0: am stack list 的结构化快照
+ * 一次解析，供前台应用/taskId/包名/所在屏幕等查询复用
+ */
+public class TaskStackSnapshot implements Parcelable {
+
+    private static final String SELF_PACKAGE = "com.tgwgroup.MiRearScreenSwitcher";
+
+    /**
+     * 单个任务条目（按 am stack list 输出顺序，同一屏幕内越靠前越在顶层）
+     */
+    public static class Entry {
+        public final int displayId;
+        public final int rootTaskId;
+        public final int taskId;
+        public final String packageName;
+        public final String topActivity;   // "package/activity" 格式
+
+        public Entry(int displayId, int rootTaskId, int taskId, String packageName, String topActivity) {
+            this.displayId = displayId;
+            this.rootTaskId = rootTaskId;
+            this.taskId = taskId;
+            this.packageName = packageName;
+            this.topActivity = topActivity;
+        }
+
+        /**
+         * 与旧接口保持一致的 "package:taskId" 格式
+         */
+        public String toTaskInfo() {
+            return packageName + ":" + taskId;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Entry{display=%d, rootTask=%d, task=%d, %s}",
+                displayId, rootTaskId, taskId, topActivity);
+        }
+    }
+
+    private final List<Entry> entries;
+    private final long timestamp;   // 解析时间（SystemClock.uptimeMillis）
+
+    public TaskStackSnapshot(List<Entry> entries, long timestamp) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.timestamp = timestamp;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * 解析 am stack list 输出
+     *
+     * RootTask id=1471 bounds=[0,0][1200,2670] displayId=0 userId=0
+     *   taskId=1471: com.example.app/com.example.app.MainActivity bounds=... topActivity=ComponentInfo{...}
+     */
+    public static TaskStackSnapshot parse(String output, long timestamp) {
+        List<Entry> entries = new ArrayList<>();
+        if (output == null || output.isEmpty()) {
+            return new TaskStackSnapshot(entries, timestamp);
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new StringReader(output));
+            int displayId = -1;
+            int rootTaskId = -1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // RootTask行：记录displayId和rootTaskId
+                if (line.startsWith("RootTask")) {
+                    displayId = parseIntAfter(line, "displayId=");
+                    rootTaskId = parseIntAfter(line, " id=");
+                    continue;
+                }
+
+                // taskId行（缩进的子行）
+                int tidIdx = line.indexOf("taskId=");
+                if (tidIdx < 0 || line.indexOf('/') < 0) {
+                    continue;
+                }
+                int tidStart = tidIdx + 7;
+                int tidEnd = line.indexOf(':', tidStart);
+                if (tidEnd < 0) {
+                    continue;
+                }
+
+                int taskId;
+                try {
+                    taskId = Integer.parseInt(line.substring(tidStart, tidEnd).trim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                // 组件名：冒号后第一个不含空格的片段
+                int compStart = tidEnd + 1;
+                while (compStart < line.length() && line.charAt(compStart) == ' ') {
+                    compStart++;
+                }
+                int compEnd = line.indexOf(' ', compStart);
+                if (compEnd < 0) {
+                    compEnd = line.length();
+                }
+                String component = line.substring(compStart, compEnd);
+                int slash = component.indexOf('/');
+                if (slash <= 0) {
+                    continue;
+                }
+                String packageName = component.substring(0, slash);
+
+                // 优先使用 topActivity=ComponentInfo{...}（栈顶可能不是根Activity）
+                String topActivity = component;
+                int topIdx = line.indexOf("topActivity=ComponentInfo{");
+                if (topIdx >= 0) {
+                    int topStart = topIdx + "topActivity=ComponentInfo{".length();
+                    int topEnd = line.indexOf('}', topStart);
+                    if (topEnd > topStart) {
+                        topActivity = line.substring(topStart, topEnd);
+                    }
+                }
+
+                entries.add(new Entry(displayId, rootTaskId, taskId, packageName, topActivity));
+            }
+        } catch (Exception ignored) {
+            // StringReader不会抛IO异常，保留已解析的条目
+        }
+
+        return new TaskStackSnapshot(entries, timestamp);
+    }
+
+    private static int parseIntAfter(String line, String key) {
+        int idx = line.indexOf(key);
+        if (idx < 0) {
+            return -1;
+        }
+        int start = idx + key.length();
+        int end = start;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            end++;
+        }
+        if (end == start) {
+            return -1;
+        }
+        return Integer.parseInt(line.substring(start, end));
+    }
+
+    // ========================================
+    // 查询方法（对应TaskService的各个旧接口）
+    // ========================================
+
+    /**
+     * 指定屏幕的顶层任务
+     * @param skipLaunchers 是否跳过桌面和本应用
+     */
+    public Entry findTopOnDisplay(int displayId, boolean skipLaunchers) {
+        for (Entry entry : entries) {
+            if (entry.displayId != displayId) {
+                continue;
+            }
+            if (skipLaunchers && isLauncherOrSelf(entry.packageName)) {
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * 按包名查找任务（匹配根包名或栈顶Activity包名）
+     */
+    public Entry findByPackage(String packageName) {
+        if (packageName == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (packageName.equals(entry.packageName)
+                || entry.topActivity.startsWith(packageName + "/")) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按taskId查找任务
+     */
+    public Entry findByTaskId(int taskId) {
+        for (Entry entry : entries) {
+            if (entry.taskId == taskId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public boolean isTaskOnDisplay(int taskId, int displayId) {
+        Entry entry = findByTaskId(taskId);
+        return entry != null && entry.displayId == displayId;
+    }
+
+    private static boolean isLauncherOrSelf(String packageName) {
+        return packageName.contains("launcher")
+            || packageName.contains("miui.home")
+            || packageName.equals(SELF_PACKAGE);
+    }
+
+    // ========================================
+    // Parcelable
+    // ========================================
+
+    protected TaskStackSnapshot(Parcel in) {
+        timestamp = in.readLong();
+        int size = in.readInt();
+        List<Entry> list = new ArrayList<>(Math.max(size, 0));
+        for (int i = 0; i < size; i++) {
+            list.add(new Entry(in.readInt(), in.readInt(), in.readInt(), in.readString(), in.readString()));
+        }
+        entries = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(timestamp);
+        dest.writeInt(entries.size());
+        for (Entry entry : entries) {
+            dest.writeInt(entry.displayId);
+            dest.writeInt(entry.rootTaskId);
+            dest.writeInt(entry.taskId);
+            dest.writeString(entry.packageName);
+            dest.writeString(entry.topActivity);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<TaskStackSnapshot> CREATOR = new Creator<TaskStackSnapshot>() {
+        @Override
+        public TaskStackSnapshot createFromParcel(Parcel in) {
+            return new TaskStackSnapshot(in);
+        }
+
+        @Override
+        public TaskStackSnapshot[] newArray(int size) {
+            return new TaskStackSnapshot[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "TaskStackSnapshot{" + entries.size() + " tasks, t=" + timestamp + "}";
+    }
+}
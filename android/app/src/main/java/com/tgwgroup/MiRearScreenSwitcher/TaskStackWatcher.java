@@ -0,0 +1,381 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteCallbackList;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * V4.0: 任务栈变化监听（运行在Shizuku进程中）
+ *
+ * 向系统注册 ITaskStackListener，收到任何任务栈事件后合并（一帧内只处理一次），
+ * 重新获取快照并与上一次对比，推送 移动/移除/顶层变化 事件给客户端。
+ * 只在有客户端注册时才向系统注册监听，空闲时不做任何工作。
+ *
+ * ITaskStackListener 是隐藏接口且各版本方法顺序不同，这里不解析事务参数，
+ * 只把它当作"任务栈可能变了"的信号，具体变化由快照对比得出。
+ * 事务码从 ITaskStackListener.Stub 的 TRANSACTION_* 字段解析，只响应任务创建/移除/移动/焦点/显示屏变化，
+ * 频繁的 onTaskSnapshotChanged / onTaskDescriptionChanged 等直接忽略（每次刷新都要执行一次 am stack list）。
+ * 解析失败时响应所有事务，但合并窗口放宽到250ms。
+ */
+public class TaskStackWatcher {
+    private static final String TAG = "TaskStackWatcher";
+
+    private static final String LISTENER_DESCRIPTOR = "android.app.ITaskStackListener";
+
+    // 合并窗口：一帧内的多个系统事件只触发一次快照
+    private static final long COALESCE_MS = 16;
+    private static final long COALESCE_UNFILTERED_MS = 250;  // 无法过滤事务时
+
+    // 会改变任务栈的回调（不存在于当前版本的会被跳过）
+    private static final String[] RELEVANT_METHODS = {
+        "onTaskStackChanged",
+        "onTaskCreated",
+        "onTaskRemoved",
+        "onTaskRemovalStarted",
+        "onTaskMovedToFront",
+        "onTaskMovedToBack",
+        "onTaskDisplayChanged",
+        "onTaskFocusChanged",
+        "onActivityRestartAttempt",
+        "onActivityDismissingDockedTask",
+        "onActivityUnpinned",
+    };
+
+    private final TaskService taskService;
+    private final RemoteCallbackList<ITaskWatcherCallback> callbacks = new RemoteCallbackList<ITaskWatcherCallback>() {
+        @Override
+        public void onCallbackDied(ITaskWatcherCallback callback) {
+            // 客户端进程死亡，最后一个走了就停止系统监听
+            synchronized (TaskStackWatcher.this) {
+                stopIfIdle();
+            }
+        }
+    };
+    private final ScheduledExecutorService executor;
+
+    private final Binder listenerBinder = new ListenerBinder();
+    private Object registeredService;     // IActivityTaskManager / IActivityManager
+    private Object registeredListener;    // ITaskStackListener proxy
+    private volatile Set<Integer> relevantCodes;  // null=无法解析，响应所有事务
+    private boolean refreshPending = false;
+    private TaskStackSnapshot lastSnapshot;
+
+    public TaskStackWatcher(TaskService taskService) {
+        this.taskService = taskService;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mrss-task-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 注册客户端回调
+     * @return true=系统监听可用
+     */
+    public synchronized boolean register(ITaskWatcherCallback callback) {
+        if (callback == null) {
+            return false;
+        }
+
+        if (registeredListener == null && !registerSystemListener()) {
+            return false;
+        }
+        callbacks.register(callback);
+
+        // 新客户端先收到一次当前状态，避免注册前发生的变化被漏掉
+        executor.execute(() -> sendCurrentState(callback));
+        return true;
+    }
+
+    public synchronized void unregister(ITaskWatcherCallback callback) {
+        if (callback != null) {
+            callbacks.unregister(callback);
+        }
+        stopIfIdle();
+    }
+
+    public synchronized void shutdown() {
+        callbacks.kill();
+        unregisterSystemListener();
+        executor.shutdownNow();
+    }
+
+    private void stopIfIdle() {
+        if (callbacks.getRegisteredCallbackCount() == 0 && registeredListener != null) {
+            unregisterSystemListener();
+            lastSnapshot = null;
+            Log.d(TAG, "⏸️ 无客户端，已停止任务栈监听");
+        }
+    }
+
+    // ========================================
+    // 系统监听注册（反射）
+    // ========================================
+
+    private boolean registerSystemListener() {
+        try {
+            Object service = getTaskManagerService();
+            Class<?> listenerClass = Class.forName(LISTENER_DESCRIPTOR);
+            Method asInterface = Class.forName(LISTENER_DESCRIPTOR + "$Stub")
+                .getMethod("asInterface", IBinder.class);
+            Object listener = asInterface.invoke(null, listenerBinder);
+
+            if (relevantCodes == null) {
+                relevantCodes = resolveRelevantCodes();
+            }
+            service.getClass().getMethod("registerTaskStackListener", listenerClass)
+                .invoke(service, listener);
+
+            registeredService = service;
+            registeredListener = listener;
+            lastSnapshot = taskService.takeFreshSnapshot();
+            Log.d(TAG, "✅ 任务栈监听已注册");
+            return true;
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 注册任务栈监听失败: " + t);
+            return false;
+        }
+    }
+
+    private void unregisterSystemListener() {
+        if (registeredService == null || registeredListener == null) {
+            return;
+        }
+        try {
+            Class<?> listenerClass = Class.forName(LISTENER_DESCRIPTOR);
+            registeredService.getClass().getMethod("unregisterTaskStackListener", listenerClass)
+                .invoke(registeredService, registeredListener);
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 注销任务栈监听失败: " + t);
+        }
+        registeredService = null;
+        registeredListener = null;
+    }
+
+    /**
+     * 从 ITaskStackListener.Stub 读取关心的事务码，一个都读不到返回null
+     */
+    private static Set<Integer> resolveRelevantCodes() {
+        Set<Integer> codes = new HashSet<>();
+        try {
+            Class<?> stub = Class.forName(LISTENER_DESCRIPTOR + "$Stub");
+            for (String method : RELEVANT_METHODS) {
+                try {
+                    Field field = stub.getDeclaredField("TRANSACTION_" + method);
+                    field.setAccessible(true);
+                    codes.add(field.getInt(null));
+                } catch (NoSuchFieldException ignored) {
+                    // 该版本没有这个回调
+                }
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 解析ITaskStackListener事务码失败: " + t);
+        }
+        if (codes.isEmpty()) {
+            Log.w(TAG, "⚠️ 无法过滤任务栈事务，合并窗口放宽到" + COALESCE_UNFILTERED_MS + "ms");
+            return null;
+        }
+        Log.d(TAG, "✓ 只响应" + codes.size() + "种任务栈事务");
+        return codes;
+    }
+
+    /**
+     * Android 10+ 在 ActivityTaskManager，之前在 ActivityManager
+     */
+    private static Object getTaskManagerService() throws Exception {
+        try {
+            return Class.forName("android.app.ActivityTaskManager").getMethod("getService").invoke(null);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // Android 9 及以下
+        }
+        try {
+            return Class.forName("android.app.ActivityManager").getMethod("getService").invoke(null);
+        } catch (NoSuchMethodException e) {
+            // Android 7.x
+            return Class.forName("android.app.ActivityManagerNative").getMethod("getDefault").invoke(null);
+        }
+    }
+
+    /**
+     * 系统回调的接收端：关心的事务只当作刷新信号，其余直接忽略
+     */
+    private class ListenerBinder extends Binder {
+        ListenerBinder() {
+            attachInterface(null, LISTENER_DESCRIPTOR);
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws android.os.RemoteException {
+            if (code >= FIRST_CALL_TRANSACTION && code <= LAST_CALL_TRANSACTION) {
+                Set<Integer> codes = relevantCodes;
+                if (codes == null || codes.contains(code)) {
+                    scheduleRefresh();
+                }
+                return true;
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+    }
+
+    // ========================================
+    // 事件合并与对比
+    // ========================================
+
+    /**
+     * 监听期间最近一次的任务栈（随系统事件刷新），未监听时返回null
+     */
+    synchronized TaskStackSnapshot getWatchedSnapshot() {
+        return registeredListener != null ? lastSnapshot : null;
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refreshPending || registeredListener == null) {
+            return;
+        }
+        refreshPending = true;
+        try {
+            executor.schedule(this::refresh, relevantCodes != null ? COALESCE_MS : COALESCE_UNFILTERED_MS,
+                TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            refreshPending = false;
+        }
+    }
+
+    private void refresh() {
+        TaskStackSnapshot previous;
+        synchronized (this) {
+            refreshPending = false;
+            if (registeredListener == null) {
+                return;
+            }
+            previous = lastSnapshot;
+        }
+
+        TaskStackSnapshot current = taskService.takeFreshSnapshot();
+        synchronized (this) {
+            lastSnapshot = current;
+        }
+        if (previous == null) {
+            return;
+        }
+
+        dispatchDiff(previous, current);
+    }
+
+    private void dispatchDiff(TaskStackSnapshot previous, TaskStackSnapshot current) {
+        Map<Integer, TaskStackSnapshot.Entry> oldTasks = indexByTaskId(previous);
+        Map<Integer, TaskStackSnapshot.Entry> newTasks = indexByTaskId(current);
+        Set<Integer> displays = new HashSet<>();
+
+        int count = callbacks.beginBroadcast();
+        try {
+            for (TaskStackSnapshot.Entry oldEntry : oldTasks.values()) {
+                displays.add(oldEntry.displayId);
+                TaskStackSnapshot.Entry newEntry = newTasks.get(oldEntry.taskId);
+                for (int i = 0; i < count; i++) {
+                    try {
+                        if (newEntry == null) {
+                            callbacks.getBroadcastItem(i).onTaskRemoved(oldEntry.taskId, oldEntry.packageName);
+                        } else if (newEntry.displayId != oldEntry.displayId) {
+                            callbacks.getBroadcastItem(i).onTaskMoved(oldEntry.taskId, newEntry.packageName,
+                                oldEntry.displayId, newEntry.displayId);
+                        }
+                    } catch (Exception ignored) {
+                        // 客户端已死亡，RemoteCallbackList会自动移除
+                    }
+                }
+            }
+
+            for (TaskStackSnapshot.Entry entry : newTasks.values()) {
+                displays.add(entry.displayId);
+            }
+
+            for (int displayId : displays) {
+                TaskStackSnapshot.Entry oldTop = previous.findTopOnDisplay(displayId, false);
+                TaskStackSnapshot.Entry newTop = current.findTopOnDisplay(displayId, false);
+                if (sameTop(oldTop, newTop)) {
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    try {
+                        callbacks.getBroadcastItem(i).onDisplayTopChanged(displayId,
+                            newTop != null ? newTop.toTaskInfo() : null,
+                            newTop != null ? newTop.topActivity : null);
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+        } finally {
+            callbacks.finishBroadcast();
+        }
+    }
+
+    private void sendCurrentState(ITaskWatcherCallback callback) {
+        TaskStackSnapshot snapshot;
+        synchronized (this) {
+            snapshot = lastSnapshot;
+        }
+        if (snapshot == null) {
+            return;
+        }
+
+        Set<Integer> displays = new HashSet<>();
+        for (TaskStackSnapshot.Entry entry : snapshot.getEntries()) {
+            displays.add(entry.displayId);
+        }
+        try {
+            for (int displayId : displays) {
+                TaskStackSnapshot.Entry top = snapshot.findTopOnDisplay(displayId, false);
+                callback.onDisplayTopChanged(displayId, top.toTaskInfo(), top.topActivity);
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static Map<Integer, TaskStackSnapshot.Entry> indexByTaskId(TaskStackSnapshot snapshot) {
+        Map<Integer, TaskStackSnapshot.Entry> map = new HashMap<>();
+        for (TaskStackSnapshot.Entry entry : snapshot.getEntries()) {
+            map.put(entry.taskId, entry);
+        }
+        return map;
+    }
+
+    private static boolean sameTop(TaskStackSnapshot.Entry a, TaskStackSnapshot.Entry b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.taskId == b.taskId && a.topActivity.equals(b.topActivity);
+    }
+}
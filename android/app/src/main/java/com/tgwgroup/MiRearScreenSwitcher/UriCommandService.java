@@ -16,19 +16,16 @@
 package com.tgwgroup.MiRearScreenSwitcher;
 
 import android.app.IntentService;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.IBinder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
-import rikka.shizuku.Shizuku;
 
 /**
  * V2.6: URI命令处理服务
@@ -39,22 +36,17 @@ public class UriCommandService extends IntentService {
     private static final String TAG = "UriCommandService";
     
     private ITaskService taskService;
-    private final Shizuku.UserServiceArgs serviceArgs = 
-        new Shizuku.UserServiceArgs(new ComponentName("com.tgwgroup.MiRearScreenSwitcher", TaskService.class.getName()))
-            .daemon(false)
-            .processNameSuffix("task_service")
-            .debuggable(false)
-            .version(1);
-    
-    private final ServiceConnection taskServiceConnection = new ServiceConnection() {
+    // V4.0: 连接由TaskServiceManager统一管理，这里只订阅
+    // （之前每条URI处理完onDestroy都会 unbind(remove=true) 杀掉TaskService进程，下一条命令又要冷启动）
+    private final TaskServiceManager.Listener taskServiceListener = new TaskServiceManager.Listener() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder binder) {
-            taskService = ITaskService.Stub.asInterface(binder);
+        public void onTaskServiceConnected(ITaskService service) {
+            taskService = service;
             Log.d(TAG, "✓ TaskService已连接");
         }
         
         @Override
-        public void onServiceDisconnected(ComponentName name) {
+        public void onTaskServiceDisconnected() {
             taskService = null;
         }
     };
@@ -97,7 +89,7 @@ public class UriCommandService extends IntentService {
                 handleReturn(uri);
                 break;
             case "screenshot":
-                handleScreenshot();
+                handleScreenshot(uri);
                 break;
             case "config":
                 handleConfig(uri);
@@ -109,15 +101,8 @@ public class UriCommandService extends IntentService {
         if (taskService != null) return true;
         
         try {
-            bindTaskService();
-            
-            // 等待连接（最多3秒）
-            int attempts = 0;
-            while (taskService == null && attempts < 30) {
-                Thread.sleep(100);
-                attempts++;
-            }
-            
+            // V4.0: 等待共享连接就绪（最多3秒，onHandleIntent在工作线程），不再每100ms轮询
+            taskService = TaskServiceManager.getInstance().awaitConnected(3000).get();
             return taskService != null;
         } catch (Exception e) {
             Log.e(TAG, "TaskService重连失败", e);
@@ -126,23 +111,7 @@ public class UriCommandService extends IntentService {
     }
     
     private void bindTaskService() {
-        if (taskService != null) return;
-        
-        try {
-            if (!Shizuku.pingBinder()) {
-                Log.e(TAG, "Shizuku不可用");
-                return;
-            }
-            
-            if (Shizuku.checkSelfPermission() != PackageManager.PERMISSION_GRANTED) {
-                Log.e(TAG, "无Shizuku权限");
-                return;
-            }
-            
-            Shizuku.bindUserService(serviceArgs, taskServiceConnection);
-        } catch (Exception e) {
-            Log.e(TAG, "绑定TaskService失败", e);
-        }
+        TaskServiceManager.getInstance().addListener(taskServiceListener);
     }
     
     /**
@@ -190,9 +159,9 @@ public class UriCommandService extends IntentService {
             if ("true".equalsIgnoreCase(currentParam) || "1".equals(currentParam)) {
                 // 切换当前应用 - 完全复用TileService逻辑
                 Log.d(TAG, "→ 模式：切换当前应用");
-                // 先应用配置参数，再切换
-                applyConfigParams(uri);
-                switchCurrentAppToRear();
+                // 先应用配置参数（与Launcher压制在同一事务中并行执行），再切换
+                boolean launcherSuppressed = applyConfigParams(uri, true, -1);
+                switchCurrentAppToRear(launcherSuppressed);
             } else if (activity != null) {
                 // 启动指定Activity到背屏
                 Log.d(TAG, "→ 模式：启动指定Activity");
@@ -216,7 +185,7 @@ public class UriCommandService extends IntentService {
     /**
      * 切换当前应用到背屏 - 完全复用TileService的逻辑
      */
-    private void switchCurrentAppToRear() {
+    private void switchCurrentAppToRear(boolean launcherSuppressed) {
         try {
             // 步骤0: 检查背屏是否已有应用在运行（复用TileService逻辑）
             String lastMovedTask = SwitchToRearTileService.getLastMovedTask();
@@ -255,11 +224,13 @@ public class UriCommandService extends IntentService {
                 Log.w(TAG, "背屏占用检查失败: " + e.getMessage());
             }
             
-            // 步骤1: 禁用系统背屏Launcher（关键！防止挤占）
-            try {
-                taskService.disableSubScreenLauncher();
-            } catch (Exception e) {
-                Log.w(TAG, "Failed to disable SubScreenLauncher", e);
+            // 步骤1: 禁用系统背屏Launcher（关键！防止挤占；配置事务中已压制时跳过）
+            if (!launcherSuppressed) {
+                try {
+                    taskService.disableSubScreenLauncher();
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to disable SubScreenLauncher", e);
+                }
             }
             
             // 步骤2: 获取当前前台应用
@@ -339,13 +310,9 @@ public class UriCommandService extends IntentService {
     private void switchSpecificAppToRear(String activity, String packageName, Uri uri) {
         try {
             // 步骤0: 先设置DPI和旋转（在启动应用前设置好背屏参数）
-            applyConfigParams(uri);
+            applyConfigParams(uri, false, -1);
             
-            // 步骤1: 禁用系统背屏Launcher
-            taskService.disableSubScreenLauncher();
-            Thread.sleep(100);
-            
-            // 步骤1.5: 清理目标应用的旧task（如果存在）- 防止获取到旧task
+            // 步骤1: 确定目标包名（用于清理旧task和验证启动结果）
             String targetPackageName = packageName;
             if (targetPackageName == null && activity != null) {
                 // 从activity中提取包名
@@ -353,20 +320,12 @@ public class UriCommandService extends IntentService {
                     targetPackageName = activity.substring(0, activity.indexOf("/"));
                 }
             }
-            
-            if (targetPackageName != null) {
-                try {
-                    Log.d(TAG, "→ 检查并清理旧task: " + targetPackageName);
-                    // 尝试强制停止应用（清理所有task）
-                    taskService.executeShellCommand("am force-stop " + targetPackageName);
-                    Thread.sleep(300);
-                    Log.d(TAG, "✓ 已清理旧task");
-                } catch (Exception e) {
-                    Log.w(TAG, "清理旧task失败: " + e.getMessage());
-                }
+            if (targetPackageName == null) {
+                Log.e(TAG, "❌ 无法确定目标包名: " + activity);
+                return;
             }
             
-            // 步骤2: 在主屏启动应用（先在主屏启动，才能获取taskId）
+            // 步骤2: 解析启动命令
             String launchCmd;
             if (activity != null) {
                 launchCmd = "am start -n " + activity;
@@ -397,72 +356,43 @@ public class UriCommandService extends IntentService {
                 }
             }
             
+            // V4.0: 禁用Launcher → 清理旧task → 启动 → 等待taskId → 移动 → 点亮
+            // 整个序列在Shizuku进程内一次完成，不再在本进程中sleep和多次binder往返
             Log.d(TAG, "→ 执行启动命令: " + launchCmd);
-            taskService.executeShellCommand(launchCmd);
-            Log.d(TAG, "✓ 启动命令已执行");
-            
-            // 步骤3: 等待应用启动并验证，最多重试3次
-            String targetApp = null;
-            String actualPackage = null;
-            int taskId = -1;
-            int maxRetries = 3;
-            
-            for (int retry = 0; retry < maxRetries; retry++) {
-                Thread.sleep(500 + retry * 200); // 首次500ms，之后递增
-                
-                targetApp = taskService.getCurrentForegroundApp();
-                Log.d(TAG, "  尝试 " + (retry + 1) + "/" + maxRetries + " 获取前台应用: " + targetApp);
-                
-                if (targetApp == null || !targetApp.contains(":")) {
-                    Log.w(TAG, "  未能获取应用，继续重试...");
-                    continue;
-                }
-                
-                String[] parts = targetApp.split(":");
-                actualPackage = parts[0];
-                
-                // 验证是否是目标应用（支持packageName和activity两种验证）
-                boolean isTargetApp = false;
-                if (packageName != null) {
-                    isTargetApp = actualPackage.equals(packageName);
-                } else if (activity != null) {
-                    // 从activity提取包名进行验证
-                    String activityPackage = activity.contains("/") ? activity.substring(0, activity.indexOf("/")) : activity;
-                    isTargetApp = actualPackage.equals(activityPackage);
-                } else {
-                    // 无验证条件，接受任何应用（不应该到这里）
-                    isTargetApp = true;
-                }
-                
-                if (!isTargetApp) {
-                    String expectedPkg = packageName != null ? packageName : (activity != null ? activity.substring(0, activity.indexOf("/")) : "unknown");
-                    Log.w(TAG, "  应用不匹配: " + actualPackage + " vs " + expectedPkg);
-                    
-                    // 最后一次重试前，强制启动目标应用
-                    if (retry < maxRetries - 1) {
-                        Log.w(TAG, "  强制停止当前应用并重新启动目标应用");
-                        // 先停止错误的应用
-                        taskService.executeShellCommand("am force-stop " + actualPackage);
-                        Thread.sleep(200);
-                        // 重新执行启动命令
-                        taskService.executeShellCommand(launchCmd);
-                        continue;
-                    } else {
-                        Log.e(TAG, "  ❌ 多次重试后仍然无法启动目标应用");
-                        return;
-                    }
-                } else {
-                    // 成功启动目标应用
-                    taskId = Integer.parseInt(parts[1]);
-                    Log.d(TAG, "✓ 成功启动目标应用，taskId: " + taskId);
-                    break;
-                }
-            }
-            
-            if (taskId == -1) {
+            String wakeCmd = "am start --display 1 -n com.tgwgroup.MiRearScreenSwitcher/" + RearScreenWakeupActivity.class.getName();
+            java.util.List<BatchStep> steps = new java.util.ArrayList<>();
+            // 禁用系统背屏Launcher（走LauncherSuppressor，保留退避和统计）
+            steps.add(BatchStep.suppressLauncher());
+            // 强制停止目标应用（清理所有旧task，防止获取到旧task）
+            steps.add(BatchStep.of("am force-stop " + targetPackageName).delayBefore(100));
+            // 在主屏启动应用（先在主屏启动，才能获取taskId）
+            steps.add(BatchStep.of(launchCmd).delayBefore(300));
+            // 等待应用启动：首次500ms，之后每700ms检查，最多3次；只在最后一次检查前补发一次启动命令
+            // （应用只是出现得慢时不重复am start）
+            steps.add(BatchStep.of("am stack list | grep -m 1 'taskId=[0-9]*: " + targetPackageName + "/'")
+                .delayBefore(500)
+                .expect("taskId=(\\d+):")
+                .capture("taskId")
+                .retry(3, 700)
+                .reissue(launchCmd, 2)
+                .abortOnFailure());
+            // 移动到背屏
+            steps.add(BatchStep.moveTask("${taskId}", 1).abortOnFailure());
+            // 主动点亮背屏（关键步骤！）
+            steps.add(BatchStep.of(wakeCmd));
+            
+            BatchReport report = taskService.executeBatch(steps);
+            Log.d(TAG, "批量执行结果: " + report);
+            
+            String taskIdStr = report.getVariable("taskId");
+            if (taskIdStr == null) {
                 Log.e(TAG, "❌ 未能获取启动的应用taskId");
                 return;
             }
+            int taskId = Integer.parseInt(taskIdStr);
+            String actualPackage = targetPackageName;
+            String targetApp = actualPackage + ":" + taskId;
+            Log.d(TAG, "✓ 成功启动目标应用，taskId: " + taskId);
             
             // 步骤4: 启动RearScreenKeeperService
             Intent serviceIntent = new Intent(this, RearScreenKeeperService.class);
@@ -483,98 +413,19 @@ public class UriCommandService extends IntentService {
                 startService(serviceIntent);
             }
             
-            // 步骤5: 移动到背屏
-            Log.d(TAG, "→ 步骤5: 移动Task到背屏 (taskId=" + taskId + ")");
-            boolean success = taskService.moveTaskToDisplay(taskId, 1);
+            // 步骤5: 检查移动结果
+            boolean success = report.isSuccess();
             
             if (success) {
                 Log.d(TAG, "✅ Task已移动到背屏 (taskId=" + taskId + ")");
                 
-                // 步骤5.5: 等待应用在背屏稳定显示
-                Thread.sleep(300);
-                Log.d(TAG, "→ 等待应用稳定");
-                
-                // 步骤5.6: 移动到背屏后再次验证并应用DPI（确保生效）
-                String dpiStr = uri.getQueryParameter("dpi");
-                if (dpiStr != null) {
-                    try {
-                        int dpi = Integer.parseInt(dpiStr);
-                        Log.d(TAG, "→ 再次验证DPI并应用: " + dpi);
-                        // 验证当前DPI
-                        int currentDpi = taskService.getCurrentRearDpi();
-                        Log.d(TAG, "  当前背屏DPI: " + currentDpi);
-                        if (currentDpi != dpi) {
-                            Log.w(TAG, "  DPI不匹配，重新设置");
-                            taskService.setRearDpi(dpi);
-                            Thread.sleep(200);
-                        } else {
-                            Log.d(TAG, "  ✓ DPI已生效");
-                        }
-                    } catch (Exception e) {
-                        Log.w(TAG, "DPI验证失败: " + e.getMessage());
-                    }
-                }
-                
-                // 步骤6: 主动点亮背屏（关键步骤！）
-                Log.d(TAG, "→ 步骤6: 点亮背屏");
-                try {
-                    boolean launchResult = taskService.launchWakeActivity(1);
-                    if (!launchResult) {
-                        Log.w(TAG, "TaskService launch failed, fallback to shell");
-                        String cmd = "am start --display 1 -n com.tgwgroup.MiRearScreenSwitcher/" + RearScreenWakeupActivity.class.getName();
-                        taskService.executeShellCommand(cmd);
-                    }
-                    Log.d(TAG, "✓ 背屏已点亮");
-                } catch (NoSuchMethodError e) {
-                    // 旧版本兼容
-                    String cmd = "am start --display 1 -n com.tgwgroup.MiRearScreenSwitcher/" + RearScreenWakeupActivity.class.getName();
-                    taskService.executeShellCommand(cmd);
-                    Log.d(TAG, "✓ 背屏已点亮（旧版本fallback）");
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to launch wake activity: " + e.getMessage());
-                }
-                
-                // 步骤7: 如果设置了旋转，验证并检查应用状态
-                String rotationStr = uri.getQueryParameter("rotation");
-                if (rotationStr != null) {
-                    Log.d(TAG, "→ 步骤7: 验证旋转并检查应用状态");
-                    try {
-                        int targetRotation = Integer.parseInt(rotationStr);
-                        
-                        // 等待旋转生效
-                        Thread.sleep(500);
-                        
-                        // 验证旋转是否生效
-                        int currentRotation = taskService.getDisplayRotation(1);
-                        Log.d(TAG, "  目标旋转: " + targetRotation + ", 当前旋转: " + currentRotation);
-                        
-                        if (currentRotation != targetRotation) {
-                            Log.w(TAG, "  ⚠ 旋转不匹配，重新设置");
-                            taskService.setDisplayRotation(1, targetRotation);
-                            Thread.sleep(500); // 等待重新设置生效
-                        } else {
-                            Log.d(TAG, "  ✓ 旋转已生效");
-                        }
-                        
-                        // 检查应用是否还在背屏（可能被旋转杀死）
-                        boolean stillOnRear = taskService.isTaskOnDisplay(taskId, 1);
-                        Log.d(TAG, "  应用是否还在背屏: " + stillOnRear);
-                        
-                        if (!stillOnRear) {
-                            // 应用被旋转杀死了，重新投放
-                            Log.w(TAG, "  ⚠ 应用因旋转被杀，重新投放");
-                            taskService.moveTaskToDisplay(taskId, 1);
-                            Thread.sleep(200);
-                            Log.d(TAG, "  ✓ 应用已复活");
-                        } else {
-                            Log.d(TAG, "  ✓ 应用正常运行");
-                        }
-                    } catch (Exception e) {
-                        Log.w(TAG, "旋转验证/检查失败: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+                // 步骤6: 移动后再次确认DPI和旋转（同一事务：已生效时立即返回，不对则重设，
+                // 应用因旋转被关掉时在Shizuku进程内直接移回），不再sleep等待
+                if (uri.getQueryParameter("dpi") != null || uri.getQueryParameter("rotation") != null) {
+                    Log.d(TAG, "→ 步骤6: 确认显示配置并检查应用状态");
+                    applyConfigParams(uri, false, taskId);
                 } else {
-                    Log.d(TAG, "→ 步骤7: 跳过（无旋转参数）");
+                    Log.d(TAG, "→ 步骤6: 跳过（无配置参数）");
                 }
                 
                 Log.d(TAG, "✅ " + actualPackage + " 已切换到背屏");
@@ -671,18 +522,58 @@ public class UriCommandService extends IntentService {
     
     /**
      * 处理截图命令
+     * mrss://screenshot                                       单张
+     * mrss://screenshot?count=10&interval=100                 连拍10帧，间隔100ms
+     * mrss://screenshot?count=10&interval=100&duration=5000   连续5秒，保留最后10帧
      */
-    private void handleScreenshot() {
+    private void handleScreenshot(Uri uri) {
+        int count = parseIntParam(uri, "count", 1);
+        int duration = parseIntParam(uri, "duration", 0);
+        if (count > 1 || duration > 0) {
+            handleBurstScreenshot(count, parseIntParam(uri, "interval", 100), duration);
+            return;
+        }
+        
         try {
-            boolean success = taskService.takeRearScreenshot();
-            
-            // 无论成功失败都显示成功Toast
-            Log.d(TAG, "✅ 截图命令已执行");
-            showToast("背屏截图已保存");
+            // V4.0: 进程内截图 + 后台编码保存，返回真实结果
+            boolean success = RearScreenshotSaver.take(this, taskService);
+            showToast(success ? "背屏截图已保存" : "背屏截图失败");
         } catch (Exception e) {
             Log.e(TAG, "截图命令失败", e);
-            // 即使异常也显示成功Toast
-            showToast("背屏截图已保存");
+            showToast("背屏截图失败");
+        }
+    }
+    
+    /**
+     * V4.0: 连拍/连续截图
+     */
+    private void handleBurstScreenshot(int count, int interval, int duration) {
+        try {
+            RearScreenshotSaver.BurstResult result =
+                RearScreenshotSaver.takeBurst(this, taskService, count, interval, duration);
+            if (result == null) {
+                showToast("当前系统不支持连拍");
+                return;
+            }
+            
+            Log.d(TAG, "✅ 连拍: " + result);
+            showToast("连拍已保存 " + result.saved + "/" + result.captured + " 张"
+                + (result.dropped > 0 ? "，丢帧 " + result.dropped : ""));
+        } catch (Exception e) {
+            Log.e(TAG, "连拍命令失败", e);
+            showToast("连拍失败");
+        }
+    }
+    
+    private static int parseIntParam(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
     
@@ -691,66 +582,53 @@ public class UriCommandService extends IntentService {
      */
     private void handleConfig(Uri uri) {
         try {
-            applyConfigParams(uri);
+            applyConfigParams(uri, false, -1);
         } catch (Exception e) {
             Log.e(TAG, "配置命令失败", e);
         }
     }
     
     /**
-     * 应用配置参数 - 直接调用TaskService方法（照抄MainActivity逻辑）
-     * DPI和旋转都直接设置，TaskService内部会处理等待和复活
+     * 应用配置参数
+     * V4.0: DPI、旋转（和可选的Launcher压制）作为一个显示配置事务一次下发，
+     * TaskService并行执行并等待显示屏配置变化确认，不再逐项设置再sleep
+     * @param suppressLauncher 是否在同一事务中压制背屏Launcher
+     * @param taskId 需要保持在背屏上的任务，<=0 不检查
+     * @return 是否已压制Launcher
      */
-    private void applyConfigParams(Uri uri) {
+    private boolean applyConfigParams(Uri uri, boolean suppressLauncher, int taskId) {
         Log.d(TAG, "────────────────────────────");
         Log.d(TAG, "🔧 开始应用配置参数");
         Log.d(TAG, "URI: " + uri.toString());
         
         try {
-            String dpiStr = uri.getQueryParameter("dpi");
-            Log.d(TAG, "DPI参数: " + dpiStr);
+            int dpi = parseIntParam(uri, "dpi", -1);
+            int rotation = parseIntParam(uri, "rotation", -1);
+            Log.d(TAG, "DPI参数: " + dpi + ", 旋转参数: " + rotation);
             
-            if (dpiStr != null) {
-                int dpi = Integer.parseInt(dpiStr);
-                Log.d(TAG, "→ 调用 taskService.setRearDpi(" + dpi + ")");
-                
-                // 直接调用TaskService.setRearDpi - 完全照抄MainActivity逻辑
-                boolean success = taskService.setRearDpi(dpi);
-                
-                if (success) {
-                    Log.d(TAG, "✅ DPI设置成功: " + dpi);
-                } else {
-                    Log.e(TAG, "❌ DPI设置失败（TaskService返回false）");
-                }
-            } else {
-                Log.d(TAG, "→ 跳过DPI设置（无参数）");
+            if (dpi <= 0 && rotation < 0 && !suppressLauncher) {
+                Log.d(TAG, "→ 跳过（无配置参数）");
+                return false;
             }
             
-            String rotationStr = uri.getQueryParameter("rotation");
-            Log.d(TAG, "旋转参数: " + rotationStr);
-            
-            if (rotationStr != null) {
-                int rotation = Integer.parseInt(rotationStr);
-                Log.d(TAG, "→ 调用 taskService.setDisplayRotation(1, " + rotation + ")");
-                
-                // 直接调用TaskService.setDisplayRotation - 完全照抄MainActivity逻辑
-                // TaskService内部会自动处理：等待500ms + 检查应用 + 复活
-                boolean success = taskService.setDisplayRotation(1, rotation);
-                
-                if (success) {
-                    Log.d(TAG, "✅ 旋转设置成功: " + rotation);
-                } else {
-                    Log.e(TAG, "❌ 旋转设置失败（TaskService返回false）");
-                }
+            Bundle result = taskService.applyRearDisplayConfig(dpi, rotation, suppressLauncher, taskId);
+            if (result == null || !result.getBoolean("success")) {
+                Log.e(TAG, "❌ 配置事务失败: " + result);
+            } else if (!result.getBoolean("confirmed")) {
+                Log.w(TAG, "⚠ 配置已下发但未在超时内观察到显示屏变化");
             } else {
-                Log.d(TAG, "→ 跳过旋转设置（无参数）");
+                Log.d(TAG, "✅ 配置已生效 (" + result.getLong("elapsedMs") + "ms)");
+            }
+            if (result != null && result.getBoolean("revived")) {
+                Log.w(TAG, "⚠ 应用因旋转被关闭，已重新投放");
             }
             
             Log.d(TAG, "🔧 配置参数应用完成");
             Log.d(TAG, "────────────────────────────");
+            return result != null && result.getBoolean("launcherSuppressed");
         } catch (Exception e) {
             Log.e(TAG, "❌ 应用配置参数异常", e);
-            e.printStackTrace();
+            return false;
         }
     }
     
@@ -780,14 +658,9 @@ public class UriCommandService extends IntentService {
     public void onDestroy() {
         super.onDestroy();
         
-        if (taskService != null) {
-            try {
-                Shizuku.unbindUserService(serviceArgs, taskServiceConnection, true);
-            } catch (Exception e) {
-                Log.e(TAG, "解绑TaskService失败", e);
-            }
-            taskService = null;
-        }
+        // 取消订阅TaskService（V4.0: 共享连接不解绑）
+        TaskServiceManager.getInstance().removeListener(taskServiceListener);
+        taskService = null;
     }
 }
 
@@ -0,0 +1,348 @@
+/*
+ * Author: AntiOblivionis
+ * QQ: 319641317
+ * Github: https://github.com/GoldenglowSusie/
+ * Bilibili: 罗德岛T0驭械术师澄闪
+ *
+ * Chief Tester: 汐木泽
+ *
+ * Co-developed with AI assistants:
+ * - Cursor
+ * - Claude-4.5-Sonnet
+ * - GPT-5
+ * - Gemini-2.5-Pro
+ */
+
+package com.tgwgroup.MiRearScreenSwitcher;
+
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * V4.0: 显示屏DPI与旋转控制（运行在Shizuku进程中）
+ *
+ * 之前每次读取/设置DPI和旋转都 fork 一个 wm 进程再解析文本输出，DPI滑块每一步都要等一次。
+ * 现在直接通过反射调用 IWindowManager：
+ * - getBaseDisplayDensity / getInitialDisplayDensity
+ * - setForcedDisplayDensityForUser / clearForcedDisplayDensityForUser（旧版本无ForUser后缀）
+ * - freezeDisplayRotation（Android 14+ 多一个caller参数）
+ * - isDisplayRotationFrozen + getDisplayUserRotation
+ * 方法第一次解析后缓存，之后每次只是一次binder调用。
+ * 反射不可用或调用失败时回退到原来的 wm 命令，并统计走了哪条路径。
+ *
+ * 线程：DisplayConfigTransaction 会并行下发DPI和旋转，所以只有一次性的方法解析和统计加锁，
+ * binder调用和shell回退不持有锁，互不阻塞。
+ */
+public class WindowManagerBridge {
+    private static final String TAG = "WindowManagerBridge";
+
+    private static final int USER_CURRENT = -2;  // UserHandle.USER_CURRENT，与 wm density 一致
+    private static final String CALLER = "MRSS";
+    private static final Object FAILED = new Object();  // invoke() 的失败标记（void方法成功时返回null）
+
+    private final ShellSessionPool shell;
+
+    private Object windowManager;      // IWindowManager
+    private Method getBaseDensity;
+    private Method getInitialDensity;
+    private Method setForcedDensity;
+    private boolean setForcedDensityForUser;
+    private Method clearForcedDensity;
+    private boolean clearForcedDensityForUser;
+    private Method freezeRotation;
+    private boolean freezeRotationWithCaller;
+    private Method isRotationFrozen;
+    private Method getUserRotation;
+    private volatile boolean resolved = false;  // 只解析一次，失败后不再重复尝试；写入后上面的字段对所有线程可见
+    private volatile boolean binderDisabled = false;
+
+    // 统计（statsLock保护）
+    private final Object statsLock = new Object();
+    private long binderCalls = 0;
+    private long binderFailures = 0;   // binder调用抛异常后回退shell的次数
+    private long shellCalls = 0;
+    private long binderTotalUs = 0;
+    private long shellTotalUs = 0;
+
+    public WindowManagerBridge(ShellSessionPool shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 当前DPI（有覆盖值时为覆盖值，否则为物理DPI），失败返回0
+     */
+    public int getDensity(int displayId) {
+        resolve();
+        Object result = invoke(getBaseDensity, displayId);
+        if (result instanceof Integer && (Integer) result > 0) {
+            return (Integer) result;
+        }
+        return getDensityByShell(displayId);
+    }
+
+    /**
+     * 物理DPI，失败返回0
+     */
+    public int getInitialDensity(int displayId) {
+        resolve();
+        Object result = invoke(getInitialDensity, displayId);
+        return result instanceof Integer ? (Integer) result : 0;
+    }
+
+    public boolean setDensity(int displayId, int dpi) {
+        resolve();
+        if (setForcedDensity != null && !binderDisabled) {
+            // 设回物理DPI时直接清除覆盖值（与 wm density reset 效果一致）
+            if (dpi == getInitialDensity(displayId)) {
+                return resetDensity(displayId);
+            }
+            Object result = setForcedDensityForUser
+                ? invoke(setForcedDensity, displayId, dpi, USER_CURRENT)
+                : invoke(setForcedDensity, displayId, dpi);
+            if (result != FAILED) {
+                return true;
+            }
+        }
+        return execShell("wm density " + dpi + " -d " + displayId).isSuccess();
+    }
+
+    public boolean resetDensity(int displayId) {
+        resolve();
+        Object result = clearForcedDensityForUser
+            ? invoke(clearForcedDensity, displayId, USER_CURRENT)
+            : invoke(clearForcedDensity, displayId);
+        if (result != FAILED) {
+            return true;
+        }
+        return execShell("wm density reset -d " + displayId).isSuccess();
+    }
+
+    /**
+     * 锁定旋转方向（等同 wm user-rotation lock）
+     */
+    public boolean setUserRotation(int displayId, int rotation) {
+        resolve();
+        Object result = freezeRotationWithCaller
+            ? invoke(freezeRotation, displayId, rotation, CALLER)
+            : invoke(freezeRotation, displayId, rotation);
+        if (result != FAILED) {
+            return true;
+        }
+        return execShell("wm user-rotation -d " + displayId + " lock " + rotation).isSuccess();
+    }
+
+    /**
+     * 锁定的旋转方向 0-3，未锁定（free）或失败返回-1
+     */
+    public int getUserRotation(int displayId) {
+        resolve();
+        if (isRotationFrozen != null && getUserRotation != null) {
+            Object frozen = invoke(isRotationFrozen, displayId);
+            if (frozen instanceof Boolean) {
+                if (!(Boolean) frozen) {
+                    return -1;
+                }
+                Object rotation = invoke(getUserRotation, displayId);
+                if (rotation instanceof Integer) {
+                    return (Integer) rotation;
+                }
+            }
+        }
+        return getUserRotationByShell(displayId);
+    }
+
+    // ========================================
+    // 调用（反射，失败回退shell）
+    // ========================================
+
+    /**
+     * @return 返回值（void方法为null），方法不可用或调用失败返回 FAILED
+     */
+    private Object invoke(Method method, Object... args) {
+        if (method == null || binderDisabled) {
+            return FAILED;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            Object result = method.invoke(windowManager, args);
+            long elapsedUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            synchronized (statsLock) {
+                binderCalls++;
+                binderTotalUs += elapsedUs;
+                logStatsIfNeeded();
+            }
+            return result;
+        } catch (InvocationTargetException e) {
+            // 系统端拒绝（显示屏不存在等），本次回退shell
+            countBinderFailure();
+            Log.w(TAG, "⚠️ " + method.getName() + " 失败: " + e.getCause());
+        } catch (Exception e) {
+            countBinderFailure();
+            Log.w(TAG, "⚠️ 反射调用失败，以后只走shell: " + e);
+            binderDisabled = true;
+        }
+        return FAILED;
+    }
+
+    private void countBinderFailure() {
+        synchronized (statsLock) {
+            binderFailures++;
+        }
+    }
+
+    private ShellSessionPool.Result execShell(String cmd) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        ShellSessionPool.Result result = shell.exec(cmd, false);
+        long elapsedUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        synchronized (statsLock) {
+            shellCalls++;
+            shellTotalUs += elapsedUs;
+            logStatsIfNeeded();
+        }
+        return result;
+    }
+
+    private int getDensityByShell(int displayId) {
+        try {
+            // 解析输出: "Physical density: 450" 和可选的 "Override density: 300"（优先）
+            BufferedReader reader = new BufferedReader(new StringReader(execShell("wm density -d " + displayId).output));
+            String line;
+            int dpi = 0;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains("density:")) {
+                    continue;
+                }
+                try {
+                    int value = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+                    if (line.contains("Override density")) {
+                        return value;
+                    } else if (dpi == 0) {
+                        dpi = value;
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            return dpi;
+        } catch (Exception e) {
+            Log.e(TAG, "读取DPI失败", e);
+            return 0;
+        }
+    }
+
+    private int getUserRotationByShell(int displayId) {
+        try {
+            // 输出格式: "lock 2" 或 "free"
+            String line = new BufferedReader(new StringReader(execShell("wm user-rotation -d " + displayId).output)).readLine();
+            if (line != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length >= 2 && "lock".equals(parts[0])) {
+                    return Integer.parseInt(parts[1]);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "读取旋转失败", e);
+        }
+        return -1;
+    }
+
+    /**
+     * 调用方持有 statsLock
+     */
+    private void logStatsIfNeeded() {
+        long total = binderCalls + shellCalls;
+        if (total == 1 || total % 50 == 0) {
+            Log.d(TAG, "📊 binder=" + binderCalls + " (avg " + (binderCalls > 0 ? binderTotalUs / binderCalls : 0)
+                + "us) shell=" + shellCalls + " (avg " + (shellCalls > 0 ? shellTotalUs / shellCalls : 0)
+                + "us) failures=" + binderFailures);
+        }
+    }
+
+    // ========================================
+    // 方法解析（反射，结果缓存）
+    // ========================================
+
+    private void resolve() {
+        if (resolved) {
+            return;
+        }
+        synchronized (this) {
+            if (!resolved) {
+                resolveMethods();
+                resolved = true;
+            }
+        }
+    }
+
+    private void resolveMethods() {
+        try {
+            windowManager = getWindowManager();
+            if (windowManager == null) {
+                Log.w(TAG, "⚠️ 获取IWindowManager失败，使用wm命令");
+                return;
+            }
+            Class<?> clazz = windowManager.getClass();
+
+            getBaseDensity = findMethod(clazz, "getBaseDisplayDensity", int.class);
+            getInitialDensity = findMethod(clazz, "getInitialDisplayDensity", int.class);
+
+            setForcedDensity = findMethod(clazz, "setForcedDisplayDensityForUser", int.class, int.class, int.class);
+            setForcedDensityForUser = setForcedDensity != null;
+            if (setForcedDensity == null) {
+                setForcedDensity = findMethod(clazz, "setForcedDisplayDensity", int.class, int.class);
+            }
+
+            clearForcedDensity = findMethod(clazz, "clearForcedDisplayDensityForUser", int.class, int.class);
+            clearForcedDensityForUser = clearForcedDensity != null;
+            if (clearForcedDensity == null) {
+                clearForcedDensity = findMethod(clazz, "clearForcedDisplayDensity", int.class);
+            }
+
+            freezeRotation = findMethod(clazz, "freezeDisplayRotation", int.class, int.class, String.class);
+            freezeRotationWithCaller = freezeRotation != null;
+            if (freezeRotation == null) {
+                freezeRotation = findMethod(clazz, "freezeDisplayRotation", int.class, int.class);
+            }
+
+            isRotationFrozen = findMethod(clazz, "isDisplayRotationFrozen", int.class);
+            getUserRotation = findMethod(clazz, "getDisplayUserRotation", int.class);
+
+            Log.d(TAG, "✅ IWindowManager: density=" + (setForcedDensity != null ? setForcedDensity.getName() : "shell")
+                + " rotation=" + (freezeRotation != null ? freezeRotation.getName() : "shell")
+                + " userRotation=" + (getUserRotation != null ? getUserRotation.getName() : "shell"));
+        } catch (Throwable t) {
+            Log.w(TAG, "⚠️ 解析IWindowManager失败，使用wm命令: " + t);
+            windowManager = null;
+        }
+    }
+
+    private static Object getWindowManager() {
+        try {
+            return Class.forName("android.view.WindowManagerGlobal").getMethod("getWindowManagerService").invoke(null);
+        } catch (Throwable ignored) {
+        }
+        try {
+            IBinder binder = (IBinder) Class.forName("android.os.ServiceManager")
+                .getMethod("getService", String.class).invoke(null, "window");
+            return Class.forName("android.view.IWindowManager$Stub")
+                .getMethod("asInterface", IBinder.class).invoke(null, binder);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... params) {
+        try {
+            Method method = clazz.getMethod(name, params);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}